@@ -0,0 +1,366 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+
+//
+// Dense columnar storage for fully discrete datasets.
+//
+
+// File: ColumnarVector.java
+// Author: rodo@dgs.monash.edu.au
+
+package camml.core.library;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import cdms.core.*;
+
+/**
+ * ColumnarVector stores a dataset of bounded discrete variables as one int[] per variable. <br>
+ *
+ * Node costing is dominated by counting parent combinations.  When data is held as boxed
+ * cdms Values each count requires several virtual calls (and often an allocation) per cell.
+ * Learners which know about ColumnarVector (CPT, Multinomial) may access the raw arrays
+ * directly and tally counts in a single tight loop. <br>
+ *
+ * Column views are shared, so select() is cheap and makes no copy of the data. <br>
+ *
+ * NOTE: Only datasets where every value is proper (no missing or intervention values) and every
+ *       row has unit weight may be converted.  toColumnar() returns null in all other cases.
+ */
+public class ColumnarVector extends Value.Vector
+{
+    /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+    private static final long serialVersionUID = -2604410785337366203L;
+
+    /** column[i][j] = value of variable i in row j */
+    protected final int[][] column;
+    
+    /** Lower bound of each column. */
+    protected final int[] lwb;
+    
+    /** Number of states of each column. */
+    protected final int[] arity;
+    
+    /** Number of rows. */
+    protected final int numRows;
+    
+    /** Lazily created cmpnt vectors. */
+    protected final Column[] cmpntArray;
+    
+    /** Full dataset this vector is a view of (root == this for the full dataset) */
+    protected final ColumnarVector root;
+    
+    /** rootCol[i] is the index of column i in root */
+    protected final int[] rootCol;
+    
+    /** Optional count index over root, only set on root. */
+    protected transient volatile ContingencyIndex index;
+    
+    /** If true, index is built the first time it is requested.  Only set on root. */
+    protected transient volatile boolean indexEnabled = false;
+    
+    /** Row partitions shared by DTree splits of this dataset, only set on root. */
+    protected transient RowPartitionCache partitionCache;
+    
+    /** Results cached by learners for this dataset, only set on root. */
+    protected transient ConcurrentHashMap<Object,Object> learnerCache;
+    
+    /** Constructor, arrays are used directly (not copied) */
+    protected ColumnarVector( Type.Vector t, int[][] column, int[] lwb, int[] arity, int numRows,
+                              ColumnarVector root, int[] rootCol )
+    {
+        super( t );
+        this.column = column;
+        this.lwb = lwb;
+        this.arity = arity;
+        this.numRows = numRows;
+        this.cmpntArray = new Column[column.length];
+        this.root = (root == null) ? this : root;
+        this.rootCol = rootCol;
+    }
+    
+    /**
+     * Attempt to create a ColumnarVector containing the same values as data.  
+     * If data is not a vector of structured bounded discrete values, or contains any 
+     * missing/intervention values or non unit weights, null is returned.
+     */
+    public static ColumnarVector toColumnar( Value.Vector data )
+    {
+        if ( data instanceof ColumnarVector ) { return (ColumnarVector)data; }
+        
+        Type.Vector vType = (Type.Vector)data.t;
+        if ( !(vType.elt instanceof Type.Structured) ) { return null; }
+        Type.Structured sType = (Type.Structured)vType.elt;
+        
+        int numCols = sType.cmpnts.length;
+        int numRows = data.length();
+        int[] lwb = new int[numCols];
+        int[] arity = new int[numCols];
+        
+        // Check all columns are bounded discrete.
+        for ( int i = 0; i < numCols; i++ ) {
+            if ( !(sType.cmpnts[i] instanceof Type.Discrete) ) { return null; }
+            Type.Discrete dType = (Type.Discrete)sType.cmpnts[i];
+            double range = dType.UPB - dType.LWB + 1;
+            if ( Double.isInfinite(range) || Double.isNaN(range) || range > Integer.MAX_VALUE ) {
+                return null;
+            }
+            lwb[i] = (int)dType.LWB;
+            arity[i] = (int)range;
+        }
+        
+        // Weighted rows cannot be represented.
+        for ( int j = 0; j < numRows; j++ ) {
+            if ( data.weight(j) != 1.0 ) { return null; }
+        }
+        
+        // Copy each column, checking values are proper and in range.
+        int[][] column = new int[numCols][];
+        for ( int i = 0; i < numCols; i++ ) {
+            Value.Vector vec = data.cmpnt(i);
+            int[] col = new int[numRows];
+            
+            // FastDiscreteVector (and MappedColumn without status bytes) cannot hold status
+            // information, so statuses need not be checked.
+            boolean checkStatus = (vec.getClass() != VectorFN.FastDiscreteVector.class) &&
+                !(vec instanceof DataCache.MappedColumn && !((DataCache.MappedColumn)vec).hasStatus());
+            for ( int j = 0; j < numRows; j++ ) {
+                if ( checkStatus && vec.elt(j).status() != Value.S_PROPER ) { return null; }
+                if ( vec.weight(j) != 1.0 ) { return null; }
+                int x = vec.intAt(j);
+                if ( x < lwb[i] || x - lwb[i] >= arity[i] ) { return null; }
+                col[j] = x;
+            }
+            column[i] = col;
+        }
+        
+        int[] rootCol = new int[numCols];
+        for ( int i = 0; i < rootCol.length; i++ ) { rootCol[i] = i; }
+        return new ColumnarVector( vType, column, lwb, arity, numRows, null, rootCol );
+    }
+    
+    /**
+     * Create a ColumnarVector of type t backed directly by column (column[i][j] = value of
+     * variable i in row j).  No data is copied or checked, so every value must lie within the
+     * bounds of the corresponding (bounded discrete) element type.
+     */
+    public static ColumnarVector wrap( Type.Vector t, int[][] column )
+    {
+        Type.Structured sType = (Type.Structured)t.elt;
+        int numCols = column.length;
+        int[] lwb = new int[numCols];
+        int[] arity = new int[numCols];
+        int[] rootCol = new int[numCols];
+        for ( int i = 0; i < numCols; i++ ) {
+            Type.Discrete dType = (Type.Discrete)sType.cmpnts[i];
+            lwb[i] = (int)dType.LWB;
+            arity[i] = (int)(dType.UPB - dType.LWB + 1);
+            rootCol[i] = i;
+        }
+        int numRows = (numCols == 0) ? 0 : column[0].length;
+        return new ColumnarVector( t, column, lwb, arity, numRows, null, rootCol );
+    }
+    
+    /** Return a view containing only the specified columns.  No data is copied. */
+    public ColumnarVector select( int[] col )
+    {
+        int[][] newColumn = new int[col.length][];
+        int[] newLwb = new int[col.length];
+        int[] newArity = new int[col.length];
+        int[] newRootCol = new int[col.length];
+        for ( int i = 0; i < col.length; i++ ) {
+            newColumn[i] = column[col[i]];
+            newLwb[i] = lwb[col[i]];
+            newArity[i] = arity[col[i]];
+            newRootCol[i] = rootCol[col[i]];
+        }
+        Type.Vector newType = SelectedVector.makeSelectedVectorType( (Type.Vector)t, col );
+        return new ColumnarVector( newType, newColumn, newLwb, newArity, numRows, 
+                                   root, newRootCol );
+    }
+    
+    /** Return the full dataset this vector is a view of. */
+    public ColumnarVector getRoot() { return root; }
+    
+    /** Return the index of column i in getRoot() */
+    public int getRootCol( int i ) { return rootCol[i]; }
+    
+    /** 
+     * Return the cache of row partitions for splits of the root dataset, creating it if 
+     * required.  The cache is released along with the dataset.
+     */
+    public RowPartitionCache getPartitionCache()
+    {
+        synchronized ( root ) {
+            if ( root.partitionCache == null ) { 
+                root.partitionCache = new RowPartitionCache( root ); 
+            }
+            return root.partitionCache;
+        }
+    }
+    
+    /** 
+     * Return a map learners may use to cache results for the root dataset, keyed by any 
+     * object the learner chooses.  Entries are released along with the dataset.
+     */
+    public ConcurrentHashMap<Object,Object> getLearnerCache()
+    {
+        synchronized ( root ) {
+            if ( root.learnerCache == null ) { 
+                root.learnerCache = new ConcurrentHashMap<Object,Object>(); 
+            }
+            return root.learnerCache;
+        }
+    }
+    
+    /** 
+     * Return the count index attached to the root dataset.  If enableIndex() has been called
+     * the index is built on first use, otherwise null is returned unless makeIndex() was called.
+     */
+    public ContingencyIndex getIndex() 
+    { 
+        ContingencyIndex index = root.index;
+        if ( index == null && root.indexEnabled ) { index = makeIndex(); }
+        return index;
+    }
+    
+    /** Return true if a count index has been built for the root dataset. */
+    public boolean hasIndex() { return root.index != null; }
+    
+    /** 
+     * Allow a ContingencyIndex to be built for the root dataset the first time getIndex() is
+     * called.  Building is deferred as the index is only useful to CPT based learners.
+     */
+    public void enableIndex() { root.indexEnabled = true; }
+    
+    /** Build a ContingencyIndex for the root dataset (if not already built) and return it. */
+    public ContingencyIndex makeIndex()
+    {
+        synchronized ( root ) {
+            if ( root.index == null ) { root.index = new ContingencyIndex( root ); }
+            return root.index;
+        }
+    }
+    
+    /** Return the number of columns. */
+    public int getNumCmpnts() { return column.length; }
+    
+    /** Return the raw array of column i.  This array must not be modified. */
+    public int[] getColumn( int i ) { return column[i]; }
+    
+    /** Return the lower bound of column i */
+    public int getLwb( int i ) { return lwb[i]; }
+    
+    /** Return the number of states column i may take. */
+    public int getArity( int i ) { return arity[i]; }
+    
+    /** return the length of the vector */
+    public int length() { return numRows; }
+    
+    /** Return row i as a structure.  This is slow and should be avoided where possible. */
+    public Value elt( int i )
+    {
+        int[] row = new int[column.length];
+        for ( int j = 0; j < row.length; j++ ) { row[j] = column[j][i]; }
+        return new StructureFN.FastDiscreteStructure( (Type.Structured)((Type.Vector)t).elt, row );
+    }
+    
+    /** Return the specified column. */
+    public Value.Vector cmpnt( int col )
+    {
+        if ( cmpntArray[col] == null ) {
+            Type.Discrete eltType = (Type.Discrete)((Type.Structured)((Type.Vector)t).elt).cmpnts[col];
+            cmpntArray[col] = new Column( column[col], eltType, lwb[col], arity[col], 
+                                          root, rootCol[col] );
+        }
+        return cmpntArray[col];
+    }
+    
+    /** 
+     * Return combined index of parent states for each row.  Index is calculated as 
+     * sum_j( (z_j - lwb_j) * multiplier[j] ) as in CPT.decodeParents
+     */
+    public int[] decodeRows( int[] multiplier )
+    {
+        int[] decoded = new int[numRows];
+        for ( int j = 0; j < column.length; j++ ) {
+            final int[] col = column[j];
+            final int m = multiplier[j];
+            final int l = lwb[j];
+            for ( int i = 0; i < numRows; i++ ) { decoded[i] += m * (col[i] - l); }
+        }
+        return decoded;
+    }
+    
+    /**
+     * A single column of a ColumnarVector.  This is a FastDiscreteVector with the
+     * bounds of the column recorded so learners can tally counts directly.
+     */
+    public static class Column extends VectorFN.FastDiscreteVector
+    {
+        /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+        private static final long serialVersionUID = 4935276245012874163L;
+
+        /** Lower bound of values in column */
+        public final int lwb;
+        
+        /** Number of states values in column may take. */
+        public final int arity;
+        
+        /** Dataset this column belongs to. */
+        public final ColumnarVector root;
+        
+        /** Index of this column in root */
+        public final int rootCol;
+        
+        /** Constructor, data is not copied. */
+        public Column( int[] data, Type.Discrete t, int lwb, int arity, 
+                       ColumnarVector root, int rootCol )
+        {
+            super( data, t );
+            this.lwb = lwb;
+            this.arity = arity;
+            this.root = root;
+            this.rootCol = rootCol;
+        }
+        
+        /** Return the raw array backing this column.  This array must not be modified. */
+        public int[] getArray() { return data; }
+        
+        /** Return the number of occurrences of each state (in terms of value - lwb) */
+        public double[] count()
+        {
+            double[] counts = new double[arity];
+            for ( int i = 0; i < data.length; i++ ) { counts[data[i] - lwb]++; }
+            return counts;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+
+//
+// Sparse count index used to calculate CPT sufficient statistics.
+//
+
+// File: ContingencyIndex.java
+// Author: rodo@dgs.monash.edu.au
+
+package camml.core.library;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+
+/**
+ * ContingencyIndex precomputes a compressed form of a ColumnarVector so counts for any subset
+ * of variables can be found without rescanning the full dataset. <br>
+ * 
+ * Two levels of compression are used. <br>
+ * 1. Duplicate rows are merged, each distinct row storing a multiplicity. <br>
+ * 2. Sparse joint count tables (only non-zero cells are stored) are cached for each family of
+ *    variables requested.  A table may be built by marginalising a cached table over a superset
+ *    of one extra variable, so the common case of an arc being removed costs time proportional
+ *    to the number of non-zero cells, not the number of rows.  Arc reversals share a single
+ *    table as the family {x,y} u Pa is the same in both directions. <br>
+ *
+ * Tables are held by SoftReferences so the cache is released under memory pressure.
+ */
+public class ContingencyIndex
+{
+    /** Dataset index was built from. */
+    public final ColumnarVector data;
+    
+    /** Columns of distinct rows. uniqueColumn[i][j] = (value of var i in distinct row j) - lwb */
+    protected final int[][] uniqueColumn;
+    
+    /** Number of times each distinct row occurs in data */
+    protected final int[] rowCount;
+    
+    /** Number of states of each variable. */
+    protected final int[] arity;
+    
+    /** Cache of SparseTables indexed by sorted variable set. */
+    protected final ArrayIndexedHashTable tableCache = new ArrayIndexedHashTable();
+    
+    /** Queue of cache entries whose tables have been released. */
+    protected final ReferenceQueue<SparseTable> clearedTables = new ReferenceQueue<SparseTable>();
+    
+    /** Variables to monitor cache, not essential. */
+    public long tablesBuilt = 0, tablesMarginalised = 0, tableHits = 0;
+    
+    /** Build index from data.  This requires a single pass over data. */
+    public ContingencyIndex( ColumnarVector data )
+    {
+        this.data = data;
+        int numVars = data.getNumCmpnts();
+        int numRows = data.length();
+        
+        arity = new int[numVars];
+        for ( int i = 0; i < numVars; i++ ) { arity[i] = data.getArity(i); }
+        
+        // Merge duplicate rows.  Each row is numbered by packing as many columns as fit into a
+        // long (mixed radix, prefixed by the row's number over earlier columns) then renumbering
+        // the packed codes densely, so no per row objects are allocated.
+        int[] rowId = new int[numRows];
+        long[] code = new long[numRows];
+        int numDistinct = 1;
+        for ( int i = 0; i < numVars; ) {
+            long mult = numDistinct;
+            for ( int j = 0; j < numRows; j++ ) { code[j] = rowId[j]; }
+            for ( ; i < numVars && mult <= Long.MAX_VALUE / arity[i]; i++ ) {
+                int[] column = data.getColumn(i);
+                int lwb = data.getLwb(i);
+                for ( int j = 0; j < numRows; j++ ) { code[j] += mult * (column[j] - lwb); }
+                mult *= arity[i];
+            }
+            LongIntHash hash = new LongIntHash( numDistinct );
+            numDistinct = 0;
+            for ( int j = 0; j < numRows; j++ ) {
+                rowId[j] = hash.getOrAdd( code[j], numDistinct );
+                if ( rowId[j] == numDistinct ) { numDistinct++; }
+            }
+        }
+        if ( numRows == 0 ) { numDistinct = 0; }
+        
+        // Store distinct rows column-wise.
+        uniqueColumn = new int[numVars][numDistinct];
+        rowCount = new int[numDistinct];
+        for ( int j = 0; j < numRows; j++ ) {
+            if ( rowCount[rowId[j]]++ == 0 ) {
+                for ( int i = 0; i < numVars; i++ ) { 
+                    uniqueColumn[i][rowId[j]] = data.getColumn(i)[j] - data.getLwb(i); 
+                }
+            }
+        }
+    }
+    
+    /** Return the number of distinct rows in the dataset. */
+    public int getNumDistinctRows() { return rowCount.length; }
+    
+    /**
+     * Return counts in the same format as CPT.getSufficientArray(x,z), 
+     * ie. tally[x-lwb][parentCombination] where parent combinations are numbered with
+     * the first parent changing fastest.  x and z are given as columns of data. <br>
+     * null is returned if the joint table is too large to be indexed by a long.
+     */
+    public int[][] getSufficientArray( int x, int[] z )
+    {
+        // Build sorted family vars.
+        int[] family = new int[z.length+1];
+        family[0] = x;
+        for ( int i = 0; i < z.length; i++ ) { family[i+1] = z[i]; }
+        Arrays.sort( family );
+        
+        SparseTable table = getTable( family );
+        if ( table == null ) { return null; }
+        
+        // Position of x and each z in the table.
+        int xPos = Arrays.binarySearch( table.var, x );
+        int[] zPos = new int[z.length];
+        int[] zMult = new int[z.length];
+        int numCombinations = 1;
+        for ( int i = 0; i < z.length; i++ ) {
+            zPos[i] = Arrays.binarySearch( table.var, z[i] );
+            zMult[i] = numCombinations;
+            numCombinations *= arity[z[i]];
+        }
+        
+        // Read counts from non-zero cells.
+        int[][] tally = new int[arity[x]][numCombinations];
+        for ( int c = 0; c < table.code.length; c++ ) {
+            long code = table.code[c];
+            int parentIndex = 0;
+            for ( int i = 0; i < zPos.length; i++ ) { 
+                parentIndex += zMult[i] * table.digit(code,zPos[i]); 
+            }
+            tally[ table.digit(code,xPos) ][ parentIndex ] += table.count[c];
+        }
+        return tally;
+    }
+    
+    /** Return sparse joint table over sorted vars, or null if the table cannot be indexed. */
+    public SparseTable getTable( int[] vars )
+    {
+        SparseTable table = getCached( vars );
+        if ( table != null ) { tableHits++; return table; }
+        
+        // Check table can be indexed by a long
+        long[] mult = new long[vars.length];
+        long numCells = 1;
+        for ( int i = 0; i < vars.length; i++ ) {
+            mult[i] = numCells;
+            if ( numCells > Long.MAX_VALUE / arity[vars[i]] ) { return null; }
+            numCells *= arity[vars[i]];
+        }
+        
+        // Attempt to marginalise a cached table with a single extra variable.
+        int[] superVars = new int[vars.length+1];
+        for ( int v = 0; v < arity.length && table == null; v++ ) {
+            if ( Arrays.binarySearch(vars,v) >= 0 ) { continue; }
+            int k = 0;
+            for ( int i = 0; i < vars.length; i++ ) {
+                if ( k == i && vars[i] > v ) { superVars[k++] = v; }
+                superVars[k++] = vars[i];
+            }
+            if ( k == vars.length ) { superVars[k] = v; }
+            SparseTable superTable = getCached( superVars );
+            if ( superTable != null ) { 
+                table = marginalise( superTable, vars, mult ); 
+                tablesMarginalised++;
+            }
+        }
+        
+        // Otherwise build from distinct rows.
+        if ( table == null ) {
+            LongIntHash hash = new LongIntHash( rowCount.length );
+            for ( int j = 0; j < rowCount.length; j++ ) {
+                long code = 0;
+                for ( int i = 0; i < vars.length; i++ ) { code += mult[i] * uniqueColumn[vars[i]][j]; }
+                hash.add( code, rowCount[j] );
+            }
+            table = new SparseTable( vars.clone(), arityOf(vars), mult, hash );
+            tablesBuilt++;
+        }
+        
+        synchronized ( tableCache ) {
+            // Remove entries whose tables have been released before adding a new one.
+            TableRef ref;
+            while ( (ref = (TableRef)clearedTables.poll()) != null ) {
+                if ( tableCache.get2( ref.var ) == ref ) { tableCache.remove2( ref.var ); }
+            }
+            tableCache.put2( table.var, new TableRef(table,clearedTables) );
+        }
+        return table;
+    }
+    
+    /** Return table from cache, or null if not present. */
+    protected SparseTable getCached( int[] vars ) 
+    {
+        synchronized ( tableCache ) {
+            TableRef ref = (TableRef)tableCache.get2( vars );
+            if ( ref == null ) { return null; }
+            SparseTable table = ref.get();
+            if ( table == null ) { tableCache.remove2( vars ); }
+            return table;
+        }
+    }
+    
+    /** Sum superTable over the variable not present in vars. */
+    protected SparseTable marginalise( SparseTable superTable, int[] vars, long[] mult )
+    {
+        LongIntHash hash = new LongIntHash( superTable.code.length );
+        for ( int c = 0; c < superTable.code.length; c++ ) {
+            long code = 0;
+            int k = 0;
+            for ( int i = 0; i < superTable.var.length; i++ ) {
+                if ( k < vars.length && superTable.var[i] == vars[k] ) {
+                    code += mult[k] * superTable.digit( superTable.code[c], i );
+                    k++;
+                }
+            }
+            hash.add( code, superTable.count[c] );
+        }
+        return new SparseTable( vars.clone(), arityOf(vars), mult, hash );
+    }
+    
+    /** Return arity of each var. */
+    protected int[] arityOf( int[] vars )
+    {
+        int[] a = new int[vars.length];
+        for ( int i = 0; i < a.length; i++ ) { a[i] = arity[vars[i]]; }
+        return a;
+    }
+    
+    /** Joint counts over a set of variables.  Only non-zero cells are stored. */
+    public static class SparseTable
+    {
+        /** Sorted list of variables in table. */
+        public final int[] var;
+        
+        /** Arity of each variable */
+        public final int[] arity;
+        
+        /** Multiplier used to encode each variable into a cell code. */
+        public final long[] mult;
+        
+        /** code of each non-zero cell. code = sum( (value_i - lwb_i) * mult_i ) */
+        public final long[] code;
+        
+        /** Count of each non-zero cell. */
+        public final int[] count;
+        
+        /** Extract table from hash */
+        protected SparseTable( int[] var, int[] arity, long[] mult, LongIntHash hash )
+        {
+            this.var = var;
+            this.arity = arity;
+            this.mult = mult;
+            this.code = new long[hash.size];
+            this.count = new int[hash.size];
+            int k = 0;
+            for ( int i = 0; i < hash.key.length; i++ ) {
+                if ( hash.used[i] ) { code[k] = hash.key[i]; count[k] = hash.value[i]; k++; }
+            }
+        }
+        
+        /** Return (value - lwb) of var[i] in a cell with the given code. */
+        public final int digit( long code, int i ) { return (int)((code / mult[i]) % arity[i]); }
+        
+        /** Return number of non-zero cells in table. */
+        public int getNumCells() { return code.length; }
+    }
+    
+    /** Minimal open addressed long->int hash used to accumulate counts. */
+    protected static class LongIntHash
+    {
+        long[] key;
+        int[] value;
+        boolean[] used;
+        int size = 0;
+        
+        /** Create hash large enough to hold expectedSize entries without resizing. */
+        LongIntHash( int expectedSize ) 
+        {
+            int len = 16;
+            while ( len < expectedSize * 2 ) { len <<= 1; }
+            key = new long[len];
+            value = new int[len];
+            used = new boolean[len];
+        }
+        
+        /** value[k] += n */
+        void add( long k, int n )
+        {
+            int mask = key.length - 1;
+            int i = (int)(k ^ (k >>> 32)) * 0x9E3779B9 & mask;
+            while ( used[i] && key[i] != k ) { i = (i+1) & mask; }
+            if ( !used[i] ) {
+                used[i] = true; key[i] = k; size++;
+                if ( size * 2 > key.length ) { value[i] = n; grow(); return; }
+            }
+            value[i] += n;
+        }
+        
+        /** Return value stored for k, storing and returning n if k is not present. */
+        int getOrAdd( long k, int n )
+        {
+            int mask = key.length - 1;
+            int i = (int)(k ^ (k >>> 32)) * 0x9E3779B9 & mask;
+            while ( used[i] && key[i] != k ) { i = (i+1) & mask; }
+            if ( used[i] ) { return value[i]; }
+            used[i] = true; key[i] = k; value[i] = n; size++;
+            if ( size * 2 > key.length ) { grow(); }
+            return n;
+        }
+        
+        /** Double the size of the hash. */
+        void grow()
+        {
+            long[] oldKey = key; int[] oldValue = value; boolean[] oldUsed = used;
+            key = new long[oldKey.length*2];
+            value = new int[key.length];
+            used = new boolean[key.length];
+            size = 0;
+            for ( int i = 0; i < oldKey.length; i++ ) {
+                if ( oldUsed[i] ) { add( oldKey[i], oldValue[i] ); }
+            }
+        }
+    }
+    
+    /** SoftReference to a cached table, remembering its key so the entry can be removed. */
+    private static class TableRef extends SoftReference<SparseTable>
+    {
+        final int[] var;
+        TableRef( SparseTable table, ReferenceQueue<SparseTable> queue ) 
+        { super( table, queue ); this.var = table.var; }
+    }
+}
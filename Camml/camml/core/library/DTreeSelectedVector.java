@@ -260,28 +260,177 @@ public class DTreeSelectedVector extends SelectedVector
     public static DTreeSelectedVector[] d_splitVector( Value.Vector vec, int col, boolean hideAttributes ){
         DTreeSelectedVector sVec;
         if ( vec instanceof DTreeSelectedVector ) { sVec = (DTreeSelectedVector)vec; }
-        else { sVec = new DTreeSelectedVector(vec); }
+        else { sVec = new DTreeSelectedVector(vec); sVec.d_findRoot(); }
         
         return sVec.d_split(col,hideAttributes);
     }
     
-    /** Cache for partially split vectors */
-    //protected SplitVectorCache splitCache = null;
+    /** Should row partitions be shared between splits of the same data? */
+    public static boolean d_usePartitionCache = true;
     
-    /** Split vector based on all combinaitons of discrete attributes in cols[]*/
-    //public DTreeSelectedVector split( int[] cols ) {
-    //    return null;
-    //}
+    /** 
+     * Return the partition cache for root, or null if root cannot hold one.  Partitions are
+     *  cached on ColumnarVector roots so each dataset (and the NodeCache using it) keeps its
+     *  own cache for as long as the data is in use.
+     */
+    protected static RowPartitionCache d_getPartitionCache( Object root ) {
+        if ( root instanceof ColumnarVector ) { return ((ColumnarVector)root).getPartitionCache(); }
+        return null;
+    }
+    
+    /** 
+     * Dataset this vector's rows and columns are selected from, null if unknown.  Only vectors
+     *  with a root may use the partition cache.
+     */
+    protected Object d_root = null;
+    
+    /** d_rootCol[i] is the column of d_root visible as column i of this vector. */
+    protected int[] d_rootCol;
+    
+    /** 
+     * The splits used to select this vector's rows from d_root, stored as (rootCol,value) 
+     * pairs sorted by rootCol.  As splitting preserves row order, any vectors with the same 
+     * root and path contain the same rows in the same order.
+     */
+    protected int[] d_path;
+    
+    /** 
+     * Work out which dataset this (unsplit) vector is a view of so splits of it may be shared.
+     *  ColumnarVectors and SelectedVectors are traced back to the data they were created from.
+     */
+    protected void d_findRoot() 
+    {
+        if ( d_row != null || d_column != null || numCmpnts == -1 ) { return; }
+        Value.Vector v = d_originalVector;
+        int[] rootCol = new int[numCmpnts];
+        for ( int i = 0; i < rootCol.length; i++ ) { rootCol[i] = i; }
+        
+        if ( v instanceof DTreeSelectedVector ) { return; }
+        else if ( v instanceof ColumnarVector ) {
+            ColumnarVector cv = (ColumnarVector)v;
+            for ( int i = 0; i < rootCol.length; i++ ) { rootCol[i] = cv.getRootCol(i); }
+            v = cv.getRoot();
+        }
+        else if ( v instanceof SelectedVector ) {
+            // SelectedVectors with a row selection are not cached.
+            SelectedVector sv = (SelectedVector)v;
+            if ( sv.row != null ) { return; }
+            if ( sv.column != null ) { rootCol = sv.column.clone(); }
+            v = sv.originalVector;
+            // SelectedVector wraps its original vector in another (fully visible) SelectedVector
+            while ( v instanceof SelectedVector && !(v instanceof DTreeSelectedVector) &&
+                    ((SelectedVector)v).row == null && ((SelectedVector)v).column == null ) {
+                v = ((SelectedVector)v).originalVector;
+            }
+            if ( v instanceof SelectedVector ) { return; }
+        }
+        
+        d_root = v;
+        d_rootCol = rootCol;
+        d_path = new int[0];
+    }
+    
+    /** Key used to look up the partition created by splitting this vector on col */
+    protected int[] d_makeKey( int col )
+    {
+        int[] key = new int[d_path.length + 1];
+        key[0] = d_rootCol[col];
+        System.arraycopy( d_path, 0, key, 1, d_path.length );
+        return key;
+    }
+    
+    /** Return d_path with the split (rootCol,value) added. */
+    protected int[] d_extendPath( int rootCol, int value )
+    {
+        int[] path = new int[d_path.length + 2];
+        int i = 0;
+        while ( i < d_path.length && d_path[i] < rootCol ) { path[i] = d_path[i]; i++; }
+        path[i] = rootCol;
+        path[i+1] = value;
+        System.arraycopy( d_path, i, path, i+2, d_path.length - i );
+        return path;
+    }
     
     /**
      *  The splitVector function splits the this vector based on the discrete attribute specified 
      *  by col.  The hideAttribute flag indicates if the column being split on should be removed
-     *  from the dataset or left as is.
+     *  from the dataset or left as is. <br>
+     *
+     *  If the root of this vector is known, the partition of rows is shared with other vectors
+     *  selecting the same rows from root (eg. the same split found through a different parent
+     *  set, or by splitting in a different order).
      */
     public DTreeSelectedVector[] d_split( int col, boolean hideAttribute )
     {
         Value.Vector vec = this;
         
+        // extract type information from vector
+        Type.Structured structType = (Type.Structured)((Type.Vector)vec.t).elt;
+        
+        // Look for the partition in the cache before scanning the data.
+        boolean useCache = d_usePartitionCache && d_root != null;
+        RowPartitionCache cache = null;
+        int[] key = null;
+        int[][] partition = null;
+        if ( useCache ) {
+            cache = d_getPartitionCache( d_root );
+            useCache = (cache != null);
+        }
+        if ( useCache ) {
+            key = d_makeKey( col );
+            partition = cache.getPartition( key );
+        }
+        if ( partition == null ) {
+            partition = d_partition( col );
+            if ( useCache ) { cache.putPartition( key, partition ); }
+        }
+        int arity = partition.length;
+        
+        // Work out which columns are to be used in the vector being returned.  If the column
+        // is to be hidden, columnList is an array of column indexes missing the appropriate
+        // index.  If column is not to be hidden, then null can be used.
+        int[] columnList;
+        if ( hideAttribute == true ) {
+            columnList = new int[ structType.cmpnts.length - 1];
+            for ( int i = 0; i < col; i++ ) { columnList[i] = i; }
+            for ( int i = col; i < columnList.length; i++ ) { columnList[i] = i+1; }
+        } 
+        else {
+            columnList = null;
+        }
+        
+        // Create the list of vectors.  partition[i] is passed as the rows required.
+        // columnList is passed as the list of columns required.
+        DTreeSelectedVector[] vecList = new DTreeSelectedVector[arity];
+        
+        for ( int i = 0; i < vecList.length; i++) {
+            vecList[i] = new DTreeSelectedVector( vec, partition[i], columnList);
+            
+            // Record where the new vector came from so it may be split using the cache.
+            if ( d_root != null ) {
+                vecList[i].d_root = d_root;
+                vecList[i].d_path = d_extendPath( d_rootCol[col], i );
+                if ( columnList == null ) { vecList[i].d_rootCol = d_rootCol; }
+                else {
+                    vecList[i].d_rootCol = new int[columnList.length];
+                    for ( int j = 0; j < columnList.length; j++ ) {
+                        vecList[i].d_rootCol[j] = d_rootCol[columnList[j]];
+                    }
+                }
+            }
+        }
+        
+        return vecList;
+    }
+    
+    /** 
+     * Partition the rows of this vector by the value of attribute col. partition[i] contains
+     *  the indices of all rows where col takes it's i'th value.
+     */
+    protected int[][] d_partition( int col )
+    {
+        Value.Vector vec = this;
+        
         // extract type information from vector
         Type.Structured structType = (Type.Structured)((Type.Vector)vec.t).elt;
         Type.Discrete attributeType = (Type.Discrete)structType.cmpnts[col];
@@ -335,29 +484,7 @@ public class DTreeSelectedVector extends SelectedVector
             partition[i] = tempArray;
         }
         
-        
-        // Work out which columns are to be used in the vector being returned.  If the column
-        // is to be hidden, columnList is an array of column indexes missing the appropriate
-        // index.  If column is not to be hidden, then null can be used.
-        int[] columnList;
-        if ( hideAttribute == true ) {
-            columnList = new int[ structType.cmpnts.length - 1];
-            for ( int i = 0; i < col; i++ ) { columnList[i] = i; }
-            for ( int i = col; i < columnList.length; i++ ) { columnList[i] = i+1; }
-        } 
-        else {
-            columnList = null;
-        }
-        
-        // Create the list of vectors.  partition[i] is passed as the rows required.
-        // columnList is passed as the list of columns required.
-        DTreeSelectedVector[] vecList = new DTreeSelectedVector[arity];
-        
-        for ( int i = 0; i < vecList.length; i++) {
-            vecList[i] = new DTreeSelectedVector( vec, partition[i], columnList);
-        }
-        
-        return vecList;
+        return partition;
     }
     
     
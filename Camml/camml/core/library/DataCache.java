@@ -0,0 +1,515 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+//
+// Compact memory mapped cache of discrete datasets.
+//
+
+// File: DataCache.java
+// Author: rodo@dgs.monash.edu.au
+
+package camml.core.library;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import cdms.core.*;
+import camml.plugin.rodoCamml.RodoCammlIO;
+
+/**
+ *  DataCache stores a dataset of bounded discrete variables as a compact binary file which is
+ *  memory mapped when read back. <br>
+ *
+ *  Each column is stored as (value - lwb) using 1, 2 or 4 bytes per value depending on its
+ *  arity, followed by one status byte per value if the column contains interventions.  Columns
+ *  are read through MappedColumn which decodes values directly from the mapped file, so a
+ *  cached dataset starts without parsing and uses almost no heap. <br>
+ *
+ *  Cache files are named from the canonical path of the source file and the options used to
+ *  load it, and record the length and modification time of the source.  A cache is only used
+ *  if all of these match. <br>
+ *
+ *  Loaders which read a file once may fill an Encoder row by row, so the only copy of the data
+ *  held in memory is the compact encoding which is then stored directly (or used in memory
+ *  through toVector()). <br>
+ *
+ *  NOTE: Only datasets where every column is a Type.Discrete or Type.Symbolic, and every value
+ *        is proper or an intervention, may be cached.
+ */
+public class DataCache
+{
+    /** "CaMMLDC1" */
+    protected static final long MAGIC = 0x43614d4d4c444331L;
+
+    /** File format version */
+    protected static final int VERSION = 1;
+
+    /** Column type stored in cache. */
+    protected static final int DISCRETE = 0, SYMBOLIC = 1;
+
+    /** 
+     * If not null, Converter.load() reads and writes cached copies of the datasets it loads in
+     * this directory.
+     */
+    public static String cacheDirectory = null;
+
+    /** Cache file for source loaded with options in directory. */
+    public static File cacheFile( File directory, File source, String options ) 
+        throws IOException
+    {
+        String key = source.getCanonicalPath() + "\n" + options;
+        return new File( directory, source.getName() + "." + 
+                         Integer.toHexString(key.hashCode()) + ".datacache" );
+    }
+
+    /** 
+     * Return the dataset cached for source and options in directory, or null if no valid
+     * cache exists.
+     */
+    public static Value.Vector load( File directory, File source, String options ) 
+        throws IOException
+    {
+        File file = cacheFile( directory, source, options );
+        if ( !file.exists() ) { return null; }
+
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+        try {
+            if ( raf.length() < 16 || raf.readLong() != MAGIC || raf.readInt() != VERSION ) {
+                return null;
+            }
+            int headerLength = raf.readInt();
+            if ( headerLength < 0 || 16L + headerLength > raf.length() ) { return null; }
+            byte[] header = new byte[headerLength];
+            raf.readFully( header );
+            DataInputStream in = new DataInputStream( new ByteArrayInputStream(header) );
+
+            // Check cache was made from the current version of source.
+            if ( !in.readUTF().equals(source.getCanonicalPath()) || 
+                 !in.readUTF().equals(options) ||
+                 in.readLong() != source.length() || 
+                 in.readLong() != source.lastModified() ) {
+                return null;
+            }
+
+            int numVars = in.readInt();
+            int numRows = in.readInt();
+            String[] name = new String[numVars];
+            Type.Discrete[] type = new Type.Discrete[numVars];
+            int[] width = new int[numVars];
+            boolean[] hasStatus = new boolean[numVars];
+            for ( int i = 0; i < numVars; i++ ) {
+                name[i] = in.readBoolean() ? in.readUTF() : null;
+                int kind = in.readInt();
+                int lwb = in.readInt();
+                int upb = in.readInt();
+                if ( kind == SYMBOLIC ) {
+                    String[] ids = new String[upb - lwb + 1];
+                    for ( int j = 0; j < ids.length; j++ ) { ids[j] = in.readUTF(); }
+                    type[i] = new Type.Symbolic( false, false, false, false, ids );
+                }
+                else {
+                    type[i] = new Type.Discrete( lwb, upb, false, false, false, false );
+                }
+                width[i] = in.readInt();
+                hasStatus[i] = in.readBoolean();
+            }
+
+            // A truncated (or partly written) cache is ignored.
+            long length = 16L + header.length;
+            for ( int i = 0; i < numVars; i++ ) {
+                length += (long)numRows * (width[i] + (hasStatus[i] ? 1 : 0));
+            }
+            if ( raf.length() != length ) { return null; }
+
+            // Map each column separately so no single mapping exceeds 2GB.
+            FileChannel channel = raf.getChannel();
+            Value.Vector[] column = new Value.Vector[numVars];
+            long pos = 16 + header.length;
+            for ( int i = 0; i < numVars; i++ ) {
+                ByteBuffer data = channel.map( FileChannel.MapMode.READ_ONLY, pos, 
+                                               (long)numRows * width[i] );
+                pos += (long)numRows * width[i];
+                ByteBuffer status = null;
+                if ( hasStatus[i] ) {
+                    status = channel.map( FileChannel.MapMode.READ_ONLY, pos, numRows );
+                    pos += numRows;
+                }
+                column[i] = new MappedColumn( type[i], data, width[i], status, numRows );
+            }
+
+            boolean labelled = false;
+            for ( int i = 0; i < numVars; i++ ) { if ( name[i] != null ) { labelled = true; } }
+            return new VectorFN.MultiCol( new Value.DefStructured( column, labelled ? name : null ) );
+        } catch ( EOFException e ) {
+            return null;
+        } catch ( UTFDataFormatException e ) {
+            return null;
+        } finally {
+            // The mapping remains valid after the file is closed.
+            raf.close();
+        }
+    }
+
+    /** Number of bytes required to store a value in [0,arity) */
+    protected static int width( long arity )
+    {
+        if ( arity <= 0x100 ) { return 1; }
+        if ( arity <= 0x10000 ) { return 2; }
+        return 4;
+    }
+
+    /**
+     * Store data as the cached copy of source loaded with options in directory.  Returns false
+     * (and writes nothing) if data cannot be cached.
+     */
+    public static boolean store( File directory, File source, String options, Value.Vector data )
+        throws IOException
+    {
+        Encoder encoder = Encoder.encode( data );
+        if ( encoder == null ) { return false; }
+        store( directory, source, options, encoder );
+        return true;
+    }
+
+    /** Store the data held in encoder as the cached copy of source loaded with options. */
+    public static void store( File directory, File source, String options, Encoder encoder )
+        throws IOException
+    {
+        int numVars = encoder.type.length;
+        int numRows = encoder.numRows;
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream( headerBytes );
+        header.writeUTF( source.getCanonicalPath() );
+        header.writeUTF( options );
+        header.writeLong( source.length() );
+        header.writeLong( source.lastModified() );
+        header.writeInt( numVars );
+        header.writeInt( numRows );
+        for ( int i = 0; i < numVars; i++ ) {
+            Type.Discrete t = encoder.type[i];
+            String label = encoder.name[i];
+            header.writeBoolean( label != null );
+            if ( label != null ) { header.writeUTF( label ); }
+            header.writeInt( (t instanceof Type.Symbolic) ? SYMBOLIC : DISCRETE );
+            header.writeInt( (int)t.LWB );
+            header.writeInt( (int)t.UPB );
+            if ( t instanceof Type.Symbolic ) {
+                String[] ids = ((Type.Symbolic)t).ids;
+                for ( int j = 0; j < ids.length; j++ ) { header.writeUTF( ids[j] ); }
+            }
+            header.writeInt( encoder.width[i] );
+            header.writeBoolean( encoder.status[i] != null );
+        }
+        header.close();
+
+        // Write to a uniquely named temporary file first so an interrupted (or concurrent)
+        // write never leaves a bad cache.
+        directory.mkdirs();
+        File file = cacheFile( directory, source, options );
+        File temp = File.createTempFile( file.getName() + ".", ".tmp", directory );
+        DataOutputStream out = 
+            new DataOutputStream( new BufferedOutputStream( new FileOutputStream(temp) ) );
+        try {
+            out.writeLong( MAGIC );
+            out.writeInt( VERSION );
+            out.writeInt( headerBytes.size() );
+            headerBytes.writeTo( out );
+
+            // Encoded columns are already in the stored format.
+            for ( int i = 0; i < numVars; i++ ) {
+                out.write( encoder.data[i], 0, numRows * encoder.width[i] );
+                if ( encoder.status[i] != null ) { out.write( encoder.status[i], 0, numRows ); }
+            }
+        } catch ( IOException e ) {
+            out.close();
+            temp.delete();
+            throw e;
+        }
+        out.close();
+
+        try {
+            try {
+                Files.move( temp.toPath(), file.toPath(), 
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+            } catch ( AtomicMoveNotSupportedException e ) {
+                Files.move( temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+            }
+        } catch ( IOException e ) {
+            temp.delete();
+            throw new IOException( "Could not create " + file, e );
+        }
+    }
+
+    /**
+     * Encoder builds a compact in memory copy of a discrete dataset one row at a time.  Each
+     * column holds (value - lwb) in 1, 2 or 4 bytes (big endian, as stored in a cache file),
+     * and status bytes are only allocated for columns containing interventions. <br>
+     *
+     * Rows are filled using put() then nextRow().  Arrays grow as required, so the number of
+     * rows need not be known in advance.
+     */
+    public static class Encoder
+    {
+        /** Name of each column (may be null) */
+        protected final String[] name;
+
+        /** Type of each column */
+        protected final Type.Discrete[] type;
+
+        /** Bytes per value of each column */
+        protected final int[] width;
+
+        /** Lower bound of each column */
+        protected final int[] lwb;
+
+        /** Encoded values of each column. */
+        protected final byte[][] data;
+
+        /** Status of each value (0 = S_PROPER, 1 = S_INTERVENTION), or null if all proper. */
+        protected final byte[][] status;
+
+        /** Number of complete rows. */
+        protected int numRows = 0;
+
+        /** Number of rows space is allocated for. */
+        protected int capacity;
+
+        /** 
+         * Create an encoder for columns with the given names and types, with space for
+         * capacity rows.  All types must have finite bounds.
+         */
+        public Encoder( String[] name, Type.Discrete[] type, int capacity )
+        {
+            int numVars = type.length;
+            this.name = (name == null) ? new String[numVars] : name;
+            this.type = type;
+            this.capacity = Math.max( 1, capacity );
+            width = new int[numVars];
+            lwb = new int[numVars];
+            data = new byte[numVars][];
+            status = new byte[numVars][];
+            for ( int i = 0; i < numVars; i++ ) {
+                double arity = type[i].UPB - type[i].LWB + 1;
+                if ( Double.isInfinite(arity) || Double.isNaN(arity) || arity > Integer.MAX_VALUE ) {
+                    throw new IllegalArgumentException( "Unbounded type : " + type[i] );
+                }
+                lwb[i] = (int)type[i].LWB;
+                width[i] = width( (long)arity );
+                data[i] = new byte[this.capacity * width[i]];
+            }
+        }
+
+        /** Set column i of the current row to x. */
+        public void put( int i, int x, boolean intervention )
+        {
+            if ( numRows == capacity ) { grow(); }
+            int v = x - lwb[i];
+            byte[] d = data[i];
+            if ( width[i] == 1 ) {
+                d[numRows] = (byte)v;
+            }
+            else if ( width[i] == 2 ) {
+                d[2*numRows] = (byte)(v >>> 8);
+                d[2*numRows+1] = (byte)v;
+            }
+            else {
+                int o = 4*numRows;
+                d[o] = (byte)(v >>> 24);
+                d[o+1] = (byte)(v >>> 16);
+                d[o+2] = (byte)(v >>> 8);
+                d[o+3] = (byte)v;
+            }
+
+            if ( intervention && status[i] == null ) { status[i] = new byte[capacity]; }
+            if ( status[i] != null ) { status[i][numRows] = (byte)(intervention ? 1 : 0); }
+        }
+
+        /** Finish the current row. */
+        public void nextRow() { numRows ++; }
+
+        /** Double the number of rows space is allocated for. */
+        protected void grow()
+        {
+            capacity = (int)Math.min( (Integer.MAX_VALUE - 8) / 4, 2L * capacity );
+            for ( int i = 0; i < data.length; i++ ) {
+                data[i] = Arrays.copyOf( data[i], capacity * width[i] );
+                if ( status[i] != null ) { status[i] = Arrays.copyOf( status[i], capacity ); }
+            }
+        }
+
+        /** Number of complete rows */
+        public int numRows() { return numRows; }
+
+        /** Return the encoded data as a vector of MappedColumns backed by the encoded arrays. */
+        public Value.Vector toVector()
+        {
+            Value.Vector[] column = new Value.Vector[type.length];
+            boolean labelled = false;
+            for ( int i = 0; i < column.length; i++ ) {
+                ByteBuffer s = (status[i] == null) ? null : ByteBuffer.wrap( status[i] );
+                column[i] = new MappedColumn( type[i], ByteBuffer.wrap(data[i]), width[i], 
+                                              s, numRows );
+                if ( name[i] != null ) { labelled = true; }
+            }
+            return new VectorFN.MultiCol( new Value.DefStructured( column, labelled ? name : null ) );
+        }
+
+        /** 
+         * Return an Encoder holding a copy of data, or null if data cannot be encoded.
+         * Data can be encoded if every column is a Type.Discrete or Type.Symbolic with finite
+         * bounds and every value is proper or an intervention.
+         */
+        public static Encoder encode( Value.Vector data )
+        {
+            Type.Structured sType = (Type.Structured)((Type.Vector)data.t).elt;
+            int numVars = sType.cmpnts.length;
+            int numRows = data.length();
+
+            Type.Discrete[] type = new Type.Discrete[numVars];
+            String[] name = new String[numVars];
+            Value.Vector[] column = new Value.Vector[numVars];
+            boolean[] checkStatus = new boolean[numVars];
+            for ( int i = 0; i < numVars; i++ ) {
+                Type t = sType.cmpnts[i];
+                if ( t.getClass() != Type.Discrete.class && t.getClass() != Type.Symbolic.class ) {
+                    return null;
+                }
+                type[i] = (Type.Discrete)t;
+                double arity = type[i].UPB - type[i].LWB + 1;
+                if ( Double.isInfinite(arity) || Double.isNaN(arity) || arity > Integer.MAX_VALUE ) {
+                    return null;
+                }
+                name[i] = (sType.labels == null) ? null : sType.labels[i];
+                column[i] = data.cmpnt(i);
+
+                // FastDiscreteVector cannot hold status information.
+                checkStatus[i] = column[i].getClass() != VectorFN.FastDiscreteVector.class &&
+                    !(column[i] instanceof MappedColumn && !((MappedColumn)column[i]).hasStatus());
+            }
+
+            Encoder encoder = new Encoder( name, type, numRows );
+            for ( int j = 0; j < numRows; j++ ) {
+                for ( int i = 0; i < numVars; i++ ) {
+                    boolean intervention = false;
+                    if ( checkStatus[i] ) {
+                        ValueStatus status = column[i].elt(j).status();
+                        if ( status == Value.S_INTERVENTION ) { intervention = true; }
+                        else if ( status != Value.S_PROPER ) { return null; }
+                    }
+                    encoder.put( i, column[i].intAt(j), intervention );
+                }
+                encoder.nextRow();
+            }
+            return encoder;
+        }
+    }
+
+    /**
+     * A discrete column read directly from a (memory mapped or Encoder) buffer.  Values are
+     * stored as (value - lwb) using width bytes, with an optional status byte per value
+     * (0 = S_PROPER, 1 = S_INTERVENTION).
+     */
+    public static class MappedColumn extends Value.Vector
+    {
+        /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+        private static final long serialVersionUID = -1817396036519457185L;
+
+        /** Type of each element. */
+        protected final Type.Discrete eltType;
+
+        /** Encoded values. */
+        protected final transient ByteBuffer data;
+
+        /** Bytes per value (1, 2 or 4) */
+        protected final int width;
+
+        /** Status of each value, or null if all values are proper. */
+        protected final transient ByteBuffer status;
+
+        /** Number of values. */
+        protected final int numRows;
+
+        /** Lower bound of eltType */
+        protected final int lwb;
+
+        /** Constructor, buffers are used directly. */
+        public MappedColumn( Type.Discrete eltType, ByteBuffer data, int width, 
+                             ByteBuffer status, int numRows )
+        {
+            super( new Type.Vector(eltType) );
+            this.eltType = eltType;
+            this.data = data;
+            this.width = width;
+            this.status = status;
+            this.numRows = numRows;
+            this.lwb = (int)eltType.LWB;
+        }
+
+        /** Does this column contain any intervention values? */
+        public boolean hasStatus() { return status != null; }
+
+        public int length() { return numRows; }
+
+        public int intAt( int i )
+        {
+            if ( width == 1 ) { return lwb + (data.get(i) & 0xff); }
+            if ( width == 2 ) { return lwb + (data.getShort(2*i) & 0xffff); }
+            return lwb + data.getInt(4*i);
+        }
+
+        public Value elt( int i )
+        {
+            if ( status != null && status.get(i) != 0 ) {
+                return new Value.Discrete( eltType, Value.S_INTERVENTION, intAt(i) );
+            }
+            return new Value.Discrete( eltType, intAt(i) );
+        }
+
+        /** Mapped buffers cannot be serialized, so serialize an in memory copy instead. */
+        protected Object writeReplace()
+        {
+            int[] x = new int[numRows];
+            for ( int i = 0; i < x.length; i++ ) { x[i] = intAt(i); }
+            if ( status == null ) { return new VectorFN.FastDiscreteVector( x, eltType ); }
+
+            ValueStatus[] s = new ValueStatus[numRows];
+            for ( int i = 0; i < s.length; i++ ) { 
+                s[i] = (status.get(i) != 0) ? Value.S_INTERVENTION : Value.S_PROPER; 
+            }
+            return new RodoCammlIO.FastStatusDiscreteVector( x, s, eltType );
+        }
+    }
+}
@@ -91,6 +91,8 @@ public class Library extends Module
     
         add( "getNumParams", new GetNumParamsFN(), "Return number of parameters used in y");
         add( "emap", EMap.emap, "Eagerly map FN->Vec");
+        add( "pmap", PMap.pmap, "Eagerly map FN->Vec using all available processors");
+        add( "pmapN", PMap.pmapN, "n -> FN -> Vec, Eagerly map FN->Vec using n threads");
     
         // ??? for some reason adding this means a NullPointerException is thrown every time
         // apply is used (via clicking on the values in the left bar of CDMS GUI)
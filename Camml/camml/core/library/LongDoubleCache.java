@@ -0,0 +1,145 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Bounded concurrent cache from long to double.
+//
+
+// File: LongDoubleCache.java
+// Author: rodo@dgs.monash.edu.au
+
+package camml.core.library;
+
+import java.util.Arrays;
+
+/**
+ * LongDoubleCache is a fixed size cache mapping long keys (typically hashes) to double 
+ * values. <br>
+ *
+ * Keys and values are stored in primitive arrays split into independently locked segments,
+ * so no objects are created per entry and several threads may use the cache at once.  Each
+ * key may only be stored within maxProbe slots of its hashed position.  When all of these are
+ * in use the first is overwritten, so the cache never grows beyond its initial capacity.
+ */
+public class LongDoubleCache
+{
+    /** Number of independently locked segments (a power of 2). */
+    protected static final int numSegments = 16;
+
+    /** Maximum number of slots searched for a key. */
+    protected static final int maxProbe = 8;
+
+    /** key[s][i] is the key stored in slot i of segment s */
+    protected final long[][] key;
+
+    /** value[s][i] is the value for key[s][i], or NaN if the slot is empty. */
+    protected final double[][] value;
+
+    /** Create a cache holding at most (approximately) capacity entries. */
+    public LongDoubleCache( int capacity )
+    {
+        int n = maxProbe;
+        while ( n * numSegments < capacity ) { n *= 2; }
+        key = new long[numSegments][n];
+        value = new double[numSegments][n];
+        for ( int s = 0; s < numSegments; s++ ) { Arrays.fill( value[s], Double.NaN ); }
+    }
+
+    /** Maximum number of entries stored. */
+    public int capacity() { return numSegments * key[0].length; }
+
+    /** Mix bits of k so nearby keys are spread between segments and slots. */
+    protected static long mix( long k )
+    {
+        long h = k * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    /** Return the value stored for k, or NaN if k is not present. */
+    public double get( long k )
+    {
+        long h = mix(k);
+        int s = (int)h & (numSegments - 1);
+        long[] segKey = key[s];
+        double[] segValue = value[s];
+        int mask = segKey.length - 1;
+        synchronized ( segKey ) {
+            for ( int p = 0, i = (int)(h >>> 4) & mask; p < maxProbe; p++, i = (i + 1) & mask ) {
+                if ( Double.isNaN( segValue[i] ) ) { return Double.NaN; }
+                if ( segKey[i] == k ) { return segValue[i]; }
+            }
+        }
+        return Double.NaN;
+    }
+
+    /** Store v (which must not be NaN) for key k, possibly evicting another entry. */
+    public void put( long k, double v )
+    {
+        if ( Double.isNaN(v) ) { throw new IllegalArgumentException( "NaN value" ); }
+        long h = mix(k);
+        int s = (int)h & (numSegments - 1);
+        long[] segKey = key[s];
+        double[] segValue = value[s];
+        int mask = segKey.length - 1;
+        int start = (int)(h >>> 4) & mask;
+        synchronized ( segKey ) {
+            for ( int p = 0, i = start; p < maxProbe; p++, i = (i + 1) & mask ) {
+                if ( Double.isNaN( segValue[i] ) || segKey[i] == k ) {
+                    segKey[i] = k;
+                    segValue[i] = v;
+                    return;
+                }
+            }
+            segKey[start] = k;
+            segValue[start] = v;
+        }
+    }
+
+    /** Number of entries stored. */
+    public int size()
+    {
+        int size = 0;
+        for ( int s = 0; s < numSegments; s++ ) {
+            synchronized ( key[s] ) {
+                for ( int i = 0; i < value[s].length; i++ ) {
+                    if ( !Double.isNaN( value[s][i] ) ) { size++; }
+                }
+            }
+        }
+        return size;
+    }
+
+    /** Remove all entries. */
+    public void clear()
+    {
+        for ( int s = 0; s < numSegments; s++ ) {
+            synchronized ( key[s] ) { Arrays.fill( value[s], Double.NaN ); }
+        }
+    }
+}
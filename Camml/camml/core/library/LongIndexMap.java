@@ -0,0 +1,133 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Open addressed map from long to int.
+//
+
+// File: LongIndexMap.java
+// Author: rodo@dgs.monash.edu.au
+
+package camml.core.library;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * LongIndexMap maps long keys (typically hashes) to non-negative int values (typically list
+ * indices). <br>
+ *
+ * Keys and values are stored in primitive arrays using linear probing, so no objects are
+ * created per entry.  The table doubles in size when half full.
+ */
+public class LongIndexMap implements Serializable
+{
+    /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+    private static final long serialVersionUID = -4164316254946040773L;
+
+    /** Keys stored in table */
+    protected long[] key;
+
+    /** value[i] is the value stored for key[i], or -1 if slot i is empty. */
+    protected int[] value;
+
+    /** Number of entries stored. */
+    protected int size = 0;
+
+    /** Create an empty map. */
+    public LongIndexMap()
+    {
+        this( 16 );
+    }
+
+    /** Create an empty map with room for at least capacity/2 entries. */
+    public LongIndexMap( int capacity )
+    {
+        int n = 2;
+        while ( n < capacity ) { n *= 2; }
+        key = new long[n];
+        value = new int[n];
+        Arrays.fill( value, -1 );
+    }
+
+    /** Number of entries stored. */
+    public int size() { return size; }
+
+    /** Slot to start probing from for k. */
+    protected int slot( long k )
+    {
+        long h = k * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & (key.length - 1);
+    }
+
+    /** Return the value stored for k, or -1 if k is not present. */
+    public int get( long k )
+    {
+        int mask = key.length - 1;
+        for ( int i = slot(k); ; i = (i + 1) & mask ) {
+            if ( value[i] == -1 ) { return -1; }
+            if ( key[i] == k ) { return value[i]; }
+        }
+    }
+
+    /** Store v (which must be >= 0) for key k, replacing any previous value. */
+    public void put( long k, int v )
+    {
+        if ( v < 0 ) { throw new IllegalArgumentException( "Negative value : " + v ); }
+        if ( 2 * (size + 1) > key.length ) { resize( 2 * key.length ); }
+
+        int mask = key.length - 1;
+        int i = slot(k);
+        while ( value[i] != -1 && key[i] != k ) { i = (i + 1) & mask; }
+        if ( value[i] == -1 ) { size++; }
+        key[i] = k;
+        value[i] = v;
+    }
+
+    /** Remove all entries. */
+    public void clear()
+    {
+        Arrays.fill( value, -1 );
+        size = 0;
+    }
+
+    /** Rehash all entries into a table of length n. */
+    protected void resize( int n )
+    {
+        long[] oldKey = key;
+        int[] oldValue = value;
+        key = new long[n];
+        value = new int[n];
+        Arrays.fill( value, -1 );
+        size = 0;
+        for ( int i = 0; i < oldKey.length; i++ ) {
+            if ( oldValue[i] != -1 ) { put( oldKey[i], oldValue[i] ); }
+        }
+    }
+}
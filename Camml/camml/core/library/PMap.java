@@ -0,0 +1,206 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Parallel (in process) version of MAP
+//
+
+// File: PMap.java
+// Author: rodo@dgs.monash.edu.au
+
+package camml.core.library;
+
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import cdms.core.Type;
+import cdms.core.Value;
+import cdms.core.VectorFN;
+import cdms.core.Value.Function;
+
+/**
+ * Eager version of Map which applies f to each element concurrently using a work stealing
+ * ForkJoinPool.  Results are returned in the same order as the input vector regardless of the
+ * order in which they are calculated. <br>
+ *
+ * This gives a single (multi-core) machine the same functionality as the RMI based
+ * camml.plugin.rmi.CDMSEngine.RemoteMap without requiring any servers.  As with rmap, f must
+ * be safe to call from several threads at once. <br>
+ *
+ * pmap  : fn -> [x] -> [fn x] <br>
+ * pmapN : n -> fn -> [x] -> [fn x], using at most n threads
+ * 
+ * @see EMap
+ * @see cdms.core.VectorFN.Map
+ */
+public class PMap extends Function {
+
+    /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+    private static final long serialVersionUID = 5212740795325830146L;
+
+    final static Type.Function t = 
+        new Type.Function(Type.FUNCTION,PMapF.t);
+    
+    /** Number of threads used by pmap.  Defaults to the number of available processors. */
+    public static int defaultParallelism = Runtime.getRuntime().availableProcessors();
+
+    /** Static instance of PMap using defaultParallelism threads */
+    public static final PMap pmap = new PMap( 0 );
+
+    /** Static instance of PMapN */
+    public static final PMapN pmapN = new PMapN();
+
+    /** Number of threads to use, or 0 to use defaultParallelism */
+    protected final int parallelism;
+
+    /** Pools are shared between calls with the same parallelism. */
+    private static final HashMap<Integer,ForkJoinPool> poolMap = 
+        new HashMap<Integer,ForkJoinPool>();
+
+    public PMap( int parallelism ) {
+        super(t);
+        this.parallelism = parallelism;
+    }
+
+    public Value apply(Value f)    { 
+        return new PMapF((Value.Function)f, parallelism); 
+    }
+
+    /** Return a ForkJoinPool with the requested parallelism. */
+    protected static ForkJoinPool getPool( int parallelism ) {
+        synchronized ( poolMap ) {
+            ForkJoinPool pool = poolMap.get( parallelism );
+            if ( pool == null ) {
+                pool = new ForkJoinPool( parallelism );
+                poolMap.put( parallelism, pool );
+            }
+            return pool;
+        }
+    }
+
+    /** Return true if pool was created by getPool() */
+    protected static boolean isPMapPool( ForkJoinPool pool ) {
+        if ( pool == null ) { return false; }
+        synchronized ( poolMap ) { return poolMap.containsValue( pool ); }
+    }
+
+    /**
+     * Convenience function for PMap.  Return [f vec(i)] calculated using at most parallelism
+     * threads (or defaultParallelism if parallelism == 0). <br>
+     * When called from within one of PMap's own pools (ie. a nested pmap) the elements are 
+     * forked to the current pool so waiting threads can steal work instead of blocking.  Calls 
+     * from other pools (eg. the common pool) use a PMap pool so parallelism is respected.
+     */
+    public static Value.Vector _apply(Value.Function f, Value.Vector vec, int parallelism) {
+        if ( parallelism == 0 ) { parallelism = defaultParallelism; }
+        if ( parallelism <= 1 || vec.length() <= 1 ) { return EMap._apply( f, vec ); }
+
+        Value array[] = new Value[vec.length()];
+        MapTask task = new MapTask( f, vec, array, 0, array.length );
+        if ( isPMapPool( ForkJoinTask.getPool() ) ) { task.invoke(); }
+        else { getPool( parallelism ).invoke( task ); }
+        return new VectorFN.FatVector(array);    
+    }
+    
+    /** Set array[i] = f(vec.elt(i)) for i in [start,end), splitting the range in half. */
+    private static class MapTask extends RecursiveAction
+    {
+        /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+        private static final long serialVersionUID = -2695133917530485472L;
+
+        final Value.Function f;
+        final Value.Vector vec;
+        final Value[] array;
+        final int start, end;
+
+        MapTask( Value.Function f, Value.Vector vec, Value[] array, int start, int end )
+        {
+            this.f = f;
+            this.vec = vec;
+            this.array = array;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected void compute()
+        {
+            if ( end - start == 1 ) { array[start] = f.apply(vec.elt(start)); }
+            else {
+                int mid = (start + end) / 2;
+                invokeAll( new MapTask( f, vec, array, start, mid ),
+                           new MapTask( f, vec, array, mid, end ) );
+            }
+        }
+    }
+
+    /** Curried fn required for PMap*/
+    private static class PMapF extends Value.Function
+    { 
+        /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+        private static final long serialVersionUID = 8935104467092611873L;
+
+        final static Type.Function t = 
+            new Type.Function(Type.VECTOR,Type.VECTOR);
+        
+        private Value.Function f;
+        
+        private int parallelism;
+
+        public PMapF(Value.Function f, int parallelism)
+        { 
+            super(t);
+            this.f = f;
+            this.parallelism = parallelism;
+        }
+        
+        public Value apply(Value v)
+        { 
+            Value.Vector vec = (Value.Vector) v;
+            return PMap._apply(f,vec,parallelism);
+        }
+    }
+
+    /** n -> fn -> [x] -> [fn x], PMap using at most n threads. */
+    public static class PMapN extends Value.Function
+    {
+        /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+        private static final long serialVersionUID = 3391588217001766543L;
+
+        public PMapN() { super( new Type.Function(Type.DISCRETE,PMap.t) ); }
+
+        public Value apply(Value v)
+        {
+            int n = ((Value.Discrete)v).getDiscrete();
+            if ( n < 1 ) { throw new IllegalArgumentException("pmapN requires n >= 1 : " + n); }
+            return new PMap( n );
+        }
+    }
+}
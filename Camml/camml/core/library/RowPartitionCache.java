@@ -0,0 +1,82 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// RowPartitionCache is a HashTable of row partitions indexed by int[].  SoftReferences used to
+// save memory.
+//
+
+// File: RowPartitionCache.java
+// Author: rodo@dgs.monash.edu.au
+
+package camml.core.library;
+import java.lang.ref.SoftReference;
+
+/**
+ * This class uses SoftReferences to cache the partitions of rows created when splitting a
+ * dataset on a discrete attribute. <br>
+ * All partitions stored are based on the same root dataset, keys describe which split of root
+ * a partition came from (see DTreeSelectedVector.d_split).  All methods are synchronized so a
+ * single cache may be shared between threads.
+ */
+public class RowPartitionCache extends ArrayIndexedHashTable {
+
+    /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+    private static final long serialVersionUID = 2868216476309587725L;
+
+    /** Dataset all partitions are based on. */
+    final Object root;
+    
+    /** Constructor accepting the root dataset */
+    public RowPartitionCache( Object root ) {    
+        super();  
+        this.root = root;
+    }
+
+    /** Accessor for root */
+    public Object getRoot() { return root; }
+
+    /** Return partition from hashTable, or null if not present. */
+    public synchronized int[][] getPartition( int[] key ) {
+        // If no reference exists, return null
+        @SuppressWarnings("unchecked")
+        SoftReference<int[][]> ref = (SoftReference<int[][]>)get2( key );
+        if ( ref == null ) { return null; }
+        // If partition has already been deleted, delete reference and return null.
+        int[][] partition = ref.get();
+        if ( partition == null ) { this.remove2( key ); }
+        // Return partition.
+        return partition;
+    }
+    
+    /** Add partition to hashTable */
+    public synchronized void putPartition( int[] key, int[][] partition ) {
+        put2( key, new SoftReference<int[][]>(partition) );
+    }
+}
@@ -29,13 +29,16 @@
 
 package camml.core.library.extensionCounter;
 
-import java.util.Hashtable;
+import camml.core.library.LongDoubleCache;
 
 /** Dynamic programming approach to Extension Counting. 
  *  Various operations are used in an attempt to reduce the branching factor of the
  *  algorithm and a cache of partial results is kept in an attempt to speed up the calculation*/
 public class DynamicCounter {
 
+    /** Maximum number of entries stored in dagHash by new DynamicCounters */
+    public static int maxCacheSize = 1 << 18;
+    
     /** Static instance of DynamicCounter */
     public static final DynamicCounter dCounter = new DynamicCounter();
 
@@ -52,8 +55,12 @@ public class DynamicCounter {
         return ret;
     }
 
-    /** Hash table mapping from Long(hash) -> Long(numExtensions)*/
-    /*protected*/ public Hashtable<Long,Double> dagHash = new Hashtable<Long,Double>();
+    /** 
+     * Bounded cache mapping from (canonical) DAG hash -> numExtensions.  Entries may be
+     * evicted when the cache is full, so memory use is fixed for the whole run and the cache
+     * may be shared by several threads.
+     */
+    /*protected*/ public final LongDoubleCache dagHash = new LongDoubleCache( maxCacheSize );
     
             
     /** perms is recursively called to calculate permutations.
@@ -182,15 +189,16 @@ public class DynamicCounter {
         dCounterCalls[numNodes]++;
 
         // Lookup dag in hashtable.
-        Long hash = null;
+        long hash = 0;
+        boolean hashed = false;
         if (numNodes < maxHashableSize) {
-            if ((operations & opCheckDAGHash) != 0) { hash = new Long(g.getHash());    }
-            else if ((operations & opCheckCanonicalDAGHash) != 0) {    hash = new Long(g.getCanonicalHash()); }
+            if ((operations & opCheckDAGHash) != 0) { hash = g.getHash(); hashed = true; }
+            else if ((operations & opCheckCanonicalDAGHash) != 0) { hash = g.getCanonicalHash(); hashed = true; }
         }
         
-        if (hash != null) {
-            Double ext = dagHash.get(hash);
-            if (ext != null) { return ext.doubleValue(); }
+        if (hashed) {
+            double ext = dagHash.get(hash);
+            if (!Double.isNaN(ext)) { return ext; }
         }
         
 
@@ -231,9 +239,8 @@ public class DynamicCounter {
         
             
         // put value in hashtable for later use.
-        if ((operations & (opCheckDAGHash|opCheckCanonicalDAGHash)) != 0 &&
-            (numNodes < maxHashableSize) ) {
-            dagHash.put(hash,new Double(total));            
+        if (hashed) {
+            dagHash.put(hash,total);            
             
             dHashEntries[0]++;
             dHashEntries[numNodes]++;
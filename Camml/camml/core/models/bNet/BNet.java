@@ -864,23 +864,44 @@ public abstract class BNet extends Value.Model
     }    
 
     
-    private Value.Vector klParams = null;
-    private Value.Vector testData = null;
-    private Value.Vector trivVec = null;
-    private double logP1 = 0.0;
-    /** Calculate KL distance stochastically using 10000 samples */
-    public double klStochastic( Value.Vector params1, Value.Vector params2 ) {
-        if ( klParams != params1 ) {
-            //if (klParams != null) {System.out.println("Regenerating test data, etc.");}
-            klParams = params1;
-            testData = generate(new java.util.Random(123),10000,params1,Value.TRIV);
+    /** Data sampled from params by klStochastic, along with its log probability. */
+    private static class KLSample {
+        final Value.Vector params;
+        final Value.Vector testData;
+        final Value.Vector trivVec;
+        final double logP1;
+
+        KLSample( BNet bNet, Value.Vector params ) {
+            this.params = params;
+            testData = bNet.generate(new java.util.Random(123),10000,params,Value.TRIV);
             trivVec = new VectorFN.UniformVector(testData.length(),Value.TRIV);
-            logP1 = logP(testData,params1,trivVec);            
+            logP1 = bNet.logP(testData,params,trivVec);
         }
-        
-        //     Calculate KL distance stochastically
-        double logP2 = logP(testData,params2,trivVec);
-        double kl = (logP1-logP2)/testData.length();
+    }
+
+    /** Last sample generated by klStochastic.  This is replaced (not modified) so may
+     *  be shared between threads. */
+    private transient volatile KLSample klSample = null;
+
+    /** Return sample generated from params1, reusing the previous sample if possible. */
+    private KLSample getKLSample( Value.Vector params1 ) {
+        KLSample sample = klSample;
+        if ( sample == null || sample.params != params1 ) {
+            sample = new KLSample( this, params1 );
+            klSample = sample;
+        }
+        return sample;
+    }
+
+    /** Calculate KL distance stochastically using 10000 samples */
+    public double klStochastic( Value.Vector params1, Value.Vector params2 ) {
+        return klStochastic( getKLSample(params1), params2 );
+    }
+
+    /** Calculate KL distance stochastically using data sampled from params1 */
+    private double klStochastic( KLSample sample, Value.Vector params2 ) {
+        double logP2 = logP(sample.testData,params2,sample.trivVec);
+        double kl = (sample.logP1-logP2)/sample.testData.length();
         return kl;        
     }
     
@@ -1164,6 +1185,25 @@ public abstract class BNet extends Value.Model
         }
     }
     
+    /** Return kl(params1,params2[j]) for all j. <br>
+     *  If a stochastic approximation is used, the sample from params1 is generated once and 
+     *  shared between all params2.  Several threads may call this function at once. */
+    public double[] kl( Value.Vector params1, Value.Vector[] params2 ) {
+        double[] kl = new double[params2.length];
+        if ( params1.length() <= 30) {
+            for ( int j = 0; j < kl.length; j++ ) { kl[j] = klExact(params1,params2[j]); }
+        }
+        else {
+            if ( !klWarningPrinted ) {
+                System.out.println("WARNING: Using stochastic approximation to KL.");
+                klWarningPrinted = true;
+            }
+            KLSample sample = getKLSample(params1);
+            for ( int j = 0; j < kl.length; j++ ) { kl[j] = klStochastic(sample,params2[j]); }
+        }
+        return kl;
+    }
+    
     /** Calculate causal KL distance using uniform prior over interventions.  <br>
      *  prior == 0 : Normal KL <br>
      *  prior == 1 : CKL1, Uniform prior over intervention set and space <br>
@@ -0,0 +1,780 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Bayesian Network model class using exact inference
+//
+
+// File: BNetExact.java
+// Author: rodo@dgs.monash.edu.au
+
+package camml.core.models.bNet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import cdms.core.*;
+
+/**
+ *  Bayesian Network model. <br>
+ *
+ *  BNetExact accepts the same parameters and queries as BNetStochastic, but inference is
+ *  exact and is performed in pure java. <br>
+ *
+ *  The first time a parameter vector is seen the network is compiled into a junction tree
+ *  (moralise, triangulate using a greedy min-fill heuristic, join cliques in a maximum weight
+ *  spanning tree) and the product of CPTs assigned to each clique is cached.  Queries using
+ *  the same parameter vector reuse the compiled tree, so logP() is two collect passes and
+ *  predict() is a max-product pass over the tree. <br>
+ *
+ *  Only discrete variables are supported.  Sub-models are only accessed through logP() so
+ *  any local structure (CPT, DTree, Logit, ...) may be used. <br>
+ *
+ *  A compiled tree is never modified, so a BNetExact may be queried from multiple threads.
+ */
+public class BNetExact extends BNet
+{
+    /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+    private static final long serialVersionUID = -2706893510451722187L;
+
+    /** Largest clique table allowed.  Compiling a network with larger cliques fails. */
+    public static int maxCliqueSize = 1 << 24;
+
+    /** Used by generate(), forward sampling requires no inference. */
+    protected final BNetStochastic sampler;
+
+    /** Most recently compiled tree. */
+    private transient volatile JunctionTree lastTree;
+
+    /**
+     *  Simple constructor.  Model type = {
+     *  X = Type.VECTOR,
+     *  Z = Type.VECTOR,
+     *  Y = [ ( name, [parents], (model,params) ) ]
+     *  S = (Type.VECTOR, Type.VECTOR) }
+     */
+    public BNetExact( Type.Structured dataType )
+    {
+        super( dataType );
+        this.sampler = new BNetStochastic( dataType );
+    }
+
+    /**
+     * Return the junction tree for params.  Trees are cached by the identity of params, so
+     * repeated queries with the same parameter vector are only compiled once.
+     */
+    public JunctionTree compile( Value.Vector params )
+    {
+        JunctionTree tree = lastTree;
+        if ( tree == null || tree.params != params ) {
+            tree = new JunctionTree( params );
+            lastTree = tree;
+        }
+        return tree;
+    }
+
+    /**
+     *  Returns a stochastic vector of elements from the data-space conditional on Y,Z.
+     *  Y = [ name, [parents], (model.params) ]
+     */
+    public Value.Vector generate( Random rand, int n, Value y, Value z )
+    {
+        return sampler.generate( rand, n, y, z );
+    }
+
+    /** logP(X_1|Y,Z_1) + logP(X_2|Y,Z_2) + ... */
+    public double logPSufficient( Value s, Value y )
+    {
+        throw new RuntimeException("Function not implemented");
+    }
+
+    /** State index (ie. value - LWB) of v, the i'th variable */
+    protected int state( JunctionTree tree, int i, Value v )
+    {
+        return ((Value.Discrete)v).getDiscrete() - tree.lwb[i];
+    }
+
+    /**
+     *  logP(X|Y,Z) <br>
+     *  A variable unobserved in Z and proper in X is queried, a variable proper in both must
+     *  have the same value in both and is used as evidence.  Variables with status
+     *  S_INTERVENTION in both X and Z are set by intervention (ie. their CPT is ignored).
+     */
+    public double logP( Value x, Value y, Value z )
+    {
+        JunctionTree tree = compile( (Value.Vector)y );
+        int n = tree.numVars;
+
+        Value.Structured input;
+        if ( z == Value.TRIV ) { input = makeUnobservedInputStruct(); }
+        else { input = (Value.Structured)z; }
+        Value.Structured output = (Value.Structured)x;
+
+        // Evidence required in numerator and denominator of P(X,Z)/P(Z)
+        int[] numerator = new int[n];
+        int[] denominator = new int[n];
+        Arrays.fill( numerator, -1 );
+        Arrays.fill( denominator, -1 );
+        boolean[] intervened = new boolean[n];
+        boolean conditional = false;
+
+        for ( int i = 0; i < n; i++ ) {
+            Value in = input.cmpnt(i);
+            Value out = output.cmpnt(i);
+
+            // Value.TRIV is used as a convenient way to specify "Unobserved"
+            ValueStatus inStatus = in.status();
+            ValueStatus outStatus = out.status();
+            if (in == Value.TRIV) { inStatus = Value.S_UNOBSERVED; }
+            if (out == Value.TRIV) { outStatus = Value.S_UNOBSERVED; }
+
+            if ( inStatus == Value.S_UNOBSERVED && outStatus == Value.S_UNOBSERVED  ) {
+                // Marginalised out.
+            }
+            else if ( inStatus == Value.S_UNOBSERVED && outStatus == Value.S_PROPER ) {
+                numerator[i] = state( tree, i, out );
+            }
+            else if ( inStatus == Value.S_PROPER && outStatus == Value.S_PROPER ) {
+                // Querying a state which differs from the value given.
+                if ( state( tree, i, in ) != state( tree, i, out ) ) { return Math.log(0); }
+                numerator[i] = denominator[i] = state( tree, i, in );
+                conditional = true;
+            }
+            else if ( inStatus == S_INTERVENTION && outStatus == S_INTERVENTION ) {
+                if ( state( tree, i, in ) != state( tree, i, out ) ) {
+                    throw new RuntimeException("Intervened upon variable differs from in->out");
+                }
+                numerator[i] = denominator[i] = state( tree, i, in );
+                intervened[i] = true;
+            }
+            else {
+                throw new RuntimeException( "Invalid Status flag combination <" +
+                                            in.status() + "," + out.status() + ">" );
+            }
+        }
+
+        // The mutilated network is still normalised, so P(Z) == 1 unless evidence is present.
+        double logPZ = 0;
+        if ( conditional ) {
+            logPZ = tree.logZ( denominator, intervened );
+            if ( logPZ == Double.NEGATIVE_INFINITY ) { return Math.log(0); }
+        }
+        return tree.logZ( numerator, intervened ) - logPZ;
+    }
+
+    /** Extract evidence from z, variables proper or intervened upon in z are set. */
+    protected int[] makeEvidence( JunctionTree tree, Value z, boolean[] intervened )
+    {
+        int[] evidence = new int[tree.numVars];
+        Arrays.fill( evidence, -1 );
+        if ( z == Value.TRIV ) { return evidence; }
+
+        Value.Structured input = (Value.Structured)z;
+        for ( int i = 0; i < evidence.length; i++ ) {
+            Value in = input.cmpnt(i);
+            if ( in == Value.TRIV ) { continue; }
+            if ( in.status() == Value.S_PROPER ) {
+                evidence[i] = state( tree, i, in );
+            }
+            else if ( in.status() == S_INTERVENTION ) {
+                evidence[i] = state( tree, i, in );
+                intervened[i] = true;
+            }
+        }
+        return evidence;
+    }
+
+    /**
+     * Predict returns the most probable state of the network given z.  Unlike BNetStochastic
+     * this is the true most probable joint state of all unobserved variables (found using
+     * max-product propagation).
+     */
+    public Value predict( Value y, Value z )
+    {
+        JunctionTree tree = compile( (Value.Vector)y );
+        boolean[] intervened = new boolean[tree.numVars];
+        int[] evidence = makeEvidence( tree, z, intervened );
+        int[] best = tree.mostProbableState( evidence, intervened );
+
+        Value[] data = new Value[tree.numVars];
+        for ( int i = 0; i < data.length; i++ ) {
+            if ( evidence[i] != -1 ) { data[i] = ((Value.Structured)z).cmpnt(i); }
+            else { data[i] = new Value.Discrete( tree.type[i], best[i] + tree.lwb[i] ); }
+        }
+        return new Value.DefStructured( data );
+    }
+
+    /**
+     * Posterior marginal distribution of target given all other variables observed in z.
+     * If z is impossible all probabilities are 0.
+     */
+    public double[] distribution( Value.Vector y, Value z, int target )
+    {
+        JunctionTree tree = compile( y );
+        boolean[] intervened = new boolean[tree.numVars];
+        int[] evidence = makeEvidence( tree, z, intervened );
+        evidence[target] = -1;
+        intervened[target] = false;
+        return tree.marginal( evidence, intervened, target );
+    }
+
+    /**
+     * Posterior marginal distribution of target given evidence[i] (the state of each variable
+     * as an index from its LWB, -1 if unobserved).  evidence[target] is ignored.
+     */
+    public double[] distribution( Value.Vector y, int[] evidence, int target )
+    {
+        JunctionTree tree = compile( y );
+        int[] e = evidence.clone();
+        e[target] = -1;
+        return tree.marginal( e, new boolean[tree.numVars], target );
+    }
+
+    /** Calculate posterior marginals over target given each element of z\target */
+    public double[][] distribution( Value.Vector y, Value.Vector z, int target )
+    {
+        double[][] dist = new double[z.length()][];
+        for ( int i = 0; i < dist.length; i++ ) {
+            dist[i] = distribution( y, z.elt(i), target );
+        }
+        return dist;
+    }
+
+    public String toString() {
+        return "BNet Exact Model";
+    }
+
+    /**
+     * A network compiled into a junction tree. <br>
+     *
+     * Clique tables are stored with the highest numbered variable changing fastest.  For each
+     * separator (and each CPT) an index map from clique entries to separator (CPT) entries is
+     * precomputed so messages may be passed without decoding states.
+     */
+    public class JunctionTree
+    {
+        /** Parameters this tree was compiled from. */
+        public final Value.Vector params;
+
+        /** Number of variables in network */
+        public final int numVars;
+
+        /** Type, lower bound and arity of each variable. */
+        protected final Type.Discrete[] type;
+        protected final int[] lwb;
+        protected final int[] arity;
+
+        /** Variables in each clique, in ascending order. */
+        protected final int[][] cliqueVars;
+
+        /** stride[c][j] = distance between successive states of cliqueVars[c][j] */
+        protected final int[][] stride;
+
+        /** Product of CPTs assigned to each clique. */
+        protected final double[][] potential;
+
+        /** Variables whose CPT is assigned to each clique. */
+        protected final int[][] family;
+
+        /** CPT of each variable, parents changing slowest and the variable itself fastest. */
+        protected final double[][] cpt;
+
+        /** Map from entries of the clique a CPT is assigned to to entries of the CPT. */
+        protected final int[][] cptMap;
+
+        /** Clique each CPT is assigned to. */
+        protected final int[] familyClique;
+
+        /** Smallest clique containing each variable. */
+        protected final int[] home;
+
+        /** Endpoints of each edge in the tree. */
+        protected final int[] edgeA, edgeB;
+
+        /** Size of each separator. */
+        protected final int[] sepSize;
+
+        /** Map from clique entries to separator entries for each end of each edge. */
+        protected final int[][] mapA, mapB;
+
+        /** Edges leaving each clique. */
+        protected final int[][] cliqueEdges;
+
+        /** Compile params into a junction tree. */
+        protected JunctionTree( Value.Vector params )
+        {
+            this.params = params;
+            int[][] parents = makeParentList( params );
+            Value.Model[] subModel = makeSubModelList( params );
+            Value[] subParam = makeSubParamList( params );
+            numVars = parents.length;
+
+            type = new Type.Discrete[numVars];
+            lwb = new int[numVars];
+            arity = new int[numVars];
+            for ( int i = 0; i < numVars; i++ ) {
+                if ( !(dataType.cmpnts[i] instanceof Type.Discrete) ) {
+                    throw new RuntimeException( "BNetExact requires discrete variables, found " +
+                                                dataType.cmpnts[i] );
+                }
+                type[i] = (Type.Discrete)dataType.cmpnts[i];
+                lwb[i] = (int)type[i].LWB;
+                arity[i] = (int)(type[i].UPB - type[i].LWB + 1);
+            }
+
+            // Moralise
+            boolean[][] adj = new boolean[numVars][numVars];
+            for ( int i = 0; i < numVars; i++ ) {
+                for ( int j = 0; j < parents[i].length; j++ ) {
+                    int a = parents[i][j];
+                    adj[i][a] = adj[a][i] = true;
+                    for ( int k = j+1; k < parents[i].length; k++ ) {
+                        int b = parents[i][k];
+                        adj[a][b] = adj[b][a] = true;
+                    }
+                }
+            }
+
+            // Triangulate, at each step eliminate the variable adding the fewest fill in edges
+            // (breaking ties by clique weight).  Each elimination clique not contained in an
+            // earlier clique is kept.
+            ArrayList<int[]> cliqueList = new ArrayList<int[]>();
+            boolean[] eliminated = new boolean[numVars];
+            for ( int step = 0; step < numVars; step++ ) {
+                int best = -1;
+                int bestFill = Integer.MAX_VALUE;
+                double bestWeight = Double.POSITIVE_INFINITY;
+                for ( int v = 0; v < numVars; v++ ) {
+                    if ( eliminated[v] ) { continue; }
+                    int fill = 0;
+                    double weight = arity[v];
+                    for ( int a = 0; a < numVars; a++ ) {
+                        if ( eliminated[a] || !adj[v][a] ) { continue; }
+                        weight *= arity[a];
+                        for ( int b = a+1; b < numVars; b++ ) {
+                            if ( !eliminated[b] && adj[v][b] && !adj[a][b] ) { fill++; }
+                        }
+                    }
+                    if ( fill < bestFill || (fill == bestFill && weight < bestWeight) ) {
+                        best = v; bestFill = fill; bestWeight = weight;
+                    }
+                }
+
+                int[] nbr = new int[numVars];
+                int size = 0;
+                for ( int a = 0; a < numVars; a++ ) {
+                    if ( a == best || (!eliminated[a] && adj[best][a]) ) { nbr[size++] = a; }
+                }
+                int[] clique = Arrays.copyOf( nbr, size );
+                for ( int a : clique ) {
+                    for ( int b : clique ) { if ( a != b ) { adj[a][b] = true; } }
+                }
+                eliminated[best] = true;
+
+                boolean subset = false;
+                for ( int[] c : cliqueList ) {
+                    if ( contains( c, clique ) ) { subset = true; break; }
+                }
+                if ( !subset ) { cliqueList.add( clique ); }
+            }
+
+            int numCliques = cliqueList.size();
+            cliqueVars = cliqueList.toArray( new int[numCliques][] );
+            stride = new int[numCliques][];
+            potential = new double[numCliques][];
+            for ( int c = 0; c < numCliques; c++ ) {
+                stride[c] = makeStride( cliqueVars[c] );
+                potential[c] = new double[ tableSize( cliqueVars[c] ) ];
+                Arrays.fill( potential[c], 1.0 );
+            }
+
+            // Join cliques using a maximum weight spanning tree (Prim's algorithm) weighted by
+            // separator size.  Disconnected networks are joined by empty separators.
+            edgeA = new int[numCliques - 1];
+            edgeB = new int[numCliques - 1];
+            sepSize = new int[numCliques - 1];
+            mapA = new int[numCliques - 1][];
+            mapB = new int[numCliques - 1][];
+            int[] numEdges = new int[numCliques];
+            boolean[] inTree = new boolean[numCliques];
+            int[] link = new int[numCliques];
+            int[] linkWeight = new int[numCliques];
+            Arrays.fill( linkWeight, -1 );
+            int next = 0;
+            for ( int e = -1; e < numCliques - 1; e++ ) {
+                inTree[next] = true;
+                if ( e >= 0 ) {
+                    int[] sep = intersect( cliqueVars[link[next]], cliqueVars[next] );
+                    edgeA[e] = link[next];
+                    edgeB[e] = next;
+                    sepSize[e] = tableSize( sep );
+                    mapA[e] = indexMap( cliqueVars[edgeA[e]], sep );
+                    mapB[e] = indexMap( cliqueVars[edgeB[e]], sep );
+                    numEdges[edgeA[e]]++;
+                    numEdges[edgeB[e]]++;
+                }
+                int added = next;
+                next = -1;
+                for ( int c = 0; c < numCliques; c++ ) {
+                    if ( inTree[c] ) { continue; }
+                    int w = intersect( cliqueVars[added], cliqueVars[c] ).length;
+                    if ( w > linkWeight[c] ) { linkWeight[c] = w; link[c] = added; }
+                    if ( next == -1 || linkWeight[c] > linkWeight[next] ) { next = c; }
+                }
+            }
+            cliqueEdges = new int[numCliques][];
+            for ( int c = 0; c < numCliques; c++ ) {
+                cliqueEdges[c] = new int[numEdges[c]];
+                numEdges[c] = 0;
+            }
+            for ( int e = 0; e < edgeA.length; e++ ) {
+                cliqueEdges[edgeA[e]][numEdges[edgeA[e]]++] = e;
+                cliqueEdges[edgeB[e]][numEdges[edgeB[e]]++] = e;
+            }
+
+            // Assign each CPT to the smallest clique containing its family.
+            home = new int[numVars];
+            familyClique = new int[numVars];
+            cpt = new double[numVars][];
+            cptMap = new int[numVars][];
+            int[] numFamilies = new int[numCliques];
+            for ( int i = 0; i < numVars; i++ ) {
+                int[] fam = Arrays.copyOf( parents[i], parents[i].length + 1 );
+                fam[fam.length-1] = i;
+                home[i] = smallestClique( new int[] {i} );
+                familyClique[i] = smallestClique( fam );
+                numFamilies[ familyClique[i] ]++;
+
+                cpt[i] = makeCPT( i, parents[i], subModel[i], subParam[i] );
+                cptMap[i] = indexMap( cliqueVars[familyClique[i]], fam );
+                multiply( potential[familyClique[i]], cpt[i], cptMap[i] );
+            }
+            family = new int[numCliques][];
+            for ( int c = 0; c < numCliques; c++ ) {
+                family[c] = new int[numFamilies[c]];
+                numFamilies[c] = 0;
+            }
+            for ( int i = 0; i < numVars; i++ ) {
+                family[familyClique[i]][numFamilies[familyClique[i]]++] = i;
+            }
+        }
+
+        /** Tabulate P(var|parents) using subModel.logP */
+        protected double[] makeCPT( int var, int[] parents, Value.Model subModel, Value subParam )
+        {
+            int[] fam = Arrays.copyOf( parents, parents.length + 1 );
+            fam[parents.length] = var;
+            double[] table = new double[ tableSize(fam) ];
+
+            int[] parentState = new int[parents.length];
+            int[] parentArity = new int[parents.length];
+            for ( int j = 0; j < parents.length; j++ ) { parentArity[j] = arity[parents[j]]; }
+
+            int k = 0;
+            for ( int row = 0; row < table.length / arity[var]; row++ ) {
+                Value[] parentArray = new Value[parents.length];
+                for ( int j = 0; j < parentArray.length; j++ ) {
+                    parentArray[j] = new Value.Discrete( type[parents[j]],
+                                                         parentState[j] + lwb[parents[j]] );
+                }
+                Value.Structured parentData = new Value.DefStructured( parentArray );
+                for ( int s = 0; s < arity[var]; s++ ) {
+                    Value.Discrete x = new Value.Discrete( type[var], s + lwb[var] );
+                    table[k++] = Math.exp( subModel.logP( x, subParam, parentData ) );
+                }
+                incrementBitfield( parentState, parentArity );
+            }
+            return table;
+        }
+
+        /** Number of entries in a table over vars. */
+        protected int tableSize( int[] vars )
+        {
+            long size = 1;
+            for ( int v : vars ) {
+                size *= arity[v];
+                if ( size > maxCliqueSize ) {
+                    throw new RuntimeException( "Junction tree clique too large : " +
+                                                Arrays.toString(vars) );
+                }
+            }
+            return (int)size;
+        }
+
+        /** Strides of vars in a table with the last variable changing fastest. */
+        protected int[] makeStride( int[] vars )
+        {
+            int[] s = new int[vars.length];
+            int x = 1;
+            for ( int j = vars.length - 1; j >= 0; j-- ) { s[j] = x; x *= arity[vars[j]]; }
+            return s;
+        }
+
+        /**
+         * Map from each entry of a table over vars to the corresponding entry of a table over
+         * sub (a subset of vars, in any order).
+         */
+        protected int[] indexMap( int[] vars, int[] sub )
+        {
+            int[] subStride = makeStride( sub );
+            int[] weight = new int[vars.length];
+            int[] card = new int[vars.length];
+            for ( int j = 0; j < vars.length; j++ ) {
+                card[j] = arity[vars[j]];
+                for ( int k = 0; k < sub.length; k++ ) {
+                    if ( sub[k] == vars[j] ) { weight[j] = subStride[k]; }
+                }
+            }
+
+            int[] map = new int[ tableSize(vars) ];
+            int[] s = new int[vars.length];
+            int index = 0;
+            for ( int k = 0; k < map.length; k++ ) {
+                map[k] = index;
+                // Odometer increment of s, updating index as we go.
+                for ( int j = vars.length - 1; j >= 0; j-- ) {
+                    if ( ++s[j] < card[j] ) { index += weight[j]; break; }
+                    index -= weight[j] * (card[j] - 1);
+                    s[j] = 0;
+                }
+            }
+            return map;
+        }
+
+        /** Return the smallest clique containing all of vars. */
+        protected int smallestClique( int[] vars )
+        {
+            int best = -1;
+            for ( int c = 0; c < cliqueVars.length; c++ ) {
+                if ( contains( cliqueVars[c], vars ) &&
+                     (best == -1 || potential[c].length < potential[best].length) ) {
+                    best = c;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Copy of clique c's potential with entries inconsistent with evidence zeroed.  The CPTs
+         * of intervened variables are removed.
+         */
+        protected double[] makeTable( int c, int[] evidence, boolean[] intervened )
+        {
+            double[] table = null;
+            for ( int i : family[c] ) {
+                if ( intervened[i] ) {
+                    // Rebuild potential without CPTs of intervened variables.
+                    table = new double[potential[c].length];
+                    Arrays.fill( table, 1.0 );
+                    for ( int j : family[c] ) {
+                        if ( !intervened[j] ) { multiply( table, cpt[j], cptMap[j] ); }
+                    }
+                    break;
+                }
+            }
+            if ( table == null ) { table = potential[c].clone(); }
+
+            int[] vars = cliqueVars[c];
+            for ( int j = 0; j < vars.length; j++ ) {
+                int e = evidence[vars[j]];
+                if ( e == -1 ) { continue; }
+                int card = arity[vars[j]];
+                for ( int k = 0; k < table.length; k++ ) {
+                    if ( (k / stride[c][j]) % card != e ) { table[k] = 0; }
+                }
+            }
+            return table;
+        }
+
+        /**
+         * Pass messages from the leaves of the tree towards root.  On return table[c] holds
+         * the (evidence reduced) potential of clique c multiplied by all messages received and
+         * order[] lists cliques with each clique before its children.  Each message is normalised
+         * and the log of its normalising constant added to logScale[0].  If max == true messages
+         * are max-marginals instead of marginals.  Returns false if the evidence is impossible.
+         */
+        protected boolean collect( double[][] table, int[] order, int[] parentEdge, int root,
+                                   int[] evidence, boolean[] intervened, boolean max,
+                                   double[] logScale )
+        {
+            int numCliques = cliqueVars.length;
+            for ( int c = 0; c < numCliques; c++ ) {
+                table[c] = makeTable( c, evidence, intervened );
+            }
+
+            // Depth first ordering of cliques from root.
+            boolean[] seen = new boolean[numCliques];
+            int[] stack = new int[numCliques];
+            int top = 0, numOrdered = 0;
+            stack[top++] = root;
+            seen[root] = true;
+            parentEdge[root] = -1;
+            while ( top > 0 ) {
+                int c = stack[--top];
+                order[numOrdered++] = c;
+                for ( int e : cliqueEdges[c] ) {
+                    int d = (edgeA[e] == c) ? edgeB[e] : edgeA[e];
+                    if ( !seen[d] ) { seen[d] = true; parentEdge[d] = e; stack[top++] = d; }
+                }
+            }
+
+            boolean possible = true;
+            for ( int o = numCliques - 1; o > 0; o-- ) {
+                int c = order[o];
+                int e = parentEdge[c];
+                int[] fromMap = (edgeA[e] == c) ? mapA[e] : mapB[e];
+                int[] toMap = (edgeA[e] == c) ? mapB[e] : mapA[e];
+                double[] to = table[ (edgeA[e] == c) ? edgeB[e] : edgeA[e] ];
+
+                double[] msg = new double[sepSize[e]];
+                double[] from = table[c];
+                if ( max ) {
+                    for ( int k = 0; k < from.length; k++ ) {
+                        if ( from[k] > msg[fromMap[k]] ) { msg[fromMap[k]] = from[k]; }
+                    }
+                }
+                else {
+                    for ( int k = 0; k < from.length; k++ ) { msg[fromMap[k]] += from[k]; }
+                }
+
+                double total = 0;
+                for ( int k = 0; k < msg.length; k++ ) { total += msg[k]; }
+                if ( total == 0 ) { possible = false; continue; }
+                for ( int k = 0; k < msg.length; k++ ) { msg[k] /= total; }
+                logScale[0] += Math.log( total );
+
+                for ( int k = 0; k < to.length; k++ ) { to[k] *= msg[toMap[k]]; }
+            }
+            return possible;
+        }
+
+        /** log P(evidence) in the network with intervened variables' CPTs removed. */
+        public double logZ( int[] evidence, boolean[] intervened )
+        {
+            int numCliques = cliqueVars.length;
+            double[][] table = new double[numCliques][];
+            double[] logScale = new double[1];
+            if ( !collect( table, new int[numCliques], new int[numCliques], 0,
+                           evidence, intervened, false, logScale ) ) {
+                return Math.log(0);
+            }
+            double total = 0;
+            for ( double p : table[0] ) { total += p; }
+            return logScale[0] + Math.log( total );
+        }
+
+        /** Posterior distribution of target given evidence, all 0 if evidence is impossible. */
+        public double[] marginal( int[] evidence, boolean[] intervened, int target )
+        {
+            int numCliques = cliqueVars.length;
+            double[][] table = new double[numCliques][];
+            int root = home[target];
+            double[] dist = new double[arity[target]];
+            if ( !collect( table, new int[numCliques], new int[numCliques], root,
+                           evidence, intervened, false, new double[1] ) ) {
+                return dist;
+            }
+
+            int j = Arrays.binarySearch( cliqueVars[root], target );
+            double total = 0;
+            for ( int k = 0; k < table[root].length; k++ ) {
+                dist[ (k / stride[root][j]) % arity[target] ] += table[root][k];
+                total += table[root][k];
+            }
+            if ( total > 0 ) {
+                for ( int s = 0; s < dist.length; s++ ) { dist[s] /= total; }
+            }
+            return dist;
+        }
+
+        /**
+         * Most probable joint state of all variables given evidence.  If evidence is impossible
+         * an arbitrary state consistent with evidence is returned.
+         */
+        public int[] mostProbableState( int[] evidence, boolean[] intervened )
+        {
+            int numCliques = cliqueVars.length;
+            double[][] table = new double[numCliques][];
+            int[] order = new int[numCliques];
+            int[] parentEdge = new int[numCliques];
+            collect( table, order, parentEdge, 0, evidence, intervened, true, new double[1] );
+
+            // Working from the root, choose the best entry of each clique consistent with the
+            // states already chosen for its separator.
+            int[] best = evidence.clone();
+            for ( int o = 0; o < numCliques; o++ ) {
+                int c = order[o];
+                int[] vars = cliqueVars[c];
+                int bestK = -1;
+                for ( int k = 0; k < table[c].length; k++ ) {
+                    if ( bestK != -1 && table[c][k] <= table[c][bestK] ) { continue; }
+                    boolean consistent = true;
+                    for ( int j = 0; j < vars.length && consistent; j++ ) {
+                        int s = best[vars[j]];
+                        consistent = (s == -1 || (k / stride[c][j]) % arity[vars[j]] == s);
+                    }
+                    if ( consistent ) { bestK = k; }
+                }
+                for ( int j = 0; j < vars.length; j++ ) {
+                    best[vars[j]] = (bestK / stride[c][j]) % arity[vars[j]];
+                }
+            }
+            return best;
+        }
+    }
+
+    /** table[k] *= sub[map[k]] */
+    protected static void multiply( double[] table, double[] sub, int[] map )
+    {
+        for ( int k = 0; k < table.length; k++ ) { table[k] *= sub[map[k]]; }
+    }
+
+    /** Return true if the sorted array a contains every element of b. */
+    protected static boolean contains( int[] a, int[] b )
+    {
+        for ( int x : b ) {
+            if ( Arrays.binarySearch( a, x ) < 0 ) { return false; }
+        }
+        return true;
+    }
+
+    /** Intersection of sorted arrays a and b. */
+    protected static int[] intersect( int[] a, int[] b )
+    {
+        int[] x = new int[Math.min(a.length,b.length)];
+        int n = 0;
+        for ( int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if ( a[i] < b[j] ) { i++; }
+            else if ( a[i] > b[j] ) { j++; }
+            else { x[n++] = a[i]; i++; j++; }
+        }
+        return Arrays.copyOf( x, n );
+    }
+}
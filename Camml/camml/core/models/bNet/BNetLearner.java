@@ -162,27 +162,31 @@ public class BNetLearner extends ModelLearner.DefaultImplementation
         // Run the search.
         new BlockingSearch ( s ).start();
         
-        if ( fullResults == true ) { 
-            Value.Model tomModel = s.getBNet();
-            Value tomParams = s.getBestParams( mmlLearner );
-            Value stats = tomModel.getSufficient(x,z);
-            Value fullResults = ((MetropolisSearch)s).getResults();
-            return new Value.DefStructured( new Value[] {tomModel,stats,tomParams, fullResults} );
-        }
+        try {
+            if ( fullResults == true ) { 
+                Value.Model tomModel = s.getBNet();
+                Value tomParams = s.getBestParams( mmlLearner );
+                Value stats = tomModel.getSufficient(x,z);
+                Value fullResults = ((MetropolisSearch)s).getResults();
+                return new Value.DefStructured( new Value[] {tomModel,stats,tomParams, fullResults} );
+            }
         
-        // For a single model
-        if ( mix == false ) {
-            Value.Model tomModel = s.getBNet();
-            Value tomParams = s.getBestParams( mmlLearner );
-            Value stats = tomModel.getSufficient(x,z);                
-            return new Value.DefStructured( new Value[] {tomModel,stats,tomParams} );
-        }
-        else {
-            if ( s instanceof MetropolisSearch ) {
-                Value.Structured my = ((MetropolisSearch)s).getMixResults( );
-                return new Value.DefStructured(new Value[] {my.cmpnt(0), Value.TRIV ,my.cmpnt(1)});
+            // For a single model
+            if ( mix == false ) {
+                Value.Model tomModel = s.getBNet();
+                Value tomParams = s.getBestParams( mmlLearner );
+                Value stats = tomModel.getSufficient(x,z);                
+                return new Value.DefStructured( new Value[] {tomModel,stats,tomParams} );
+            }
+            else {
+                if ( s instanceof MetropolisSearch ) {
+                    Value.Structured my = ((MetropolisSearch)s).getMixResults( );
+                    return new Value.DefStructured(new Value[] {my.cmpnt(0), Value.TRIV ,my.cmpnt(1)});
+                }
+                else { throw new RuntimeException("mix option only available on metropolis search"); }
             }
-            else { throw new RuntimeException("mix option only available on metropolis search"); }
+        } finally {
+            s.close();
         }
     }
     
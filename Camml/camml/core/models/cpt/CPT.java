@@ -39,6 +39,8 @@ package camml.core.models.cpt;
 import java.util.Random;
 
 import cdms.core.*;
+import camml.core.library.ColumnarVector;
+import camml.core.library.ContingencyIndex;
 import camml.core.library.SelectedVector;
 import camml.core.models.ModelLearner.GetNumParams;
 import camml.core.models.multinomial.MultinomialLearner.Multinomial2;
@@ -190,6 +192,11 @@ public class CPT extends Value.Model
      */
     public int[] decodeParentVector( Value.Vector z )
     {
+        // Columnar data may be decoded without touching any Value objects.
+        if ( z instanceof ColumnarVector ) {
+            return ((ColumnarVector)z).decodeRows( multipliers );
+        }
+        
         int[] decodedArray = new int[z.length()];
         
         // turn the multi columned vector into an array of single column vectors.
@@ -493,19 +500,36 @@ public class CPT extends Value.Model
             throw new RuntimeException("Vector lengths do not match in CPT.getSufficient.");
         }
         
-        // Split up all data points relative to their parents.
-        // decodedParant[i] == decodeParent( z.elt(i) )
-        int[] decodedParent = decodeParentVector(z);
-        
         Type.Discrete xType = (Type.Discrete)((Type.Model)t).dataSpace;
         int upb = (int)xType.UPB; 
         int lwb = (int)xType.LWB;
         int arity = upb - lwb + 1;
         
+        // If a count index has been built for this dataset, use it instead of scanning data.
+        if ( x instanceof ColumnarVector.Column && z instanceof ColumnarVector ) {
+            int[][] tally = indexedSufficientArray( (ColumnarVector.Column)x, (ColumnarVector)z );
+            if ( tally != null && tally.length == arity && tally[0].length == numCombinations ) {
+                return tally;
+            }
+        }
+        
+        // Split up all data points relative to their parents.
+        // decodedParant[i] == decodeParent( z.elt(i) )
+        int[] decodedParent = decodeParentVector(z);
+        
         // Tally up each occurance.
         int[][] tally = new int[arity][numCombinations];    
-        for ( int i = 0; i < decodedParent.length; i++ ) {
-            tally[lwb + x.intAt(i)][ decodedParent[i] ] ++;
+        if ( x instanceof ColumnarVector.Column ) {
+            // Fast path, read child values directly from the column array.
+            final int[] xArray = ((ColumnarVector.Column)x).getArray();
+            for ( int i = 0; i < decodedParent.length; i++ ) {
+                tally[xArray[i] - lwb][ decodedParent[i] ] ++;
+            }
+        }
+        else {
+            for ( int i = 0; i < decodedParent.length; i++ ) {
+                tally[lwb + x.intAt(i)][ decodedParent[i] ] ++;
+            }
         }
         
         return tally;
@@ -513,6 +537,20 @@ public class CPT extends Value.Model
     
     
     
+    /** 
+     * Return getSufficientArray(x,z) using the ContingencyIndex attached to x and z's dataset.
+     * null is returned if no index is available.
+     */
+    protected int[][] indexedSufficientArray( ColumnarVector.Column x, ColumnarVector z )
+    {
+        ContingencyIndex index = z.getIndex();
+        if ( index == null || x.root != z.getRoot() ) { return null; }
+        
+        int[] zVars = new int[z.getNumCmpnts()];
+        for ( int i = 0; i < zVars.length; i++ ) { zVars[i] = z.getRootCol(i); }
+        return index.getSufficientArray( x.rootCol, zVars );
+    }
+    
     /** logP(X_1|Y,Z_1) + logP(X_2|Y,Z_2) + ... where s is a sufficient statistic of X for Y.
         In this case, s is simply the vector x */
     public double logPSufficient(Value s, Value y)
@@ -0,0 +1,204 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Joint counts of a DTree's inputs and output.
+//
+
+// File: DTreeCounts.java
+// Author: rodo@dgs.monash.edu.au
+
+package camml.core.models.dTree;
+
+import java.util.ArrayList;
+
+import cdms.core.*;
+import camml.core.library.LongIndexMap;
+
+/**
+ * DTreeCounts is a (sparse) joint count table of a discrete output (x) and all discrete inputs
+ * (z) of a DTree. <br>
+ * The table is built with a single pass through the data, each distinct combination of inputs
+ * seen forms a "cell" storing the count of each output state.  Splitting a DTreeCounts on an
+ * input partitions the cells (not the rows), so once the table is built the cost of learning
+ * a tree depends on the number of distinct input combinations instead of the number of rows.
+ * <br>
+ * Rows are counted with weight 1, as is done by Library.makeWeightedSummaryVec.
+ */
+public class DTreeCounts implements java.io.Serializable
+{
+    /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+    private static final long serialVersionUID = 6185215706443282467L;
+
+    /** Type of the inputs */
+    protected final Type.Structured inputType;
+    
+    /** Type of the output */
+    protected final Type.Discrete outputType;
+    
+    /** state[j][c] = state of input j (relative to LWB) in cell c */
+    protected final int[][] state;
+    
+    /** count[c][k] = number of rows in cell c with output state k (relative to LWB) */
+    protected final double[][] count;
+    
+    /** Cells visible in this table. */
+    protected final int[] cell;
+    
+    /** Constructor used by split(), tables are shared. */
+    protected DTreeCounts( Type.Structured inputType, Type.Discrete outputType, 
+                           int[][] state, double[][] count, int[] cell )
+    {
+        this.inputType = inputType;
+        this.outputType = outputType;
+        this.state = state;
+        this.count = count;
+        this.cell = cell;
+    }
+    
+    /** 
+     * Count the joint states of x and z.  null is returned if any variable is not a bounded
+     * discrete or there are too many input combinations to index with a long.
+     */
+    public static DTreeCounts makeCounts( Value.Vector x, Value.Vector z )
+    {
+        Type.Structured inputType = (Type.Structured)((Type.Vector)z.t).elt;
+        if ( !(((Type.Vector)x.t).elt instanceof Type.Discrete) ) { return null; }
+        Type.Discrete outputType = (Type.Discrete)((Type.Vector)x.t).elt;
+        int outputLwb = (int)outputType.LWB;
+        int outputArity = arity( outputType );
+        if ( outputArity <= 0 ) { return null; }
+        
+        // Each combination of inputs is given a unique long key.
+        int numInputs = inputType.cmpnts.length;
+        int[] lwb = new int[numInputs];
+        int[] inputArity = new int[numInputs];
+        long[] multiplier = new long[numInputs];
+        long combinations = 1;
+        for ( int j = 0; j < numInputs; j++ ) {
+            if ( !(inputType.cmpnts[j] instanceof Type.Discrete) ) { return null; }
+            Type.Discrete t = (Type.Discrete)inputType.cmpnts[j];
+            lwb[j] = (int)t.LWB;
+            inputArity[j] = arity( t );
+            if ( inputArity[j] <= 0 || combinations > Long.MAX_VALUE / inputArity[j] ) { 
+                return null; 
+            }
+            multiplier[j] = combinations;
+            combinations *= inputArity[j];
+        }
+        
+        Value.Vector[] column = new Value.Vector[numInputs];
+        for ( int j = 0; j < numInputs; j++ ) { column[j] = z.cmpnt(j); }
+        
+        LongIndexMap cellIndex = new LongIndexMap();
+        ArrayList<double[]> countList = new ArrayList<double[]>();
+        ArrayList<Long> keyList = new ArrayList<Long>();
+        for ( int i = 0; i < x.length(); i++ ) {
+            long key = 0;
+            for ( int j = 0; j < numInputs; j++ ) {
+                key += (column[j].intAt(i) - lwb[j]) * multiplier[j];
+            }
+            int c = cellIndex.get( key );
+            if ( c == -1 ) {
+                c = countList.size();
+                cellIndex.put( key, c );
+                countList.add( new double[outputArity] );
+                keyList.add( key );
+            }
+            countList.get(c)[ x.intAt(i) - outputLwb ]++;
+        }
+        
+        // Decode the state of each input from the cell keys.
+        int numCells = countList.size();
+        int[][] state = new int[numInputs][numCells];
+        int[] cell = new int[numCells];
+        for ( int c = 0; c < numCells; c++ ) {
+            long key = keyList.get(c);
+            for ( int j = 0; j < numInputs; j++ ) {
+                state[j][c] = (int)(key % inputArity[j]);
+                key /= inputArity[j];
+            }
+            cell[c] = c;
+        }
+        
+        return new DTreeCounts( inputType, outputType, state, 
+                                countList.toArray( new double[numCells][] ), cell );
+    }
+    
+    /** Return the number of states t may take. */
+    protected static int arity( Type.Discrete t )
+    {
+        return (int)t.UPB - (int)t.LWB + 1;
+    }
+    
+    /** Accessor for inputType */
+    public Type.Structured getInputType() { return inputType; }
+    
+    /** Accessor for outputType */
+    public Type.Discrete getOutputType() { return outputType; }
+    
+    /** Return the number of distinct input combinations visible in this table. */
+    public int getNumCells() { return cell.length; }
+    
+    /** Return the number of rows with each output state, marginalising over all inputs. */
+    public double[] getOutputCounts()
+    {
+        double[] total = new double[arity(outputType)];
+        for ( int i = 0; i < cell.length; i++ ) {
+            double[] cellCount = count[cell[i]];
+            for ( int k = 0; k < total.length; k++ ) { total[k] += cellCount[k]; }
+        }
+        return total;
+    }
+    
+    /** Split table based on the state of the specified input. */
+    public DTreeCounts[] split( int input )
+    {
+        int[] inputState = state[input];
+        int inputArity = arity( (Type.Discrete)inputType.cmpnts[input] );
+        
+        // Find how many cells take each value.
+        int[] size = new int[inputArity];
+        for ( int i = 0; i < cell.length; i++ ) { size[ inputState[cell[i]] ]++; }
+        
+        int[][] partition = new int[inputArity][];
+        for ( int v = 0; v < inputArity; v++ ) { partition[v] = new int[size[v]]; }
+        int[] index = new int[inputArity];
+        for ( int i = 0; i < cell.length; i++ ) {
+            int v = inputState[cell[i]];
+            partition[v][index[v]++] = cell[i];
+        }
+        
+        DTreeCounts[] split = new DTreeCounts[inputArity];
+        for ( int v = 0; v < inputArity; v++ ) {
+            split[v] = new DTreeCounts( inputType, outputType, state, count, partition[v] );
+        }
+        return split;
+    }
+}
@@ -107,6 +107,10 @@ public class DTreeLearner extends ModelLearner.DefaultImplementation
         double bestCost = leafModelLearner.msyCost( bestMSY ) + oneBit;
         int bestSplit = -1;
         
+        // Data split on bestSplit, kept so it need not be split again.
+        DTreeSelectedVector[] bestSplitX = null;
+        DTreeSelectedVector[] bestSplitZ = null;
+        
         // Find the number of splits which must be tested from this node.
         Type.Structured inputType = (Type.Structured)((Type.Vector)z.t).elt;
         int numVars = inputType.cmpnts.length;
@@ -161,6 +165,8 @@ public class DTreeLearner extends ModelLearner.DefaultImplementation
             if ( totalCost < bestCost ) {
                 bestCost = totalCost;
                 bestSplit = i;
+                bestSplitX = splitX;
+                bestSplitZ = splitZ;
             }
         }        
         
@@ -168,11 +174,8 @@ public class DTreeLearner extends ModelLearner.DefaultImplementation
         
         // if a good split was found.
         if ( bestSplit != -1) {
-            DTreeSelectedVector[] splitZ = DTreeSelectedVector.d_splitVector( z, bestSplit, true );
-            DTreeSelectedVector[] splitX = new DTreeSelectedVector[splitZ.length];
-            for ( int j = 0; j < splitZ.length; j++ ) {
-                splitX[j] = splitZ[j].d_copyRowSplit( x );
-            }
+            DTreeSelectedVector[] splitZ = bestSplitZ;
+            DTreeSelectedVector[] splitX = bestSplitX;
             
             // number of splits = arity of data
             int arity = splitX.length;
@@ -254,28 +257,36 @@ public class DTreeLearner extends ModelLearner.DefaultImplementation
         return bestMSY;
     }
     
-    public boolean rootNodeFlag = false;
-    
     /** Parameterize and return (m,s,y) */
     public double parameterizeAndCost( Value initialInfo, Value.Vector x, Value.Vector z )
         throws LearnerException
+    {
+        return parameterizeAndCost( initialInfo, x, z, true );
+    }
+    
+    /** 
+     * Return cost of the best tree for x given z.  rootNode is passed down the recursion
+     * (instead of being stored in the learner) so a single learner may be shared between
+     * threads.
+     */
+    protected double parameterizeAndCost( Value initialInfo, Value.Vector x, Value.Vector z,
+                                          boolean rootNode )
+        throws LearnerException
     {
         if ( z.length() != z.length() ) {
             throw new RuntimeException("Length mismatch in DTreeLearner.parameterize");
         }
         
-        boolean rootNode = false;
-        if ( rootNodeFlag == false ) {
-            rootNode = true;
-            rootNodeFlag = true;
-        }
-        
         
         double oneBit = Math.log(2);
         
         double bestCost = leafModelLearner.parameterizeAndCost(initialInfo,x,z) + oneBit;
         int bestSplit = -1;
         
+        // Data split on bestSplit, kept so it need not be split again.
+        DTreeSelectedVector[] bestSplitX = null;
+        DTreeSelectedVector[] bestSplitZ = null;
+        
         // Find the number of splits which must be tested from this node.
         Type.Structured inputType = (Type.Structured)((Type.Vector)z.t).elt;
         int numVars = inputType.cmpnts.length;
@@ -318,16 +329,15 @@ public class DTreeLearner extends ModelLearner.DefaultImplementation
             if ( totalCost < bestCost ) {
                 bestCost = totalCost;
                 bestSplit = i;
+                bestSplitX = splitX;
+                bestSplitZ = splitZ;
             }
         }        
         
         // if a good split was found.
         if ( bestSplit != -1) {
-            DTreeSelectedVector[] splitZ = DTreeSelectedVector.d_splitVector( z, bestSplit, true );
-            DTreeSelectedVector[] splitX = new DTreeSelectedVector[splitZ.length];
-            for ( int j = 0; j < splitZ.length; j++ ) {
-                splitX[j] = splitZ[j].d_copyRowSplit( x );
-            }
+            DTreeSelectedVector[] splitZ = bestSplitZ;
+            DTreeSelectedVector[] splitX = bestSplitX;
             
             // number of splits = arity of data
             //int arity = splitX.length;
@@ -341,26 +351,27 @@ public class DTreeLearner extends ModelLearner.DefaultImplementation
             //Value.Structured[] msy = new Value.Structured[ arity ];
             for ( int j = 0; j < splitX.length; j++ ) {
                 // ??? do I need to add oneBit to this?
-                subTreeCost += parameterizeAndCost(initialInfo, splitX[j], splitZ[j]);
+                subTreeCost += parameterizeAndCost(initialInfo, splitX[j], splitZ[j], false);
             }
             
             bestCost = structureCost + subTreeCost;        
         }
         
         if ( rootNode == true ) {
-            rootNodeFlag = false;
             if (bestSplit == -1 ) {
                 //             System.out.println("bestSplit = " + bestSplit + "\tbestCost = " + bestCost 
                 //                         + "\tnumParents = " + numVars );
-                emptyTrees[numVars]++;
-                totalEmptyTrees ++;
+                synchronized ( emptyTrees ) {
+                    emptyTrees[numVars]++;
+                    totalEmptyTrees ++;
                 
-                if ( totalEmptyTrees % 1000 == 0 ) { 
-                    System.out.println("empty Trees : " + totalEmptyTrees );
-                    for ( int i = 0; i < emptyTrees.length; i++ ) {
-                        System.out.print("" + emptyTrees[i] + "\t");
+                    if ( totalEmptyTrees % 1000 == 0 ) { 
+                        System.out.println("empty Trees : " + totalEmptyTrees );
+                        for ( int i = 0; i < emptyTrees.length; i++ ) {
+                            System.out.print("" + emptyTrees[i] + "\t");
+                        }
+                        System.out.println();
                     }
-                    System.out.println();
                 }
             }
         }
@@ -43,8 +43,11 @@ import camml.core.models.FunctionStruct;
 import camml.core.models.ModelLearner;
 import camml.core.library.DTreeSelectedVector;
 import camml.core.library.Library;
+import camml.core.library.SelectedStructure;
 import camml.core.library.SelectedVector;
+import camml.core.library.StructureFN;
 import camml.core.models.multinomial.AdaptiveCodeLearner;
+import camml.core.models.multinomial.MultinomialLearner;
 
 /**
  * ForcedSplitDTreeLearner is a standard module for parameterizing and costing
@@ -86,6 +89,19 @@ public class ForcedSplitDTreeLearner extends ModelLearner.DefaultImplementation
     /** ModelLearner used to cost leaves of the tree. */
     ModelLearner leafLearner;
     
+    /**
+     * Should trees be learned from a joint count table (see DTreeCounts) instead of splitting
+     * the data?  Counts are only used when the leaf learner is a multistate learner which
+     * only requires counts, and all inputs are bounded discretes.
+     */
+    public static boolean useCounts = true;
+    
+    /** Return true if leafLearner may be parameterized and costed using counts alone. */
+    protected boolean leafUsesCounts() {
+        return (leafLearner instanceof AdaptiveCodeLearner) || 
+            (leafLearner instanceof MultinomialLearner);
+    }
+    
     /**
      * Default constructor same as
      * ForcedSplitDTreeLearner(MultinomialLearner.multinomialLearner)
@@ -132,15 +148,27 @@ public class ForcedSplitDTreeLearner extends ModelLearner.DefaultImplementation
             parent[i] = i;
         }
         
-        // Turn vec into a weighted vec
-        Value.Vector summary = Library.makeWeightedSummaryVec(Library.joinVectors(z, x, "x"));
-        Value.Vector newX = summary.cmpnt(numVars);
-        Value.Vector[] newZRow = new Value.Vector[numVars];
-        for (int i = 0; i < numVars; i++) { newZRow[i] = summary.cmpnt(i); }
-        Value.Vector newZ = new VectorFN.MultiCol(new Value.DefStructured(newZRow, inputType.labels));
+        // Count all input/output combinations in a single pass if possible.
+        DTreeCounts counts = null;
+        if (useCounts && leafUsesCounts()) {
+            counts = DTreeCounts.makeCounts(x, z);
+        }
 
         // Create a single leaf node.
-        TreeNode rootNode = new Leaf(new DTreeSelectedVector(newX), new DTreeSelectedVector(newZ), parent, null);
+        TreeNode rootNode;
+        if (counts != null) {
+            rootNode = new Leaf(counts, parent, null);
+        }
+        else {
+            // Turn vec into a weighted vec
+            Value.Vector summary = Library.makeWeightedSummaryVec(Library.joinVectors(z, x, "x"));
+            Value.Vector newX = summary.cmpnt(numVars);
+            Value.Vector[] newZRow = new Value.Vector[numVars];
+            for (int i = 0; i < numVars; i++) { newZRow[i] = summary.cmpnt(i); }
+            Value.Vector newZ = new VectorFN.MultiCol(new Value.DefStructured(newZRow, inputType.labels));
+            
+            rootNode = new Leaf(new DTreeSelectedVector(newX), new DTreeSelectedVector(newZ), parent, null);
+        }
         
         
         // Create a simple leaf node.
@@ -264,6 +292,7 @@ public class ForcedSplitDTreeLearner extends ModelLearner.DefaultImplementation
                         int[] availableParent, Split parentNode) {
             this.allInput = input;
             this.output = output;
+            this.counts = null;
             this.availableParent = availableParent;
             this.availableInput = new DTreeSelectedVector(allInput, null,
                                                           availableParent);
@@ -273,6 +302,37 @@ public class ForcedSplitDTreeLearner extends ModelLearner.DefaultImplementation
             allInputLabel = ((Type.Structured) ((Type.Vector) input.t).elt).labels;
         }
         
+        /** 
+         * Constructor used when learning from counts.  output, allInput and availableInput
+         * are all null.
+         */
+        public TreeNode(DTreeCounts counts, int[] availableParent, Split parentNode) {
+            this.allInput = null;
+            this.output = null;
+            this.counts = counts;
+            this.availableParent = availableParent;
+            this.availableInput = null;
+            this.parentNode = parentNode;
+            
+            allInputType = counts.getInputType().cmpnts;
+            allInputLabel = counts.getInputType().labels;
+        }
+        
+        /** Copy constructor (makes it easier to convert from leaf <->split ) */
+        protected TreeNode(TreeNode treeNode) {
+            this.allInput = treeNode.allInput;
+            this.output = treeNode.output;
+            this.counts = treeNode.counts;
+            this.availableParent = treeNode.availableParent;
+            this.availableInput = treeNode.availableInput;
+            this.parentNode = treeNode.parentNode;
+            this.allInputType = treeNode.allInputType;
+            this.allInputLabel = treeNode.allInputLabel;
+        }
+        
+        /** Counts of data available to this node, or null if data is split directly. */
+        final DTreeCounts counts;
+        
         /** parents which have NOT been split on yet. */
         final int[] availableParent;
         
@@ -369,6 +429,10 @@ public class ForcedSplitDTreeLearner extends ModelLearner.DefaultImplementation
         }
 
         public String toString() {
+            if (counts != null) {
+                return "(" + SelectedStructure.makeSelectedStructureType(counts.getInputType(),
+                                                                        availableParent) + ")";
+            }
             return "(" + ((Type.Vector) availableInput.t).elt + ")";
         }
     }
@@ -394,10 +458,31 @@ public class ForcedSplitDTreeLearner extends ModelLearner.DefaultImplementation
                                                        input);
         }
         
+        /** Leaf constructor using counts in place of data. */
+        public Leaf(DTreeCounts counts, int[] availableParent, Split parentNode)
+            throws LearnerException {
+            super(counts, availableParent, parentNode);
+            leafCost = leafLearner.sParameterizeAndCost(getMultinomialModel(), getStats());
+        }
+        
         /** alternate constructor (makes it easier to convert from leaf <->split ) */
         Leaf(TreeNode treeNode) throws LearnerException {
-            this(treeNode.output, treeNode.allInput, treeNode.availableParent,
-                 treeNode.parentNode);
+            super(treeNode);
+            if (counts != null) {
+                leafCost = leafLearner.sParameterizeAndCost(getMultinomialModel(), getStats());
+            } else {
+                leafCost = leafLearner.parameterizeAndCost(Value.TRIV, output, allInput);
+            }
+        }
+        
+        /** Multistate model for the output, only used when learning from counts. */
+        Value.Model getMultinomialModel() {
+            return MultinomialLearner.getMultinomialModel(counts.getOutputType());
+        }
+        
+        /** Sufficient statistics of the leaf, only used when learning from counts. */
+        Value.Structured getStats() {
+            return new StructureFN.FastContinuousStructure(counts.getOutputCounts());
         }
         
         /** Cost of expressing data in this leaf. */
@@ -419,8 +504,12 @@ public class ForcedSplitDTreeLearner extends ModelLearner.DefaultImplementation
         /** return parameters of a multistate distribution. */
         public Value getParams() throws LearnerException {
             // calculate leaf parameters.
-            Value.Structured msy = leafLearner.parameterize(Value.TRIV, output,
-                                                            allInput);
+            Value.Structured msy;
+            if (counts != null) {
+                msy = leafLearner.sParameterize(getMultinomialModel(), getStats());
+            } else {
+                msy = leafLearner.parameterize(Value.TRIV, output, allInput);
+            }
             Value.Structured leafParams = new Value.DefStructured(new Value[] {
                     msy.cmpnt(0), msy.cmpnt(2) });
             
@@ -489,10 +578,14 @@ public class ForcedSplitDTreeLearner extends ModelLearner.DefaultImplementation
             super(output, input, availableParent, parentNode);
         }
         
+        /** Split constructor using counts. setSplit must be called independently */
+        Split(DTreeCounts counts, int[] availableParent, Split parentNode) {
+            super(counts, availableParent, parentNode);
+        }
+        
         /** alternate constructor (makes it easier to convert from leaf <->split ) */
         Split(TreeNode treeNode) {
-            this(treeNode.output, treeNode.allInput, treeNode.availableParent,
-                 treeNode.parentNode);
+            super(treeNode);
         }
         
         /**
@@ -520,14 +613,6 @@ public class ForcedSplitDTreeLearner extends ModelLearner.DefaultImplementation
                 - (int) ((Type.Discrete) allInputType[splitVar]).LWB + 1;
             this.splitArray = new TreeNode[splitArity];
             
-            // split input and output as appropriate.
-            DTreeSelectedVector[] splitInput = DTreeSelectedVector.d_splitVector(allInput,
-                                                                                 splitVar, false);
-            DTreeSelectedVector[] splitOutput = new DTreeSelectedVector[splitInput.length];
-            for (int i = 0; i < splitOutput.length; i++) {
-                splitOutput[i] = splitInput[i].d_copyRowSplit(output);
-            }
-            
             int[] reducedAvailableParent = new int[availableParent.length - 1];
             int j = 0;
             for (int i = 0; i < availableParent.length; i++) {
@@ -537,6 +622,23 @@ public class ForcedSplitDTreeLearner extends ModelLearner.DefaultImplementation
                 }
             }
             
+            // When learning from counts, split the counts instead of the data.
+            if (counts != null) {
+                DTreeCounts[] splitCounts = counts.split(splitVar);
+                for (int i = 0; i < splitArray.length; i++) {
+                    splitArray[i] = new Leaf(splitCounts[i], reducedAvailableParent, this);
+                }
+                return;
+            }
+            
+            // split input and output as appropriate.
+            DTreeSelectedVector[] splitInput = DTreeSelectedVector.d_splitVector(allInput,
+                                                                                 splitVar, false);
+            DTreeSelectedVector[] splitOutput = new DTreeSelectedVector[splitInput.length];
+            for (int i = 0; i < splitOutput.length; i++) {
+                splitOutput[i] = splitInput[i].d_copyRowSplit(output);
+            }
+            
             for (int i = 0; i < splitArray.length; i++) {
                 splitArray[i] = new Leaf(splitOutput[i], splitInput[i],
                                          reducedAvailableParent, this);
@@ -111,8 +111,11 @@ public class PenalisedDTreeLearner extends ModelLearner.DefaultImplementation
             parents[i] = i;
         }
         
-        used = new boolean[numVars];
-        Value.Structured msy = parameterize( x, z, parents );
+        boolean[] used = new boolean[numVars];
+        usedParents.set( used );
+        Value.Structured msy;
+        try { msy = parameterize( x, z, parents ); }
+        finally { usedParents.remove(); }
         Value.Structured params = (Value.Structured)msy.cmpnt(2);
         
         int numUsed = 0;
@@ -137,13 +140,15 @@ public class PenalisedDTreeLearner extends ModelLearner.DefaultImplementation
                                                        new Value.Continuous(newCost),
                                                        params.cmpnt(2)} );
         
-        used = null;
-        
         return new Value.DefStructured( (Type.Structured)msy.t, 
                                         new Value[] {msy.cmpnt(0), msy.cmpnt(1), params} );
     }
     
-    boolean[] used = null;
+    /** 
+     * used[i] is set when parent i is split upon by the tree currently being learned.  Kept per
+     * thread so a single learner may be shared between threads.
+     */
+    private static final ThreadLocal<boolean[]> usedParents = new ThreadLocal<boolean[]>();
     
     /** Parameterize and return (m,s,y) */
     public Value.Structured parameterize( Value.Vector x, Value.Vector fullData, int[] parent )
@@ -220,7 +225,7 @@ public class PenalisedDTreeLearner extends ModelLearner.DefaultImplementation
             //         System.out.println("splitting on parent["+bestSplit+"] = " + parent[bestSplit] + 
             //                    " \t= " + inputType.labels[bestSplit] +                    
             //                    "\tarity = " + splitZ.length );
-            used[parent[bestSplit]] = true;
+            usedParents.get()[parent[bestSplit]] = true;
             
             
             // remove the parent being split upon from the parent list.
@@ -330,8 +335,11 @@ public class PenalisedDTreeLearner extends ModelLearner.DefaultImplementation
             parents[i] = i;
         }
         
-        used = new boolean[numVars];
-        double oldCost = parameterizeAndCost( x, z, parents );
+        boolean[] used = new boolean[numVars];
+        usedParents.set( used );
+        double oldCost;
+        try { oldCost = parameterizeAndCost( x, z, parents ); }
+        finally { usedParents.remove(); }
         
         int numUsed = 0;
         int unused = 0;
@@ -350,7 +358,6 @@ public class PenalisedDTreeLearner extends ModelLearner.DefaultImplementation
         
         double newCost = oldCost + penalty;
         
-        used = null;
         return newCost;
         
         
@@ -430,7 +437,7 @@ public class PenalisedDTreeLearner extends ModelLearner.DefaultImplementation
                 splitX[j] = splitZ[j].copyRowSplit( x );
             }
             
-            used[parent[bestSplit]] = true;
+            usedParents.get()[parent[bestSplit]] = true;
             
             
             // remove the parent being split upon from the parent list.
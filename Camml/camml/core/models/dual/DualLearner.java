@@ -36,6 +36,10 @@
 
 package camml.core.models.dual;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
 import cdms.core.*;
 import camml.core.models.ModelLearner;
 import camml.core.models.cpt.*;
@@ -92,6 +96,59 @@ public class DualLearner extends ModelLearner.DefaultImplementation
     /** standard 'Dual' learner using CPT and DTree */
     public final static ModelLearner dualLearner = dualCPTDTreeLearner;
     
+    /** 
+     * If true, candidate learners are run concurrently on a shared ForkJoinPool.  Results do
+     * not depend on this setting.
+     */
+    public static boolean parallel = true;
+    
+    /**
+     * Return learner[i].parameterizeAndCost(initialInfo,x,z) for each learner.  If learning fails
+     * (or skip[i] is set) the cost is infinite. <br>
+     * If parallel is true all but the first learner are forked to the common ForkJoinPool
+     * while the first runs in the calling thread.  As the common pool is used, calls from
+     * within pool tasks (and nested learners) cannot starve it of threads.
+     */
+    static double[] parameterizeAndCostAll( final ModelLearner[] learner, boolean[] skip, 
+                                            boolean parallel, final Value initialInfo, 
+                                            final Value.Vector x, final Value.Vector z )
+    {
+        double[] cost = new double[learner.length];
+        ForkJoinTask<?>[] task = new ForkJoinTask<?>[learner.length];
+        
+        int inline = -1;
+        for ( int i = 0; i < learner.length; i++ ) {
+            if ( skip != null && skip[i] ) { cost[i] = Double.POSITIVE_INFINITY; }
+            else if ( !parallel ) { cost[i] = tryCost( learner[i], initialInfo, x, z ); }
+            else if ( inline == -1 ) { inline = i; }
+            else {
+                final ModelLearner l = learner[i];
+                task[i] = ForkJoinPool.commonPool().submit( new Callable<Double>() {
+                        public Double call() { return tryCost( l, initialInfo, x, z ); }
+                    } );
+            }
+        }
+        
+        if ( inline != -1 ) { cost[inline] = tryCost( learner[inline], initialInfo, x, z ); }
+        for ( int i = 0; i < task.length; i++ ) {
+            if ( task[i] != null ) { cost[i] = (Double)task[i].join(); }
+        }
+        return cost;
+    }
+    
+    /** learner.parameterizeAndCost(initialInfo,x,z), or infinity if learning fails. */
+    static double tryCost( ModelLearner learner, Value initialInfo, Value.Vector x, Value.Vector z )
+    {
+        // If one parameterization method fails (excessive CPT combinations, etc) then 
+        // simply try the other methods instead.
+        try {
+            return learner.parameterizeAndCost( initialInfo, x, z );
+        }
+        catch ( LearnerException e ) {
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+    
     public String getName() { return "DualLearner"; }    
     
     /** a list of all the different modelLearner used in the dual model. */
@@ -177,29 +234,25 @@ public class DualLearner extends ModelLearner.DefaultImplementation
           }
           else {
         */
-        // loop through modelLearnerList and return the parameters with the best cost.
-        // do not attempt to cost as a multinomial is numInputs > 0
-        for ( int i = 0; i < modelLearnerList.length; i++ ) {
-            Value.Structured params;
-            double cost;
-                
-            // If one parameterization method fails (excessive CPT combinations, etc) then simply
-            // try the other methods instead.
-            try {
-                params = modelLearnerList[i].parameterize( initialInfo, x, z );
-                //cost =  modelLearnerList[i].msyCost( params );
-                cost = modelLearnerList[i].parameterizeAndCost(initialInfo,x,z);
-            }
-            catch ( LearnerException e ) {
-                params = null;
-                cost = Double.POSITIVE_INFINITY;
+        // Cost each learner (concurrently), then parameterize the learners in order of cost
+        // until one succeeds.  Learners which cannot win are never parameterized.
+        double[] cost = 
+            parameterizeAndCostAll( modelLearnerList, null, parallel, initialInfo, x, z );
+        boolean[] tried = new boolean[cost.length];
+        while ( bestParameterization == null ) {
+            int best = -1;
+            for ( int i = 0; i < cost.length; i++ ) {
+                if ( !tried[i] && cost[i] < bestCost && (best == -1 || cost[i] < cost[best]) ) {
+                    best = i;
+                }
             }
-                
-            if ( cost < bestCost ) {
-                bestParameterization = params;
-                bestCost = cost;
+            if ( best == -1 ) { break; }
+            tried[best] = true;
+            try {
+                bestParameterization = modelLearnerList[best].parameterize( initialInfo, x, z );
             }
-        }    
+            catch ( LearnerException e ) { /* try next best learner */ }
+        }
             
         //}    
         if ( bestParameterization == null ) {
@@ -234,22 +287,12 @@ public class DualLearner extends ModelLearner.DefaultImplementation
           }
           else {
         */    
-        // loop through modelLearnerList and return the parameters with the best cost.
-        // do not attempt to cost as a multinomial is numInputs > 0
-        for ( int i = 0; i < modelLearnerList.length; i++ ) {
-            double cost;
-                
-            // If one parameterization method fails (excessive CPT combinations, etc) then 
-            // simply try the other methods instead.
-            try {
-                cost = modelLearnerList[i].parameterizeAndCost(initialInfo,x,z);
-            }
-            catch ( LearnerException e ) {
-                cost = Double.POSITIVE_INFINITY;
-            }
-                
-            if ( cost < bestCost ) {
-                bestCost = cost;
+        // return the best cost of any learner.
+        double[] cost = 
+            parameterizeAndCostAll( modelLearnerList, null, parallel, initialInfo, x, z );
+        for ( int i = 0; i < cost.length; i++ ) {
+            if ( cost[i] < bestCost ) {
+                bestCost = cost[i];
             }
         }            
         //}    
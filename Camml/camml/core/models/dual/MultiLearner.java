@@ -36,6 +36,9 @@
 
 package camml.core.models.dual;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
 import cdms.core.*;
 import camml.core.models.*;
 
@@ -54,6 +57,12 @@ public class MultiLearner extends ModelLearner.DefaultImplementation
 
     public String getName() { return "MultiLearner"; }    
     
+    /** 
+     * If true, learners are run concurrently on a shared ForkJoinPool.  Results do not depend
+     * on this setting.
+     */
+    public static boolean parallel = true;
+    
     /** a list of all the different modelLearner used in the multi model. */
     final ModelLearner[] modelLearnerList;
     
@@ -106,34 +115,49 @@ public class MultiLearner extends ModelLearner.DefaultImplementation
     }
     
     /** Parameterize and return (m,s,y) */
-    public Value.Structured parameterize( Value initialInfo, Value.Vector x, Value.Vector z )
+    public Value.Structured parameterize( final Value initialInfo, final Value.Vector x, 
+                                          final Value.Vector z )
         throws LearnerException
     {
-        double[] prior = getPrior( initialInfo,x,z );
-        
-        Value.Structured bestMSY = null;
-        double bestCost = Double.POSITIVE_INFINITY;
+        final double[] prior = getPrior( initialInfo,x,z );
+        final Value.Structured[] msy = new Value.Structured[prior.length];
+        final double[] cost = new double[prior.length];
         
+        // Parameterize with each learner (concurrently if parallel is set).
+        ForkJoinTask<?>[] task = new ForkJoinTask<?>[prior.length];
         for ( int i = 0; i < modelLearnerList.length; i++ ) {
-            // if ( modelLearnerList[i].isParameterizable(initialInfo,x,z) ) {
+            final int learner = i;
+            Runnable r = new Runnable() {
+                    public void run() { 
+                        try {
+                            msy[learner] = modelLearnerList[learner].parameterize( initialInfo, x, z );
+                            cost[learner] = modelLearnerList[learner].msyCost( msy[learner] ) - 
+                                Math.log( prior[learner] );
+                        }
+                        catch ( LearnerException e ) {
+                            msy[learner] = null;
+                            cost[learner] = Double.POSITIVE_INFINITY;
+                        }
+                    }
+                };
             
             // if (prior != 0) 
-            if ( (prior[i] != 0) ) {
-                Value.Structured msy;
-                double cost;
-                try {
-                    msy = modelLearnerList[i].parameterize( initialInfo, x, z );
-                    cost = modelLearnerList[i].msyCost( msy ) - Math.log( prior[i] );
-                }
-                catch ( LearnerException e ) {
-                    msy = null;
-                    cost = Double.POSITIVE_INFINITY;
-                }
-                
-                if ( cost < bestCost ) {
-                    bestMSY = msy;
-                    bestCost = cost;
-                }
+            if ( prior[i] == 0 ) { cost[i] = Double.POSITIVE_INFINITY; }
+            else if ( parallel && i != modelLearnerList.length - 1 ) { 
+                task[i] = ForkJoinPool.commonPool().submit( r ); 
+            }
+            else { r.run(); }
+        }
+        for ( int i = 0; i < task.length; i++ ) {
+            if ( task[i] != null ) { task[i].join(); }
+        }
+        
+        Value.Structured bestMSY = null;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for ( int i = 0; i < modelLearnerList.length; i++ ) {
+            if ( cost[i] < bestCost ) {
+                bestMSY = msy[i];
+                bestCost = cost[i];
             }
         }
         
@@ -151,20 +175,16 @@ public class MultiLearner extends ModelLearner.DefaultImplementation
         double[] prior = getPrior( initialInfo,x,z );
         double bestCost = Double.POSITIVE_INFINITY;
         
+        // Learners with zero prior are skipped, all others are costed concurrently.
+        boolean[] skip = new boolean[prior.length];
+        for ( int i = 0; i < prior.length; i++ ) { skip[i] = (prior[i] == 0); }
+        double[] cost = 
+            DualLearner.parameterizeAndCostAll( modelLearnerList, skip, parallel, 
+                                                initialInfo, x, z );
+        
         for ( int i = 0; i < modelLearnerList.length; i++ ) {
-            if ( prior[i] != 0) {
-                double cost;
-                try {
-                    cost = modelLearnerList[i].parameterizeAndCost( initialInfo, x, z ) -
-                        Math.log( prior[i] );
-                }
-                catch ( LearnerException e ) {
-                    cost = Double.POSITIVE_INFINITY;
-                }
-                
-                if ( cost < bestCost ) {
-                    bestCost = cost;
-                }
+            if ( prior[i] != 0 && cost[i] - Math.log( prior[i] ) < bestCost ) {
+                bestCost = cost[i] - Math.log( prior[i] );
             }
         }
         
@@ -76,6 +76,29 @@ public class JulesLogit {
     
     private static boolean noOptimizationWarningPrinted = false;
     
+    /** Starting values of c used by estimateparams, null = start from zero. */
+    protected double[] initC = null;
+    
+    /** Starting values of d used by estimateparams, null = start from zero. */
+    protected double[][][] initD = null;
+    
+    /** Total number of Newton iterations performed by estimateparams. */
+    protected int totalIters = 0;
+    
+    /** 
+     * Start the next optimisation from (c,d) instead of zero.  c and d must be shaped and
+     * constrained as the parameters found by nodeCost (ie. c[k] sums to zero over k and
+     * d[k][i][xi] sums to zero over both k and xi).  If the optimisation fails to converge
+     * it is restarted from zero.  c and d are not modified.
+     */
+    public void setInitialParams(double[] c, double[][][] d) {
+        this.initC = c;
+        this.initD = d;
+    }
+    
+    /** Return the total number of Newton iterations used by this object. */
+    public int getIterations() { return totalIters; }
+    
     /** Setup everything as required by the given dataset.*/
     private void setup(Value.Vector xz) throws ModelLearner.LearnerException {
 
@@ -112,20 +135,14 @@ public class JulesLogit {
             rN[i] = rN[i - 1] + arity[i - 1];
         }
 
-        //        Make storage for counts of cases with Y=y, Xi=xi 
+        //        Make storage for counts of cases with Y=y, Xi=xi.  These are filled
+        //        in by datacounts()
         vN = new int[rN[numVars]][rN[numVars]];
 
-        //        Now count cases for every pair of variable values
-        for (int i = 0; i < rN[numVars]; i++) {
-            for (int j = 0; j < rN[numVars]; j++) {
-                vN[i][j] = 0;
-            }
-        }
-
         // Shortcut method to extract data from xz as an int[][]
         // NOTE: This is mildly dangerous and we must ensure that xzArray[i][j] is
         //       not modified!! (if it is, our original datasource is polluted.)
-        int xzArray[][] = new int[arity.length][];
+        xzArray = new int[arity.length][];
         for ( int i = 0; i < xzArray.length; i++) {
             Value.Vector tempVec = xz.cmpnt(i);
             if ( tempVec instanceof VectorFN.FastDiscreteVector ) { 
@@ -145,132 +162,15 @@ public class JulesLogit {
         }
         
         
-        // This method took 47.85 sec on test data.
-        //        for (int n = 0; n < numCases; n++) {
-        //            for (int i = 0; i < numVars; i++) {
-        //                for (int j = 0; j < numVars; j++) {
-        //                    vN[rN[i] + xzArray[i][n]][rN[j] + xzArray[j][n]]++;
-        //                }
-        //            }
-        //        }
-
-        // This method took 42.64 sec on test data.
-        //        for (int n = 0; n < numCases; n++) {
-        //            for (int i = 0; i < numVars; i++) {
-        //                int[] tmp = vN[rN[i] + xzArray[i][n]];
-        //                for (int j = 0; j < numVars; j++) {
-        //                    tmp[rN[j] + xzArray[j][n]]++;
-        //                }
-        //            }
-        //        }
-
-
-        // This method took 40.20 seconds.
-        // Rearange loop so n is in the middle & move indirections out of inner loop        
-        //        for (int i = 0; i < numVars; i++) {
-        //            int rN_i = rN[i];
-        //            int[] xz_i = xzArray[i];
-        //            for (int j = 0; j < numVars; j++) {                
-        //                int rN_j = rN[j];
-        //                int[] xz_j = xzArray[j];
-        //                for (int n = 0; n < numCases; n++) {
-        //                    vN[rN_i + xz_i[n]][rN_j + xz_j[n]]++;
-        //                }
-        //            }
-        //        }
-
-        // This gets a lot slower again ... odd, 49.23 sec
-        // Rearange loop so n is in the middle & move indirections out of inner loop
-        // It is quicker to compare against 0 than any other int, so we count backwards.
-        //        for (int i = numVars; --i>=0; ) {
-        //            int rN_i = rN[i];
-        //            int[] xz_i = xzArray[i];
-        //            for (int j = numVars; --j >= 0; ) {                
-        //                int rN_j = rN[j];
-        //                int[] xz_j = xzArray[j];
-        //                for (int n = numCases; --n >= 0; ) {
-        //                    vN[rN_i + xz_i[n]][rN_j + xz_j[n]]++;
-        //                }
-        //            }
-        //        }
-
-
-
-        // 38.54 seconds.
-        // Rearange loop so n is in the middle & move indirections out of inner loop
-        // make vN a local variable so it's on the stack.
-        // Made variables final brings time to 38.06 secs.
-        //        final int vN[][] = this.vN; 
-        //        for (int i = 0; i < numVars; i++) {
-        //            final int rN_i = rN[i];
-        //            final int[] xz_i = xzArray[i];
-        //            for (int j = 0; j < numVars; j++) {                
-        //                final int rN_j = rN[j];
-        //                final int[] xz_j = xzArray[j];
-        //                for (int n = 0; n < numCases; n++) {
-        //                    vN[rN_i + xz_i[n]][rN_j + xz_j[n]]++;
-        //                }
-        //            }
-        //        }
-
-
-        ////////////////////////////////////////////////////////
-        // rodo: Below is nasty looking optimized code.
-        //       It is equivalent to:
-        //
-        //    for (int n = 0; n < numCases; n++) {
-        //        for (int i = 0; i < numVars; i++) {
-        //            for (int j = 0; j < numVars; j++) {
-        //                vN[rN[i] + xzArray[i][n]][rN[j] + xzArray[j][n]]++;
-        //            }
-        //        }
-        //    }
-        //
-        // Optimized for java 1.5
-        // Things that seem to work:
-        // - Inner loop runs over 'n' as this is the longest array.
-        // - Declaring local variable for vN instead of using class variable
-        // - Pushing rN_i, xz_i, rN_j & xz_j out of the innermost loop
-        // - Declaring variables final
-        // - Only looping until j from i..len as matrix is symetric.
-        // 
-        // Things that didn't work:
-        // - Looping backwards for (i = numVars; i>=0; i--)
-        //
-        // Changing this code took the total run time from 213s
-        // to 142s for my test cast (CaMML, logit model, kr-vs-kp.arff)
-        ////////////////////////////////////////////////////////
-        final int vN[][] = this.vN; 
-        for (int i = 0; i < numVars; i++) {
-            final int rN_i = rN[i];
-            final int[] xz_i = xzArray[i];
-            for (int j = i; j < numVars; j++) {      // only fill in half the matrix as it is symetric
-                final int rN_j = rN[j];
-                final int[] xz_j = xzArray[j];
-                for (int n = 0; n < numCases; n++) {
-                    vN[rN_i + xz_i[n]][rN_j + xz_j[n]]++;                    
-                }
-            }            
-        }
-        // Copy top half of matrix to bottom.
-        for (int i = 0; i < vN.length; i++) {
-            for (int j = 0; j < i; j++) {
-                vN[i][j] = vN[j][i];
-            }
-        }
-        ////////////////////////////////////////////////////////
-        // End of nasty illegible code (hopefully)
-        ////////////////////////////////////////////////////////
-        
+        // rodo: vN used to be filled in here by counting every pair of variables in every
+        //       row.  Only the rows of vN for Y are used, so they are now calculated from
+        //       the counts of each parent combination in datacounts(), which does not
+        //       require another pass through the data.
         
-
         if (maxArity > 20) {
             throw new ModelLearner.LearnerException("Arity too high for Logit Learner.");
         }
         
-        Ndot = new int[Maxcell];
-        Nyl = new int[Maxcell];
-        
         kN = new int[maxArity+1];
         //pN = new int[maxArity+1];
         pN = new int[numParents+1];
@@ -318,7 +218,7 @@ public class JulesLogit {
 
     int[] Nyl;
 
-    final int[] pstate = new int[Maxcell];
+    int[] pstate;
 
     double darccost; /* -log (parc / (1-parc)) */
 
@@ -355,7 +255,10 @@ public class JulesLogit {
 
     //int[] tcoms;
 
-    final int[][] estate = new int[Maxcell][];
+    int[][] estate;
+    
+    /** xzArray[i][n] = value of variable i in case n.  This must not be modified. */
+    int[][] xzArray;
 
     int vN[][];
 
@@ -617,13 +520,15 @@ public class JulesLogit {
             c = new double[arity[y]];
             d = new double[arity[y]][ndad][];
             
+            // Warm start from initC and initD unless we are restarting.
+            boolean warm = !conservative && initC != null;
             for (k = 0; k < arity[y]; k++) {
-                c[k] = 0.0;
+                c[k] = warm ? initC[k] : 0.0;
                 for (i = 0; i < ndad; i++) {
                     ri = arity[dad[i]];
                     d[k][i] = new double[ri];
                     for (xi = 0; xi < ri; xi++) {
-                        d[k][i][xi] = 0.0;
+                        d[k][i][xi] = warm ? initD[k][i][xi] : 0.0;
                     }
                 }
             }
@@ -649,6 +554,7 @@ public class JulesLogit {
             
             do {
                 iters++;
+                totalIters++;
                 
                 NLLold = emlcost;
                 calcsums(node, 2);
@@ -870,33 +776,33 @@ public class JulesLogit {
             return false;
         }
 
-        Arrays.fill(Ndot, 0, coms, 0);
-        Arrays.fill(Nyl, 0, tcoms, 0);
+        Ndot = new int[coms];
+        Nyl = new int[tcoms];
 
         /* Now go through database and count cases with
-         * Y=k, Y=k&Xi=xi, Parents=ps
+         * Y=k, Parents=ps
          */
 
         npstates = 0;
         int numCases = data.length();
+        int maxStates = Math.min(coms, numCases);
+        estate = new int[maxStates][];
+        pstate = new int[maxStates];
+        
+        final int[][] xzArray = this.xzArray;
+        final int[] yArray = xzArray[y];
+        final int ry = arity[y];
         for (n = 0; n < numCases; n++) {
             ps = 0;
             for (i = 0; i < ndad; i++) {
                 d = dad[i];
-                ps = ps * arity[d] + data.cmpnt(d).intAt(n);
+                ps = ps * arity[d] + xzArray[d][n];
             }
-            kps = ps * arity[y] + data.cmpnt(y).intAt(n);
+            kps = ps * ry + yArray[n];
             if (Ndot[ps] == 0) {
                 int[] temp = new int[arity.length];
                 for (int ii = 0; ii < temp.length; ii++) {
-                    try {
-                        temp[ii] = data.cmpnt(ii).intAt(n);
-                    } catch (RuntimeException e) {
-                        System.out.println("---EXCEPTION---");
-                        System.out.println("arity = " + Arrays.toString(arity));
-                        System.out.println("data = " + data);
-                        throw e;
-                    }
+                    temp[ii] = xzArray[ii][n];
                 }
                 estate[npstates] = temp;
                 pstate[npstates] = ps;
@@ -906,6 +812,24 @@ public class JulesLogit {
             Ndot[ps]++;
         }
         
+        /* Cases with Y=y and Y=y, Xi=xi are found by summing the
+         * counts of each parent combination.
+         */
+        for (int es = 0; es < npstates; es++) {
+            int[] pv = estate[es];
+            kps = pstate[es] * ry;
+            for (int k = 0; k < ry; k++) {
+                int count = Nyl[kps + k];
+                if (count == 0) { continue; }
+                int[] Nyk = vN[rN[y] + k];
+                Nyk[rN[y] + k] += count;
+                for (i = 0; i < ndad; i++) {
+                    d = dad[i];
+                    Nyk[rN[d] + pv[d]] += count;
+                }
+            }
+        }
+        
         return true;
     }
 
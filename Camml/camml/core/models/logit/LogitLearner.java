@@ -36,6 +36,10 @@
 
 package camml.core.models.logit;
 
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import camml.core.library.ColumnarVector;
 import camml.core.models.ModelLearner.DefaultImplementation;
 import camml.core.models.bNet.BNetLearner;
 import camml.core.models.cpt.CPTLearner;
@@ -75,7 +79,7 @@ public class LogitLearner extends DefaultImplementation {
         if ( xType.UPB == xType.LWB ) { return 0; }
 
         JulesLogit logit = new JulesLogit();
-        logit.nodeCost(x,z);        
+        fit(logit,x,z);
         return logit.getMMLCost();
     }
 
@@ -85,7 +89,7 @@ public class LogitLearner extends DefaultImplementation {
         throws LearnerException {
         
         JulesLogit logit = new JulesLogit();
-        logit.nodeCost(x,z);
+        fit(logit,x,z);
         Value.Structured y = logit.getParams();
         Value.Model m = Logit.logit;
         Value s = m.getSufficient(x,z);
@@ -110,4 +114,156 @@ public class LogitLearner extends DefaultImplementation {
         return "LogitLearner";
     }
 
+    /** 
+     * Should JulesLogit be warm started?  The fit for parents (p1..pn) is started from the
+     * fit for (p1..pn-1), which is itself found the same way (fitting and caching it if 
+     * required).  As each start point depends only on the parents, costs do not depend on
+     * which parent sets were fitted first, but may differ from a cold start in the last few
+     * digits.
+     */
+    public static boolean warmStart = true;
+    
+    /** Maximum number of fitted parameter sets remembered per dataset, cleared when full. */
+    public static int maxWarmStartCacheSize = 10000;
+    
+    /** 
+     * Return the parameters previously fitted from root, indexed by (child, parents).
+     * The cache is kept in root.getLearnerCache() so it is released along with the data.
+     */
+    @SuppressWarnings("unchecked")
+    protected static ConcurrentHashMap<WarmStartKey,Fit> getWarmStartCache(ColumnarVector root) {
+        ConcurrentHashMap<Object,Object> learnerCache = root.getLearnerCache();
+        Object cache = learnerCache.get(WarmStartKey.class);
+        if (cache == null) {
+            learnerCache.putIfAbsent(WarmStartKey.class, new ConcurrentHashMap<WarmStartKey,Fit>());
+            cache = learnerCache.get(WarmStartKey.class);
+        }
+        return (ConcurrentHashMap<WarmStartKey,Fit>)cache;
+    }
+    
+    /** Key identifying a child and parent set from a ColumnarVector */
+    protected static class WarmStartKey {
+        /** Column of child in root */
+        final int child;
+        
+        /** Columns of parents in root, in the order they appear in z. */
+        final int[] parents;
+        
+        public WarmStartKey(int child, int[] parents) {
+            this.child = child;
+            this.parents = parents.clone();
+        }
+        
+        public int hashCode() {
+            return 31 * child + Arrays.hashCode(parents);
+        }
+        
+        public boolean equals(Object o) {
+            WarmStartKey k = (WarmStartKey)o;
+            return child == k.child && Arrays.equals(parents,k.parents);
+        }
+    }
+    
+    /** Parameters fitted by JulesLogit, with parent[i] the column of root d[k][i] refers to */
+    protected static class Fit {
+        final int[] parent;
+        final double[] c;
+        final double[][][] d;
+        public Fit(int[] parent, double[] c, double[][][] d) {
+            this.parent = parent; this.c = c; this.d = d;
+        }
+    }
+    
+    /** 
+     * Run logit.nodeCost(x,z), warm starting logit from startFit() of the parents of z with
+     * the last parent removed.  Warm starts are only used when x and z are taken from a 
+     * ColumnarVector.
+     */
+    protected static void fit(JulesLogit logit, Value.Vector x, Value.Vector z)
+        throws LearnerException {
+        // Find which columns of the original data x and z refer to.
+        ColumnarVector root = null;
+        int[] parent = null;
+        if (warmStart && x instanceof ColumnarVector.Column) {
+            root = ((ColumnarVector.Column)x).root;
+            int numParents = ((Type.Structured)((Type.Vector)z.t).elt).cmpnts.length;
+            parent = new int[numParents];
+            for (int i = 0; i < parent.length && root != null; i++) {
+                Value.Vector zi = z.cmpnt(i);
+                if (zi instanceof ColumnarVector.Column && ((ColumnarVector.Column)zi).root == root) {
+                    parent[i] = ((ColumnarVector.Column)zi).rootCol;
+                }
+                else { root = null; }
+            }
+        }
+        if (root == null) {
+            logit.nodeCost(x,z);
+            return;
+        }
+        
+        int child = ((ColumnarVector.Column)x).rootCol;
+        ConcurrentHashMap<WarmStartKey,Fit> warmStartCache = getWarmStartCache(root);
+        if (parent.length > 0) {
+            Fit start = startFit(root, warmStartCache, child, 
+                                 Arrays.copyOf(parent, parent.length-1));
+            setInitialParams(logit, start, parent, z);
+        }
+        logit.nodeCost(x,z);
+        
+        // This is the fit startFit() would find, so it may be used as a start point.
+        putFit(warmStartCache, new WarmStartKey(child,parent), new Fit(parent, logit.c, logit.d));
+    }
+    
+    /** 
+     * Return the fit for child given parents from root, warm started from the fit for 
+     * parents with the last parent removed.  Fits are cached in warmStartCache.
+     */
+    protected static Fit startFit(ColumnarVector root, ConcurrentHashMap<WarmStartKey,Fit> warmStartCache,
+                                  int child, int[] parents) throws LearnerException {
+        WarmStartKey key = new WarmStartKey(child,parents);
+        Fit fit = warmStartCache.get(key);
+        if (fit != null) { return fit; }
+        
+        Value.Vector z = root.select(parents);
+        JulesLogit logit = new JulesLogit();
+        if (parents.length > 0) {
+            Fit start = startFit(root, warmStartCache, child, 
+                                 Arrays.copyOf(parents, parents.length-1));
+            setInitialParams(logit, start, parents, z);
+        }
+        logit.nodeCost(root.cmpnt(child),z);
+        fit = new Fit(parents, logit.c, logit.d);
+        putFit(warmStartCache, key, fit);
+        return fit;
+    }
+    
+    /** Add fit to warmStartCache, clearing the cache if it is full. */
+    protected static void putFit(ConcurrentHashMap<WarmStartKey,Fit> warmStartCache, 
+                                 WarmStartKey key, Fit fit) {
+        if (warmStartCache.size() >= maxWarmStartCacheSize) { warmStartCache.clear(); }
+        warmStartCache.putIfAbsent(key, fit);
+    }
+    
+    /** 
+     * Start logit from the parameters of start, reordered to match parent (the columns of root
+     * in z).  Parents not in start begin at zero.
+     */
+    protected static void setInitialParams(JulesLogit logit, Fit start, int[] parent, 
+                                           Value.Vector z) {
+        int arity = start.c.length;
+        double[][][] d = new double[arity][parent.length][];
+        for (int i = 0; i < parent.length; i++) {
+            int j = 0;
+            while (j < start.parent.length && start.parent[j] != parent[i]) { j++; }
+            for (int k = 0; k < arity; k++) {
+                if (j < start.parent.length) { d[k][i] = start.d[k][j]; }
+                else {
+                    Type.Discrete t = (Type.Discrete)((Type.Vector)z.cmpnt(i).t).elt;
+                    d[k][i] = new double[(int)(t.UPB - t.LWB + 1)];
+                }
+            }
+        }
+        logit.setInitialParams(start.c, d);
+    }
+
 }
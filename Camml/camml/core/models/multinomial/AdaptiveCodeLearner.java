@@ -95,7 +95,7 @@ public class AdaptiveCodeLearner extends ModelLearner.DefaultImplementation
         // Check if a multinomial with the current UPB and LWB already exists.
         Value.Model multinomialModel = 
             MultinomialLearner.getMultinomialModel((int)xType.LWB, (int)xType.UPB);
-        Value.Structured stats = (Value.Structured)multinomialModel.getSufficient(x,z);
+        Value.Structured stats = MultinomialLearner.getSufficient(multinomialModel,x,z);
         return sParameterize( multinomialModel, stats );    
     }     
     
@@ -140,7 +140,7 @@ public class AdaptiveCodeLearner extends ModelLearner.DefaultImplementation
         Type.Discrete xType = (Type.Discrete)((Type.Vector)x.t).elt;
         Value.Model multinomialModel = 
             MultinomialLearner.getMultinomialModel((int)xType.LWB, (int)xType.UPB);
-        Value.Structured stats = (Value.Structured)multinomialModel.getSufficient(x,z);
+        Value.Structured stats = MultinomialLearner.getSufficient(multinomialModel,x,z);
         
         return sParameterizeAndCost( multinomialModel, stats );
     }
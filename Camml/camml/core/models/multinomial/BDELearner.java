@@ -78,7 +78,7 @@ public class BDELearner extends ModelLearner.DefaultImplementation
         Value.Model multinomialModel = 
             MultinomialLearner.getMultinomialModel((int)xType.LWB, (int)xType.UPB);
         
-        Value.Structured stats = (Value.Structured)multinomialModel.getSufficient(x,z);
+        Value.Structured stats = MultinomialLearner.getSufficient(multinomialModel,x,z);
         return sParameterize( multinomialModel, stats );    
     } 
     
@@ -111,7 +111,7 @@ public class BDELearner extends ModelLearner.DefaultImplementation
         Type.Discrete xType = (Type.Discrete)((Type.Vector)x.t).elt;
         Value.Model multinomialModel = 
             MultinomialLearner.getMultinomialModel((int)xType.LWB, (int)xType.UPB);
-        Value.Structured stats = (Value.Structured)multinomialModel.getSufficient(x,z);
+        Value.Structured stats = MultinomialLearner.getSufficient(multinomialModel,x,z);
         
         return sCost( m, stats, (Value.Structured)y );
     }
@@ -122,7 +122,7 @@ public class BDELearner extends ModelLearner.DefaultImplementation
         Type.Discrete xType = (Type.Discrete)((Type.Vector)x.t).elt;
         Value.Model multinomialModel = 
             MultinomialLearner.getMultinomialModel((int)xType.LWB, (int)xType.UPB);
-        Value.Structured stats = (Value.Structured)multinomialModel.getSufficient(x,z);
+        Value.Structured stats = MultinomialLearner.getSufficient(multinomialModel,x,z);
         
         return sParameterizeAndCost( multinomialModel, stats );
     }
@@ -70,7 +70,7 @@ public class MLMultinomialLearner extends ModelLearner.DefaultImplementation
     {
         Type.Discrete xType = (Type.Discrete)((Type.Vector)x.t).elt;
         Value.Model multinomialModel = new Multinomial((int)xType.LWB, (int)xType.UPB);
-        Value.Structured stats = (Value.Structured)multinomialModel.getSufficient(x,z);
+        Value.Structured stats = MultinomialLearner.getSufficient(multinomialModel,x,z);
         return sParameterize( multinomialModel, stats );    
     } 
     
@@ -104,7 +104,7 @@ public class MLMultinomialLearner extends ModelLearner.DefaultImplementation
     {
         Type.Discrete xType = (Type.Discrete)((Type.Vector)x.t).elt;
         Value.Model multinomialModel = new Multinomial((int)xType.LWB, (int)xType.UPB);
-        Value.Structured stats = (Value.Structured)multinomialModel.getSufficient(x,z);
+        Value.Structured stats = MultinomialLearner.getSufficient(multinomialModel,x,z);
         
         return sCost( m, stats, (Value.Structured)y );
     }
@@ -80,7 +80,7 @@ public class MultinomialLearner extends ModelLearner.DefaultImplementation
     {
         Type.Discrete xType = (Type.Discrete)((Type.Vector)x.t).elt;
         Value.Model multinomialModel = getMultinomialModel((int)xType.LWB, (int)xType.UPB);
-        Value.Structured stats = (Value.Structured)multinomialModel.getSufficient(x,z);
+        Value.Structured stats = getSufficient(multinomialModel,x,z);
         return sParameterize( multinomialModel, stats );    
     } 
     
@@ -114,7 +114,7 @@ public class MultinomialLearner extends ModelLearner.DefaultImplementation
     {
         Type.Discrete xType = (Type.Discrete)((Type.Vector)x.t).elt;
         Value.Model multinomialModel = getMultinomialModel((int)xType.LWB, (int)xType.UPB);
-        Value.Structured stats = (Value.Structured)multinomialModel.getSufficient(x,z);
+        Value.Structured stats = getSufficient(multinomialModel,x,z);
         
         return sCost( m, stats, (Value.Structured)y );
     }
@@ -124,7 +124,7 @@ public class MultinomialLearner extends ModelLearner.DefaultImplementation
     {
         Type.Discrete xType = (Type.Discrete)((Type.Vector)x.t).elt;
         Value.Model multinomialModel = getMultinomialModel((int)xType.LWB, (int)xType.UPB);
-        Value.Structured stats = (Value.Structured)multinomialModel.getSufficient(x,z);
+        Value.Structured stats = getSufficient(multinomialModel,x,z);
         
         return sParameterizeAndCost( multinomialModel, stats );
     }
@@ -245,6 +245,18 @@ public class MultinomialLearner extends ModelLearner.DefaultImplementation
         }
     }
     
+    /**
+     * Return multinomialModel.getSufficient(x,z).  If x is a column of a ColumnarVector the
+     * tally is taken directly from the underlying array instead of via x.intAt()
+     */
+    public static Value.Structured getSufficient( Value.Model multinomialModel, 
+                                                  Value.Vector x, Value.Vector z ) {
+        if ( x instanceof ColumnarVector.Column ) {
+            return new StructureFN.FastContinuousStructure( ((ColumnarVector.Column)x).count() );
+        }
+        return (Value.Structured)multinomialModel.getSufficient(x,z);
+    }
+    
     /**
      * Lazily create instances of Multinomial.  Without this a new instance of Multinomial if
      * created every time parameterize is called.
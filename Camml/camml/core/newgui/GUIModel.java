@@ -44,7 +44,6 @@ import camml.core.searchDBN.ExportDBNNetica;
 import camml.core.searchDBN.MetropolisSearchDBN;
 import camml.plugin.friedman.FriedmanWrapper;
 import camml.plugin.netica.NeticaFn;
-import camml.plugin.rodoCamml.RodoCammlIO;
 import camml.plugin.tomCoster.ExpertElicitedTOMCoster;
 import camml.plugin.weka.Converter;
 import cdms.core.Type;
@@ -197,7 +196,7 @@ public class GUIModel implements GUIParameters {
 		
 		if( path.endsWith( "cas" ) ){
 			try{
-				data = RodoCammlIO.load( path );
+				data = Converter.load( path, false, false );
 			} catch( FileNotFoundException e ){
 				data = null;
 				throw new Exception( "File not found. " + e );
@@ -294,6 +294,7 @@ public class AnnealSearch extends BNetSearch
               new CaseInfo(null, null, data, mmlModelLearner, mlModelLearner, -1, 
                            new NodeCache( data, mmlModelLearner, mlModelLearner )) );
         caseInfo.nodeCache.caseInfo = caseInfo;
+        ownsNodeCache = true;
 
 
         // Create temporary RNG so regression is not thrown out.
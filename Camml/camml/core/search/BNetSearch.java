@@ -98,6 +98,19 @@ public abstract class BNetSearch implements Search.SearchObject
                                   Double.POSITIVE_INFINITY,
                                   new NodeCache( data, mmlModelLearner, mlModelLearner ) ));
         caseInfo.nodeCache.caseInfo = caseInfo;
+        ownsNodeCache = true;
+    }
+    
+    /** True if this search created caseInfo.nodeCache (and so should close it). */
+    protected boolean ownsNodeCache = false;
+    
+    /** 
+     * Release resources held by the NodeCache this search created (eg. a persistent cache 
+     * file).  NodeCaches passed in through caseInfo are left for their owner to close.
+     */
+    public void close()
+    {
+        if ( ownsNodeCache ) { caseInfo.nodeCache.close(); }
     }
     
     /** recalculate bestCost and currentCost, usually done after updating arcProb */
@@ -218,6 +231,9 @@ public abstract class BNetSearch implements Search.SearchObject
      *    <b>maxNumSECs</b>     -- Maximum number of SECs retained post metropolis sampling. 
      *    <b>minTotalPosterior</b> -- Minimal posterior retained post metropolis sampling.
      *                    If more than 'maxSECs' SECs are required, this condition is ignored. 
+     *    <b>numChains</b> -- Number of independent Metropolis chains sampled in parallel.
+     *    <b>nodeCacheDirectory</b> -- Directory used to store node costs between runs. 
+     *                   See {@link NodeCache#usePersistentCache}
      *    <b>useNetica</b> -- Return BNetNetica instead of BNetStochastic models.
      */ 
     public boolean setOption( final String option, Value v ) {
@@ -280,6 +296,18 @@ public abstract class BNetSearch implements Search.SearchObject
             int x = ((Value.Scalar)v).getDiscrete();
             caseInfo.maxNumSECs = x;
         }
+        else if ( option.equals("numChains") ) {
+            int x = ((Value.Scalar)v).getDiscrete();
+            if ( x < 1 ) { throw new RuntimeException("numChains must be >= 1"); }
+            caseInfo.numChains = x;
+            System.out.println( "Setting numChains = " + x );
+        }
+        else if ( option.equals("nodeCacheDirectory") ) {
+            String dir = ((Value.Str)v).getString();
+            caseInfo.nodeCache.usePersistentCache( new java.io.File(dir) );
+            System.out.println( "Using persistent node cache: " + 
+                                caseInfo.nodeCache.getPersistentCache() );
+        }
         else if ( option.equals("minTotalPosterior") ) {
             double d = ((Value.Scalar)v).getContinuous();
             caseInfo.minTotalPosterior = d;
@@ -516,17 +544,19 @@ public abstract class BNetSearch implements Search.SearchObject
         
         TOM tom2;
         if ( clean ) {         
-            // Ensure cleaning is done properly.
-            updateNodes = null;
             tom2 = cleantom;
-            cleantom.setStructure(tom);
-            cleantom.clean();
+            // Reclean only changed nodes if possible, otherwise reclean the whole TOM.
+            if ( updateNodes == null || totalCost == -1 || !updateCleanTOM( updateNodes ) ) {
+                updateNodes = null;
+                cleantom.setStructure(tom);
+                cleantom.clean();
+            }
         } else { 
             tom2 = tom; 
         }
         
         // Calculate cost for all nodes.
-        if ( clean || updateNodes == null || totalCost == -1) {
+        if ( updateNodes == null || totalCost == -1) {
             totalCost = 0;
             for ( int i = 0; i < numNodes; i++ ) {
                 Node currentNode = tom2.getNode(i);
@@ -577,6 +607,43 @@ public abstract class BNetSearch implements Search.SearchObject
         return totalCost;
     }
     
+    /**
+     * Bring cleantom up to date with tom, given only nodes in updateNodes have had their parents
+     * changed since cleantom was last updated.  If the TOMCleaner used cleans each node
+     * independently only the nodes listed are recleaned (the total ordering is copied from tom).
+     * Returns false without modifying cleantom if the whole TOM must be recleaned.
+     */
+    protected boolean updateCleanTOM( int[] updateNodes )
+    {
+        if ( !(caseInfo.tomCleaner instanceof TOMCleaner.NodeTOMCleaner) ) { return false; }
+        TOMCleaner.NodeTOMCleaner cleaner = (TOMCleaner.NodeTOMCleaner)caseInfo.tomCleaner;
+        if ( !cleaner.isLocal( cleantom ) ) { return false; }
+        
+        // Remove all (clean) parents of changed nodes.  The remaining arcs are also present in
+        // tom so are consistent with its ordering.
+        for ( int i = 0; i < updateNodes.length; i++ ) {
+            int[] parent = cleantom.getNode( updateNodes[i] ).parent;
+            for ( int j = 0; j < parent.length; j++ ) {
+                cleantom.removeArc( updateNodes[i], parent[j] );
+            }
+        }
+        
+        for ( int i = 0; i < numNodes; i++ ) {
+            if ( cleantom.nodeAt(i) != tom.nodeAt(i) ) {
+                cleantom.swapOrder( cleantom.nodeAt(i), tom.nodeAt(i), false );
+            }
+        }
+        
+        // Copy parents from tom and reclean.
+        for ( int i = 0; i < updateNodes.length; i++ ) {
+            int x = updateNodes[i];
+            int[] parent = tom.getNode(x).parent;
+            for ( int j = 0; j < parent.length; j++ ) { cleantom.addArc( x, parent[j] ); }
+            cleaner.cleanNode( cleantom, x );
+        }
+        return true;
+    }
+    
     /** return the cost to state the total ordering and the link matrix.
      *  A cleaan structure will have less arcs so cost will differ.
      * 
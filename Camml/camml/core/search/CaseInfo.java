@@ -54,7 +54,7 @@ import java.util.Comparator;
  * 
  * Some parts of the file are only relevent for particular search types.
  */
-public class CaseInfo implements Serializable {
+public class CaseInfo implements Serializable, Cloneable {
     
     /** Serial ID required to evolve class while maintaining serialisation compatibility. */
     private static final long serialVersionUID = 6773205128107956893L;
@@ -148,6 +148,9 @@ public class CaseInfo implements Serializable {
      *  note: Making this value large slows down SEC joining step. */
     public int maxNumSECs = 30;
     
+    /** Number of independent chains run in parallel by Metropolis Search. */
+    public int numChains = 1;
+    
     /** Minimal total SEC posterior to retain from Metropolis Sampling. 
      *  This value is ignored if > metropolisMaxSECs is required. */
     public double minTotalPosterior = 0.999;
@@ -198,6 +201,15 @@ public class CaseInfo implements Serializable {
     }
     
     
+    /** 
+     * Return a shallow copy of this CaseInfo.  Hash functions, learners, tomCoster and 
+     * nodeCache are shared with the original.
+     */
+    public Object clone() {
+        try { return super.clone(); }
+        catch ( CloneNotSupportedException e ) { throw new RuntimeException(e); }
+    }
+    
     /** Print details. */
     public String toString() {
         return "bNet = " + bNet + "\n" + 
@@ -37,6 +37,9 @@
 
 package camml.core.search;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
 import cdms.core.*;
 
 
@@ -75,17 +78,43 @@ public class GreedyLookaheadSearch
         searchDone = false;
     }
     
+    /** 
+     * Maximum number of candidates expanded at each level of lookahead, or 0 for no limit.
+     * Candidates are ranked by the cost of applying them without lookahead. Candidates not
+     * expanded are still scored by that cost.
+     */
+    protected int beamWidth = 0;
+    
+    /** If true, top level candidates are scored concurrently on cloned TOMs. */
+    public static boolean parallel = true;
+    
+    /** 
+     * Costs within tieTolerance are treated as equal by doEpoch.  Scorer builds structure 
+     * costs from TOMCoster deltas, so the same TOM reached by different mutations may have 
+     * costs differing in the last few bits.
+     */
+    public static double tieTolerance = 1e-8;
+    
+    /** Return true if x and y are equal to within tieTolerance */
+    static boolean sameCost( double x, double y ) { return Math.abs( x - y ) <= tieTolerance; }
+    
     /** mutate the TOM.  a & b are nodes, operation = (toggleArc,swapOrder)*/
     void mutate( int operation, int a, int b)
+    {
+        mutate( tom, operation, a, b );
+    }
+    
+    /** mutate tom.  a & b are nodes, operation = (toggleArc,swapOrder), -1 does nothing. */
+    static void mutate( TOM tom, int operation, int a, int b )
     {
         if (operation == 0)
-            toggleArc(a,b);
+            toggleArc(tom,a,b);
         else if (operation == 1)
-            swapOrder(a,b);
+            swapOrder(tom,a,b);
     }
     
     /** If arc is present remove it, if are is not present create it */
-    void toggleArc( int a, int b)
+    static void toggleArc( TOM tom, int a, int b)
     {
         if ( tom.isArc(a,b) ) {
             tom.removeArc(a,b);
@@ -96,51 +125,215 @@ public class GreedyLookaheadSearch
     }
     
     /** Swap the order of a abd b in the network */
-    void swapOrder( int a, int b )
+    static void swapOrder( TOM tom, int a, int b )
     {
         tom.swapOrder( a, b, true );
     }
     
+    /** 
+     * Scorer holds a TOM along with the MML cost of each node and the TOM's structure cost.
+     * A mutation is scored by recosting only the nodes whose parents it changes and adding
+     * the structure cost delta from the TOMCoster, instead of recosting the whole network.
+     */
+    protected class Scorer
+    {
+        /** TOM being mutated. */
+        final TOM tom;
+        
+        /** nodeCost[i] = MML cost of node i in tom */
+        final double[] nodeCost;
+        
+        /** Structure cost of tom */
+        double structureCost;
+        
+        Scorer( TOM tom )
+        {
+            this.tom = tom;
+            nodeCost = new double[numNodes];
+            for ( int i = 0; i < numNodes; i++ ) {
+                nodeCost[i] = caseInfo.nodeCache.getCost( tom.getNode(i), mmlModelLearner );
+            }
+            structureCost = caseInfo.tomCoster.cost( tom );
+        }
+        
+        /** Total cost of tom.  Node costs are summed in order, as in BNetSearch.costNodes */
+        double cost()
+        {
+            double totalCost = 0;
+            for ( int i = 0; i < numNodes; i++ ) { totalCost += nodeCost[i]; }
+            return totalCost + structureCost;
+        }
+        
+        /** Return the nodes whose parents change when the mutation is applied. */
+        int[] affected( int operation, int a, int b )
+        {
+            if ( operation == 0 ) {
+                return new int[] { tom.getNodePos(a) > tom.getNodePos(b) ? a : b };
+            }
+            else if ( operation == 1 ) {
+                // Nodes between a and b have arcs to a or b reversed.
+                int posA = tom.getNodePos(a);
+                int posB = tom.getNodePos(b);
+                int[] node = new int[Math.abs(posA - posB) + 1];
+                int n = 0;
+                node[n++] = a;
+                node[n++] = b;
+                for ( int i = Math.min(posA,posB) + 1; i < Math.max(posA,posB); i++ ) {
+                    int x = tom.nodeAt(i);
+                    if ( tom.isArc(x,a) || tom.isArc(x,b) ) { node[n++] = x; }
+                }
+                int[] affected = new int[n];
+                System.arraycopy( node, 0, affected, 0, n );
+                return affected;
+            }
+            else { return new int[0]; }
+        }
+        
+        /** 
+         * Apply the mutation and update costs.  The previous costs are returned so the mutation
+         * can be reversed with undo().
+         */
+        double[] apply( int operation, int a, int b, int[] affected )
+        {
+            double[] saved = new double[affected.length + 1];
+            saved[affected.length] = structureCost;
+            if ( operation == 0 ) {
+                structureCost += caseInfo.tomCoster.costToToggleArc( tom, a, b );
+            }
+            else if ( operation == 1 ) {
+                structureCost += caseInfo.tomCoster.costToSwapOrder( tom, a, b );
+            }
+            
+            mutate( tom, operation, a, b );
+            for ( int i = 0; i < affected.length; i++ ) {
+                int x = affected[i];
+                saved[i] = nodeCost[x];
+                nodeCost[x] = caseInfo.nodeCache.getCost( tom.getNode(x), mmlModelLearner );
+            }
+            return saved;
+        }
+        
+        /** Reverse a mutation made by apply() */
+        void undo( int operation, int a, int b, int[] affected, double[] saved )
+        {
+            mutate( tom, operation, a, b );
+            for ( int i = 0; i < affected.length; i++ ) { nodeCost[affected[i]] = saved[i]; }
+            structureCost = saved[affected.length];
+        }
+    }
+    
+    /** 
+     * Return all single mutations of tom as {operation,a,b}.  Arcs may always be toggled, but
+     * order is only swapped for nodes joined by an arc.
+     */
+    static int[][] candidates( TOM tom )
+    {
+        int numNodes = tom.getNumNodes();
+        java.util.ArrayList<int[]> list = new java.util.ArrayList<int[]>();
+        for ( int a = 0; a < numNodes; a++ ) {
+            for (int b = a+1; b < numNodes; b++ ) {
+                for (int operation = 0; operation < 2; operation ++ ) { 
+                    if ( operation == 0 || tom.isArc(a,b) ) { list.add( new int[] {operation,a,b} ); }
+                }
+            }
+        }
+        return list.toArray( new int[list.size()][] );
+    }
+    
+    /** Return the indices of the beamWidth lowest costs, in their original order. */
+    static int[] beam( double[] cost, int beamWidth )
+    {
+        Integer[] index = new Integer[cost.length];
+        for ( int i = 0; i < index.length; i++ ) { index[i] = i; }
+        final double[] c = cost;
+        java.util.Arrays.sort( index, new java.util.Comparator<Integer>() {
+                public int compare( Integer x, Integer y ) { return Double.compare( c[x], c[y] ); }
+            } );
+        int[] best = new int[Math.min(beamWidth,cost.length)];
+        for ( int i = 0; i < best.length; i++ ) { best[i] = index[i]; }
+        java.util.Arrays.sort( best );
+        return best;
+    }
+    
     /** 
      * Given a single mutation, look ahead k operations and return the best cost seen. <br>
      * If k = 0 then no lookahead is performed.  <br>
      * To speed things up, all operations are given an ordering.
      **/
-    double lookahead( int currentOperation, int currentA, int currentB, int k )
+    double lookahead( Scorer scorer, int currentOperation, int currentA, int currentB, int k )
     {    
         // Perform the initial mutation on the network and use this cost as bestCost
-        mutate( currentOperation, currentA, currentB );
-        // double bestCost = costNetwork() + structureCost;
-        double bestCost = costNetwork( mmlModelLearner, false );
+        int[] affected = scorer.affected( currentOperation, currentA, currentB );
+        double[] saved = scorer.apply( currentOperation, currentA, currentB, affected );
+        double bestCost = scorer.cost();
         
         if (k != 0) {
+            int[][] candidate = candidates( scorer.tom );
+            
+            // Only expand the most promising candidates.
+            if ( beamWidth > 0 && k > 1 && candidate.length > beamWidth ) {
+                double[] cost = new double[candidate.length];
+                for ( int i = 0; i < candidate.length; i++ ) {
+                    cost[i] = lookahead( scorer, candidate[i][0], candidate[i][1], candidate[i][2], 0 );
+                    if ( cost[i] < bestCost ) { bestCost = cost[i]; }
+                }
+                int[] best = beam( cost, beamWidth );
+                int[][] expand = new int[best.length][];
+                for ( int i = 0; i < best.length; i++ ) { expand[i] = candidate[best[i]]; }
+                candidate = expand;
+            }
             
             // Do a single iteration of a greedy search.
-            for ( int a = 0; a < tom.getNumNodes(); a++ ) {
-                for (int b = a+1; b < tom.getNumNodes(); b++ ) {
-                    // operation = toggleArc(a,b) or swapOrder(a,b) 
-                    for (int operation = 0; operation < 2; operation ++ ) { 
-                        
-                        // always try to toggle an arc's existance, but only it's direction if it
-                        // exists in the network.
-                        if ( operation == 0 || tom.isArc(a,b) ) {            
-                            double cost = lookahead(operation,a,b,k-1);
-                            // If this is the best operation found so far remember it.
-                            if ( cost < bestCost ) {
-                                bestCost = cost;
-                            }
-                        }                        
-                    }
+            for ( int i = 0; i < candidate.length; i++ ) {
+                double cost = lookahead( scorer, candidate[i][0], candidate[i][1], candidate[i][2], k-1 );
+                // If this is the best operation found so far remember it.
+                if ( cost < bestCost ) {
+                    bestCost = cost;
                 }
             }                
         }
         
         // reverse the initial mutation.  This puts the TOM into it's original orientation.
-        mutate( currentOperation, currentA, currentB );
+        scorer.undo( currentOperation, currentA, currentB, affected, saved );
         
         return bestCost;
     } 
     
+    /** 
+     * Return lookahead(candidate[i],k) for each candidate.  When parallel is set candidates are
+     * split into chunks, each scored on its own clone of tom using the common ForkJoinPool.
+     */
+    protected double[] lookaheadAll( final int[][] candidate, final int k )
+    {
+        final double[] cost = new double[candidate.length];
+        if ( !parallel || candidate.length < 2 ) {
+            Scorer scorer = new Scorer( tom );
+            for ( int i = 0; i < candidate.length; i++ ) {
+                cost[i] = lookahead( scorer, candidate[i][0], candidate[i][1], candidate[i][2], k );
+            }
+            return cost;
+        }
+        
+        int numChunks = Math.min( candidate.length, 4 * ForkJoinPool.getCommonPoolParallelism() );
+        ForkJoinTask<?>[] task = new ForkJoinTask<?>[numChunks];
+        for ( int chunk = 0; chunk < numChunks; chunk++ ) {
+            final int start = chunk * candidate.length / numChunks;
+            final int end = (chunk + 1) * candidate.length / numChunks;
+            final TOM clone = (TOM)tom.clone();
+            task[chunk] = ForkJoinPool.commonPool().submit( new Runnable() {
+                    public void run() {
+                        Scorer scorer = new Scorer( clone );
+                        for ( int i = start; i < end; i++ ) {
+                            cost[i] = lookahead( scorer, candidate[i][0], candidate[i][1], 
+                                                 candidate[i][2], k );
+                        }
+                    }
+                } );
+        }
+        for ( int chunk = 0; chunk < numChunks; chunk++ ) { task[chunk].join(); }
+        return cost;
+    }
+    
     /** 
      * In a single epoch we try all single mutations and take the one which lookahead()
      * tells us has the best prospects.
@@ -151,7 +344,8 @@ public class GreedyLookaheadSearch
         int bestB = -1;
         int bestOperation = -1;
         
-        double baseNetworkCost = costNetwork( mmlModelLearner, false );
+        Scorer scorer = new Scorer( tom );
+        double baseNetworkCost = scorer.cost();
         double bestCost = baseNetworkCost;
         double cost;
         
@@ -162,60 +356,74 @@ public class GreedyLookaheadSearch
         // do not mutate on first epoch.  This gives the initial model zero arcs.
         if (epoch != 0) {    
             
+            int[][] candidate = candidates( tom );
+            double[] lookaheadCost;
+            
+            // With a beam, only the best candidates (without lookahead) are looked ahead from.
+            if ( beamWidth > 0 && maxLookahead > 0 && candidate.length > beamWidth ) {
+                lookaheadCost = lookaheadAll( candidate, 0 );
+                int[] best = beam( lookaheadCost, beamWidth );
+                int[][] expand = new int[best.length][];
+                for ( int i = 0; i < best.length; i++ ) { expand[i] = candidate[best[i]]; }
+                double[] expandCost = lookaheadAll( expand, maxLookahead );
+                for ( int i = 0; i < best.length; i++ ) { lookaheadCost[best[i]] = expandCost[i]; }
+            }
+            else {
+                lookaheadCost = lookaheadAll( candidate, maxLookahead );
+            }
             
-            for (int a = 0; a < tom.getNumNodes(); a++)
-                for (int b = a+1; b < tom.getNumNodes(); b++)
-                    for (int op = 0; op < 2; op++) {
-                        if ( op == 0 || tom.isArc(a,b) ) {
-                            cost = lookahead(op,a,b,maxLookahead);
+            for ( int c = 0; c < candidate.length; c++ ) {
+                int op = candidate[c][0];
+                int a = candidate[c][1];
+                int b = candidate[c][2];
+                cost = lookaheadCost[c];
                             
-                            // if 2 costs are equal, resolve the tiebreak by checking which 
-                            // cost is best with a reduced lookahead.  Without this cycles
-                            // occur in the search space
-                            if ( cost == bestCost ) {
-                                //                 System.out.println(" -- Equal Best Model -- ");
-                                
-                                int tempLookahead = maxLookahead - 1;
-                                while (tempLookahead >=0 ) {
-                                    // Work out if the current or previous best has the best cost
-                                    // with a reduced lookahead.
-                                    double cost1 = lookahead( op,a,b,tempLookahead );
-                                    double cost2 = lookahead( bestOperation,bestA,
-                                                              bestB,tempLookahead );
-                                    
-                                    if ( cost1 < cost2 ) {
-                                        bestCost = cost;
-                                        bestA = a;
-                                        bestB = b;
-                                        bestOperation = op;
-                                        networkUpdated = true;
-                                        System.out.println(" --- New Best Model --- " + bestCost );
-                                        break;
-                                    }
-                                    else if ( cost1 > cost2 ) {
-                                        //                     System.out.print(" -- Worse Best Model -- ");
-                                        break;                    
-                                    }
-                                    else if ( cost1 == cost2 ) {
-                                        tempLookahead --;
-                                        //                     System.out.println("Looking ahead with k = "+tempLookahead);
-                                    }
-                                }
-                                
-                            }
-                            else if ( cost > bestCost ) {
-                                //                 System.out.print(" -- Worse Best Model -- ");
-                            }
-                            else if (cost < bestCost) {
-                                bestCost = cost;
-                                bestA = a;
-                                bestB = b;
-                                bestOperation = op;
-                                networkUpdated = true;
-                                System.out.println(" --- New Best Model --- " + bestCost );
-                            }
+                // if 2 costs are equal, resolve the tiebreak by checking which 
+                // cost is best with a reduced lookahead.  Without this cycles
+                // occur in the search space
+                if ( sameCost( cost, bestCost ) ) {
+                    //                 System.out.println(" -- Equal Best Model -- ");
+                    
+                    int tempLookahead = maxLookahead - 1;
+                    while (tempLookahead >=0 ) {
+                        // Work out if the current or previous best has the best cost
+                        // with a reduced lookahead.
+                        double cost1 = lookahead( scorer, op,a,b,tempLookahead );
+                        double cost2 = lookahead( scorer, bestOperation,bestA,
+                                                  bestB,tempLookahead );
+                        
+                        if ( sameCost( cost1, cost2 ) ) {
+                            tempLookahead --;
+                            //                     System.out.println("Looking ahead with k = "+tempLookahead);
+                        }
+                        else if ( cost1 < cost2 ) {
+                            bestCost = cost;
+                            bestA = a;
+                            bestB = b;
+                            bestOperation = op;
+                            networkUpdated = true;
+                            System.out.println(" --- New Best Model --- " + bestCost );
+                            break;
                         }
-                    }        
+                        else {
+                            //                     System.out.print(" -- Worse Best Model -- ");
+                            break;                    
+                        }
+                    }
+                    
+                }
+                else if ( cost > bestCost ) {
+                    //                 System.out.print(" -- Worse Best Model -- ");
+                }
+                else if (cost < bestCost) {
+                    bestCost = cost;
+                    bestA = a;
+                    bestB = b;
+                    bestOperation = op;
+                    networkUpdated = true;
+                    System.out.println(" --- New Best Model --- " + bestCost );
+                }
+            }        
         }
         // else if epoch == 0
         else {
@@ -245,6 +453,21 @@ public class GreedyLookaheadSearch
         return bestCost;
     }
     
+    /** 
+     * Options specific to GreedyLookaheadSearch: <br>
+     *   <b>beamWidth</b> -- Maximum number of candidates looked ahead from at each level,
+     *                       0 for no limit (default). <br>
+     * @see BNetSearch#setOption
+     */
+    public boolean setOption( final String option, Value v ) {
+        if ( option.equals("beamWidth") ) {
+            beamWidth = ((Value.Discrete)v).getDiscrete();
+            System.out.println( "Setting beamWidth = " + beamWidth );
+            return true;
+        }
+        return super.setOption( option, v );
+    }
+    
     public boolean isFinished()
     {
         return (epoch == max || searchDone == true);
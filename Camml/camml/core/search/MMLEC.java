@@ -148,6 +148,9 @@ public class MMLEC implements Serializable
         /** Constructor */
         public MMLECStructure() { super( mmlecStructType); }
         
+        /** Return the MMLEC represented by this structure. */
+        public MMLEC getMMLEC() { return MMLEC.this; }
+        
         /** Return number of cmpnts */
         public int length() { return 5; }
         
@@ -185,6 +188,78 @@ public class MMLEC implements Serializable
         }
     };
     
+    /** 
+     * Add the posterior of every TOM in this MMLEC to arc[child][parent] (and optionally
+     * ancestor[node][a]) 
+     * @see SEC#addArcPosteriors
+     */
+    public void addArcPosteriors( double[][] arc, double[][] ancestor )
+    {
+        for ( SEC sec : secList ) { sec.addArcPosteriors( arc, ancestor ); }
+    }
+    
+    /** 
+     * Return the posterior weighted arc frequencies of mmlecs. <br>
+     * If ancestors == false, result[i][j] = P(j -> i) <br>
+     * If ancestors == true,  result[i][j] = P(j is an ancestor of i) <br>
+     * This is calculated in a single pass over every TOM in every SEC.
+     */
+    public static double[][] getArcPosteriors( MMLEC[] mmlecs, boolean ancestors )
+    {
+        int numNodes = 0;
+        for ( MMLEC mmlec : mmlecs ) {
+            for ( SEC sec : mmlec.secList ) {
+                if ( sec.tomList.size() > 0 ) { numNodes = sec.tomList.get(0).order.length; }
+            }
+        }
+        
+        double[][] arc = new double[numNodes][numNodes];
+        double[][] ancestor = ancestors ? new double[numNodes][numNodes] : null;
+        for ( MMLEC mmlec : mmlecs ) { mmlec.addArcPosteriors( arc, ancestor ); }
+        return ancestors ? ancestor : arc;
+    }
+    
+    /** Posterior weighted arc frequencies, [MMLEC] -> [[Continuous]] */
+    public static final ArcPosteriors arcPosteriors = new ArcPosteriors( false );
+
+    /** Posterior weighted ancestor frequencies, [MMLEC] -> [[Continuous]] */
+    public static final ArcPosteriors ancestorPosteriors = new ArcPosteriors( true );
+    
+    /**
+     * [MMLEC] -> [[Continuous]] <br>
+     * Return a matrix where elt(i).elt(j) is the posterior probability of j -> i (or j being an
+     * ancestor of i).  This gives the same result as script/pwArcFrequencies.fp without creating
+     * parameters for each TOM.
+     */
+    public static class ArcPosteriors extends Function {
+        
+        /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+        private static final long serialVersionUID = 4381963550148412037L;
+        
+        /** Calculate ancestor frequencies instead of arc frequencies? */
+        protected final boolean ancestors;
+        
+        public ArcPosteriors( boolean ancestors ) {
+            super( new Type.Function( Type.VECTOR, Type.VECTOR ) );
+            this.ancestors = ancestors;
+        }
+        
+        public Value apply( Value v ) {
+            Value.Vector vec = (Value.Vector)v;
+            MMLEC[] mmlecs = new MMLEC[vec.length()];
+            for ( int i = 0; i < mmlecs.length; i++ ) {
+                mmlecs[i] = ((MMLECStructure)vec.elt(i)).getMMLEC();
+            }
+            
+            double[][] matrix = getArcPosteriors( mmlecs, ancestors );
+            Value.Vector[] rows = new Value.Vector[matrix.length];
+            for ( int i = 0; i < rows.length; i++ ) {
+                rows[i] = new VectorFN.FastContinuousVector( matrix[i] );
+            }
+            return new VectorFN.FatVector( rows );
+        }
+    }
+    
     public static final GetRepresentativeDAG getRepresentative = new GetRepresentativeDAG();
     
     /**
@@ -44,6 +44,13 @@ import camml.core.models.mixture.Mixture;
 
 import java.util.Hashtable;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import norsys.netica.NeticaException;
 
@@ -91,6 +98,9 @@ public class MetropolisSearch extends BNetSearch
     /** Should we treat the first epoch as special and do the anneal search there? */
     public boolean doAnnealOnFirstEpoch = true;
 
+    /** Should a progress bar be printed while sampling? */
+    protected boolean printProgress = true;
+
     /** Update currentCost and cleanMLCost. 
      * @param nodeChanged: list of nodes with parent changes since last call to updateCosts. 
      * If (nodeChanges == null) all nodes are considered changed.
@@ -164,29 +174,41 @@ public class MetropolisSearch extends BNetSearch
         caseInfo.referenceWeight = bestCost;    
     }
     
-    /** Update weights so that currentCost has a weight of 1.0
-     * This should be done when a new best cost is found.
+    /** 
+     * Weights are only rescaled once exp((referenceWeight-bestCost)*(1-1/temperature)) exceeds
+     * exp(maxLogWeight), all other changes to the best cost leave weights untouched.
+     */
+    public static double maxLogWeight = 200;
+    
+    /** 
+     * Called when a new best cost is found. <br>
+     * All weights are stored as exp((referenceWeight-cost)*(1-1/temperature)), so referenceWeight
+     * acts as a single log scale shared by every weight and posteriors (weight/totalWeight) do
+     * not depend on it.  The (expensive) rescale in rebaseWeights is only performed when 
+     * weights relative to currentCost risk overflow.
      */
     public void updateReferenceWeight( double currentCost ) 
+    {
+        double logWeight = (caseInfo.referenceWeight - currentCost) * (1.0 - (1.0/temperature));
+        if ( logWeight > maxLogWeight ) { rebaseWeights( currentCost ); }
+    }
+    
+    /** Update weights so that currentCost has a weight of 1.0 */
+    public void rebaseWeights( double currentCost )
     {
         double oldReferenceWeight = caseInfo.referenceWeight;
-        //double oldTotalWeight = caseInfo.totalWeight;
         caseInfo.referenceWeight = currentCost;
         
         //     Fixed version of multiplier code.
         double multiplier =
             Math.exp( (currentCost - oldReferenceWeight) * (1.0 - (1.0/temperature)));
+        if ( multiplier == 1.0 ) { return; }
         
         caseInfo.totalWeight *= multiplier;
         weightIgnored *= multiplier;
         
-        // dump secHashtable into an arraylist for easy management.
-        ArrayList<SEC> secList = new ArrayList<SEC>( secHashtable.values() );
-        
-        // all weights must be multiplied by the multiplier.  referenceWeight always << oldWeight
-        // so multiplies always fractional.  All Weights reduced.
-        for ( int i = 0; i < secList.size(); i++ ) {
-            secList.get(i).updateReferenceWeight( multiplier );
+        for ( SEC sec : secHashtable.values() ) {
+            sec.updateReferenceWeight( multiplier );
         }
         
         // Update arc portions
@@ -198,10 +220,6 @@ public class MetropolisSearch extends BNetSearch
                 }                
             }
         }
-        
-        System.out.println("newReference = " + caseInfo.referenceWeight + "\t" + 
-                           "totalWeight = " + caseInfo.totalWeight + "\t" + 
-                           "multiplier = " + multiplier );
     }
     
 
@@ -289,11 +307,19 @@ public class MetropolisSearch extends BNetSearch
             // print out progress bar header.
             for (int i = 0; i < 100; i++) {    System.out.print(i % 10); }
             System.out.println();                        
+            
+            // When multiple chains are used all sampling is done here.
+            if ( caseInfo.numChains > 1 ) {
+                runChains();
+                return currentCost;
+            }
         }
         
         // gradually print progress bar as search runs.
-        if (max < 100 || epoch % (max / 100) == 0) { System.out.print("."); }
-        if ( epoch == max-1) { System.out.println(); }
+        if ( printProgress ) {
+            if (max < 100 || epoch % (max / 100) == 0) { System.out.print("."); }
+            if ( epoch == max-1) { System.out.println(); }
+        }
         
         // Randomise TOM order in the current DAG.  Arc directions remain unchanged.        
         if ( epoch == 0 && doAnnealOnFirstEpoch && caseInfo.regression) {
@@ -339,6 +365,130 @@ public class MetropolisSearch extends BNetSearch
         return currentCost;
     }
 
+    /** 
+     * Create a chain for runChains to sample with.  The chain shares hash functions, learners
+     * and nodeCache with this search through chainInfo.
+     */
+    protected MetropolisSearch makeChain( java.util.Random chainRand, CaseInfo chainInfo )
+    {
+        return new MetropolisSearch( chainRand, chainInfo );
+    }
+    
+    /**
+     * Split sampling between caseInfo.numChains independent chains run in parallel. <br>
+     * Each chain starts from bestTOM with its own TOM and WallaceRandom (seeded from rand)
+     * and samples its share of the max TOMs.  Once all chains are finished their weights are
+     * rescaled to a common referenceWeight and their SECs are merged into secHashtable. <br>
+     * Chains are seeded and merged in a fixed order, so results depend only on the seed and
+     * the number of chains, not on thread scheduling.
+     */
+    protected void runChains()
+    {
+        final int numChains = caseInfo.numChains;
+        
+        // Create chains.  All seeds are drawn before any chain runs.
+        final MetropolisSearch[] chain = new MetropolisSearch[numChains];
+        for ( int i = 0; i < numChains; i++ ) {
+            WallaceRandom chainRand = 
+                new WallaceRandom( new int[] { rand.nextInt(), rand.nextInt() } );
+            
+            CaseInfo chainInfo = (CaseInfo)caseInfo.clone();
+            chainInfo.arcWeights = new double[numNodes][numNodes];
+            chainInfo.totalWeight = 0;
+            chainInfo.safeMode = false;
+            chainInfo.numChains = 1;
+            
+            chain[i] = makeChain( chainRand, chainInfo );
+            chain[i].setArcProb( arcProb );
+            chain[i].setTemperature( temperature );
+            chain[i].bestTOM.setStructure( bestTOM );
+            chain[i].reset();
+            chain[i].max = max / numChains + ((i < max % numChains) ? 1 : 0);
+            chain[i].printProgress = (i == 0);
+        }
+        
+        // Run all chains to completion.
+        int numThreads = Math.min( numChains, Runtime.getRuntime().availableProcessors() );
+        ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+        try {
+            ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+            for ( int i = 0; i < numChains; i++ ) {
+                final MetropolisSearch c = chain[i];
+                futures.add( executor.submit( new Runnable() {
+                        public void run() {
+                            while ( !c.searchDone ) { c.doEpoch(); }
+                        }
+                    } ) );
+            }
+            for ( Future<?> f : futures ) { f.get(); }
+        } catch ( InterruptedException e ) {
+            throw new RuntimeException( e );
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException ) { throw (RuntimeException)e.getCause(); }
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            executor.shutdown();
+        }
+        
+        // Continue from the best TOM found by any chain.
+        int best = 0;
+        for ( int i = 1; i < numChains; i++ ) {
+            if ( chain[i].bestCost < chain[best].bestCost ) { best = i; }
+        }
+        bestTOM.setStructure( chain[best].bestTOM );
+        bestCost = chain[best].bestCost;
+        tom.setStructure( bestTOM );
+        updateCosts( null );
+        
+        // Merge chains using the lowest referenceWeight of any chain.
+        double reference = chain[0].caseInfo.referenceWeight;
+        for ( int i = 1; i < numChains; i++ ) {
+            reference = Math.min( reference, chain[i].caseInfo.referenceWeight );
+        }
+        caseInfo.referenceWeight = reference;
+        caseInfo.totalWeight = 0;
+        caseInfo.arcWeights = new double[numNodes][numNodes];
+        weightIgnored = 0;
+        secHashtable.clear();
+        
+        for ( int i = 0; i < numChains; i++ ) {
+            MetropolisSearch c = chain[i];
+            c.rebaseWeights( reference );
+            
+            caseInfo.totalWeight += c.caseInfo.totalWeight;
+            weightIgnored += c.weightIgnored;
+            
+            // arcWeights are stored relative to the arcs present in the current TOM
+            // (see getArcPortions) so convert to absolute weights before summing.
+            for ( int j = 0; j < numNodes; j++ ) {
+                for ( int k = 0; k < numNodes; k++ ) {
+                    caseInfo.arcWeights[j][k] += c.caseInfo.arcWeights[j][k];
+                    if ( c.tom.isDirectedArc(k,j) ) { 
+                        caseInfo.arcWeights[j][k] += c.caseInfo.totalWeight; 
+                    }
+                }
+            }
+            
+            for ( Map.Entry<SECHashKey,SEC> entry : c.secHashtable.entrySet() ) {
+                SEC sec = secHashtable.get( entry.getKey() );
+                if ( sec == null ) {
+                    sec = new SEC( entry.getValue(), caseInfo );
+                    secHashtable.put( entry.getKey(), sec );
+                }
+                sec.merge( entry.getValue() );
+            }
+        }
+        
+        for ( int j = 0; j < numNodes; j++ ) {
+            for ( int k = 0; k < numNodes; k++ ) {
+                if ( tom.isDirectedArc(k,j) ) { caseInfo.arcWeights[j][k] -= caseInfo.totalWeight; }
+            }
+        }
+        
+        epoch = max + 1;
+        searchDone = true;
+    }
+    
     /**
      * Update the posterior of SEC based on currentCost and temperature
      * If SEC == NULL, add posterior to "ignored" instead
@@ -410,6 +560,9 @@ public class MetropolisSearch extends BNetSearch
         // Shortcut if getResults is called twice.
         if ( results != null ) { return results; }
         
+        // Weights may be relative to an old reference, so rescale them relative to bestCost.
+        rebaseWeights( bestCost );
+        
         // dump all SECs from secHashTable into an ArrayList for easy manipulation.
         ArrayList<SEC> secList = new ArrayList<SEC>( secHashtable.values() );
         int uniqueSECs = secList.size();
@@ -542,82 +695,28 @@ public class MetropolisSearch extends BNetSearch
         
         // turn each SEC into a single element MMLEC
         MMLEC[] mmlec = new MMLEC[kl.length];
+        double[] relativePrior = new double[kl.length];
+        int[] numArcs = new int[kl.length];
         for ( int i = 0; i < mmlec.length; i++ ) {
             mmlec[i] = new MMLEC( secArray[i] );
+            relativePrior[i] = mmlec[i].relativePrior;
+            numArcs[i] = secArray[i].getNumArcs();
         }
         
-        
-        
-        
-        double bestGain = -1;
-        int bestI = -1;
-        int bestJ = -1;
-        
-        while (true) { 
-            
-            // loop through all possible joins to see which has the highest gain.
-            for ( int i = 0; i < kl.length; i++ ) {
-                for ( int j = 0; j < kl[i].length; j++ ) {
-                    // ensure mmlec[i] and mmlec[j] each contain at least one SEC
-                    if ( mmlec[i].length() > 0 && mmlec[j].length() > 0 ) {
-                        
-                        // extract representative SECs
-                        SEC secI = mmlec[i].getSEC(0);
-                        SEC secJ = mmlec[j].getSEC(0);
-                        
-                        // extract numArcs from representative SECs
-                        int arcsI = secI.getNumArcs();
-                        int arcsJ = secJ.getNumArcs();
-                        
-                        if ( i != j && 
-                             (arcsI <= arcsJ || (caseInfo.allowMergeToModelWithMoreArcs == true))
-                             ) {  
-                            // extract relative priors from MMLECs
-                            double p1 = mmlec[i].relativePrior;
-                            double p2 = mmlec[j].relativePrior;
-                            double p3 = p1 + p2;
-                            
-                            // Use SMML formula to test if SECs should be merged 
-                            //             double gain = p1 * Math.log( p1 ) + p2 * Math.log( p2 ) 
-                            //                 - ( p1 + p2 ) * Math.log( p1 + p2 ) 
-                            //                 + p2 * kl[j][i] * dataLength ;
-                            //             gain = (-gain) / (p1+p2);
-                            double before = -(p1 * Math.log(p1) + p2 * Math.log( p2 ));
-                            double after = -(p3 * Math.log(p3)) + p2 * kl[j][i];
-                            double gain = before - after;
-                            
-                            if ( gain > bestGain ) {
-                                bestGain = gain;
-                                bestI = i;
-                                bestJ = j;
-                            }
-                        }
-                    }
-                }        
-            } // end : for ( int i = 0; i < kl.length; i++ ) { ... }
-            
+        // Merge models in the order chosen by findKLJoins.
+        int[][] joins = findKLJoins( relativePrior, numArcs, kl, 
+                                     caseInfo.allowMergeToModelWithMoreArcs );
+        for ( int k = 0; k < joins.length; k++ ) {
+            int bestI = joins[k][0];
+            int bestJ = joins[k][1];
+            System.out.println("Joining model " + bestI + " and " + bestJ  + "\t" +
+                               "["+caseInfo.posteriorFormat.format(mmlec[bestI].getPosterior())+" + "+
+                               caseInfo.posteriorFormat.format(mmlec[bestJ].getPosterior())+
+                               " = "+caseInfo.posteriorFormat.format(mmlec[bestI].getPosterior()+
+                                                                     mmlec[bestJ].getPosterior())+"]");
             
-            // if best gain found is positive, join models.
-            // if not, model joining is done.
-            if ( bestGain > 0 ) {
-                System.out.println("Joining model " + bestI + " and " + bestJ  + "\t" +
-                                   "["+caseInfo.posteriorFormat.format(mmlec[bestI].getPosterior())+" + "+
-                                   caseInfo.posteriorFormat.format(mmlec[bestJ].getPosterior())+
-                                   " = "+caseInfo.posteriorFormat.format(mmlec[bestI].getPosterior()+
-                                                                         mmlec[bestJ].getPosterior())+"]");
-                
-                mmlec[bestI].merge( mmlec[bestJ] );
-                
-                bestGain = -1;
-                bestI = -1;
-                bestJ = -1;
-            } 
-            else {
-                break;
-            }
-            
-        } // end while(true) { ... }
-        
+            mmlec[bestI].merge( mmlec[bestJ] );
+        }
         
         // compact all non empty MMLECs and return resuls.
         int uniqueMMLECs = 0;
@@ -640,6 +739,175 @@ public class MetropolisSearch extends BNetSearch
         return finalMMLECArray;
     }
     
+    /** 
+     * Gain from joining model j into model i with relative priors p1 and p2, where 
+     *  pLogP1 = p1*log(p1) and pLogP2 = p2*log(p2).  Uses the SMML formula. 
+     */
+    private static double joinGain( double p1, double p2, double pLogP1, double pLogP2, 
+                                    double klJI ) {
+        double p3 = p1 + p2;
+        //             double gain = p1 * Math.log( p1 ) + p2 * Math.log( p2 ) 
+        //                 - ( p1 + p2 ) * Math.log( p1 + p2 ) 
+        //                 + p2 * kl[j][i] * dataLength ;
+        //             gain = (-gain) / (p1+p2);
+        double before = -(pLogP1 + pLogP2);
+        double after = -(p3 * Math.log(p3)) + p2 * klJI;
+        return before - after;
+    }
+    
+    /**
+     * Return the sequence of joins made when agglomeratively merging models by KL distance.
+     * <br>
+     * At each step the pair (i,j) with the highest positive gain is joined (model j is merged
+     * into model i), ties are broken by the lowest i then lowest j.  Model j may only be 
+     * merged into i if it has at least as many arcs (unless allowMergeToModelWithMoreArcs).
+     * Only the relative prior of a model changes when it is joined, so the best join for each
+     * row i is kept and only joins to the models involved are recosted.  Rows are kept in a 
+     * priority queue.  Entries made stale by a join are skipped when removed, and rows whose
+     * best join may have become worse are only searched again when they reach the head of
+     * the queue. <br>
+     * 
+     * relativePrior is updated to contain the relative prior of each model after joining.
+     * Each element of the returned array is a pair {i,j}
+     */
+    public static int[][] findKLJoins( double[] relativePrior, int[] numArcs, double[][] kl, 
+                                       boolean allowMergeToModelWithMoreArcs )
+    {
+        int n = relativePrior.length;
+        double[] pLogP = new double[n];
+        for ( int i = 0; i < n; i++ ) { pLogP[i] = relativePrior[i] * Math.log(relativePrior[i]); }
+        
+        // alive[i] is false once model i has been merged into another model.
+        boolean[] alive = new boolean[n];
+        java.util.Arrays.fill( alive, true );
+        
+        // bestJ[i] is the best model to merge into i (or -1), with gain bestGain[i]
+        int[] bestJ = new int[n];
+        double[] bestGain = new double[n];
+        
+        // If dirty[i], bestGain[i] is an upper bound on the gain of the best join in row i.
+        boolean[] dirty = new boolean[n];
+        
+        // version[i] is incremented each time bestJ[i] or bestGain[i] changes.
+        int[] version = new int[n];
+        
+        // Best join for each row, highest gain first then lowest row.
+        java.util.PriorityQueue<KLJoin> queue = new java.util.PriorityQueue<KLJoin>();
+        for ( int i = 0; i < n; i++ ) {
+            findBestJoin( i, relativePrior, pLogP, numArcs, kl, alive, 
+                          allowMergeToModelWithMoreArcs, bestJ, bestGain );
+            if ( bestJ[i] != -1 ) { queue.add( new KLJoin(bestGain[i], i, version[i]) ); }
+        }
+        
+        ArrayList<int[]> joins = new ArrayList<int[]>();
+        while ( !queue.isEmpty() ) {
+            KLJoin entry = queue.poll();
+            int i = entry.i;
+            if ( entry.version != version[i] || !alive[i] ) { continue; }
+            
+            // bestGain[i] is only an upper bound, find the real best join and requeue it.
+            if ( dirty[i] ) {
+                findBestJoin( i, relativePrior, pLogP, numArcs, kl, alive, 
+                              allowMergeToModelWithMoreArcs, bestJ, bestGain );
+                dirty[i] = false;
+                version[i]++;
+                if ( bestJ[i] != -1 ) { queue.add( new KLJoin(bestGain[i], i, version[i]) ); }
+                continue;
+            }
+            
+            int j = bestJ[i];
+            joins.add( new int[] {i,j} );
+            
+            // Merge j into i.
+            relativePrior[i] += relativePrior[j];
+            relativePrior[j] = 0;
+            pLogP[i] = relativePrior[i] * Math.log(relativePrior[i]);
+            alive[j] = false;
+            
+            // Every join in row i has changed.
+            findBestJoin( i, relativePrior, pLogP, numArcs, kl, alive, 
+                          allowMergeToModelWithMoreArcs, bestJ, bestGain );
+            version[i]++;
+            if ( bestJ[i] != -1 ) { queue.add( new KLJoin(bestGain[i], i, version[i]) ); }
+            
+            // In other rows only joins to i or j have changed.
+            for ( int k = 0; k < n; k++ ) {
+                if ( !alive[k] || k == i ) { continue; }
+                int oldJ = bestJ[k];
+                double oldGain = bestGain[k];
+                
+                double gain = -1;
+                if ( numArcs[k] <= numArcs[i] || allowMergeToModelWithMoreArcs ) {
+                    gain = joinGain( relativePrior[k], relativePrior[i], 
+                                     pLogP[k], pLogP[i], kl[i][k] );
+                }
+                
+                if ( oldJ == i || oldJ == j ) {
+                    // If the best join is now worse (or gone) the next best join cannot be
+                    // better than oldGain, so leave oldGain as an upper bound.
+                    if ( gain > oldGain ) {
+                        bestJ[k] = i;
+                        bestGain[k] = gain;
+                        dirty[k] = false;
+                    }
+                    else if ( oldJ == j || gain < oldGain ) { dirty[k] = true; }
+                }
+                else if ( gain > 0 && (oldJ == -1 || gain > oldGain || 
+                                       (gain == oldGain && i < oldJ && !dirty[k])) ) {
+                    bestJ[k] = i;
+                    bestGain[k] = gain;
+                    dirty[k] = false;
+                }
+                
+                if ( bestJ[k] != oldJ || bestGain[k] != oldGain ) {
+                    version[k]++;
+                    queue.add( new KLJoin(bestGain[k], k, version[k]) );
+                }
+            }
+        }
+        return joins.toArray( new int[joins.size()][] );
+    }
+    
+    /** Entry in the queue of joins used by findKLJoins. */
+    private static class KLJoin implements Comparable<KLJoin> {
+        final double gain;
+        final int i;
+        final int version;
+        
+        KLJoin( double gain, int i, int version ) {
+            this.gain = gain;
+            this.i = i;
+            this.version = version;
+        }
+        
+        /** Order by highest gain, then lowest i. */
+        public int compareTo( KLJoin join ) {
+            int c = Double.compare( join.gain, gain );
+            if ( c != 0 ) { return c; }
+            return i - join.i;
+        }
+    }
+    
+    /** Set bestJ[i] and bestGain[i] to the best (positive gain) model to merge into i */
+    private static void findBestJoin( int i, double[] relativePrior, double[] pLogP, 
+                                      int[] numArcs, double[][] kl, boolean[] alive, 
+                                      boolean allowMergeToModelWithMoreArcs,
+                                      int[] bestJ, double[] bestGain ) {
+        bestJ[i] = -1;
+        bestGain[i] = 0;
+        for ( int j = 0; j < relativePrior.length; j++ ) {
+            if ( i != j && alive[j] && 
+                 (numArcs[i] <= numArcs[j] || allowMergeToModelWithMoreArcs) ) {
+                double gain = joinGain( relativePrior[i], relativePrior[j], 
+                                        pLogP[i], pLogP[j], kl[j][i] );
+                if ( gain > bestGain[i] ) {
+                    bestGain[i] = gain;
+                    bestJ[i] = j;
+                }
+            }
+        }
+    }
+    
     /**
      * Find the KL distance between each SEC and return it as an array of doubles.
      *
@@ -651,8 +919,11 @@ public class MetropolisSearch extends BNetSearch
      *  generating N data points from each BNet and finding the logLH of each generated dataset
      *  using every other BNet.  
      *  klDistance[i][j] = (net[i].logLH( net[i].generate ) - net[j].logLH( net[i].generate )) / N;
+     * <br>
+     * Rows are calculated in parallel.  Each row uses its own random number generator, so
+     *  results are identical regardless of the number of threads used.
      */
-    protected double[][] makeKL( SEC[] secArray, int n ) 
+    protected double[][] makeKL( SEC[] secArray, final int n ) 
     {
         // how many SECs it is worth looking at?  It is slow to look at them all.
         int secUsed = secArray.length;
@@ -661,8 +932,8 @@ public class MetropolisSearch extends BNetSearch
         if (secUsed == 1) { return new double[1][1]; }
         
         // create array of  parameters        
-        Value.Vector[] params = new Value.Vector[ secUsed ];        
-        BNet bNet = secArray[0].caseInfo.bNet;
+        final Value.Vector[] params = new Value.Vector[ secUsed ];        
+        final BNet bNet = secArray[0].caseInfo.bNet;
         for ( int i = 0; i < params.length; i++ ) {            
             try {
                 params[i] = secArray[i].getTOM(0).makeParameters( mmlModelLearner );
@@ -676,81 +947,163 @@ public class MetropolisSearch extends BNetSearch
         // print progress bar.
         for ( int i = 0; i < secUsed; i++ ) { System.out.print((i%10)); } System.out.println();
         
-        // Allocate klArray
-        double[][] klArray = new double[secUsed][secUsed];
-        Value.Vector inputVec = new VectorFN.ConstantVector( n, Value.TRIV ); 
+        // Each row of klArray is calculated independently.
+        ArrayList<Callable<double[]>> rows = new ArrayList<Callable<double[]>>();
+        int numThreads = Math.min( secUsed, Runtime.getRuntime().availableProcessors() );
         
         if ( caseInfo.useExactKL ) {
             if (caseInfo.cklJoinType != 0) {
                 throw new RuntimeException("exact CKL Joining not implemented.");
             }
             
-            if ( caseInfo.useNetica) {
-                for ( int i = 0; i < params.length; i++) {
-                    try {
-                        System.out.print('X');
-                        klArray[i] = BNetNetica.exactKLNetica(bNet,params,i);
-                    } catch ( NeticaException e) {
-                        throw new RuntimeException(e);
-                    }
-                }                
-            }
-            else {
-                for (int i = 0; i < klArray.length; i++) {
-                    System.out.print("X");
-                
-                    for (int j = 0; j < klArray.length; j++) {
-                        klArray[i][j] = bNet.kl(params[i],params[j]) * caseInfo.data.length();
-                        //klArray[i][j] = bNet.ckl2(params[i],params[j]) * caseInfo.data.length();
-                    }
+            final double dataLength = caseInfo.data.length();
+            for ( int i = 0; i < params.length; i++ ) {
+                final int row = i;
+                if ( caseInfo.useNetica ) {
+                    rows.add( new Callable<double[]>() {
+                            public double[] call() throws NeticaException {
+                                return BNetNetica.exactKLNetica(bNet,params,row);
+                            }
+                        } );
+                }
+                else {
+                    rows.add( new Callable<double[]>() {
+                            public double[] call() {
+                                double[] kl = bNet.kl( params[row], params );
+                                for ( int j = 0; j < kl.length; j++ ) { kl[j] *= dataLength; }
+                                return kl;
+                            }
+                        } );
                 }
             }
+            
+            // Netica is not thread safe.
+            if ( caseInfo.useNetica ) { numThreads = 1; }
         }
         else { // else use stochastic KL
+            // All seeds are drawn before any row is calculated so results do not depend on
+            // the order rows are completed in.
             for ( int i = 0; i < params.length; i++ ) {
-                // print progrsss.
-                System.out.print("X");
-            
-                // Test what metric is being joined by
-                Value.Vector augParams[];
-                BNet augBNet = null;
-                // if KL, do nothing.
-                if ( caseInfo.cklJoinType == 0) {
-                    augParams = params;
-                    augBNet = bNet;
-                }
-                // if CKL3, augment all parameters.
-                else if (caseInfo.cklJoinType == 3) {
-                    augParams = new Value.Vector[params.length];
-                    for (int j = 0; j < params.length; j++) {
-                        Value.Structured s = AugmentFN3.augment3.apply(bNet,params[j],params[i]);
-                        augParams[j] = (Value.Vector)s.cmpnt(1);
-                        if (i == j) { augBNet = (BNet)s.cmpnt(0); }
-                    }
-                }
-                // Other methods not implemented.
-                else { throw new RuntimeException("Unhandled CKL join type."); }
-            
-            
-            
-                // generate data from current parameter set
-                Value.Vector tempData = augBNet.generate( rand, n, augParams[i], Value.TRIV );
-            
-                // Calculate cost of stating data with current model
-                double selfCost = - augBNet.logP( tempData, augParams[i], inputVec );
-            
-                // Loop through all models calculating cost to state data with each.
-                // kl[i][j] = (logP( data|params[i] ) - logP(data|params[j])) / n
-                for ( int j = 0; j < augParams.length; j++ ) {
-                    double cost = - augBNet.logP( tempData, augParams[j], inputVec );
-                    klArray[i][j] = caseInfo.data.length() * (cost - selfCost) / n;        
-                }
+                final int row = i;
+                final java.util.Random rowRand = 
+                    new WallaceRandom( new int[] { rand.nextInt(), rand.nextInt() } );
+                rows.add( new Callable<double[]>() {
+                        public double[] call() {
+                            return stochasticKLRow( bNet, params, row, rowRand, n );
+                        }
+                    } );
             }
         }
+        
+        double[][] klArray = runKLRows( rows, numThreads );
         System.out.println();
         return klArray;
     }
     
+    /**
+     * Return row i of the stochastic KL matrix. <br>
+     * n data points are generated from params[i] using rowRand, then
+     *  kl[j] = (logP( data|params[i] ) - logP(data|params[j])) / n
+     */
+    protected double[] stochasticKLRow( BNet bNet, Value.Vector[] params, int i, 
+                                        java.util.Random rowRand, int n )
+    {
+        // Test what metric is being joined by
+        Value.Vector augParams[];
+        BNet augBNet = null;
+        // if KL, do nothing.
+        if ( caseInfo.cklJoinType == 0) {
+            augParams = params;
+            augBNet = bNet;
+        }
+        // if CKL3, augment all parameters.
+        else if (caseInfo.cklJoinType == 3) {
+            augParams = new Value.Vector[params.length];
+            for (int j = 0; j < params.length; j++) {
+                Value.Structured s = AugmentFN3.augment3.apply(bNet,params[j],params[i]);
+                augParams[j] = (Value.Vector)s.cmpnt(1);
+                if (i == j) { augBNet = (BNet)s.cmpnt(0); }
+            }
+        }
+        // Other methods not implemented.
+        else { throw new RuntimeException("Unhandled CKL join type."); }
+        
+        // generate data from current parameter set
+        Value.Vector inputVec = new VectorFN.ConstantVector( n, Value.TRIV ); 
+        Value.Vector tempData = augBNet.generate( rowRand, n, augParams[i], Value.TRIV );
+        
+        // Calculate cost of stating data with current model
+        double selfCost = - augBNet.logP( tempData, augParams[i], inputVec );
+        
+        // Loop through all models calculating cost to state data with each.
+        // kl[i][j] = (logP( data|params[i] ) - logP(data|params[j])) / n
+        double[] kl = new double[augParams.length];
+        for ( int j = 0; j < augParams.length; j++ ) {
+            double cost = - augBNet.logP( tempData, augParams[j], inputVec );
+            kl[j] = caseInfo.data.length() * (cost - selfCost) / n;        
+        }
+        return kl;
+    }
+    
+    /**
+     * KLProgress is notified as each row of the KL matrix is calculated by makeKL. <br>
+     * Rows may be calculated out of order and by several threads at once.
+     */
+    public static interface KLProgress {
+        /** Row of numRows has been calculated, taking time nanoseconds. */
+        public void rowDone( int row, int numRows, long time );
+    }
+    
+    /** Print an X as each row of the KL matrix is calculated. */
+    public static final KLProgress printKLProgress = new KLProgress() {
+            public void rowDone( int row, int numRows, long time ) {
+                synchronized ( System.out ) { System.out.print("X"); }
+            }
+        };
+    
+    /** Notified as each row of the KL matrix is calculated, may be null. */
+    public KLProgress klProgress = printKLProgress;
+    
+    /** 
+     * Calculate all rows of the KL matrix using up to numThreads threads.
+     * Row i of the returned matrix is always the result of rows.get(i).
+     */
+    protected double[][] runKLRows( ArrayList<Callable<double[]>> rows, int numThreads )
+    {
+        final int numRows = rows.size();
+        final KLProgress progress = klProgress;
+        ArrayList<Callable<double[]>> timedRows = new ArrayList<Callable<double[]>>();
+        for ( int i = 0; i < numRows; i++ ) {
+            final int row = i;
+            final Callable<double[]> f = rows.get(i);
+            timedRows.add( new Callable<double[]>() {
+                    public double[] call() throws Exception {
+                        long start = System.nanoTime();
+                        double[] kl = f.call();
+                        if ( progress != null ) { 
+                            progress.rowDone( row, numRows, System.nanoTime() - start ); 
+                        }
+                        return kl;
+                    }
+                } );
+        }
+        
+        double[][] klArray = new double[numRows][];
+        ExecutorService executor = Executors.newFixedThreadPool( Math.max(numThreads,1) );
+        try {
+            List<Future<double[]>> futures = executor.invokeAll( timedRows );
+            for ( int i = 0; i < numRows; i++ ) { klArray[i] = futures.get(i).get(); }
+        } catch ( InterruptedException e ) {
+            throw new RuntimeException( e );
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException ) { throw (RuntimeException)e.getCause(); }
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            executor.shutdown();
+        }
+        return klArray;
+    }
+    
     /** Using values from getResults() return (m,y) for a mixture model. */
     public Value.Structured getMixResults( ) {
         return getMixResults( getResults(), fullData, caseInfo.useNetica );
@@ -829,7 +1182,7 @@ public class MetropolisSearch extends BNetSearch
         System.out.println("Cache Success       \t" + caseInfo.nodeCache.hashSucceed );
         System.out.println("Cache Failed        \t" + caseInfo.nodeCache.hashFailed );
         System.out.println("NumCacheEntries     \t" + caseInfo.nodeCache.getNumCacheEntries() );
-        System.out.println("Cache Size          \t" + caseInfo.nodeCache.cacheSize );
+        System.out.println("Cache Size          \t" + caseInfo.nodeCache.getCacheSize() );
         System.out.println("Cache Recalculations\t" + caseInfo.nodeCache.recalculations );
         System.out.println("Node Cleanings      \t" + caseInfo.nodeCache.cleanCalled );
     }
@@ -879,4 +1232,16 @@ public class MetropolisSearch extends BNetSearch
         // This is done in the original CaMML.
         setTemperature( 1.8 );
     }
+    
+    /** 
+     * Create a chain sampling with the values in caseInfo.  Used by runChains, 
+     * arcProb, temperature, bestTOM and max must be set before sampling.
+     */
+    protected MetropolisSearch( java.util.Random rand, CaseInfo caseInfo )
+    {
+        super( rand, caseInfo );
+        secHashtable = new Hashtable<SECHashKey,SEC>();
+        max = 1;
+        doAnnealOnFirstEpoch = false;
+    }
 }
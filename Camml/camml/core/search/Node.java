@@ -197,6 +197,9 @@ public class Node implements Cloneable
         //        Value.Function dataView = (Value.Function)CammlFN.view.apply( data );
         //        Value.Vector parentVector = new VectorFN.FastDiscreteVector( parent );
         //        return (Value.Vector)dataView.apply( parentVector );
+        
+        // Columnar data can share its columns directly.
+        if ( data instanceof ColumnarVector ) { return ((ColumnarVector)data).select(parent); }
         return new SelectedVector(data,null,parent);
     }
     
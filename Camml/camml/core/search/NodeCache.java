@@ -37,10 +37,18 @@
 
 package camml.core.search;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
 import cdms.core.*;
+import camml.core.library.ColumnarVector;
+import camml.core.library.ContingencyIndex;
 import camml.core.models.ModelLearner;
 
 /**
@@ -52,7 +60,27 @@ import camml.core.models.ModelLearner;
  *   cleaning is defined as the removal of arcs which do not improve some score. <br>
  *  
  *  For clarity, hash refers to a 63 bit value representing a node/parent combination,
- *  index represents an index into the cache.  Usually (index == hash % cache.length)
+ *  index represents an index into the cache.  Usually (index == hash & (cache.length-1)) <br>
+ *  
+ *  Each Entry also stores the variable and parent set of its node, so a hash clash can never
+ *  return the cost of a different node. <br>
+ *  
+ *  The cache starts small and doubles in size as it fills, up to a memory budget of 
+ *  (numNodes * mbPerNode) MB (capped at maxCacheSizeMB).  Once at full size, inserting a node
+ *  whose probe sequence is full evicts the entry in that sequence with the lowest
+ *  (hits+1)*(numParents+1) score.  Nodes with many parents are expensive to learn so are 
+ *  kept longer.  Hits of entries passed over are halved (similar to a CLOCK policy) so 
+ *  entries which are no longer used eventually become candidates for eviction. <br>
+ *  
+ *  If a persistent cache is used (see usePersistentCache) costs not found in memory are looked
+ *  up in a NodeCacheFile before being learned, and newly learned costs are written to it.
+ *  This allows later runs on the same data with the same learners to skip relearning. <br>
+ *  
+ *  NodeCache may be shared between searches running on different threads.  No locks are used
+ *  for lookups, empty slots are claimed and entries evicted using compare and set.  Resizing
+ *  is synchronized, an entry inserted by another thread while resizing may be lost
+ *  (it is simply recalculated when next needed).  Statistics are kept in LongAdders so threads
+ *  do not contend on a single counter.
  */
 public class NodeCache implements Serializable
 {
@@ -65,11 +93,14 @@ public class NodeCache implements Serializable
      */
     public final static int maxCacheAttempts = 100;
     
-    /** length of all arrays in the cache. */
-    public final int cacheSize;
+    /** Initial length of cache[].  Must be a power of 2. */
+    public final static int initialCacheSize = 4096;
     
-    /** The number of entries in the cache so far. */
-    protected int numCacheEntries;
+    /** Approximate memory used by each cache entry (including its slot in cache[]) */
+    public final static int bytesPerEntry = 80;
+    
+    /** Maximum length of cache[], set by the memory budget.  A power of 2. */
+    public final int maxCacheSize;
     
     /** number of nodes in the dataset */
     public final int numNodes;
@@ -77,6 +108,34 @@ public class NodeCache implements Serializable
     /** Dataset all values are calculated in relation to. */
     public final Value.Vector data;
     
+    /** 
+     * Data passed to node.cost().  This is a ColumnarVector copy of data when possible
+     * (and useColumnarData == true), otherwise it is simply data.
+     */
+    protected final transient Value.Vector costData;
+    
+    /** Should discrete datasets be converted to a ColumnarVector before costing? */
+    public static boolean useColumnarData = true;
+    
+    /** 
+     * Should a ContingencyIndex be built over columnar data?  This allows CPT counts to be
+     * found without rescanning the data for each new parent set.  The index is built the
+     * first time a CPT is counted.
+     */
+    public static boolean useContingencyIndex = true;
+    
+    /** 
+     * If not null, all NodeCaches created use a persistent NodeCacheFile stored in this 
+     * directory.  See usePersistentCache()
+     */
+    public static String persistentCacheDirectory = null;
+    
+    /** Directory holding the persistent cache, null if not used.  See usePersistentCache() */
+    protected transient volatile File cacheDirectory;
+    
+    /** Persistent store of node costs, opened from cacheDirectory when first required. */
+    protected transient volatile NodeCacheFile cacheFile;
+    
     /** The ModelLearner function used for Maximum Likelyhood estimates. */
     public final ModelLearner mlLearner;
     
@@ -93,40 +152,69 @@ public class NodeCache implements Serializable
     // Data stored in hash table //
     ///////////////////////////////
     
-    /** cached MML estimate of nodes. */
-    protected final double[] mmlCost;
-    
-    /** cached ML estimate of nodes. */
-    protected final double[] mlCost;
+    /** 
+     * A single cache entry.  hash and key never change, so a cost written to an Entry always
+     * belongs to the node the entry was created for (even if the entry has been evicted).
+     */
+    protected static final class Entry implements Serializable {
+        /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+        private static final long serialVersionUID = -1832650987724655384L;
+        
+        /** Hash of node this entry represents. */
+        public final long hash;
+        
+        /** Compact representation of node (see makeKey) used to verify cache hits. */
+        public final int[] key;
         
-    /** cacheHash[] stores hash of each cache entry with corresponding index. 
-     *  cacheHash[] is stored to ensure no cache mismatches occur.
-     *  Ideally (cacheHash[i] % cacheIndex.length == i) but this will differ due to cache clashes*/
-    protected final long[] hashLookup;
+        /** cached MML estimate of node, -1 if not calculated. */
+        public volatile double mmlCost = -1;
+        
+        /** cached ML estimate of node, -1 if not calculated. */
+        public volatile double mlCost = -1;
+        
+        /** Approximate number of hits, used for eviction.  Updated without synchronisation. */
+        public int hits;
+        
+        public Entry( long hash, int[] key ) {
+            this.hash = hash; this.key = key;
+        }
+    }
     
-    /** current value used in entryNumber[] */
-    //protected int currentEntryNumber;
+    /** cache[] stores an Entry for each cached node. 
+     *  Entry.hash is stored to speed up cache lookups.
+     *  Ideally (cache[i].hash & (cache.length-1) == i) but this will differ due to cache clashes
+     *  cache[] is replaced when the cache grows. */
+    protected volatile AtomicReferenceArray<Entry> cache;
     
     ///////////////////////////////////////////////////////
     // Variables used to keep track of cache statistics. //
     ///////////////////////////////////////////////////////
-    /** Variables to monitor cache, not essential. long is used as int is not big enough */
-    public long getIndexCalled = 0, newHash = 0, hashFailed = 0, hashSucceed = 0,
-        recalculations = 0,    cleanCalled = 0, outOfRange = 0;
+    /** Variables to monitor cache, not essential. */
+    public final LongAdder getIndexCalled = new LongAdder(), newHash = new LongAdder(), 
+        hashFailed = new LongAdder(), hashSucceed = new LongAdder(),
+        recalculations = new LongAdder(), cleanCalled = new LongAdder(), 
+        outOfRange = new LongAdder();
     
+    /** Variables to monitor cache, not essential. */
+    public final LongAdder evictions = new LongAdder(), resizes = new LongAdder(),
+        keyMismatch = new LongAdder(), fileHits = new LongAdder();
+    
+    /** The number of entries in the cache so far. */
+    protected final LongAdder numCacheEntries = new LongAdder();
+    
+    /** Keep track of cache statistics, indexed by number of parents. */
+    public final AtomicLongArray costings;
     /** Keep track of cache statistics */
-    public final int[] costings;
-    /** Keep track of cache statistics */
-    public int totalCostings = 0;
-    /** Keep track of cache statistics */
-    public final int[] learnings;
+    public final LongAdder totalCostings = new LongAdder();
+    /** Keep track of cache statistics, indexed by number of parents. */
+    public final AtomicLongArray learnings;
     /** Keep track of cache statistics */
-    public int totalLearnings = 0;
+    public final LongAdder totalLearnings = new LongAdder();
     
     /** Keep track of cache statistics */
-    public int totalInfiniteLearnings = 0;
+    public final LongAdder totalInfiniteLearnings = new LongAdder();
     /** Keep track of cache statistics */
-    public int totalInfiniteCostings = 0;
+    public final LongAdder totalInfiniteCostings = new LongAdder();
     
     ////////////////////////
     // Accessor functions //
@@ -146,7 +234,13 @@ public class NodeCache implements Serializable
     /** Accessor function for numCacheEntries */
     public int getNumCacheEntries()
     {
-        return numCacheEntries;
+        return numCacheEntries.intValue();
+    }
+    
+    /** Current length of cache[] */
+    public int getCacheSize()
+    {
+        return cache.length();
     }
 
     double mbPerNode;
@@ -175,12 +269,29 @@ public class NodeCache implements Serializable
         this.mlLearner = mlLearner;
         this.mbPerNode = mbPerNode;
         
+        // Costing counts parent combinations many times over, so when possible use a dense
+        // columnar copy of the data with no per row Value objects.
+        ColumnarVector columnarData = useColumnarData ? ColumnarVector.toColumnar(data) : null;
+        this.costData = (columnarData != null) ? columnarData : data;
+        if ( columnarData != null && useContingencyIndex ) { 
+            columnarData.enableIndex(); 
+        }
+        
         // Work out various contants needed for choosing a cache size.
         numNodes = ((Type.Structured)((Type.Vector)data.t).elt).cmpnts.length;    
         
         // used to gather statistics about nodeCache 
-        costings = new int[numNodes];
-        learnings = new int[numNodes];
+        costings = new AtomicLongArray(numNodes);
+        learnings = new AtomicLongArray(numNodes);
+        
+        // Random values used to hash nodes.
+        java.util.Random rand = new java.util.Random(123);
+        parentHashArray = new long[numNodes];
+        childHashArray = new long[numNodes];
+        for ( int i = 0; i < parentHashArray.length; i++ ) {
+            parentHashArray[i] = rand.nextLong();
+            childHashArray[i] = rand.nextLong();
+        }
         
         // Allocate some big slabs of memory to cache various things in.
         try {
@@ -190,31 +301,116 @@ public class NodeCache implements Serializable
             // Maximum cache size of 1gb.
             if (cacheSizeMB > maxCacheSizeMB) cacheSizeMB = maxCacheSizeMB;
             
-            // each cache entry is approx 24 bytes, multiply by 42000 to get MB
-            cacheSize = (int)cacheSizeMB * 42000 + 7; // add 7 to make it a prime... maybe
-            
-            numCacheEntries = 0;
-            
-            // Allocate memory for cache entries.  48 bytes/entry
-            // If an object was used for each entry instead, this would take 48+8+8=64 bytes/obj
-            // Overhead is from extra java objects (8 bytes/obj) and reference array (8 bytes/obj).
-            mmlCost = new double[cacheSize];
-            mlCost = new double[cacheSize];
-            hashLookup = new long[cacheSize];
+            // Largest power of 2 which fits in the budget.
+            long maxEntries = Math.max( 16, (long)(cacheSizeMB * 1024 * 1024 / bytesPerEntry) );
+            maxCacheSize = (int)Math.min( Long.highestOneBit(maxEntries), 1 << 30 );
             
-            // Initialise cache values.
-            for ( int i = 0; i < cacheSize; i++ ) { 
-                mmlCost[i] = -1; 
-                mlCost[i] = -1; 
-                hashLookup[i] = -1;         
-            }
+            // Start small, the cache grows as required.
+            cache = new AtomicReferenceArray<Entry>( Math.min(initialCacheSize, maxCacheSize) );
         } catch (java.lang.OutOfMemoryError e) {
             System.err.println("Could not allocate memory for nodeCache.");
             throw e;
         }
         
+        if ( persistentCacheDirectory != null ) {
+            usePersistentCache( new File(persistentCacheDirectory) );
+        }
     }           
     
+    /** 
+     * Use a persistent NodeCacheFile in directory to store node costs.  The file used is
+     * determined by getFingerprint() so only identical data and learners share costs, and 
+     * is opened when a cost is first required.  If the file cannot be opened a warning is
+     * printed and no persistent cache is used.  The search owning this NodeCache should 
+     * call close() when finished with it.
+     */
+    public synchronized void usePersistentCache( File directory )
+    {
+        close();
+        cacheDirectory = directory;
+    }
+    
+    /** 
+     * Release the persistent cache (if any).  The NodeCache may still be used, but costs are
+     * no longer read from or written to disk.
+     */
+    public synchronized void close()
+    {
+        NodeCacheFile file = cacheFile;
+        cacheFile = null;
+        cacheDirectory = null;
+        if ( file != null ) {
+            try { file.close(); }
+            catch ( IOException e ) { System.err.println( "Could not close " + file + " : " + e ); }
+        }
+    }
+    
+    /** Return the persistent cache, opening it if required.  null if not used. */
+    public NodeCacheFile getPersistentCache() 
+    { 
+        NodeCacheFile file = cacheFile;
+        if ( file != null || cacheDirectory == null ) { return file; }
+        synchronized ( this ) {
+            if ( cacheFile == null && cacheDirectory != null ) {
+                try {
+                    cacheFile = NodeCacheFile.open( cacheDirectory, getFingerprint(), numNodes );
+                } catch ( IOException e ) {
+                    System.err.println( "Could not open persistent node cache : " + e );
+                    cacheDirectory = null;
+                }
+            }
+            return cacheFile;
+        }
+    }
+    
+    /**
+     * Return a 64 bit fingerprint of this NodeCache's class, data and learners.  Learners are
+     * fingerprinted by class and toString() (which includes any sub-learners) rather than by
+     * their internal state.
+     */
+    public long getFingerprint() throws IOException
+    {
+        long h = NodeCacheFile.mix( 0, getClass().getName().getBytes("UTF-8") );
+        h = NodeCacheFile.mix( h, data.t.toString().getBytes("UTF-8") );
+        h = NodeCacheFile.mix( h, data.length() );
+        
+        if ( costData instanceof ColumnarVector ) {
+            // Columns are already encoded as int[], so hash them directly.
+            ColumnarVector columnar = (ColumnarVector)costData;
+            for ( int j = 0; j < numNodes; j++ ) {
+                h = NodeCacheFile.mix( h, columnar.getLwb(j) );
+                h = NodeCacheFile.mix( h, columnar.getColumn(j) );
+            }
+        }
+        else {
+            for ( int j = 0; j < numNodes; j++ ) {
+                Value.Vector column = data.cmpnt(j);
+                for ( int i = 0; i < data.length(); i++ ) {
+                    Value v = column.elt(i);
+                    h = NodeCacheFile.mix( h, v.status().toString().hashCode() );
+                    if ( v instanceof Value.Discrete ) { 
+                        h = NodeCacheFile.mix( h, ((Value.Discrete)v).getDiscrete() ); 
+                    }
+                    else if ( v instanceof Value.Scalar ) { 
+                        h = NodeCacheFile.mix( h, Double.doubleToLongBits(((Value.Scalar)v).getContinuous()) );
+                    }
+                    else { 
+                        h = NodeCacheFile.mix( h, v.toString().getBytes("UTF-8") ); 
+                    }
+                }
+            }
+        }
+        for ( int i = 0; i < data.length(); i++ ) {
+            h = NodeCacheFile.mix( h, Double.doubleToLongBits(data.weight(i)) );
+        }
+        
+        for ( ModelLearner learner : new ModelLearner[] { mmlLearner, mlLearner } ) {
+            String name = (learner == null) ? "null" : learner.getClass().getName() + ":" + learner;
+            h = NodeCacheFile.mix( h, name.getBytes("UTF-8") );
+        }
+        return h;
+    }
+    
     /**
      * Print statistics about cache useage. <br>
      * Level 0 = no printing <br>
@@ -226,145 +422,247 @@ public class NodeCache implements Serializable
         if ( level <= 0 ) {}
         else if ( level == 1 ) {
             // Print out line of general cache info.
-            System.out.print( "Cache hits : " + (100.0 * (getIndexCalled - newHash) / getIndexCalled)+"\t");
+            System.out.print( "Cache hits : " + 
+                              (100.0 * (getIndexCalled.sum() - newHash.sum()) / getIndexCalled.sum())+"\t");
+            System.out.print( "Evictions : " + evictions + "\t" );
             System.out.print( "Models Learned : " + newHash + "\t" );
             System.out.print( "Learning failed : " + totalInfiniteLearnings + "\n" );
         } 
         else {
             System.out.println( "--- Cache Statistics ---" );
-            System.out.println( "cacheSize =      " + cacheSize + " entries." );
+            System.out.println( "cacheSize =      " + getCacheSize() + " entries. (max = " + 
+                                maxCacheSize + ")" );
+            System.out.println( "numCacheEntries = " + numCacheEntries );
             System.out.println( "getIndexCalled = " + getIndexCalled );
-            System.out.println( "newHash    =     " + newHash );
+            System.out.println( "hits =           " + hashSucceed );
+            System.out.println( "misses =         " + newHash );
+            System.out.println( "evictions =      " + evictions );
+            System.out.println( "resizes =        " + resizes );
             System.out.println( "hashFailed =     " + hashFailed );
-            System.out.println( "hashSucceed =    " + hashSucceed );
+            System.out.println( "keyMismatch =    " + keyMismatch );
+            if ( cacheFile != null ) {
+                System.out.println( "persistentCache = " + cacheFile );
+                System.out.println( "fileHits =       " + fileHits );
+            }
             System.out.println( "recalculations = " + recalculations );
             System.out.println( "cleanCalled =    " + cleanCalled );
             System.out.println( "outOfRange =     " + outOfRange );
             System.out.println( "infiniteLearnings = " + totalInfiniteLearnings );
             System.out.println( "infiniteCostings  = " + totalInfiniteCostings );
+            if ( costData instanceof ColumnarVector && 
+                 ((ColumnarVector)costData).hasIndex() ) {
+                ContingencyIndex index = ((ColumnarVector)costData).getIndex();
+                System.out.println( "distinctRows =   " + index.getNumDistinctRows() );
+                System.out.println( "tablesBuilt =    " + index.tablesBuilt );
+                System.out.println( "tablesMarginalised = " + index.tablesMarginalised );
+                System.out.println( "tableHits =      " + index.tableHits );
+            }
             System.out.println();
             System.out.println( "#parents\tLearn\tCosting" );
-            for ( int i = 0; i < learnings.length; i++ ) {
-                System.out.println( i + "\t\t" + learnings[i] + "\t" + costings[i] );
-                if ( learnings[i] == 0 && costings[i] == 0 ) { break; }
+            for ( int i = 0; i < learnings.length(); i++ ) {
+                System.out.println( i + "\t\t" + learnings.get(i) + "\t" + costings.get(i) );
+                if ( learnings.get(i) == 0 && costings.get(i) == 0 ) { break; }
             }
             System.out.println( "total\t\t"+totalLearnings+"\t"+totalCostings );
             System.out.println( "------------------------" );
         }
     }
     
-    /**
-     * overwrite the entry of index[hash] with a new entry.  The cacheIndex of the new entry
-     *  is specified by longHash.
+    /** 
+     * Create hash for node.  hash is a random 63 bit value representing each parent[]->child
+     * combinations.  It is possible (though remarkably unlikely) for two nodes to hash to the
+     * same value, so each cache entry also stores its node's key (see makeKey).  A lookup whose
+     * hash matches but whose key does not is counted in keyMismatch and treated as a different
+     * node, continuing along the probe sequence.
      */
-    protected void overwriteCacheEntry( int index, long hash )
-    {
-        // clear all cached information at index[hash]
-        mmlCost[index] = -1;
-        mlCost[index] = -1;
-        
-        // index[hash] now represents the node with long hash nodeID
-        hashLookup[index] = hash;
-        
-        newHash ++;
-    }
-    
-    /** Generate an index into the cache */
-    protected int getIndex( Node node ) {
-        getIndexCalled ++;
-        
-        // if not allocated, create parentHash and childHash
-        if ( parentHashArray == null ) {
-            java.util.Random rand = new java.util.Random(123);
-            parentHashArray = new long[numNodes];
-            childHashArray = new long[numNodes];
-            for ( int i = 0; i < parentHashArray.length; i++ ) {
-                parentHashArray[i] = rand.nextLong();
-                childHashArray[i] = rand.nextLong();
-            }
-        }
-        
-        // create hash for node.  hash is a random 63 bit value representing each parent[]->child
-        // combinations.  It is possible (though remarkably unlikely) for two nodes to hash to the
-        // same value.  No checks are in place as this will probably never happen.
+    protected long getHash( Node node ) {
         long nodeHash = childHashArray[ node.var ];
         for ( int i = 0; i < node.parent.length; i++ ) {
             nodeHash += parentHashArray[node.parent[i]];
         }
         // we use a 63 bit value so nodeHash is always positive.
-        nodeHash &= 0x7FFFFFFFFFFFFFFFl;
-        
-        // Using nodeHash create an index into arrays.
-        int nodeIndex = (int)(nodeHash % cacheSize);
+        return nodeHash & 0x7FFFFFFFFFFFFFFFl;
+    }
+    
+    /** 
+     * Return a compact representation of node used to check cache hits. 
+     * key = [var, parents (sorted)]
+     */
+    protected int[] makeKey( Node node ) {
+        int[] key = new int[node.parent.length + 1];
+        key[0] = node.var;
+        System.arraycopy( node.parent, 0, key, 1, node.parent.length );
+        Arrays.sort( key, 1, key.length );
+        return key;
+    }
+    
+    /** Return true if key (created by makeKey) represents node. */
+    protected boolean matchesKey( int[] key, Node node ) {
+        if ( key[0] != node.var || key.length != node.parent.length + 1 ) { return false; }
+        // Parents are unique, so if all are present the sets are equal.
+        for ( int i = 0; i < node.parent.length; i++ ) {
+            if ( Arrays.binarySearch( key, 1, key.length, node.parent[i] ) < 0 ) { return false; }
+        }
+        return true;
+    }
+    
+    /** 
+     * Return the cache Entry for node.  If node is not in the cache a new Entry is inserted 
+     * (growing the cache or evicting an old entry if required). The entry returned may no 
+     * longer be in the cache if another thread has since evicted it.
+     */
+    protected Entry getEntry( Node node ) {
+        getIndexCalled.increment();
+        long nodeHash = getHash( node );
         
-        // use quadratic probing to find a free entry in the hashtable.  This has better behaviour
-        // than linear probe (although it is not guarenteed to fill the entire table.)
-        for ( int i = 0; i < maxCacheAttempts; i++ ) {
-            
-            // Quadratic probing, each failure we lookahead an additional 'i' spaces.
-            nodeIndex = (nodeIndex + i) % cacheSize;
+        while ( true ) {
+            AtomicReferenceArray<Entry> table = cache;
+            int mask = table.length() - 1;
+            int nodeIndex = (int)(nodeHash & mask);
             
-            // If the nodeHash is found, return nodeIndex.
-            if ( hashLookup[nodeIndex] == nodeHash ) {
-                hashSucceed ++;
+            // Search the probe sequence for node, keeping track of the best eviction candidate.
+            int victim = -1;
+            long victimScore = Long.MAX_VALUE;
+            for ( int i = 0; i < maxCacheAttempts && i <= mask; i++ ) {
+                
+                // Linear probing.  As entries are never removed from the cache (only replaced)
+                // an empty slot marks the end of a probe sequence.
+                int index = (nodeIndex + i) & mask;
+                Entry entry = table.get( index );
+                
+                // If an empty entry is found, try to claim it for node.  If another thread 
+                // claims it first, check the entry it inserted.
+                if ( entry == null ) {
+                    Entry newEntry = new Entry( nodeHash, makeKey(node) );
+                    if ( table.compareAndSet( index, null, newEntry ) ) {
+                        newHash.increment();
+                        numCacheEntries.increment();
+                        
+                        // Keep load below 50% so probe sequences stay short.
+                        if ( table.length() < maxCacheSize && 
+                             numCacheEntries.sum() * 2 > table.length() ) {
+                            grow( table );
+                        }
+                        return newEntry;
+                    }
+                    entry = table.get( index );
+                }
                 
-                return nodeIndex;
+                // If the node is found, return entry.
+                if ( entry.hash == nodeHash ) {
+                    if ( matchesKey( entry.key, node ) ) {
+                        hashSucceed.increment();
+                        if ( entry.hits < Integer.MAX_VALUE ) { entry.hits++; }
+                        return entry;
+                    }
+                    keyMismatch.increment();
+                }
+                
+                // current cache entry already used by another node, so try again with new index.
+                hashFailed.increment();
+                long score = (entry.hits + 1L) * entry.key.length;
+                if ( score < victimScore ) { victimScore = score; victim = index; }
             }
             
-            // If an empty entry is found, assign nodeHash to this nodeIndex
-            if ( hashLookup[ nodeIndex ] == -1 ) {
-                hashLookup[ nodeIndex ] = nodeHash;
-                
-                newHash ++;
-                numCacheEntries ++;
-                return nodeIndex;
+            // Probe sequence is full.  Grow the cache if possible and try again.
+            if ( table.length() < maxCacheSize ) {
+                grow( table );
+                continue;
             }
             
-            // current cache entry already used by another node, so try again with new index.
-            hashFailed ++;
-        }    
-                
-        // We are forced to overwrite a value.
-        nodeIndex = (int)(nodeHash % cacheSize);
-        overwriteCacheEntry( nodeIndex, nodeHash );
+            // Age all entries passed over so stale entries are eventually evicted.
+            for ( int i = 0; i < maxCacheAttempts && i <= mask; i++ ) {
+                Entry entry = table.get( (nodeIndex + i) & mask );
+                entry.hits >>= 1;
+            }
+            
+            // We are forced to overwrite a value.  If another thread modifies the victim slot
+            // first, the new entry is returned without being cached.
+            Entry victimEntry = table.get( victim );
+            Entry newEntry = new Entry( nodeHash, makeKey(node) );
+            if ( table.compareAndSet( victim, victimEntry, newEntry ) ) {
+                evictions.increment();
+            }
+            newHash.increment();
+            return newEntry;
+        }
+    }
+    
+    /** 
+     * Double the size of cache[] (up to maxCacheSize), rehashing all entries.  
+     * Nothing is done if table has already been replaced by another thread.
+     */
+    protected synchronized void grow( AtomicReferenceArray<Entry> table ) {
+        if ( table != cache || table.length() >= maxCacheSize ) { return; }
         
-        return nodeIndex;
+        AtomicReferenceArray<Entry> newTable = new AtomicReferenceArray<Entry>( table.length() * 2 );
+        int mask = newTable.length() - 1;
+        int count = 0;
+        for ( int i = 0; i < table.length(); i++ ) {
+            Entry entry = table.get(i);
+            if ( entry == null ) { continue; }
+            int nodeIndex = (int)(entry.hash & mask);
+            for ( int j = 0; j < maxCacheAttempts; j++ ) {
+                int index = (nodeIndex + j) & mask;
+                if ( newTable.get(index) == null ) { newTable.set( index, entry ); count++; break; }
+            }
+        }
+        
+        numCacheEntries.reset();
+        numCacheEntries.add( count );
+        resizes.increment();
+        cache = newTable;
     }
     
     /** Return unclean ML costs from default dataset */
     public double getMLCost( Node node )       
     {
-        int hash = getIndex(node);
-        if ( mlCost[hash] == -1 ) {
-            mlCost[hash] = node.cost( mlLearner, data ); 
+        Entry entry = getEntry(node);
+        double cost = entry.mlCost;
+        if ( cost == -1 ) {
+            NodeCacheFile cacheFile = getPersistentCache();
+            if ( cacheFile != null ) { cost = cacheFile.getCost( entry.hash, entry.key, false ); }
+            if ( cost == -1 ) {
+                cost = node.cost( mlLearner, costData ); 
+                if ( cacheFile != null ) { cacheFile.putCost( entry.hash, entry.key, false, cost ); }
+            }
+            else { fileHits.increment(); }
+            entry.mlCost = cost;
         }
-        return mlCost[hash];
+        return cost;
     }
     
     /** Return unclean MML costs from default dataset */
     public double getMMLCost( Node node )      
     { 
-        int index = getIndex(node);
-        
-        if ( mmlCost[index] == -1 ) {
-            mmlCost[index] = node.cost( mmlLearner, data ); 
+        Entry entry = getEntry(node);
+        double cost = entry.mmlCost;
+        NodeCacheFile cacheFile = getPersistentCache();
+        if ( cost == -1 && cacheFile != null ) { 
+            cost = cacheFile.getCost( entry.hash, entry.key, true );
+            if ( cost != -1 ) { fileHits.increment(); entry.mmlCost = cost; }
+        }
+        if ( cost == -1 ) {
+            cost = node.cost( mmlLearner, costData ); 
+            entry.mmlCost = cost;
+            if ( cacheFile != null ) { cacheFile.putCost( entry.hash, entry.key, true, cost ); }
             
-            learnings[ node.parent.length ] ++;
-            totalLearnings ++;
+            learnings.incrementAndGet( node.parent.length );
+            totalLearnings.increment();
             
-            if ( Double.isInfinite( mmlCost[index] ) ) {
-                totalInfiniteLearnings ++;
+            if ( Double.isInfinite( cost ) ) {
+                totalInfiniteLearnings.increment();
             }
         }
         
-        costings[ node.parent.length ]++;
-        totalCostings ++;
+        costings.incrementAndGet( node.parent.length );
+        totalCostings.increment();
         
-        if ( Double.isInfinite( mmlCost[index] ) ) {
-            totalInfiniteCostings ++;
+        if ( Double.isInfinite( cost ) ) {
+            totalInfiniteCostings.increment();
         }
         
-        return mmlCost[index];
+        return cost;
     }
         
     /** return cost using a given modelLearner on data. */
@@ -378,28 +676,45 @@ public class NodeCache implements Serializable
     /**
      * Do not serialise the actual cache when NodeCache object is 
      * serialised as it is often very large.  It can be recalculated
-     * as needed.
+     * as needed.  Only the data, learners and requested size are written.
      */
     public Object writeReplace() throws ObjectStreamException
     {
-        // Create a cache of size 0
-        NodeCache nc = new NodeCache(data,mmlLearner,mlLearner,0.0);
-        // Trick the serialised cache into thinking it is larger.
-        // mbPerNode flags to our unserialise method the desired size.
-        nc.mbPerNode = mbPerNode;
-        return nc;
+        return new SerializedForm( data, mmlLearner, mlLearner, mbPerNode );
     }
 
     /**
-     * Unserialise NodeCache and create cache of the correct size.
+     * Unserialise NodeCache and create cache of the correct size.  Only used when reading 
+     * NodeCaches written before SerializedForm was introduced.
      */
     public Object readResolve() throws ObjectStreamException {
-        // When unserialising mpPerNode is used to determine cache size
-        // instead of the actual size which writeReplace sets to 0.0
-        NodeCache nc = new NodeCache(data,mmlLearner,mlLearner,mbPerNode);
-        return nc;
+        return new NodeCache(data,mmlLearner,mlLearner,mbPerNode);
+    }
+    
+    /** Serialised form of NodeCache, the cache is recreated (empty) when read. */
+    protected static class SerializedForm implements Serializable
+    {
+        /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+        private static final long serialVersionUID = -3158342741264939105L;
+        
+        final Value.Vector data;
+        final ModelLearner mmlLearner, mlLearner;
+        final double mbPerNode;
+        
+        SerializedForm( Value.Vector data, ModelLearner mmlLearner, ModelLearner mlLearner,
+                        double mbPerNode )
+        {
+            this.data = data;
+            this.mmlLearner = mmlLearner;
+            this.mlLearner = mlLearner;
+            this.mbPerNode = mbPerNode;
+        }
+        
+        /** Create a NodeCache of the correct size. */
+        public Object readResolve() throws ObjectStreamException {
+            return new NodeCache( data, mmlLearner, mlLearner, mbPerNode );
+        }
     }
-
     
 }
 
@@ -0,0 +1,311 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Persistent node cost cache for CaMML
+//
+
+// File:   NodeCacheFile.java
+// Author: rodo@dgs.monash.edu.au
+
+package camml.core.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ *  NodeCacheFile is a memory mapped hash table of node costs stored on disk. <br>
+ *
+ *  Each file is named by a fingerprint of the dataset and learners used (see
+ *  NodeCache.getFingerprint()), so a NodeCache created on identical data with identical
+ *  learners can reuse costs calculated by an earlier run instead of relearning them. <br>
+ *
+ *  The file is a header followed by a fixed number of records, each record holds
+ *  (hash, var, parent set, MML cost, ML cost).  The parent set is stored as a bit set so a
+ *  record is only used if it exactly matches the node being costed.  The table never grows,
+ *  when a probe sequence is full new costs are simply not stored. <br>
+ *
+ *  A file is locked while in use so only a single process may use it.  Within a JVM all
+ *  NodeCaches with the same fingerprint share one NodeCacheFile, which is closed when the
+ *  last of them calls close().
+ */
+public class NodeCacheFile
+{
+    /** "CaMMLNC1" */
+    protected static final long MAGIC = 0x43614d4d4c4e4331L;
+
+    /** File format version */
+    protected static final int VERSION = 1;
+
+    /** Bytes reserved for header */
+    protected static final int headerSize = 64;
+
+    /** Number of records in a newly created file.  Must be a power of 2. */
+    public static int defaultCapacity = 1 << 18;
+
+    /** Maximum number of records checked for a node before giving up. */
+    public final static int maxProbes = 64;
+
+    /** Files currently open in this JVM, keyed by canonical file. */
+    protected static final HashMap<File,NodeCacheFile> openFiles = new HashMap<File,NodeCacheFile>();
+
+    /** File being used */
+    public final File file;
+
+    /** Number of records in file.  A power of 2. */
+    public final int capacity;
+
+    /** Number of longs used to store the parent bit set. */
+    protected final int words;
+
+    /** Size in bytes of each record. */
+    protected final int recordSize;
+
+    /** Number of records used. */
+    protected int numRecords;
+
+    /** Open file, kept open (and locked) until close() is called by each user. */
+    protected final RandomAccessFile raf;
+
+    /** Memory mapped view of file. */
+    protected final MappedByteBuffer buffer;
+
+    /** Number of open() calls not yet matched by close(), guarded by openFiles. */
+    protected int refCount = 0;
+
+    /** Set once the file has been closed, after which no costs are read or written. */
+    protected boolean closed = false;
+
+    /**
+     * Open (or create) the cache file for fingerprint in directory.  If the file exists but
+     * does not match fingerprint and numNodes it is recreated.  Each call to open() must be
+     * matched by a call to close().
+     */
+    public static NodeCacheFile open( File directory, long fingerprint, int numNodes )
+        throws IOException
+    {
+        File file = new File( directory, Long.toHexString(fingerprint) + ".nodecache" ).getCanonicalFile();
+        synchronized ( openFiles ) {
+            NodeCacheFile cacheFile = openFiles.get( file );
+            if ( cacheFile == null ) {
+                cacheFile = new NodeCacheFile( file, fingerprint, numNodes );
+                openFiles.put( file, cacheFile );
+            }
+            cacheFile.refCount ++;
+            return cacheFile;
+        }
+    }
+
+    /**
+     * Release this file.  Once every open() has been matched by a close() changes are flushed
+     * to disk and the file is unlocked and closed.
+     */
+    public void close() throws IOException
+    {
+        synchronized ( openFiles ) {
+            if ( refCount == 0 || --refCount > 0 ) { return; }
+            openFiles.remove( file );
+        }
+        synchronized ( this ) {
+            closed = true;
+            buffer.force();
+            raf.close();
+        }
+    }
+
+    /** Open file, see open() */
+    protected NodeCacheFile( File file, long fingerprint, int numNodes ) throws IOException
+    {
+        this.file = file;
+        this.words = (numNodes + 63) / 64;
+        this.recordSize = 8 + 4 + 4 + 8 * words + 8 + 8;
+
+        if ( file.getParentFile() != null ) { file.getParentFile().mkdirs(); }
+        raf = new RandomAccessFile( file, "rw" );
+        FileChannel channel = raf.getChannel();
+        if ( channel.tryLock() == null ) {
+            raf.close();
+            throw new IOException( file + " is in use by another process." );
+        }
+
+        // Check existing header matches.
+        int oldCapacity = -1;
+        if ( raf.length() >= headerSize ) {
+            raf.seek(0);
+            if ( raf.readLong() == MAGIC && raf.readInt() == VERSION &&
+                 raf.readLong() == fingerprint && raf.readInt() == numNodes &&
+                 raf.readInt() == recordSize ) {
+                oldCapacity = raf.readInt();
+                numRecords = raf.readInt();
+                if ( raf.length() != headerSize + (long)oldCapacity * recordSize ) {
+                    oldCapacity = -1;
+                }
+            }
+        }
+
+        if ( oldCapacity > 0 ) {
+            capacity = oldCapacity;
+        }
+        else {
+            // Create a new (empty) file.  A mapped buffer is limited to 2gb.
+            int cap = defaultCapacity;
+            while ( headerSize + (long)cap * recordSize > Integer.MAX_VALUE ) { cap /= 2; }
+            capacity = cap;
+            numRecords = 0;
+
+            raf.setLength( 0 );
+            raf.setLength( headerSize + (long)capacity * recordSize );
+            raf.seek( 0 );
+            raf.writeLong( MAGIC );
+            raf.writeInt( VERSION );
+            raf.writeLong( fingerprint );
+            raf.writeInt( numNodes );
+            raf.writeInt( recordSize );
+            raf.writeInt( capacity );
+            raf.writeInt( numRecords );
+        }
+
+        buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, raf.length() );
+    }
+
+    /** Offset of numRecords in header */
+    protected static final int numRecordsOffset = 8 + 4 + 8 + 4 + 4 + 4;
+
+    /** Accessor for numRecords */
+    public synchronized int getNumRecords() { return numRecords; }
+
+    /**
+     * A key can be stored if it is of the form created by NodeCache.makeKey(),
+     * ie. [var, parents]
+     */
+    protected boolean isStorable( int[] key ) {
+        for ( int i = 0; i < key.length; i++ ) {
+            if ( key[i] < 0 || key[i] >= words * 64 ) { return false; }
+        }
+        return true;
+    }
+
+    /** Return parent bits of key in the range [64*word,64*word+63] */
+    protected static long parentBits( int[] key, int word ) {
+        long bits = 0;
+        for ( int i = 1; i < key.length; i++ ) {
+            if ( (key[i] >> 6) == word ) { bits |= 1L << (key[i] & 63); }
+        }
+        return bits;
+    }
+
+    /** Return true if the record at offset holds key. */
+    protected boolean matches( int offset, int[] key ) {
+        if ( buffer.getInt(offset + 8) != key[0] ) { return false; }
+        if ( buffer.getInt(offset + 12) != key.length - 1 ) { return false; }
+        for ( int w = 0; w < words; w++ ) {
+            if ( buffer.getLong(offset + 16 + 8 * w) != parentBits(key,w) ) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * Return the offset of the record for key.  If create == true and no record is found a
+     * new record is created.  -1 is returned if no record is found (or could be created).
+     */
+    protected int findRecord( long hash, int[] key, boolean create ) {
+        // The top bit is set so a stored hash is never 0 (an empty record).
+        long storedHash = hash | Long.MIN_VALUE;
+        int mask = capacity - 1;
+        int index = (int)(hash & mask);
+        for ( int i = 0; i < maxProbes && i <= mask; i++ ) {
+            int offset = headerSize + ((index + i) & mask) * recordSize;
+            long h = buffer.getLong( offset );
+            if ( h == 0 ) {
+                if ( !create ) { return -1; }
+
+                // Write record contents before the hash so a partly written record is ignored.
+                buffer.putInt( offset + 8, key[0] );
+                buffer.putInt( offset + 12, key.length - 1 );
+                for ( int w = 0; w < words; w++ ) {
+                    buffer.putLong( offset + 16 + 8 * w, parentBits(key,w) );
+                }
+                buffer.putDouble( offset + 16 + 8 * words, -1 );
+                buffer.putDouble( offset + 24 + 8 * words, -1 );
+                buffer.putLong( offset, storedHash );
+
+                numRecords ++;
+                buffer.putInt( numRecordsOffset, numRecords );
+                return offset;
+            }
+            if ( h == storedHash && matches( offset, key ) ) { return offset; }
+        }
+        return -1;
+    }
+
+    /** Return the stored MML (or ML) cost of the node with hash and key, or -1 if not found. */
+    public synchronized double getCost( long hash, int[] key, boolean mml ) {
+        if ( closed || !isStorable(key) ) { return -1; }
+        int offset = findRecord( hash, key, false );
+        if ( offset == -1 ) { return -1; }
+        return buffer.getDouble( offset + 16 + 8 * words + (mml ? 0 : 8) );
+    }
+
+    /** Store the MML (or ML) cost of the node with hash and key. */
+    public synchronized void putCost( long hash, int[] key, boolean mml, double cost ) {
+        if ( closed || !isStorable(key) ) { return; }
+        int offset = findRecord( hash, key, true );
+        if ( offset == -1 ) { return; }
+        buffer.putDouble( offset + 16 + 8 * words + (mml ? 0 : 8), cost );
+    }
+
+    /** Mix x into the 64 bit hash h.  Used to create fingerprints. */
+    public static long mix( long h, long x ) {
+        h ^= x;
+        h *= 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    /** Mix all values in x into h. */
+    public static long mix( long h, int[] x ) {
+        h = mix( h, x.length );
+        for ( int i = 0; i < x.length; i++ ) { h = mix( h, x[i] ); }
+        return h;
+    }
+
+    /** Mix all bytes of b into h. */
+    public static long mix( long h, byte[] b ) {
+        h = mix( h, b.length );
+        for ( int i = 0; i < b.length; i++ ) { h = mix( h, b[i] ); }
+        return h;
+    }
+
+    public String toString() {
+        return "NodeCacheFile(" + file + ", " + getNumRecords() + "/" + capacity + " records)";
+    }
+}
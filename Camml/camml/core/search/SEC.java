@@ -41,7 +41,9 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 
+import camml.core.library.LongIndexMap;
 import camml.core.models.ModelLearner;
 import cdms.core.Value;
 import cdms.core.VectorFN;
@@ -56,9 +58,21 @@ public class SEC implements Serializable
     /** Serial ID required to evolve class while maintaining serialisation compatibility. */
     private static final long serialVersionUID = 238869362228632969L;
 
-    /** A vector of CompactTOMs */
+    /** A vector of CompactTOMs, in the order they were first visited. */
     protected final ArrayList<CompactTOM> tomList;
     
+    /** 
+     * Index of each TOM in tomList, keyed by CompactTOM.hash.  Not serialized, it is rebuilt
+     * from tomList by readObject().
+     */
+    protected transient LongIndexMap tomIndex = new LongIndexMap();
+    
+    /** Has sortTOMs() been called?  If so accessors use sortedTOMs instead of tomList. */
+    protected boolean sorted = false;
+    
+    /** tomList sorted by sortTOMs() comparator.  Built when first required. */
+    protected transient volatile List<CompactTOM> sortedTOMs;
+    
     /** Layout of undirected edges for this SEC */
     protected final int[][] edgeList2;
     
@@ -119,6 +133,69 @@ public class SEC implements Serializable
         this.cleanMLCost = cleanMLCost;
     }
     
+    /** 
+     * Create a new (empty) SEC with the same skeleton and ML cost as sec, but using caseInfo.
+     * This is used when merging SECs sampled by seperate chains.
+     */
+    public SEC( SEC sec, CaseInfo caseInfo )
+    {
+        this.caseInfo = caseInfo;
+        this.edgeList2 = sec.edgeList2;
+        this.cleanMLCost = sec.cleanMLCost;
+        tomList = new java.util.ArrayList<CompactTOM>();
+    }
+    
+    /**
+     * Add all TOM visits and weights recorded in sec to this SEC.  Both SECs must have
+     * weights calculated relative to the same referenceWeight.
+     */
+    public void merge( SEC sec )
+    {
+        weight += sec.weight;
+        if ( sec.bestMML < bestMML ) { bestMML = sec.bestMML; }
+        if ( sec.bestUncleanMML < bestUncleanMML ) { bestUncleanMML = sec.bestUncleanMML; }
+        
+        for ( CompactTOM otherTOM : sec.tomList ) {
+            CompactTOM currentTOM = findTOM( otherTOM.hash );
+            
+            if ( currentTOM == null ) {
+                currentTOM = new CompactTOM( otherTOM.order, otherTOM.hash );
+                currentTOM.bestMML = otherTOM.bestMML;
+                insertTOM( currentTOM );
+            }
+            else if ( otherTOM.bestMML < currentTOM.bestMML ) {
+                currentTOM.bestMML = otherTOM.bestMML;
+            }
+            currentTOM.totalWeight += otherTOM.totalWeight;
+            currentTOM.numVisits += otherTOM.numVisits;
+        }
+        sortedTOMs = null;
+    }
+    
+    /** Return the TOM with the given hash, or null if it has not been visited. */
+    protected CompactTOM findTOM( long hash )
+    {
+        int i = tomIndex.get( hash );
+        if ( i == -1 ) { return null; }
+        return tomList.get(i);
+    }
+    
+    /** Rebuild tomIndex after deserialization (it is not stored). */
+    private void readObject( ObjectInputStream in ) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        tomIndex = new LongIndexMap( 2 * tomList.size() );
+        for ( int i = 0; i < tomList.size(); i++ ) { tomIndex.put( tomList.get(i).hash, i ); }
+    }
+    
+    /** Add a newly visited TOM to tomList */
+    protected void insertTOM( CompactTOM tom )
+    {
+        tomIndex.put( tom.hash, tomList.size() );
+        tomList.add( tom );
+        sortedTOMs = null;
+    }
+    
     /**
      * Record a new visit to this SEC, if this TOM hasn't been visited before, it will be added 
      *  to this list tomVector.  Weight is updated to reflect a visit to the appropriate TOM.
@@ -127,9 +204,6 @@ public class SEC implements Serializable
     {
         // hash a clean version of this TOM
         long hash = caseInfo.tomHash.hash( cleanTom, cleanMLCost );
-        int foundAt = -1;
-        CompactTOM currentTOM = null;
-        
         
         if ( uncleanMML < bestMML ) { bestMML = uncleanMML; }
         
@@ -153,19 +227,15 @@ public class SEC implements Serializable
         }
         
         // Check if this TOM has already been sampled
-        for ( int i = 0; i < tomList.size(); i++ ) {
-            if ( ((CompactTOM)tomList.get(i)).hash == hash ) { foundAt = i; break;}
-        }
+        CompactTOM currentTOM = findTOM( hash );
         
         // If TOM not already in the list, add it. 
-        if ( foundAt == -1 ) {
-            tomList.add( new CompactTOM( cleanTom, hash ) );
-            foundAt = tomList.size() - 1;
-            currentTOM = ((CompactTOM)tomList.get(foundAt));
+        if ( currentTOM == null ) {
+            currentTOM = new CompactTOM( cleanTom, hash );
             currentTOM.bestMML = uncleanMML;        
+            insertTOM( currentTOM );
         }
         else { // if TOM is already in the list, make sure it's best MML is recorded.
-            currentTOM = ((CompactTOM)tomList.get(foundAt));
             if ( currentTOM.bestMML > uncleanMML ) {
                 currentTOM.bestMML = uncleanMML;
             }
@@ -177,6 +247,7 @@ public class SEC implements Serializable
         currentTOM.addWeight( tomWeight );  // add weight to TOM
         this.weight += tomWeight;           //            and SEC
         caseInfo.totalWeight += tomWeight;  //            and total
+        sortedTOMs = null;
         
         if ( caseInfo.logging ) {
             java.text.DecimalFormat format = caseInfo.weightFormat;
@@ -197,6 +268,7 @@ public class SEC implements Serializable
         for ( int i = 0; i < tomList.size(); i++ ) {
             ((CompactTOM)tomList.get(i)).totalWeight *= multiplier;
         }
+        sortedTOMs = null;
     }
     
     /** Comparator : compare TOM weight */
@@ -238,16 +310,35 @@ public class SEC implements Serializable
         }
     };
     
-    /** Sort tomList using tomComparator. */
+    /**
+     * Sort TOMs using tomComparator.  After this is called getTOM(i) and similar accessors
+     * return TOMs in sorted order.  The sorted list is only built when next required.
+     */
     public void sortTOMs()
     {
-        final Comparator<CompactTOM> tomComparator;
-        
-        // For regression testing choose best tom by MML, otherwise use Posterior.
-        if ( caseInfo.regression ) { tomComparator = tomMMLComparator; }
-        else { tomComparator = caseInfo.tomComparator; }
+        sorted = true;
+        sortedTOMs = null;
+    }
+    
+    /** Return TOMs in insertion order, or sorted order if sortTOMs() has been called. */
+    protected List<CompactTOM> getTOMList()
+    {
+        if ( !sorted ) { return tomList; }
         
-        Collections.sort( tomList, tomComparator );    
+        List<CompactTOM> list = sortedTOMs;
+        if ( list == null ) {
+            final Comparator<CompactTOM> tomComparator;
+            
+            // For regression testing choose best tom by MML, otherwise use Posterior.
+            if ( caseInfo.regression ) { tomComparator = tomMMLComparator; }
+            else { tomComparator = caseInfo.tomComparator; }
+            
+            ArrayList<CompactTOM> sortedList = new ArrayList<CompactTOM>( tomList );
+            Collections.sort( sortedList, tomComparator );    
+            list = sortedList;
+            sortedTOMs = list;
+        }
+        return list;
     }
     
     /** A compact representation of a TOM, edge[][] is not required as SEC.edge is used. */
@@ -278,6 +369,13 @@ public class SEC implements Serializable
             this.hash = hash;        
         }
         
+        /** Constructor : store order.clone() and hash */
+        public CompactTOM( int[] order, long hash )
+        {
+            this.order = order.clone();
+            this.hash = hash;        
+        }
+        
         /** Accessor function */
         public int getNumVisits() { return numVisits; }
         
@@ -340,31 +438,83 @@ public class SEC implements Serializable
     public int getNumArcs() { 
         return edgeList2[0].length;
     }
+    
+    /**
+     * Add the posterior of each TOM in this SEC to arc[child][parent] for every arc in the TOM.
+     * If ancestor != null, the posterior is also added to ancestor[node][a] for every ancestor
+     * a of node.  Arc directions are read from the SEC skeleton and the total ordering of each
+     * CompactTOM, so no TOMs or parameters are created.
+     */
+    public void addArcPosteriors( double[][] arc, double[][] ancestor )
+    {
+        int numNodes = arc.length;
+        int[] pos = new int[numNodes];
+        int[] numParents = new int[numNodes];
+        int[][] parent = new int[numNodes][];
+        java.util.BitSet[] anc = new java.util.BitSet[numNodes];
+
+        for ( CompactTOM tom : tomList ) {
+            double posterior = tom.totalWeight / caseInfo.totalWeight;
+            for ( int i = 0; i < numNodes; i++ ) { pos[tom.order[i]] = i; numParents[i] = 0; }
+
+            // Orient each edge in the skeleton using the total ordering.
+            for ( int i = 0; i < edgeList2[0].length; i++ ) {
+                int a = edgeList2[0][i];
+                int b = edgeList2[1][i];
+                int child = pos[a] > pos[b] ? a : b;
+                int p = (child == a) ? b : a;
+                arc[child][p] += posterior;
+
+                if ( ancestor != null ) {
+                    if ( parent[child] == null ) { parent[child] = new int[numNodes]; }
+                    parent[child][numParents[child]++] = p;
+                }
+            }
+
+            // Ancestors of each node are found by visiting nodes in total order.
+            if ( ancestor != null ) {
+                for ( int i = 0; i < numNodes; i++ ) {
+                    int node = tom.order[i];
+                    if ( anc[node] == null ) { anc[node] = new java.util.BitSet(numNodes); }
+                    else { anc[node].clear(); }
+                    for ( int j = 0; j < numParents[node]; j++ ) {
+                        int p = parent[node][j];
+                        anc[node].set( p );
+                        anc[node].or( anc[p] );
+                    }
+                    for ( int a = anc[node].nextSetBit(0); a >= 0; a = anc[node].nextSetBit(a+1) ) {
+                        ancestor[node][a] += posterior;
+                    }
+                }
+            }
+        }
+    }
+
     /** Accessor function */
     public int getNumTOMs() { return tomList.size(); }
     
     /** Accessor function */
-    public TOM getTOM( int i ) { return ((CompactTOM)tomList.get(i)).makeTOM(); }
+    public TOM getTOM( int i ) { return getTOMList().get(i).makeTOM(); }
     
     /** Accessor function */
-    public int[] getTOMOrdering( int i ) { return ((CompactTOM)tomList.get(i)).order; }
+    public int[] getTOMOrdering( int i ) { return getTOMList().get(i).order; }
     
     /** Accessor function */
-    public int getNumVisitsToTOM( int i ) { return ((CompactTOM)tomList.get(i)).numVisits; }
+    public int getNumVisitsToTOM( int i ) { return getTOMList().get(i).numVisits; }
     
     /** Accessor function */
-    public double getWeightOfTOM( int i ) { return ((CompactTOM)tomList.get(i)).totalWeight; }
+    public double getWeightOfTOM( int i ) { return getTOMList().get(i).totalWeight; }
     
     /** Accessor function */
     public double getPosteriorOfTOM( int i ) { 
-        return ((CompactTOM)tomList.get(i)).totalWeight/caseInfo.totalWeight; }
+        return getTOMList().get(i).totalWeight/caseInfo.totalWeight; }
     
     /** Accessor function */
-    public double getBestMMLOfTOM( int i ) { return ((CompactTOM)tomList.get(i)).bestMML; }
+    public double getBestMMLOfTOM( int i ) { return getTOMList().get(i).bestMML; }
 
     /** Calculate logP(Data|Model,Params) for tom[i] */
     public double getDataCost(int i) {
-        return tomList.get(i).getDataCost();
+        return getTOMList().get(i).getDataCost();
     }
     
     /** Return string containing details about SEC */
@@ -377,8 +527,9 @@ public class SEC implements Serializable
             + "\t" + "weight = " + weight
             + "\t" + "best MML = " + bestMML + "\n";
         
-        for ( int i = 0; i < tomList.size(); i++ ) {
-            CompactTOM currentTOM = ((CompactTOM)tomList.get(i));
+        List<CompactTOM> list = getTOMList();
+        for ( int i = 0; i < list.size(); i++ ) {
+            CompactTOM currentTOM = list.get(i);
             s += "\n" + "numVisits = " + currentTOM.numVisits
                 + "\t" + "mml = " + currentTOM.bestMML
                 + "\t" + "posterior = " + currentTOM.getPosterior()
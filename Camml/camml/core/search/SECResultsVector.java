@@ -238,7 +238,7 @@ public class SECResultsVector extends Value.Vector {
                 }
                 else { return new Value.Continuous(-1); }
             }
-            else if (i == 9 ) { return new Value.Continuous(sec.tomList.get(tomIndex).getDataCost()); }
+            else if (i == 9 ) { return new Value.Continuous(sec.getDataCost(tomIndex)); }
             else {
                 throw new RuntimeException("Invalid cmpnt requested from TOMStructure");
             }
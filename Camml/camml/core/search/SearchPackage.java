@@ -71,6 +71,10 @@ public class SearchPackage extends Module
         
         add("makeWallaceKorbDataset", makeWallaceKorbDataset, "makeWallaceKorbDataset");
         add("getRepresentativeDAG", MMLEC.getRepresentative, "Get DAG representing SEC or MMLEC.");
+        add("pwArcFrequencies", MMLEC.arcPosteriors,
+            "[MMLEC] -> [[Continuous]], elt i j = posterior weighted frequency of arc j -> i");
+        add("pwAncestorFrequencies", MMLEC.ancestorPosteriors,
+            "[MMLEC] -> [[Continuous]], elt i j = posterior weighted frequency of j being an ancestor of i");
     }
     
     /** 
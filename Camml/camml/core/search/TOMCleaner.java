@@ -32,7 +32,21 @@ package camml.core.search;
 /** Interface class for a function to clean TOMs */
 public interface TOMCleaner
 {
-    public static class StandardTOMCleaner implements TOMCleaner
+    /**
+     * A TOMCleaner which cleans each node separately.  If isLocal() is true the arcs cleaned
+     * away from a node depend only on its own parents, so when a few parent sets change only
+     * those nodes need to be recleaned (see BNetSearch.costNodes).
+     */
+    public static interface NodeTOMCleaner extends TOMCleaner
+    {
+        /** Clean the parents of a single node. */
+        public void cleanNode(TOM tom, int nodeI);
+        
+        /** Does the result of cleanNode(tom,i) depend only on the parents of i? */
+        public boolean isLocal(TOM tom);
+    }
+    
+    public static class StandardTOMCleaner implements NodeTOMCleaner
     {        
         public static StandardTOMCleaner tomCleaner = new StandardTOMCleaner();
         private StandardTOMCleaner() {}
@@ -40,80 +54,100 @@ public interface TOMCleaner
         {
             // loop through nodes cleaning each in turn.
             for ( int i = 0; i < tom.getNumNodes(); i++ ) {
-                int nodeI = tom.nodeAt(i);
-                int[] dirtyParent = tom.node[nodeI].parent;
-                
-                double oldCost = tom.caseInfo.nodeCache.getMMLCost( tom.node[nodeI] );
-                for (int j = dirtyParent.length-1; j >= 0; j--) {
-                    int nodeJ = dirtyParent[j];
-                    double structureDiff = tom.caseInfo.tomCoster.costToToggleArc(tom,nodeI,nodeJ);                
-                    tom.removeArc(nodeI,nodeJ);
-                    double newCost = tom.caseInfo.nodeCache.getMMLCost(tom.node[nodeI]);
-                    if ( newCost > oldCost - structureDiff) {
-                        tom.addArc(nodeI,nodeJ);
-                    }
-                    else {
-                        oldCost = newCost;
-                    }
-                }
+                cleanNode( tom, tom.nodeAt(i) );
             }            
         }
+        
+        public void cleanNode(TOM tom, int nodeI)
+        {
+            int[] dirtyParent = tom.node[nodeI].parent;
+            
+            double oldCost = tom.caseInfo.nodeCache.getMMLCost( tom.node[nodeI] );
+            for (int j = dirtyParent.length-1; j >= 0; j--) {
+                int nodeJ = dirtyParent[j];
+                double structureDiff = tom.caseInfo.tomCoster.costToToggleArc(tom,nodeI,nodeJ);                
+                tom.removeArc(nodeI,nodeJ);
+                double newCost = tom.caseInfo.nodeCache.getMMLCost(tom.node[nodeI]);
+                if ( newCost > oldCost - structureDiff) {
+                    tom.addArc(nodeI,nodeJ);
+                }
+                else {
+                    oldCost = newCost;
+                }
+            }
+        }
+        
+        /** Only a UniformTOMCoster has a cost to remove an arc independent of the rest of tom. */
+        public boolean isLocal(TOM tom)
+        {
+            return tom.caseInfo.tomCoster instanceof TOMCoster.UniformTOMCoster;
+        }
     }
 
     /** Don't perform any cleaning  */
-    public static class NoCleanTOMCleaner implements TOMCleaner
+    public static class NoCleanTOMCleaner implements NodeTOMCleaner
     {        
         public static NoCleanTOMCleaner tomCleaner = new NoCleanTOMCleaner();
         private NoCleanTOMCleaner() {}
         public void cleanTOM(TOM tom) {}
+        public void cleanNode(TOM tom, int nodeI) {}
+        public boolean isLocal(TOM tom) { return true; }
     }
 
     /** remove all arcs which are not a parent of the specified target node */
-    public static class TargetOnlyTOMCleaner implements TOMCleaner
+    public static class TargetOnlyTOMCleaner implements NodeTOMCleaner
     {        
         int target;
         public TargetOnlyTOMCleaner(int target) {this.target = target;}
         public void cleanTOM(TOM tom) {
             // loop through nodes cleaning each in turn.
             for ( int nodeI = 0; nodeI < tom.getNumNodes(); nodeI++ ) {
-                if (nodeI != target) {                
-                    int[] dirtyParent = tom.node[nodeI].parent;                    
-                                
-                    for (int j = 0; j < dirtyParent.length; j++) {
-                        int nodeJ = dirtyParent[j];
-                        tom.removeArc(nodeI,nodeJ);
-                    }
-                }
+                cleanNode( tom, nodeI );
             }            
         }
+        public void cleanNode(TOM tom, int nodeI) {
+            if (nodeI != target) {                
+                int[] dirtyParent = tom.node[nodeI].parent;                    
+                
+                for (int j = 0; j < dirtyParent.length; j++) {
+                    int nodeJ = dirtyParent[j];
+                    tom.removeArc(nodeI,nodeJ);
+                }
+            }
+        }
+        public boolean isLocal(TOM tom) { return true; }
     }
 
     /** Clean away all nodes not in the markov blanket of the specified variable */
-    public static class MarkovBlanketTOMCleaner implements TOMCleaner
+    public static class MarkovBlanketTOMCleaner implements NodeTOMCleaner
     {        
         int target;
         public MarkovBlanketTOMCleaner(int target) {this.target = target;}
         public void cleanTOM(TOM tom) {
             // loop through nodes cleaning each in turn.
             for ( int nodeI = 0; nodeI < tom.getNumNodes(); nodeI++ ) {
-                if (nodeI != target) {                
-                    int[] dirtyParent = tom.node[nodeI].parent;                    
-                    boolean childOfTarget = false;
-                    for (int j = 0; j < dirtyParent.length; j++) {
-                        if (dirtyParent[j] == target) {
-                            childOfTarget = true;
-                            break;
-                        }
-                    }
-                    if (childOfTarget) {continue;}
-                    
-                    for (int j = 0; j < dirtyParent.length; j++) {
-                        int nodeJ = dirtyParent[j];
-                        tom.removeArc(nodeI,nodeJ);
+                cleanNode( tom, nodeI );
+            }            
+        }
+        public void cleanNode(TOM tom, int nodeI) {
+            if (nodeI != target) {                
+                int[] dirtyParent = tom.node[nodeI].parent;                    
+                boolean childOfTarget = false;
+                for (int j = 0; j < dirtyParent.length; j++) {
+                    if (dirtyParent[j] == target) {
+                        childOfTarget = true;
+                        break;
                     }
                 }
-            }            
+                if (childOfTarget) {return;}
+                
+                for (int j = 0; j < dirtyParent.length; j++) {
+                    int nodeJ = dirtyParent[j];
+                    tom.removeArc(nodeI,nodeJ);
+                }
+            }
         }
+        public boolean isLocal(TOM tom) { return true; }
     }
 
     void cleanTOM(TOM tom);
@@ -320,8 +320,11 @@ public interface TOMCoster extends Serializable {
         /** Cache of last N tom hashes counted. */
         private static int countCacheIndex = 0;
         
-        /** Count the number of linear extensins for the supplied TOM */
-        public static double countExtensions(TOM tom) {
+        /** 
+         * Count the number of linear extensins for the supplied TOM. 
+         * Synchronized as countCache is shared by all searches.
+         */
+        public static synchronized double countExtensions(TOM tom) {
             
             // Check if TOM perms is already in cache.
             int tomHash = tom.hashCode();
@@ -356,6 +359,69 @@ public interface TOMCoster extends Serializable {
         
         
         
+        /** 
+         * If true, costTo* functions only recount extensions of the connected components
+         * containing the nodes modified instead of the whole TOM.
+         */
+        public static boolean incremental = true;
+        
+        /** Return all nodes joined to node by an undirected path in tom (including node). */
+        protected static int[] component( TOM tom, int node ) {
+            int numNodes = tom.getNumNodes();
+            boolean[] seen = new boolean[numNodes];
+            int[] stack = new int[numNodes];
+            int n = 0;
+            seen[node] = true;
+            stack[n++] = node;
+            for ( int i = 0; i < n; i++ ) {
+                for ( int j = 0; j < numNodes; j++ ) {
+                    if ( !seen[j] && tom.isArc(stack[i],j) ) {
+                        seen[j] = true;
+                        stack[n++] = j;
+                    }
+                }
+            }
+            int[] nodes = new int[n];
+            System.arraycopy( stack, 0, nodes, 0, n );
+            java.util.Arrays.sort( nodes );
+            return nodes;
+        }
+        
+        /**
+         * Return log(extensions(C)) - log(|C|!) where C is the subgraph of tom containing only
+         * nodes.  The log extensions of a DAG is the sum of this value over all connected
+         * components plus log(numNodes!).
+         */
+        protected static double componentLogExtensions( TOM tom, int[] nodes ) {
+            if ( nodes.length == 1 ) { return 0; }
+            UnlabelledGraph g = new BitSetBasedUnlabelledGraph(nodes.length);
+            for ( int i = 0; i < nodes.length; i++ ) {
+                int[] parent = tom.node[nodes[i]].parent;
+                for ( int j = 0; j < parent.length; j++ ) {
+                    int a = java.util.Arrays.binarySearch( nodes, parent[j] );
+                    if (!g.isDirectedArc(a,i)) { g.addArc(a,i,true); };
+                }
+            }
+            return Math.log( counter.countPerms(g) ) - FN.LogFactorial.logFactorial( nodes.length );
+        }
+        
+        /** 
+         * Return the sum of componentLogExtensions over each distinct connected component
+         * containing a node in nodes.  Components not containing these nodes are unaffected
+         * by changes to arcs between them, so only these components need to be recounted.
+         */
+        protected static double localLogExtensions( TOM tom, int[] nodes ) {
+            boolean[] counted = new boolean[tom.getNumNodes()];
+            double total = 0;
+            for ( int i = 0; i < nodes.length; i++ ) {
+                if ( counted[nodes[i]] ) { continue; }
+                int[] c = component( tom, nodes[i] );
+                for ( int j = 0; j < c.length; j++ ) { counted[c[j]] = true; }
+                total += componentLogExtensions( tom, c );
+            }
+            return total;
+        }
+        
         /** Return the structre cost of the given TOM */
         public double cost( TOM tom ) { 
             // Calculate the cost to state the total ordering
@@ -385,7 +451,16 @@ public interface TOMCoster extends Serializable {
          */
         public double costToSwapOrder( TOM tom, int node1, int node2 ) {
 
-            if (tom.isArc(node1,node2)) {
+            if (tom.isArc(node1,node2) && incremental) {
+                // All arcs reversed are within the component containing node1 & node2.
+                int[] c = component( tom, node1 );
+                double ext1 = componentLogExtensions( tom, c );
+                tom.swapOrder(node1,node2,true);
+                double ext2 = componentLogExtensions( tom, c );
+                tom.swapOrder(node1,node2,true);
+                
+                return ext1 - ext2;
+            } else if (tom.isArc(node1,node2)) {
                 double ext1 = countExtensions(tom);
                 tom.swapOrder(node1,node2,true);
                 double ext2 = countExtensions(tom);
@@ -406,6 +481,10 @@ public interface TOMCoster extends Serializable {
          */
         public double costToToggleArc( TOM tom, int node1, int node2 ) {
             
+            if ( incremental ) {
+                return costToToggleArcs( tom, new int[] {node1}, new int[] {node2} );
+            }
+            
             double ext1 = countExtensions(tom);
             double ext2;
             double arcCost = costToAddArc;
@@ -434,7 +513,15 @@ public interface TOMCoster extends Serializable {
          */
         public double costToToggleArcs( TOM tom, int node1[], int node2[] ) {
 
-            double ext1 = countExtensions(tom);
+            // Only components containing the arcs toggled need be counted.
+            int[] nodes = null;
+            if ( incremental ) {
+                nodes = new int[node1.length * 2];
+                System.arraycopy( node1, 0, nodes, 0, node1.length );
+                System.arraycopy( node2, 0, nodes, node1.length, node2.length );
+            }
+            
+            double ext1 = incremental ? localLogExtensions(tom,nodes) : Math.log(countExtensions(tom));
             // We must remove all arcs before adding new ones to avoid problems
             // with Node.ExcessiveArcsException.
             int added = 0;
@@ -451,7 +538,7 @@ public interface TOMCoster extends Serializable {
             }
             
             // Count extensions with arcs toggled.
-            double ext2 = countExtensions(tom);
+            double ext2 = incremental ? localLogExtensions(tom,nodes) : Math.log(countExtensions(tom));
             
             // Untoggle arcs.
             for ( int i = 0; i < node1.length; i++ ) {
@@ -464,7 +551,7 @@ public interface TOMCoster extends Serializable {
                 if (toggled[i]) { tom.addArc(node1[i],node2[i]); }
             }
             
-            return Math.log(ext1) - Math.log(ext2) - added * costToAddArc;
+            return ext1 - ext2 - added * costToAddArc;
         }
 
         /** No repairs required by default */
@@ -60,9 +60,6 @@ public class DBNSEC extends SEC {
 	public void addTOM( TOM cleanTom, double uncleanMML, double temperature ){
 		// hash a clean version of this TOM
         long hash = caseInfo.tomHash.hash( cleanTom, cleanMLCost );
-        int foundAt = -1;
-        CompactTOM currentTOM = null;
-        
         
         if ( uncleanMML < bestMML ) { bestMML = uncleanMML; }
         
@@ -86,19 +83,15 @@ public class DBNSEC extends SEC {
         }
         
         // Check if this TOM has already been sampled
-        for ( int i = 0; i < tomList.size(); i++ ) {
-            if ( ((CompactTOM)tomList.get(i)).hash == hash ) { foundAt = i; break;}
-        }
+        CompactTOM currentTOM = findTOM( hash );
         
         // If TOM not already in the list, add it. 
-        if ( foundAt == -1 ) {
-            tomList.add( new CompactDTOM( cleanTom, hash ) );		//Only change in this method vs. SEC.addTOM(...)
-            foundAt = tomList.size() - 1;
-            currentTOM = ((CompactTOM)tomList.get(foundAt));
+        if ( currentTOM == null ) {
+            currentTOM = new CompactDTOM( cleanTom, hash );		//Only change in this method vs. SEC.addTOM(...)
             currentTOM.bestMML = uncleanMML;        
+            insertTOM( currentTOM );
         }
         else { // if TOM is already in the list, make sure it's best MML is recorded.
-            currentTOM = ((CompactTOM)tomList.get(foundAt));
             if ( currentTOM.bestMML > uncleanMML ) {
                 currentTOM.bestMML = uncleanMML;
             }
@@ -110,6 +103,7 @@ public class DBNSEC extends SEC {
         currentTOM.addWeight( tomWeight );  // add weight to TOM
         this.weight += tomWeight;           //            and SEC
         caseInfo.totalWeight += tomWeight;  //            and total
+        sortedTOMs = null;
         
         if ( caseInfo.logging ) {
             java.text.DecimalFormat format = caseInfo.weightFormat;
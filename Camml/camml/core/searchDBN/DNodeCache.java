@@ -17,34 +17,33 @@ public class DNodeCache extends NodeCache {
 	public DNodeCache(Vector data, ModelLearner mmlLearner,
 			ModelLearner mlLearner) {
 		super(data, mmlLearner, mlLearner);
+		initHashArrays();
 	}
 
 	public DNodeCache(Vector data, ModelLearner mmlLearner,
 			ModelLearner mlLearner, double mbPerNode) {
 		super(data, mmlLearner, mlLearner, mbPerNode);
+		initHashArrays();
 	}
 	
+	/** Create parentHash, childHash and parentTemporalHash arrays */
+	private void initHashArrays() {
+		java.util.Random rand = new java.util.Random(123);
+		parentHashArray = new long[numNodes];
+		childHashArray = new long[numNodes];
+		parentTemporalHashArray = new long[numNodes];
+		for ( int i = 0; i < parentHashArray.length; i++ ) {
+			parentHashArray[i] = rand.nextLong();
+			childHashArray[i] = rand.nextLong();
+			parentTemporalHashArray[i] = rand.nextLong();
+		}
+	}
 	
-	/** Generate an index into the cache.
-	 *  NOTE: Code largely taken from NodeCache.getIndex(). Only changes are for temporal (inter-slice) parents
-	 *  OVERRIDES NodeCache.getIndex()
+	/** Generate a hash for node.
+	 *  NOTE: Code largely taken from NodeCache.getHash(). Only changes are for temporal (inter-slice) parents
+	 *  OVERRIDES NodeCache.getHash()
 	 * */
-    protected int getIndex( Node node ) {
-        getIndexCalled ++;
-        
-        // if not allocated, create parentHash and childHash
-        if ( parentHashArray == null ) {
-            java.util.Random rand = new java.util.Random(123);
-            parentHashArray = new long[numNodes];
-            childHashArray = new long[numNodes];
-            parentTemporalHashArray = new long[numNodes];
-            for ( int i = 0; i < parentHashArray.length; i++ ) {
-                parentHashArray[i] = rand.nextLong();
-                childHashArray[i] = rand.nextLong();
-                parentTemporalHashArray[i] = rand.nextLong();
-            }
-        }
-        
+    protected long getHash( Node node ) {
         // create hash for node.  hash is a random 63 bit value representing each parent[]->child
         // combinations.  It is possible (though remarkably unlikely) for two nodes to hash to the
         // same value.  No checks are in place as this will probably never happen.
@@ -61,42 +60,29 @@ public class DNodeCache extends NodeCache {
         }
         
         // we use a 63 bit value so nodeHash is always positive.
-        nodeHash &= 0x7FFFFFFFFFFFFFFFl;
-        
-        // Using nodeHash create an index into arrays.
-        int nodeIndex = (int)(nodeHash % cacheSize);
-        
-        // use quadratic probing to find a free entry in the hashtable.  This has better behaviour
-        // than linear probe (although it is not guarenteed to fill the entire table.)
-        for ( int i = 0; i < maxCacheAttempts; i++ ) {
-            
-            // Quadratic probing, each failure we lookahead an additional 'i' spaces.
-            nodeIndex = (nodeIndex + i) % cacheSize;
-            
-            // If the nodeHash is found, return nodeIndex.
-            if ( hashLookup[nodeIndex] == nodeHash ) {
-                hashSucceed ++;
-                
-                return nodeIndex;
-            }
-            
-            // If an empty entry is found, assign nodeHash to this nodeIndex
-            if ( hashLookup[ nodeIndex ] == -1 ) {
-                hashLookup[ nodeIndex ] = nodeHash;
-                
-                newHash ++;
-                numCacheEntries ++;
-                return nodeIndex;
-            }
-            
-            // current cache entry already used by another node, so try again with new index.
-            hashFailed ++;
-        }    
-                
-        // We are forced to overwrite a value.
-        nodeIndex = (int)(nodeHash % cacheSize);
-        overwriteCacheEntry( nodeIndex, nodeHash );
+        return nodeHash & 0x7FFFFFFFFFFFFFFFl;
+    }
+    
+    /** Return key = [var, parents (sorted), -1, temporal parents (sorted)]
+     *  OVERRIDES NodeCache.makeKey()
+     * */
+    protected int[] makeKey( Node node ) {
+        int[] intrasliceParents = node.getParentCopy();
+        int[] temporalParents = ((DNode)node).getTemporalParentCopy();
+        java.util.Arrays.sort( intrasliceParents );
+        java.util.Arrays.sort( temporalParents );
         
-        return nodeIndex;
+        int[] key = new int[intrasliceParents.length + temporalParents.length + 2];
+        key[0] = node.var;
+        System.arraycopy( intrasliceParents, 0, key, 1, intrasliceParents.length );
+        key[intrasliceParents.length + 1] = -1;
+        System.arraycopy( temporalParents, 0, key, intrasliceParents.length + 2, 
+                          temporalParents.length );
+        return key;
+    }
+    
+    /** OVERRIDES NodeCache.matchesKey() */
+    protected boolean matchesKey( int[] key, Node node ) {
+        return java.util.Arrays.equals( key, makeKey(node) );
     }
 }
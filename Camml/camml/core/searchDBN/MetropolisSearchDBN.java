@@ -309,6 +309,9 @@ public class MetropolisSearchDBN extends MetropolisSearch {
         // Shortcut if getResults is called twice.
         //if ( results != null ) { return results; }
         
+        // Weights may be relative to an old reference, so rescale them relative to bestCost.
+        rebaseWeights( bestCost );
+        
         // dump all SECs from secHashTable into an ArrayList for easy manipulation.
         ArrayList<SEC> secList = new ArrayList<SEC>( secHashtable.values() );
         int uniqueSECs = secList.size();
@@ -85,6 +85,7 @@ public class DataCoster {
 
         annealSearch.getTOM().swapOrder(0,3,true);
         annealSearch.printDetailedCost(annealSearch.getTOM());
+        annealSearch.close();
 
 
     }
@@ -42,7 +42,12 @@ import java.rmi.NotBoundException;
 import java.rmi.Naming;
 
 import java.io.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import camml.core.library.EMap;
 
 import cdms.core.*;
 
@@ -299,6 +304,7 @@ public class CDMSEngine {
      *  
      *  ["hostname"] -> fn -> [input] -> [fn input(i)] 
      *  @see cdms.core.VectorFN.Map
+     *  @see camml.core.library.PMap
      */
     public static class RemoteMap extends Value.Function {
         /** Serial ID required to evolve class while maintaining serialisation compatibility. */
@@ -408,10 +414,34 @@ public class CDMSEngine {
         }
     }
 
+    /** 
+     * RemoteMap3 maps fn over a vector using a set of remote FunctionRunners. <br>
+     * 
+     * Each server is driven by its own worker thread with its own queue of element indices.
+     * Workers take batches from the front of their queue and send the whole batch in a single
+     * remote call.  When a queue is empty the worker steals from the back of the longest other
+     * queue, and once no queued work remains idle workers speculatively re-run the oldest
+     * element still in progress so a slow server cannot hold up the whole map.  The first
+     * result returned for each element is kept. <br>
+     * 
+     * Completed batches are posted to a completion queue which the calling thread waits on,
+     * so no polling is required.  A server throwing a RemoteException is marked as broken, its
+     * batch is returned to the queue and reconnection is attempted every retryDelay ms. A
+     * RuntimeException thrown by fn stops the map and is rethrown by apply.
+     */
     public static class RemoteMap3 extends Value.Function {
         /** Serial ID required to evolve class while maintaining serialisation compatibility. */
         private static final long serialVersionUID = -3863692766076777435L;
 
+        /** Maximum number of elements sent in a single remote call. */
+        public static int maxBatchSize = 8;
+
+        /** Re-run elements still in progress when no other work remains? */
+        public static boolean speculate = true;
+
+        /** Time (ms) between attempts to reconnect to a broken server. */
+        public static long retryDelay = 1000;
+
         FunctionRunnerInterface f[];
 
         boolean[] broken;
@@ -420,12 +450,6 @@ public class CDMSEngine {
 
         Value.Function fn;
 
-        final static int EMPTY = -1;
-
-        final static int DONE = -2;
-
-        final static int ERROR = -2;
-
         public RemoteMap3(FunctionRunnerInterface f[], String[] name,
                           Value.Function fn) {
             super(new Type.Function(Type.TYPE, Type.TYPE));
@@ -435,178 +459,301 @@ public class CDMSEngine {
             broken = new boolean[f.length];
         }
 
+        /** 
+         * Attempt to reconnect to server[i], returning null on failure.  
+         * May be overridden to supply local FunctionRunners for testing.
+         */
+        protected FunctionRunnerInterface reconnect(int i) {
+            return RemoteMap.makeFunctionRunner(name[i]);
+        }
+
         public Value apply(Value v) {
             Value.Vector vec = (Value.Vector) v;
-            Value[] resultArray = new Value[vec.length()];
-            RunThread[] threadArray = new RunThread[resultArray.length];
-
-            // Keep track of which process in running on which node.
-            RunThread[] runningArray = new RunThread[f.length];
-
-            // processStatus[i] contains -1 if empty, or X where X is the
-            // element being worked on
-            // ThreadStatus[i] = -2 if thread is broken.
-            int[] threadStatus = new int[runningArray.length];
-
-            // Has there been an attempt to recover this thread? (only needed if
-            // thread dies.)
-            boolean[] restoreAttempted = new boolean[threadStatus.length];
-
-            // resultStatus contains -2 if done, -1 is not staterd, or the
-            // processor number X
-            int[] resultStatus = new int[resultArray.length];
-            for (int i = 0; i < threadStatus.length; i++) {
-                threadStatus[i] = EMPTY;
+            Scheduler scheduler = new Scheduler(vec);
+            if (vec.length() == 0) {
+                return new VectorFN.FatVector(new Value[0]);
             }
-            for (int i = 0; i < resultStatus.length; i++) {
-                resultStatus[i] = EMPTY;
+
+            System.err.print("-- Starting Threads[" + vec.length() + "]");
+            Worker[] worker = new Worker[f.length];
+            for (int i = 0; i < worker.length; i++) {
+                worker[i] = new Worker(i, scheduler);
+                worker[i].start();
             }
 
-            System.err.print("-- Starting Threads[" + resultArray.length + "]");
-            while (contains(resultArray, null)) { // While resultArray is
-                // incomplete
-
-                // //////////////////////////////////////////////
-                // Wait for a processor to become available //
-                // //////////////////////////////////////////////
-                int nextAvailableProcessor = -1;
-                while (nextAvailableProcessor == -1) {
-
-                    for (int i = 0; i < runningArray.length; i++) {
-                        // If current node is not flagged as broken
-                        if (!broken[i]) {
-                            // check if f was not initialised properly
-                            if (f[i] == null) {
-                                broken[i] = true;
-
-                                if (threadStatus[i] != EMPTY) {
-                                    resultStatus[threadStatus[i]] = EMPTY;
-                                }
-                                threadStatus[i] = ERROR;
-                                System.err.println(name[i]
-                                                   + " not initialised?");
-                            }
-                            // or if a ConnectException has been thrown
-                            else if (runningArray[i] != null
-                                     && runningArray[i].exception != null /*
-                                                                           * &&
-                                                                           * runningArray[i].exception
-                                                                           * instanceof
-                                                                           * ConnectException
-                                                                           */) {
-                                broken[i] = true;
-                                System.err.println(name[i] + " error. \t : "
-                                                   + runningArray[i].exception);
-                                runningArray[i].exception.printStackTrace();
-
-                                if (threadStatus[i] != EMPTY) {
-                                    resultStatus[threadStatus[i]] = EMPTY;
-                                }
-                                threadStatus[i] = ERROR;
-                            }
-                            // If the current processor has not been
-                            // initialised, use if
-                            else if (runningArray[i] == null) {
-                                nextAvailableProcessor = i;
-                            }
-                            // If current processor has finished it's job, use
-                            // it.
-                            else if (!runningArray[i].isAlive()) {
-                                if (runningArray[i].exception != null
-                                    && runningArray[i].exception instanceof java.rmi.UnmarshalException) {
-                                    broken[i] = true;
-                                    if (threadStatus[i] != EMPTY) {
-                                        resultStatus[threadStatus[i]] = EMPTY;
-                                    }
-                                    threadStatus[i] = ERROR;
-
-                                    // System.out.println(
-                                    // runningArray[i].exception );
-                                } else {
-                                    nextAvailableProcessor = i;
-                                    runningArray[i] = null;
-                                    resultStatus[threadStatus[i]] = DONE;
-                                    threadStatus[i] = EMPTY;
-                                }
+            try {
+                while (scheduler.numDone < vec.length()) {
+                    Completion c = scheduler.completions.take();
+                    if (c.exception != null) {
+                        throw c.exception;
+                    }
+                    System.err.print('.');
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                scheduler.finish();
+            }
+            System.out.println();
+
+            return new VectorFN.FatVector(scheduler.result);
+        }
+
+        /** A batch finished by a worker. exception is set if fn failed. */
+        static class Completion {
+            final int[] batch;
+
+            final RuntimeException exception;
+
+            Completion(int[] batch, RuntimeException exception) {
+                this.batch = batch;
+                this.exception = exception;
+            }
+        }
+
+        /** Shared state for a single call to apply. All access is synchronized on this. */
+        class Scheduler {
+            final Value.Vector vec;
+
+            final Value[] result;
+
+            /** Element i of queue holds the elements waiting to be sent to server i */
+            final List<ArrayDeque<Integer>> queue;
+
+            /** Number of copies of each element currently running. */
+            final int[] running;
+
+            /** Time each element was last dispatched. */
+            final long[] startTime;
+
+            /** Has element i been speculatively re-run? */
+            final boolean[] speculated;
+
+            int numDone = 0;
+
+            boolean finished = false;
+
+            final LinkedBlockingQueue<Completion> completions = new LinkedBlockingQueue<Completion>();
+
+            Scheduler(Value.Vector vec) {
+                this.vec = vec;
+                int n = vec.length();
+                result = new Value[n];
+                running = new int[n];
+                startTime = new long[n];
+                speculated = new boolean[n];
+
+                // Start with contiguous blocks of elements on each queue.
+                queue = new ArrayList<ArrayDeque<Integer>>(f.length);
+                for (int i = 0; i < f.length; i++) {
+                    ArrayDeque<Integer> q = new ArrayDeque<Integer>();
+                    for (int j = i * n / f.length; j < (i + 1) * n / f.length; j++) {
+                        q.add(j);
+                    }
+                    queue.add(q);
+                }
+            }
+
+            /** Number of elements to send per call, shrinking as the map nears completion. */
+            int batchSize() {
+                int remaining = result.length - numDone;
+                return Math.max(1, Math.min(maxBatchSize, remaining / (2 * queue.size())));
+            }
+
+            /** Remove up to size unfinished elements from queue q. */
+            ArrayList<Integer> take(int q, int size, boolean fromBack) {
+                ArrayList<Integer> batch = new ArrayList<Integer>();
+                while (batch.size() < size && !queue.get(q).isEmpty()) {
+                    int i = fromBack ? queue.get(q).pollLast() : queue.get(q).pollFirst();
+                    if (result[i] == null) {
+                        batch.add(i);
+                    }
+                }
+                return batch;
+            }
+
+            /** 
+             * Return the next batch for worker w, blocking until work is available.
+             * null is returned once the map is finished.
+             */
+            synchronized int[] nextBatch(int w) throws InterruptedException {
+                while (!finished) {
+                    ArrayList<Integer> batch = take(w, batchSize(), false);
+
+                    // Steal from the back of the longest queue.
+                    if (batch.isEmpty()) {
+                        int victim = -1;
+                        for (int i = 0; i < queue.size(); i++) {
+                            if (!queue.get(i).isEmpty()
+                                && (victim == -1 || queue.get(i).size() > queue.get(victim).size())) {
+                                victim = i;
                             }
                         }
+                        if (victim != -1) {
+                            int size = Math.min(batchSize(), (queue.get(victim).size() + 1) / 2);
+                            batch = take(victim, size, true);
+                        }
                     }
-                    // if no processors are available, go to sleep for 1 second
-                    // then try again.
-                    if (nextAvailableProcessor == -1) {
-                        for (int i = 0; i < threadStatus.length; i++) {
-                            if (threadStatus[i] == ERROR) {
-
-                                f[i] = RemoteMap.makeFunctionRunner(name[i]);
-                                if (f[i] != null) {
-                                    System.out.println("restoration of "
-                                                       + name[i] + " succeeded.");
-                                    restoreAttempted[i] = false;
-                                    threadStatus[i] = EMPTY;
-                                    broken[i] = false;
-                                    runningArray[i] = null;
-                                }
-                                // We only need to print out restoration failed
-                                // once, even
-                                // if we try multiple times.
-                                else if (restoreAttempted[i] == false) {
-                                    System.out.println("restoration of "
-                                                       + name[i] + " failed.");
-                                    restoreAttempted[i] = true;
-                                }
+
+                    // Re-run the oldest element still in progress.
+                    if (batch.isEmpty() && speculate) {
+                        int oldest = -1;
+                        for (int i = 0; i < result.length; i++) {
+                            if (result[i] == null && running[i] > 0 && !speculated[i]
+                                && (oldest == -1 || startTime[i] < startTime[oldest])) {
+                                oldest = i;
                             }
                         }
-
-                        try {
-                            Thread.sleep(1000);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
+                        if (oldest != -1) {
+                            speculated[oldest] = true;
+                            batch.add(oldest);
                         }
                     }
-                } // end while(nextAvailableProcessor == -1)
-
-                // Find the next available value to run on
-                int nextValueToMap = -1;
-                for (int i = 0; i < resultStatus.length; i++) {
-                    if (resultStatus[i] == EMPTY) {
-                        nextValueToMap = i;
-                        break;
+
+                    if (!batch.isEmpty()) {
+                        int[] array = new int[batch.size()];
+                        long now = System.currentTimeMillis();
+                        for (int i = 0; i < array.length; i++) {
+                            array[i] = batch.get(i);
+                            running[array[i]]++;
+                            startTime[array[i]] = now;
+                        }
+                        // Idle workers may now speculate on this batch.
+                        notifyAll();
+                        return array;
                     }
+
+                    wait();
                 }
+                return null;
+            }
 
-                // If a valid value exists, start running on it.
-                if (nextValueToMap != -1) {
-                    // Once we have found an available processor, run a thread
-                    // on it.
-                    threadStatus[nextAvailableProcessor] = nextValueToMap;
-                    resultStatus[nextValueToMap] = nextAvailableProcessor;
-
-                    threadArray[nextValueToMap] = new RunThread(
-                                                                f[nextAvailableProcessor], fn, vec
-                                                                .elt(nextValueToMap));
-                    threadArray[nextValueToMap].start();
-                    runningArray[nextAvailableProcessor] = threadArray[nextValueToMap];
-                    System.err.print('.');
-                } else {
-                    try {
-                        Thread.sleep(1000);
-                    } catch (java.lang.InterruptedException e) {
-                    } // ignore exception
+            /** Record results for batch and post a completion. */
+            synchronized void complete(int[] batch, Value[] value) {
+                for (int i = 0; i < batch.length; i++) {
+                    running[batch[i]]--;
+                    if (result[batch[i]] == null) {
+                        result[batch[i]] = value[i];
+                        numDone++;
+                    }
                 }
+                completions.add(new Completion(batch, null));
+                notifyAll();
+            }
 
-                // Copy all results from threadArray into resultArray
-                for (int i = 0; i < resultArray.length; i++) {
-                    if (resultStatus[i] == DONE) {
-                        resultArray[i] = threadArray[i].result;
+            /** Return unfinished elements of batch to the front of queue w. */
+            synchronized void requeue(int w, int[] batch) {
+                for (int i = batch.length - 1; i >= 0; i--) {
+                    running[batch[i]]--;
+                    speculated[batch[i]] = false;
+                    if (result[batch[i]] == null) {
+                        queue.get(w).addFirst(batch[i]);
                     }
                 }
+                notifyAll();
+            }
 
+            /** Report a failure of fn. */
+            synchronized void fail(int[] batch, RuntimeException e) {
+                completions.add(new Completion(batch, e));
+            }
 
-            } // end while( contains( resultArray, null ) )
-            System.out.println();
+            /** Stop all workers. */
+            synchronized void finish() {
+                finished = true;
+                notifyAll();
+            }
+        }
+
+        /** Thread sending batches from the scheduler to server w. */
+        class Worker extends Thread {
+            final int w;
 
-            return new VectorFN.FatVector(resultArray);
+            final Scheduler scheduler;
 
+            /** Has the environment been sent to the current connection? */
+            boolean updated = false;
+
+            Worker(int w, Scheduler scheduler) {
+                this.w = w;
+                this.scheduler = scheduler;
+                setDaemon(true);
+            }
+
+            /** Reconnect to server w, returning false if the map finishes first. */
+            boolean restore() throws InterruptedException {
+                boolean reported = false;
+                while (f[w] == null) {
+                    synchronized (scheduler) {
+                        if (scheduler.finished) {
+                            return false;
+                        }
+                    }
+                    f[w] = reconnect(w);
+                    if (f[w] != null) {
+                        System.out.println("restoration of " + name[w] + " succeeded.");
+                    } else {
+                        if (!reported) {
+                            System.out.println("restoration of " + name[w] + " failed.");
+                            reported = true;
+                        }
+                        Thread.sleep(retryDelay);
+                    }
+                }
+                broken[w] = false;
+                updated = false;
+                return true;
+            }
+
+            public void run() {
+                try {
+                    while (true) {
+                        if (f[w] == null && !restore()) {
+                            return;
+                        }
+                        int[] batch = scheduler.nextBatch(w);
+                        if (batch == null) {
+                            return;
+                        }
+                        try {
+                            if (!updated && f[w] instanceof EnvironmentUpdateInterface) {
+                                updateEnvironment((EnvironmentUpdateInterface) f[w]);
+                            }
+                            updated = true;
+                            scheduler.complete(batch, run(f[w], batch));
+                        } catch (java.rmi.RemoteException e) {
+                            System.err.println(name[w] + " error. \t : " + e);
+                            broken[w] = true;
+                            f[w] = null;
+                            scheduler.requeue(w, batch);
+                        } catch (RuntimeException e) {
+                            scheduler.fail(batch, e);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Thread no longer required.
+                }
+            }
+
+            /** Apply fn to each element of batch using a single remote call. */
+            Value[] run(FunctionRunnerInterface runner, int[] batch)
+                throws java.rmi.RemoteException {
+                Value[] value = new Value[batch.length];
+                if (batch.length == 1) {
+                    value[0] = runner.apply(fn, scheduler.vec.elt(batch[0]));
+                } else {
+                    Value[] input = new Value[batch.length];
+                    for (int i = 0; i < input.length; i++) {
+                        input[i] = scheduler.vec.elt(batch[i]);
+                    }
+                    Value.Vector output = (Value.Vector) runner.apply(
+                        (Value.Function) EMap.emap.apply(fn), new VectorFN.FatVector(input));
+                    for (int i = 0; i < value.length; i++) {
+                        value[i] = output.elt(i);
+                    }
+                }
+                return value;
+            }
         }
     }
 
@@ -632,52 +779,6 @@ public class CDMSEngine {
         return false;
     }
 
-    public static class RunThread extends Thread {
-        FunctionRunnerInterface f;
-
-        Value.Function fn;
-
-        Value v;
-
-        Value result;
-
-        /**
-         * run() cannot throw exception so storing it here may be helpful for
-         * debug purposes.
-         */
-        Exception exception = null;
-
-        public RunThread(FunctionRunnerInterface f, Value.Function fn, Value v) {
-            this.f = f;
-            this.fn = fn;
-            this.v = v;
-        }
-
-        /** run updates the foreign environment, then runs the function. */
-        public void run() {
-            try {
-                // System.out.println("-- Updating Environment --");
-                // FunctionRunner functionRunner = (FunctionRunner)f;
-                updateEnvironment((EnvironmentUpdateInterface) f);
-                if (f == null || fn == null || v == null) {
-                    System.err.println("f  = " + f + "\n" + "fn = " + fn + "\n"
-                                       + "(v==null)  = " + (v == null));
-                }
-                // System.out.println("-- f.apply() --");
-                this.result = f.apply(fn, v);
-                // System.out.println("threadResult = " + result);
-            } catch (java.rmi.RemoteException e) {
-                // System.err.println( e );
-                // this.result = new Value.Obj( e );
-                this.exception = e;
-            } catch (RuntimeException e) {
-                // System.err.println( e );
-                this.exception = e;
-                // this.result = new Value.Obj( e );
-            }
-        }
-    }
-
     public static void updateEnvironment(EnvironmentUpdateInterface host)
         throws java.rmi.RemoteException {
         boolean doUpdate = true;
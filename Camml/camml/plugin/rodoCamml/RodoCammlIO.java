@@ -38,6 +38,7 @@ package camml.plugin.rodoCamml;
 
 import cdms.core.*;
 import cdms.core.VectorFN.FastDiscreteVector;
+import camml.core.library.DataCache;
 
 import java.io.*;
 
@@ -122,19 +123,32 @@ public class RodoCammlIO {
 
 
 
-    /** return the vector specified by filename */
-    public static Value.Vector load( String filename ) throws java.io.IOException
+    /** Header of a .cas file : variable names, number of samples and arity of each variable. */
+    protected static class Header
     {
-        // open up a file.
-        StreamTokenizer tokenizer = new StreamTokenizer( new BufferedReader(new FileReader(filename)));
+        int numSamples;
+        String[] variableName;
+        int[] arity;
+    }
+    
+    /** Create a tokenizer to read a .cas file. */
+    protected static StreamTokenizer makeTokenizer( Reader reader )
+    {
+        StreamTokenizer tokenizer = new StreamTokenizer( reader );
         tokenizer.wordChars('_','_');  // add underscore to list of word characters.c
         // Tell the tokenizer to view the '%' char as the start of a comment.
         tokenizer.commentChar('%');
 
         // Tell the tokenizer that end of line characters are NOT significant.
         tokenizer.eolIsSignificant( false );
-
-
+        return tokenizer;
+    }
+    
+    /** Read the header of a .cas file from tokenizer. */
+    protected static Header readHeader( StreamTokenizer tokenizer ) throws IOException
+    {
+        Header header = new Header();
+        
         // Read in numVariables.
         int numVariables;
         if ( tokenizer.nextToken() != StreamTokenizer.TT_NUMBER ) {
@@ -145,12 +159,11 @@ public class RodoCammlIO {
 
 
         // Read in numSamples
-        int numSamples;
         if ( tokenizer.nextToken() != StreamTokenizer.TT_NUMBER ) {
             throw new RuntimeException("Parse error on line" + tokenizer.lineno()
                                        + " : int expected" );
         }
-        numSamples = (int)tokenizer.nval;
+        header.numSamples = (int)tokenizer.nval;
     
         /////////////////////////////////////////////////////////////////
         // Read in names for each variable.                            //
@@ -175,6 +188,7 @@ public class RodoCammlIO {
                 variableName[i] = "v"+i;
             }
         }
+        header.variableName = variableName;
         
 
         // Read in the arity for each variable
@@ -186,30 +200,58 @@ public class RodoCammlIO {
             }
             arity[i] = (int)tokenizer.nval;
         }
+        header.arity = arity;
+        
+        return header;
+    }
+    
+    /** 
+     * Read the next value of variable j (sample i) from tokenizer.  Returns the value, or
+     * -(value+1) if the value is an intervention ("*value").
+     */
+    protected static int readValue( StreamTokenizer tokenizer, Header header, int i, int j )
+        throws IOException
+    {
+        tokenizer.nextToken();
+        boolean intervene = false;
+        if (tokenizer.ttype == '*') {
+            intervene = true;
+            tokenizer.nextToken();
+        }
+        else if (tokenizer.ttype != StreamTokenizer.TT_NUMBER ) {
+            throw new RuntimeException("Parse error on line" + tokenizer.lineno()
+                                       + " : int expected");
+        }
+        
+        int x = (int)tokenizer.nval;
+        if ( x >= header.arity[j] || x < 0 ) {
+            throw new RuntimeException( "data["+i+"]["+j+"] = "+x
+                                        + " out of range (0,"+header.arity[j]+").  On line "
+                                        + tokenizer.lineno() );
+        }
+        return intervene ? -(x+1) : x;
+    }
 
+    /** return the vector specified by filename */
+    public static Value.Vector load( String filename ) throws java.io.IOException
+    {
+        // open up a file.
+        StreamTokenizer tokenizer = 
+            makeTokenizer( new BufferedReader(new FileReader(filename)) );
+        Header header = readHeader( tokenizer );
+        int numVariables = header.arity.length;
+        int numSamples = header.numSamples;
+        String[] variableName = header.variableName;
+        int[] arity = header.arity;
 
         // Read in the data.  [j][i] seems reversed.  This allows us to make a multiCol vector.
         int[][] data = new int[ numVariables ][ numSamples ];
         ValueStatus[][] status = new ValueStatus[numVariables][];
         for ( int i = 0; i < numSamples; i++ ) {
             for ( int j = 0; j < numVariables; j++ ) {
-                tokenizer.nextToken();
-                boolean intervene = false;
-                if (tokenizer.ttype == '*') {
-                    intervene = true;
-                    tokenizer.nextToken();
-                }
-                else if (tokenizer.ttype != StreamTokenizer.TT_NUMBER ) {
-                    throw new RuntimeException("Parse error on line" + tokenizer.lineno()
-                                               + " : int expected");
-                }
-        
-                data[j][i] = (int)tokenizer.nval;
-                if ( data[j][i] >= arity[j] || data[j][i] < 0 ) {
-                    throw new RuntimeException( "data["+i+"]["+j+"] = "+data[j][i]
-                                                + " out of range (0,"+arity[j]+").  On line "
-                                                + tokenizer.lineno() );
-                }
+                int x = readValue( tokenizer, header, i, j );
+                boolean intervene = x < 0;
+                data[j][i] = intervene ? -x-1 : x;
 
                 // Mark intervention data 
                 if (intervene) {
@@ -251,6 +293,40 @@ public class RodoCammlIO {
     
     }
     
+    /**
+     * Read filename in a single pass into a DataCache.Encoder.  Values and types are the same
+     * as those returned by load(filename), but each value is stored in 1 or 2 bytes as it is
+     * read instead of in an int[] per variable.
+     */
+    public static DataCache.Encoder loadEncoded( String filename ) throws IOException
+    {
+        Reader reader = new BufferedReader( new FileReader(filename) );
+        try {
+            StreamTokenizer tokenizer = makeTokenizer( reader );
+            Header header = readHeader( tokenizer );
+            int numVariables = header.arity.length;
+            
+            Type.Discrete[] type = new Type.Discrete[numVariables];
+            for ( int j = 0; j < numVariables; j++ ) {
+                type[j] = new Type.Discrete(0,header.arity[j]-1,false,false,false,false);
+            }
+            
+            DataCache.Encoder encoder = 
+                new DataCache.Encoder( header.variableName, type, header.numSamples );
+            for ( int i = 0; i < header.numSamples; i++ ) {
+                for ( int j = 0; j < numVariables; j++ ) {
+                    int x = readValue( tokenizer, header, i, j );
+                    if ( x < 0 ) { encoder.put( j, -x-1, true ); }
+                    else { encoder.put( j, x, false ); }
+                }
+                encoder.nextRow();
+            }
+            return encoder;
+        } finally {
+            reader.close();
+        }
+    }
+    
 
 
 
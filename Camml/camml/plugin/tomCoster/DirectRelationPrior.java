@@ -312,8 +312,12 @@ public class DirectRelationPrior implements RelationPrior {
     
     /** Return log probability of relationship betwee nodeI and nodeJ in the given tom.. */
     public double relationCost( TOM tom ){
-        boolean isArc = tom.isArc(nodeI,nodeJ);
-        boolean before = tom.before(nodeI,nodeJ);
+        return relationCost( tom.isArc(nodeI,nodeJ), tom.before(nodeI,nodeJ) );
+    }
+
+    /** Return log probability of relationship between nodeI and nodeJ given an arc is
+     *  (or is not) present and nodeI is (or is not) before nodeJ in the total ordering. */
+    public double relationCost( boolean isArc, boolean before ){
         if ( isArc && before ) { return logPDirect[D.arcIJ.ordinal()]; }
         else if ( isArc && !before ) { return logPDirect[D.arcJI.ordinal()]; }
         else if ( !isArc && before ) { return logPDirect[D.noArcIJ.ordinal()]; }
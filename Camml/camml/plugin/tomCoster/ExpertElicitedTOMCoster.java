@@ -446,6 +446,7 @@ public class ExpertElicitedTOMCoster extends DefaultTOMCosterImplementation {
         int n = numNodes;
         if (n == -1) {throw new RuntimeException("n not set, use set {n = x;}"); }
         if (edPriorDAG == null) {edPriorDAG = new boolean[n][n];}
+        edTier = null;
         
         while (true) {
             if (st.nextToken() == '}') {break;};
@@ -658,20 +659,174 @@ public class ExpertElicitedTOMCoster extends DefaultTOMCosterImplementation {
     }
 
     
-    //    public double costToSwapOrder(TOM tom, int node1, int node2) {
-    //        // TODO Auto-generated method stub
-    //        return 0;
-    //    }
-    //
-    //    public double costToToggleArc(TOM tom, int node1, int node2) {
-    //        // TODO Auto-generated method stub
-    //        return 0;
-    //    }
-    //
-    //    public double costToToggleArcs(TOM tom, int[] node1, int[] node2) {
-    //        // TODO Auto-generated method stub
-    //        return 0;
-    //    }
+    /** tier[i] is the tier node i is placed on by convertMatrix(edPriorDAG).
+     *  Calculated as required by getTiers(). */
+    private transient int[] edTier;
+
+    /** Return tier of each node in edPriorDAG, see convertMatrix() */
+    protected int[] getTiers() {
+        if ( edTier == null ) {
+            int[][] tiers = convertMatrix(edPriorDAG);
+            int[] tier = new int[numNodes];
+            for ( int i = 0; i < tiers.length; i++ ) {
+                for ( int j = 0; j < tiers[i].length; j++ ) { tier[tiers[i][j]] = i; }
+            }
+            edTier = tier;
+        }
+        return edTier;
+    }
+
+    /** Return 1 if nodeI is on a later tier than nodeJ, else 0. <br>
+     *  generate() performs a stable sort of the total order by tier, so 
+     *  kendallTau(order,generate(tiers,order)) is the number of pairs in order 
+     *  which are misordered in this sense. */
+    private int misordered( int[] tier, int nodeI, int nodeJ ) {
+        return tier[nodeI] > tier[nodeJ] ? 1 : 0;
+    }
+
+    /** Return the ed, undirected kt and direct relation cost of the pair (nodeI,nodeJ) given 
+     *  an arc is (or is not) present and nodeI is (or is not) before nodeJ. <br>
+     *  All these costs are purely pairwise, so changing a pair only changes its pairCost. */
+    private double pairCost( int nodeI, int nodeJ, boolean isArc, boolean before ) {
+        double cost = 0;
+        if ( runEDPrior ) {
+            if ( edPriorDAG[nodeJ][nodeI] != (isArc && before) ) { cost += edPriorPenalty; }
+            if ( edPriorDAG[nodeI][nodeJ] != (isArc && !before) ) { cost += edPriorPenalty; }
+        }
+        if ( runKTPrior ) {
+            if ( (edPriorDAG[nodeI][nodeJ] || edPriorDAG[nodeJ][nodeI]) != isArc ) {
+                cost += ktPriorPenalty;
+            }
+        }
+        if ( runDirectRelationPrior || runDefaultPrior ) {
+            if ( nodeI > nodeJ ) { cost += directPrior[nodeI][nodeJ].relationCost(isArc,before); }
+            else { cost += directPrior[nodeJ][nodeI].relationCost(isArc,!before); }
+        }
+        return cost;
+    }
+
+    /** Change in pairCost if the order of nodeI and nodeJ in tom is reversed. */
+    private double costToReverse( TOM tom, int nodeI, int nodeJ ) {
+        boolean isArc = tom.isArc(nodeI,nodeJ);
+        boolean before = tom.before(nodeI,nodeJ);
+        return pairCost(nodeI,nodeJ,isArc,!before) - pairCost(nodeI,nodeJ,isArc,before);
+    }
+
+    /** Return the cost of all indirect priors involving a node at or after position pos
+     *  in the total order.  As ancestors always precede a node, a change to tom which
+     *  only alters arcs into nodes at or after pos cannot change any other indirect cost. */
+    private double indirectCost( TOM tom, int pos ) {
+        double indirectCost = 0;
+        for (int i = 0; i < numNodes; i++) {
+            boolean afterI = tom.getNodePos(i) >= pos;
+            for (int j = 0; j < i; j++) {
+                IndirectRelationPrior p2 = indirectPrior[i][j];
+                if ( p2.priorSet && (afterI || tom.getNodePos(j) >= pos) ) {
+                    indirectCost += p2.relationCost(tom);
+                }
+            }
+        }
+        return indirectCost;
+    }
+
+    /** Return cost(tom.swapOrder(node1,node2)) - cost(tom). <br>
+     *  Only pairs containing node1 or node2 and a node between them change order, so only
+     *  these pairs are recosted.  Indirect priors are recosted for nodes from node1 or
+     *  node2 onwards. */
+    public double costToSwapOrder( TOM tom, int node1, int node2 ) {
+        if ( node1 == node2 ) { return 0; }
+
+        // Make sure a is before b.
+        int a = node1, b = node2;
+        if ( tom.before(b,a) ) { a = node2; b = node1; }
+        int posA = tom.getNodePos(a);
+        int posB = tom.getNodePos(b);
+
+        // a moves after, and b moves before every node between them.
+        double cost = costToReverse(tom,a,b);
+        for ( int pos = posA+1; pos < posB; pos++ ) {
+            int c = tom.nodeAt(pos);
+            cost += costToReverse(tom,a,c) + costToReverse(tom,b,c);
+        }
+
+        // Change in Kendall Tau distance between tom and nearest expert compatible order.
+        if ( runKTPrior ) {
+            int[] tier = getTiers();
+            int kt = misordered(tier,b,a) - misordered(tier,a,b);
+            for ( int pos = posA+1; pos < posB; pos++ ) {
+                int c = tom.nodeAt(pos);
+                kt += misordered(tier,c,a) + misordered(tier,b,c)
+                    - misordered(tier,a,c) - misordered(tier,c,b);
+            }
+            if ( kt != 0 ) { cost += kt * ktPriorPenalty; }
+        }
+
+        if ( runIndirectRelationPrior ) {
+            TOM tom2 = (TOM)tom.clone();
+            tom2.swapOrder( node1, node2, true );
+            cost += indirectCost(tom2,posA) - indirectCost(tom,posA);
+        }
+        return cost;
+    }
+
+    /** Return cost(tom with arc toggled) - cost(tom). <br>
+     *  Only the pair (node1,node2) and indirect priors from node1 or node2 onwards are 
+     *  recosted. */
+    public double costToToggleArc( TOM tom, int node1, int node2 ) {
+        boolean isArc = tom.isArc(node1,node2);
+        boolean before = tom.before(node1,node2);
+        double cost = pairCost(node1,node2,!isArc,before) - pairCost(node1,node2,isArc,before);
+
+        if ( runIndirectRelationPrior ) {
+            int pos = Math.max( tom.getNodePos(node1), tom.getNodePos(node2) );
+            double oldCost = indirectCost(tom,pos);
+
+            // toggle arc.
+            if ( isArc ) { tom.removeArc(node1,node2); }
+            else { tom.addArc( node1, node2 ); }
+
+            double newCost = indirectCost(tom,pos);
+
+            // untoggle arc.
+            if ( isArc ) { tom.addArc(node1,node2); }
+            else { tom.removeArc( node1, node2 ); }
+
+            cost += newCost - oldCost;
+        }
+        return cost;
+    }
+
+    /** Return cost(tom with arcs toggled) - cost(tom). <br>
+     *  Each pair (node1[i],node2[i]) must be distinct. */
+    public double costToToggleArcs( TOM tom, int node1[], int node2[] ) {
+        double cost = 0;
+        int pos = numNodes;
+        for ( int i = 0; i < node1.length; i++ ) {
+            boolean isArc = tom.isArc(node1[i],node2[i]);
+            boolean before = tom.before(node1[i],node2[i]);
+            cost += pairCost(node1[i],node2[i],!isArc,before) - 
+                pairCost(node1[i],node2[i],isArc,before);
+            pos = Math.min( pos, Math.max(tom.getNodePos(node1[i]), tom.getNodePos(node2[i])) );
+        }
+
+        if ( runIndirectRelationPrior ) {
+            // Toggle arcs in a copy of tom, removing arcs before adding new ones to avoid
+            // problems with Node.ExcessiveArcsException.
+            TOM tom2 = (TOM)tom.clone();
+            boolean toggled[] = new boolean[node1.length];
+            for ( int i = 0; i < node1.length; i++ ) {
+                if ( tom2.isArc(node1[i],node2[i]) ) { 
+                    tom2.removeArc(node1[i],node2[i]);
+                    toggled[i] = true;
+                }
+            }
+            for ( int i = 0; i < node1.length; i++ ) {
+                if (!toggled[i]) { tom2.addArc(node1[i],node2[i]); }
+            }
+            cost += indirectCost(tom2,pos) - indirectCost(tom,pos);
+        }
+        return cost;
+    }
 
     /** Add implied links to an arcMatrix */
     public static boolean[][] addImpliedConstraints(boolean[][] arcMatrix) {
@@ -970,72 +1125,6 @@ public class ExpertElicitedTOMCoster extends DefaultTOMCosterImplementation {
         return tiers;
     }    
     
-    /** "Optimised" version of costToToggleArc. */
-    public double costToToggleArc( TOM tom, int node1, int node2 ) {
-        if (runEDPrior || runKTPrior ) { 
-            return super.costToToggleArc(tom,node1,node2); 
-        }
-        
-        int n = tom.getNumNodes();
-        int min = node1, max = node2;
-        if (min > max) { int temp = min; min = max; max = temp;}
-        
-        
-        ////////////// Calc oldCost ///////////////
-        double directCost = 0; // Cost to state direct relationships.
-        double indirectCost = 0; // Cost to state indirect relationships.
-        if ( runDirectRelationPrior || runDefaultPrior) {
-            directCost = directPrior[max][min].relationCost(tom);
-        }
-
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < i; j++) {
-                if ( runIndirectRelationPrior ) {
-                    IndirectRelationPrior p2 = indirectPrior[i][j];
-                    if (p2.priorSet ) {
-                        double x = p2.relationCost(tom);
-                        indirectCost += x;
-                    }
-                }
-            }
-        }
-
-        double oldCost =  directCost + indirectCost;
-        ///////////////////////////////////////////
-        
-        // toggle arc.
-        if ( tom.isArc(node1,node2) ) { tom.removeArc(node1,node2); }
-        else { tom.addArc( node1, node2 ); }
-
-        ////////////// Calc newCost ///////////////
-        directCost = 0; // Cost to state direct relationships.
-        indirectCost = 0; // Cost to state indirect relationships.
-        if ( runDirectRelationPrior || runDefaultPrior) {
-            directCost = directPrior[max][min].relationCost(tom);
-        }
-
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < i; j++) {                
-                if ( runIndirectRelationPrior ) {
-                    IndirectRelationPrior p2 = indirectPrior[i][j];
-                    if (p2.priorSet ) {
-                        double x = p2.relationCost(tom);
-                        indirectCost += x;
-                    }
-                }
-            }
-        }
-
-        double newCost =  directCost + indirectCost;
-        ///////////////////////////////////////////
-
-        // untoggle arc.
-        if ( tom.isArc(node1,node2) ) { tom.removeArc(node1,node2); }
-        else { tom.addArc( node1, node2 ); }
-        
-        return newCost - oldCost;
-    }
-
 }
         
 
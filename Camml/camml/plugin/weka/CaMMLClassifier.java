@@ -36,8 +36,13 @@
 
 package camml.plugin.weka;
 
+import java.util.ArrayList;
 import java.util.Vector;
 import java.util.Enumeration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.io.*;
 
 import weka.core.*;
@@ -279,11 +284,12 @@ public class CaMMLClassifier extends Classifier
         Value.Structured msy = modelLearner.parameterize( Value.TRIV, data, data );    
         this.model = (Value.Model)msy.cmpnt(0);
         
-        // Netica does significantly faster/more accurate inference than my stochastic algorithm.
-        //  so if the model returnes is stochastic, convert it to Netica's exact method.
-        if ( this.model instanceof BNetStochastic ) {
+        // Exact inference is significantly faster/more accurate than my stochastic algorithm.
+        //  so if the model returned is a BNet (stochastic or Netica), convert it to a junction
+        //  tree model which is compiled once and shared by all classifications.
+        if ( this.model instanceof BNet ) {
             Type.Structured dataType = (Type.Structured)((Type.Model)this.model.t).dataSpace;
-            this.model = new camml.plugin.netica.BNetNetica( dataType );
+            this.model = new BNetExact( dataType );
         }
         
         this.params = msy.cmpnt(2);
@@ -308,9 +314,17 @@ public class CaMMLClassifier extends Classifier
         // Apply discreteFilter to instance.
         // NOTE: Missing value filter is NOT required as Bayes Networks can cope with missing vals.
         discreteFilter.input( instance );
-        Instance filteredInstance = discreteFilter.output( );
-        
+        return filteredDistribution( discreteFilter.output( ) );
+    }
+    
+    /** Class distribution of an instance which has already been passed through discreteFilter */
+    protected double[] filteredDistribution( Instance filteredInstance )
+        throws Exception { 
         
+        // Exact models give the full class distribution from a single propagation.
+        if ( model instanceof BNetExact ) {
+            return exactDistribution( filteredInstance );
+        }
         
         int classVariable = filteredInstance.classAttribute().index();
         
@@ -372,13 +386,82 @@ public class CaMMLClassifier extends Classifier
         
     }
     
-    public String toString()
+    /** 
+     * Class distribution of a (discretized) instance using the BNetExact model.  Missing values
+     * are left unobserved.
+     */
+    protected double[] exactDistribution( Instance filteredInstance )
     {
-        if ( model instanceof camml.plugin.netica.BNetNetica ) {
-            camml.plugin.netica.BNetNetica bNet = (camml.plugin.netica.BNetNetica)model;        
-            return bNet.toString( (Value.Vector)params, "NET_TITLE","COMMENT" );
+        int classVariable = filteredInstance.classIndex();
+        int[] evidence = new int[filteredInstance.numAttributes()];
+        for ( int i = 0; i < evidence.length; i++ ) {
+            if ( i == classVariable || filteredInstance.isMissing(i) ) { evidence[i] = -1; }
+            else { evidence[i] = (int)filteredInstance.value(i); }
         }
-        else if ( model instanceof BNet ) {
+        return ((BNetExact)model).distribution( (Value.Vector)params, evidence, classVariable );
+    }
+    
+    /**
+     * Calculates the class membership probabilities for every instance in instances. <br>
+     * For BNetExact models the junction tree is compiled once and shared, each row requires a
+     * single propagation and rows are classified in parallel.  Other models classify each
+     * row in turn.
+     *
+     * @param instances the instances to be classified
+     * @return predicted class probability distribution of each instance
+     * @exception Exception if there is a problem generating the prediction
+     */
+    public double[][] distributionsForInstances( Instances instances ) 
+        throws Exception {
+        
+        // discreteFilter is stateful, so all instances are filtered before classifying.
+        final Instance[] filtered = new Instance[instances.numInstances()];
+        for ( int i = 0; i < filtered.length; i++ ) {
+            discreteFilter.input( instances.instance(i) );
+            filtered[i] = discreteFilter.output();
+        }
+        
+        final double[][] dist = new double[filtered.length][];
+        if ( !(model instanceof BNetExact) ) {
+            for ( int i = 0; i < filtered.length; i++ ) {
+                dist[i] = filteredDistribution( filtered[i] );
+            }
+            return dist;
+        }
+        
+        // Compile junction tree before any threads start.
+        ((BNetExact)model).compile( (Value.Vector)params );
+        
+        // Each thread classifies every numThreads'th row.
+        final int numThreads = 
+            Math.max( 1, Math.min( filtered.length, Runtime.getRuntime().availableProcessors() ) );
+        ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+        try {
+            ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+            for ( int t = 0; t < numThreads; t++ ) {
+                final int offset = t;
+                futures.add( executor.submit( new Runnable() {
+                        public void run() {
+                            for ( int i = offset; i < filtered.length; i += numThreads ) {
+                                dist[i] = exactDistribution( filtered[i] );
+                            }
+                        }
+                    } ) );
+            }
+            for ( Future<?> f : futures ) { f.get(); }
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof Exception ) { throw (Exception)e.getCause(); }
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            executor.shutdown();
+        }
+        
+        return dist;
+    }
+    
+    public String toString()
+    {
+        if ( model instanceof BNet ) {
             return ((BNet)model).makeString( (Value.Vector)params );
         }
         else return "(" + model + "," + params + ")";
@@ -36,10 +36,14 @@
 
 package camml.plugin.weka;
 
+import java.io.File;
 import java.io.StringReader;
 
 import weka.core.*;
+import weka.core.converters.ArffLoader;
 import cdms.core.*;
+import camml.core.library.ColumnarVector;
+import camml.core.library.DataCache;
 import camml.plugin.netica.NeticaFn;
 import camml.plugin.rodoCamml.RodoCammlIO;
 
@@ -57,6 +61,13 @@ import weka.filters.unsupervised.attribute.ReplaceMissingValues;
  */
 public class Converter {
 
+    /**
+     * If true, load() reads .cas files and purely nominal .arff files in a single pass into
+     * compact byte/short columns (see DataCache.Encoder) instead of one value (or int) per
+     * cell.
+     */
+    public static boolean compactLoad = true;
+
     /** Create an Instances containing a multicol vector z and a single col vector x.
      *  'x' is set as the class variable. */
     public static Instances vectorToInstances(Value.Vector x, Value.Vector z) {
@@ -192,6 +203,12 @@ public class Converter {
      */
     public static Value.Vector instancesToVector(Instances instances) {
 
+        // Purely nominal data is packed straight into columns.
+        Value.Vector columnar = instancesToColumnar(instances);
+        if (columnar != null) {
+            return columnar;
+        }
+
         int numVars = instances.numAttributes();
 
         // allocate space for array of CDMS vectors 
@@ -217,20 +234,7 @@ public class Converter {
                 vecArray[i] = new VectorFN.FastContinuousVector(doubleArray);
             } else if (current.isNominal()) { // weka nominal -> cdms Type.Symbolic
 
-                // find the names of each symbolic state and create a type from them.
-                java.util.Enumeration states = current.enumerateValues();
-                int numStates = current.numValues();
-                String[] stateArray = new String[numStates];
-
-                for (int j = 0; j < numStates; j++) {
-                    stateArray[j] = (String) states.nextElement();
-                }
-
-                stateArray = camml.plugin.netica.NeticaFn.makeValidNeticaNames(
-                                                                               stateArray, true);
-                // create cdms Type.Symbolic
-                Type.Symbolic type = new Type.Symbolic(false, false, false,
-                                                       false, stateArray);
+                Type.Symbolic type = nominalType(current);
 
                 // Create the array of ints required to specify data.
                 double[] doubleArray = instances.attributeToDoubleArray(i);
@@ -260,6 +264,65 @@ public class Converter {
         return vec;
     }
 
+    /**
+     * Create a Type.Symbolic with the (Netica safe) names of each state of a nominal
+     * attribute.
+     */
+    protected static Type.Symbolic nominalType(Attribute attribute) {
+        java.util.Enumeration states = attribute.enumerateValues();
+        int numStates = attribute.numValues();
+        String[] stateArray = new String[numStates];
+
+        for (int j = 0; j < numStates; j++) {
+            stateArray[j] = (String) states.nextElement();
+        }
+
+        stateArray = camml.plugin.netica.NeticaFn.makeValidNeticaNames(
+                                                                       stateArray, true);
+        return new Type.Symbolic(false, false, false, false, stateArray);
+    }
+
+    /**
+     *  Convert weka instances to a ColumnarVector holding one int[] per attribute. <br>
+     *  Values are read directly from each instance, so the only copy made is the packed
+     *  int columns which node costing (see NodeCache) then uses without further conversion.
+     *  <br>
+     *  If any attribute is not nominal or any value is missing, null is returned.
+     */
+    public static ColumnarVector instancesToColumnar(Instances instances) {
+
+        int numVars = instances.numAttributes();
+        int numRows = instances.numInstances();
+
+        Type[] typeArray = new Type[numVars];
+        String[] nameArray = new String[numVars];
+        for (int i = 0; i < numVars; i++) {
+            Attribute current = instances.attribute(i);
+            if (!current.isNominal()) {
+                return null;
+            }
+            typeArray[i] = nominalType(current);
+            nameArray[i] = current.name();
+        }
+        nameArray = camml.plugin.netica.NeticaFn.makeValidNeticaNames(
+                                                                      nameArray, true);
+
+        // Each row is visited once, filling all columns.
+        int[][] column = new int[numVars][numRows];
+        for (int j = 0; j < numRows; j++) {
+            Instance instance = instances.instance(j);
+            if (instance.hasMissingValue()) {
+                return null;
+            }
+            for (int i = 0; i < numVars; i++) {
+                column[i][j] = (int) instance.value(i);
+            }
+        }
+
+        Type.Vector vType = new Type.Vector(new Type.Structured(typeArray, nameArray));
+        return ColumnarVector.wrap(vType, column);
+    }
+
     /**
      *  convert a single weka instance to a CDMS Structure  <br>
      *   weka attribute | cdms type        <br>
@@ -316,17 +379,94 @@ public class Converter {
         return valStruct;
     }
 
+    /**
+     * Read a purely nominal .arff file one instance at a time into a DataCache.Encoder.  The
+     * values and types are the same as those instancesToVector() would create.  null is
+     * returned if any attribute is not nominal or any value is missing, in which case the
+     * file must be read (and filtered) by weka as usual.
+     */
+    public static DataCache.Encoder loadEncodedArff(File file) throws java.io.IOException {
+        java.io.Reader reader = new java.io.BufferedReader(new java.io.FileReader(file));
+        try {
+            ArffLoader.ArffReader arff = new ArffLoader.ArffReader(reader, 1);
+            Instances structure = arff.getStructure();
+
+            int numVars = structure.numAttributes();
+            Type.Discrete[] typeArray = new Type.Discrete[numVars];
+            String[] nameArray = new String[numVars];
+            for (int i = 0; i < numVars; i++) {
+                Attribute current = structure.attribute(i);
+                if (!current.isNominal()) {
+                    return null;
+                }
+                typeArray[i] = nominalType(current);
+                nameArray[i] = current.name();
+            }
+            nameArray = NeticaFn.makeValidNeticaNames(nameArray, true);
+
+            // Each instance is encoded then discarded.
+            DataCache.Encoder encoder = new DataCache.Encoder(nameArray, typeArray, 1024);
+            Instance instance;
+            while ((instance = arff.readInstance(structure)) != null) {
+                if (instance.hasMissingValue()) {
+                    return null;
+                }
+                for (int i = 0; i < numVars; i++) {
+                    encoder.put(i, (int) instance.value(i), false);
+                }
+                encoder.nextRow();
+            }
+            return encoder;
+        } finally {
+            reader.close();
+        }
+    }
+
     /**
      * load works out from the file extansion which type of file to try to load. 
      * Files loaded in the .arff format can automatically be discretized and have missing values
      *  replaced.  This is done through weka and something similar should be implemented in CDMS.
      * <br>
      * Currently .arff -> weka, .cas -> RodoCamml <br>     
-     * Friedman format not implemented.
+     * Friedman format not implemented. <br>
+     * If DataCache.cacheDirectory is set, discrete datasets are stored in a compact binary cache
+     * and later loads of the same (unchanged) file are memory mapped from the cache. <br>
+     * If compactLoad is set, .cas and purely nominal .arff files are read in a single pass
+     * into compact columns which are stored in the cache directly.
      */
     public static Value.Vector load(String fileName, boolean discretize,
                                     boolean fixMissing) throws java.io.FileNotFoundException,
                                                                java.io.IOException, Exception {
+        File file = new File(fileName);
+        String options = "discretize=" + discretize + ",fixMissing=" + fixMissing;
+        File cacheDir = (DataCache.cacheDirectory == null) ? null
+            : new File(DataCache.cacheDirectory);
+        if (cacheDir != null && file.exists()) {
+            Value.Vector cached = DataCache.load(cacheDir, file, options);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        // Discrete data is encoded as it is read, so no other copy is made.
+        DataCache.Encoder encoder = null;
+        if (compactLoad && fileName.endsWith(".cas")) {
+            encoder = RodoCammlIO.loadEncoded(fileName);
+        } else if (compactLoad && fileName.endsWith(".arff")) {
+            // Filters do not change purely nominal data without missing values.
+            encoder = loadEncodedArff(file);
+        }
+        if (encoder != null) {
+            if (cacheDir != null) {
+                DataCache.store(cacheDir, file, options, encoder);
+                Value.Vector cached = DataCache.load(cacheDir, file, options);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            return encoder.toVector();
+        }
+
         // Load data from appropriately file type.
         final Value.Vector data;
         if (fileName.endsWith(".arff")) {
@@ -355,6 +495,11 @@ public class Converter {
         } else {
             throw new RuntimeException("Unknown file format : " + fileName);
         }
+
+        // Use the mapped copy so the parsed data need not be kept in memory.
+        if (cacheDir != null && DataCache.store(cacheDir, file, options, data)) {
+            return DataCache.load(cacheDir, file, options);
+        }
         return data;
     }
 
@@ -45,11 +45,17 @@
 
 package camml.test.core.library;
 
+import camml.core.library.LongDoubleCache;
 import camml.core.library.extensionCounter.BruteForceExtensionCounter;
 import camml.core.library.extensionCounter.DynamicCounter;
 import camml.core.library.extensionCounter.ExtensionCounterLib;
 import camml.core.library.extensionCounter.UnlabelledGraph;
 import camml.core.library.extensionCounter.UnlabelledGraph64;
+import camml.core.search.CaseInfo;
+import camml.core.search.SearchDataCreator;
+import camml.core.search.TOM;
+import camml.core.search.TOMCoster;
+import camml.core.search.TOMHash;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -277,4 +283,61 @@ public class TestExtensionCounter extends TestCase {
             assertTrue("Exception not properly thrown",false);
         } catch (Exception e) {/* Correct behaviour. >64 bits needed to pass this test.*/}
     }    
+
+    /** LongDoubleCache should return stored values and never exceed its capacity. */
+    public final void testLongDoubleCache() {
+        LongDoubleCache cache = new LongDoubleCache(100);
+        assertTrue(Double.isNaN(cache.get(7)));
+        cache.put(7,1.5);
+        assertEquals(1.5,cache.get(7),0);
+        cache.put(7,2.5);
+        assertEquals(2.5,cache.get(7),0);
+        assertEquals(1,cache.size());
+        
+        for (long i = 0; i < 10000; i++) { cache.put(i*31,i); }
+        assertTrue(cache.size() <= cache.capacity());
+        for (long i = 0; i < 10000; i++) {
+            double d = cache.get(i*31);
+            assertTrue(Double.isNaN(d) || d == i);
+        }
+        cache.clear();
+        assertEquals(0,cache.size());
+    }
+    
+    /** Incremental DAGCoster deltas should match those found by counting the full TOM. */
+    public final void testIncrementalDAGCoster() {
+        TOMCoster.DAGCoster coster = new TOMCoster.DAGCoster(0.5);
+        java.util.Random rand = new java.util.Random(123);
+        CaseInfo caseInfo = new CaseInfo( new TOMHash(rand,12), null, 
+                                          SearchDataCreator.generateData(1,12), null, null, -1, null );
+        boolean incremental = TOMCoster.DAGCoster.incremental;
+        try {
+            for (int t = 0; t < 20; t++) {
+                TOM tom = new TOM(caseInfo);
+                tom.randomOrder(rand);
+                tom.randomArcs(rand,0.15);
+                for (int i = 0; i < tom.getNumNodes(); i++) {
+                    for (int j = i+1; j < tom.getNumNodes(); j++) {
+                        TOMCoster.DAGCoster.incremental = false;
+                        double full = coster.costToToggleArc(tom,i,j);
+                        double fullSwap = tom.isArc(i,j) ? coster.costToSwapOrder(tom,i,j) : 0;
+                        TOMCoster.DAGCoster.incremental = true;
+                        assertEquals(full,coster.costToToggleArc(tom,i,j),1e-8);
+                        if (tom.isArc(i,j)) {
+                            assertEquals(fullSwap,coster.costToSwapOrder(tom,i,j),1e-8);
+                        }
+                    }
+                }
+                
+                int[] node1 = new int[] {0,2,4};
+                int[] node2 = new int[] {1,3,5};
+                TOMCoster.DAGCoster.incremental = false;
+                double full = coster.costToToggleArcs(tom,node1,node2);
+                TOMCoster.DAGCoster.incremental = true;
+                assertEquals(full,coster.costToToggleArcs(tom,node1,node2),1e-8);
+            }
+        } finally {
+            TOMCoster.DAGCoster.incremental = incremental;
+        }
+    }
 }
@@ -37,9 +37,25 @@
 
 package camml.test.core.library;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import camml.core.library.ColumnarVector;
+import camml.core.library.ContingencyIndex;
+import camml.core.library.DataCache;
+import camml.core.library.EMap;
 import camml.core.library.Library;
+import camml.core.library.LongIndexMap;
+import camml.core.library.PMap;
+import camml.core.library.SelectedVector;
+import camml.core.models.cpt.CPT;
+import camml.core.models.cpt.CPTLearner;
+import camml.core.models.multinomial.MultinomialLearner;
 import camml.plugin.rodoCamml.RodoCammlIO;
+import cdms.core.Type;
 import cdms.core.Value;
+import cdms.core.VectorFN;
 import junit.framework.*;
 
 
@@ -71,4 +87,235 @@ public class TestLibrary extends TestCase {
         System.out.println("join.t = " + join.t);
     }
 
+    /** Test ColumnarVector gives the same sufficient statistics as the original data. */
+    public final void testColumnarVector() throws Exception {
+        Value.Vector data = RodoCammlIO.load("camml/test/AsiaCases.1000.cas");
+        ColumnarVector colData = ColumnarVector.toColumnar(data);
+        assertNotNull( colData );
+        assertEquals( data.length(), colData.length() );
+        for ( int i = 0; i < colData.getNumCmpnts(); i++ ) {
+            assertEquals( data.cmpnt(i), colData.cmpnt(i) );
+        }
+        
+        // CPT counts should not depend on the underlying representation.
+        int[] parents = new int[] {0,3,5};
+        Value.Vector x = data.cmpnt(7);
+        Value.Vector z = new SelectedVector(data,null,parents);
+        Value.Model childModel = MultinomialLearner.getMultinomialModel(0,1);
+        int[][] bounds = CPTLearner.getBounds(z);
+        CPT cpt = new CPT( childModel, bounds[0], bounds[1] );
+        int[][] expected = cpt.getSufficientArray( x, z );
+        int[][] tally = cpt.getSufficientArray( colData.cmpnt(7), colData.select(parents) );
+        for ( int i = 0; i < expected.length; i++ ) {
+            assertTrue( java.util.Arrays.equals( expected[i], tally[i] ) );
+        }
+        
+        // Counts from a ContingencyIndex should match a full scan, both when built from
+        // data and when marginalised from a larger cached table.
+        ContingencyIndex index = colData.makeIndex();
+        assertTrue( index.getNumDistinctRows() < data.length() );
+        int[][] fromRows = index.getSufficientArray( 7, parents );
+        int[][] fromTable = index.getSufficientArray( 7, new int[] {0,5} );
+        int[][] expected2 = new CPT( childModel, new int[] {0,0}, new int[] {1,1} )
+            .getSufficientArray( x, new SelectedVector(data,null,new int[] {0,5}) );
+        assertEquals( 1, index.tablesBuilt );
+        assertEquals( 1, index.tablesMarginalised );
+        for ( int i = 0; i < expected.length; i++ ) {
+            assertTrue( java.util.Arrays.equals( expected[i], fromRows[i] ) );
+            assertTrue( java.util.Arrays.equals( expected2[i], fromTable[i] ) );
+        }
+        
+        // Weighted data cannot be stored in columnar form.
+        assertNull( ColumnarVector.toColumnar( Library.makeWeightedSummaryVec(data) ) );
+    }
+
+    /** Rows too wide to pack into a single long should still be merged correctly. */
+    public final void testContingencyIndexWide() {
+        int numVars = 40, numRows = 300, numPatterns = 17;
+        java.util.Random rand = new java.util.Random(123);
+        int[][] pattern = new int[numPatterns][numVars];
+        for ( int p = 0; p < numPatterns; p++ ) {
+            for ( int i = 0; i < numVars; i++ ) { pattern[p][i] = rand.nextInt(7); }
+        }
+        Type[] typeArray = new Type[numVars];
+        String[] nameArray = new String[numVars];
+        int[][] column = new int[numVars][numRows];
+        int[] patternCount = new int[numPatterns];
+        for ( int i = 0; i < numVars; i++ ) {
+            typeArray[i] = new Type.Discrete(0,6,false,false,false,false);
+            nameArray[i] = "v" + i;
+        }
+        for ( int j = 0; j < numRows; j++ ) {
+            int p = j < numPatterns ? j : rand.nextInt(numPatterns);
+            patternCount[p]++;
+            for ( int i = 0; i < numVars; i++ ) { column[i][j] = pattern[p][i]; }
+        }
+        ColumnarVector colData = ColumnarVector.wrap(
+            new Type.Vector(new Type.Structured(typeArray,nameArray)), column );
+
+        // Each pattern occurs at least once, so it is one distinct row.
+        ContingencyIndex index = colData.makeIndex();
+        assertEquals( numPatterns, index.getNumDistinctRows() );
+        int[][] tally = index.getSufficientArray( 39, new int[] {0} );
+        int[][] expected = new int[7][7];
+        for ( int p = 0; p < numPatterns; p++ ) {
+            expected[pattern[p][39]][pattern[p][0]] += patternCount[p];
+        }
+        for ( int i = 0; i < expected.length; i++ ) {
+            assertTrue( java.util.Arrays.equals( expected[i], tally[i] ) );
+        }
+    }
+
+    /** A dataset read back from a DataCache should match the original. */
+    public final void testDataCache() throws Exception {
+        java.io.File dir = java.io.File.createTempFile( "dataCache", "" );
+        dir.delete();
+        java.io.File source = new java.io.File( dir, "small.cas" );
+        dir.mkdirs();
+        java.io.PrintWriter out = new java.io.PrintWriter( new java.io.FileWriter(source) );
+        out.println( "3 4\na b c\n2 300 2\n0 1 1\n1 *299 0\n0 0 1\n1 2 *1" );
+        out.close();
+        
+        java.io.File asia = new java.io.File( "camml/test/AsiaCases.1000.cas" );
+        for ( java.io.File file : new java.io.File[] { source, asia } ) {
+            Value.Vector data = RodoCammlIO.load( file.getPath() );
+            assertNull( DataCache.load( dir, file, "" ) );
+            assertTrue( DataCache.store( dir, file, "", data ) );
+            Value.Vector cached = DataCache.load( dir, file, "" );
+            assertNotNull( cached );
+            assertEquals( data.t.toString(), cached.t.toString() );
+            assertEquals( data.length(), cached.length() );
+            for ( int i = 0; i < ((Value.Structured)data.elt(0)).length(); i++ ) {
+                for ( int j = 0; j < data.length(); j++ ) {
+                    Value x = data.cmpnt(i).elt(j);
+                    Value y = cached.cmpnt(i).elt(j);
+                    assertEquals( data.cmpnt(i).intAt(j), cached.cmpnt(i).intAt(j) );
+                    assertEquals( x.status(), y.status() );
+                }
+            }
+            assertNull( DataCache.load( dir, file, "other options" ) );
+        }
+        
+        // Mapped columns without interventions may be used by ColumnarVector.
+        ColumnarVector colData = 
+            ColumnarVector.toColumnar( DataCache.load( dir, asia, "" ) );
+        assertNotNull( colData );
+        assertEquals( RodoCammlIO.load( asia.getPath() ).cmpnt(3), colData.cmpnt(3) );
+        
+        // Data encoded while the file is read is cached identically.
+        DataCache.store( dir, source, "encoded", RodoCammlIO.loadEncoded( source.getPath() ) );
+        Value.Vector encoded = DataCache.load( dir, source, "encoded" );
+        Value.Vector data = RodoCammlIO.load( source.getPath() );
+        assertEquals( data.t.toString(), encoded.t.toString() );
+        for ( int i = 0; i < data.length(); i++ ) { assertEquals( data.elt(i), encoded.elt(i) ); }
+        
+        // A truncated cache is ignored, and no temporary files are left behind.
+        java.io.RandomAccessFile raf = 
+            new java.io.RandomAccessFile( DataCache.cacheFile( dir, source, "encoded" ), "rw" );
+        raf.setLength( raf.length() - 1 );
+        raf.close();
+        assertNull( DataCache.load( dir, source, "encoded" ) );
+        for ( java.io.File f : dir.listFiles() ) { assertFalse( f.getName().endsWith(".tmp") ); }
+        
+        // Modifying the source invalidates the cache.
+        source.setLastModified( source.lastModified() - 10000 );
+        assertNull( DataCache.load( dir, source, "" ) );
+        
+        for ( java.io.File f : dir.listFiles() ) { f.delete(); }
+        dir.delete();
+    }
+
+    /** LongIndexMap should behave like a HashMap<Long,Integer> */
+    public final void testLongIndexMap() {
+        java.util.Random rand = new java.util.Random(123);
+        LongIndexMap map = new LongIndexMap();
+        java.util.HashMap<Long,Integer> expected = new java.util.HashMap<Long,Integer>();
+        for ( int i = 0; i < 10000; i++ ) {
+            // Small keys so some are repeated, large keys to test hashing.
+            long key = (i % 2 == 0) ? rand.nextInt(2000) : rand.nextLong();
+            int value = rand.nextInt(100000);
+            map.put( key, value );
+            expected.put( key, value );
+        }
+        assertEquals( expected.size(), map.size() );
+        for ( Long key : expected.keySet() ) {
+            assertEquals( expected.get(key).intValue(), map.get(key) );
+        }
+        for ( int i = 0; i < 1000; i++ ) {
+            long key = rand.nextLong();
+            if ( !expected.containsKey(key) ) { assertEquals( -1, map.get(key) ); }
+        }
+        map.clear();
+        assertEquals( 0, map.size() );
+        assertEquals( -1, map.get(0) );
+    }
+
+
+    /** Square a discrete value, recording which threads were used. */
+    static class Square extends Value.Function {
+        private static final long serialVersionUID = 1L;
+        final java.util.Set<Thread> threads = 
+            java.util.Collections.synchronizedSet( new java.util.HashSet<Thread>() );
+        Square() { super( new Type.Function(Type.DISCRETE,Type.DISCRETE) ); }
+        public Value apply( Value v ) {
+            threads.add( Thread.currentThread() );
+            try { Thread.sleep(5); } catch ( InterruptedException e ) { }
+            int x = ((Value.Discrete)v).getDiscrete();
+            return new Value.Discrete( x * x );
+        }
+    }
+
+    /** pmap should return the same (ordered) results as emap. */
+    public final void testPMap() {
+        int[] x = new int[50];
+        for ( int i = 0; i < x.length; i++ ) { x[i] = i; }
+        Value.Vector vec = new VectorFN.FastDiscreteVector( x );
+
+        Square square = new Square();
+        Value.Vector expected = EMap._apply( square, vec );
+        Value.Function pmap4 = (Value.Function)PMap.pmapN.apply( new Value.Discrete(4) );
+        Value.Vector result = (Value.Vector)((Value.Function)pmap4.apply( square )).apply( vec );
+        assertEquals( expected.length(), result.length() );
+        for ( int i = 0; i < x.length; i++ ) { assertEquals( i*i, result.intAt(i) ); }
+        assertTrue( square.threads.size() > 1 );
+        
+        // Nested calls should not deadlock.
+        final Value.Function inner = (Value.Function)PMap.pmap.apply( new Square() );
+        Value.Function outer = new Value.Function( new Type.Function(Type.VECTOR,Type.VECTOR) ) {
+                private static final long serialVersionUID = 1L;
+                public Value apply( Value v ) { return inner.apply( v ); }
+            };
+        Value.Vector vecs = new VectorFN.FatVector( new Value[] {vec,vec,vec,vec,vec} );
+        Value.Vector nested = (Value.Vector)((Value.Function)pmap4.apply( outer )).apply( vecs );
+        for ( int i = 0; i < vecs.length(); i++ ) {
+            assertEquals( 49*49, ((Value.Vector)nested.elt(i)).intAt(49) );
+        }
+    }
+
+    /** pmapN called from another ForkJoinPool (eg. the common pool) should use its own pool. */
+    public final void testPMapFromOtherPool() throws Exception {
+        int[] x = new int[20];
+        for ( int i = 0; i < x.length; i++ ) { x[i] = i; }
+        final Value.Vector vec = new VectorFN.FastDiscreteVector( x );
+        final Square square = new Square();
+        final Value.Function pmap2 = (Value.Function)
+            ((Value.Function)PMap.pmapN.apply( new Value.Discrete(2) )).apply( square );
+        
+        ForkJoinPool other = new ForkJoinPool( 3 );
+        try {
+            Value.Vector result = other.submit( new Callable<Value.Vector>() {
+                    public Value.Vector call() { return (Value.Vector)pmap2.apply( vec ); }
+                } ).get();
+            for ( int i = 0; i < x.length; i++ ) { assertEquals( i*i, result.intAt(i) ); }
+        } finally {
+            other.shutdown();
+        }
+        for ( Thread t : square.threads ) {
+            assertTrue( t instanceof ForkJoinWorkerThread );
+            ForkJoinPool pool = ((ForkJoinWorkerThread)t).getPool();
+            assertNotSame( other, pool );
+            assertEquals( 2, pool.getParallelism() );
+        }
+    }
+
 }
@@ -0,0 +1,270 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// JUnit test routines for BNetExact model
+//
+
+// File: TestBNetExact.java
+// Author: rodo@dgs.monash.edu.au
+
+package camml.test.core.models.bNet;
+
+import java.util.Random;
+
+import camml.core.models.ModelLearner.LearnerException;
+import camml.core.models.bNet.BNet;
+import camml.core.models.bNet.BNetExact;
+import camml.core.models.bNet.BNetStochastic;
+import camml.core.search.SearchDataCreator;
+import camml.core.search.SearchPackage;
+import camml.core.search.TOM;
+import cdms.core.Type;
+import cdms.core.Value;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Compare exact inference in BNetExact with brute force enumeration of the joint distribution.
+ */
+public class TestBNetExact extends TestCase {
+
+    protected final static Random rand = new Random(123);
+
+    /** Data used to parameterize networks. */
+    protected Value.Vector data;
+
+    /** Type of each variable. */
+    protected Type.Discrete[] type;
+
+    public TestBNetExact(String name) { super(name); }
+
+    public static Test suite()
+    {
+        return new TestSuite( TestBNetExact.class );
+    }
+
+    protected void setUp()
+    {
+        data = SearchDataCreator.generateWallaceKorbStyleDataset(rand,100,2,2,2);
+        Type.Structured sType = (Type.Structured)((Type.Vector)data.t).elt;
+        type = new Type.Discrete[sType.cmpnts.length];
+        for ( int i = 0; i < type.length; i++ ) { type[i] = (Type.Discrete)sType.cmpnts[i]; }
+    }
+
+    /** Create parameters for a random (fairly dense) network. */
+    protected Value.Vector randomParams() throws LearnerException
+    {
+        TOM tom = new TOM(data);
+        tom.randomOrder(rand);
+        tom.randomArcs(rand,0.4);
+        return tom.makeParameters(SearchPackage.mmlCPTLearner);
+    }
+
+    /** Structure holding state (as indices from LWB), -1 is unobserved */
+    protected Value.Structured makeStruct( int[] state, boolean[] intervened )
+    {
+        Value[] v = new Value[state.length];
+        for ( int i = 0; i < v.length; i++ ) {
+            if ( state[i] == -1 ) {
+                v[i] = new Value.Discrete( type[i], Value.S_UNOBSERVED, 0 );
+            }
+            else {
+                v[i] = new Value.Discrete( type[i], intervened[i] ? Value.S_INTERVENTION :
+                                           Value.S_PROPER, state[i] + (int)type[i].LWB );
+            }
+        }
+        return new Value.DefStructured( v );
+    }
+
+    /** log P(var = state[var] | parents) */
+    protected double nodeLogP( Value.Vector y, int var, int[] state )
+    {
+        Value.Structured local = (Value.Structured)y.elt(var);
+        Value.Vector parents = (Value.Vector)local.cmpnt(1);
+        Value.Structured subMY = (Value.Structured)local.cmpnt(2);
+        Value[] parentArray = new Value[parents.length()];
+        for ( int j = 0; j < parentArray.length; j++ ) {
+            int p = parents.intAt(j);
+            parentArray[j] = new Value.Discrete( type[p], state[p] + (int)type[p].LWB );
+        }
+        Value.Discrete x = new Value.Discrete( type[var], state[var] + (int)type[var].LWB );
+        return ((Value.Model)subMY.cmpnt(0)).logP( x, subMY.cmpnt(1),
+                                                   new Value.DefStructured(parentArray) );
+    }
+
+    /**
+     * Brute force P(observed) summing over all joint states consistent with observed, ignoring
+     * the CPTs of intervened variables.
+     */
+    protected double bruteForceP( Value.Vector y, int[] observed, boolean[] intervened )
+    {
+        int n = observed.length;
+        int[] state = new int[n];
+        int[] max = new int[n];
+        for ( int i = 0; i < n; i++ ) { max[i] = (int)(type[i].UPB - type[i].LWB + 1); }
+        double total = 0;
+        do {
+            boolean consistent = true;
+            for ( int i = 0; i < n; i++ ) {
+                if ( observed[i] != -1 && observed[i] != state[i] ) { consistent = false; }
+            }
+            if ( consistent ) {
+                double logP = 0;
+                for ( int i = 0; i < n; i++ ) {
+                    if ( !intervened[i] ) { logP += nodeLogP( y, i, state ); }
+                }
+                total += Math.exp( logP );
+            }
+            BNet.incrementBitfield( state, max );
+        } while ( !allZero( state ) );
+        return total;
+    }
+
+    protected static boolean allZero( int[] x )
+    {
+        for ( int i = 0; i < x.length; i++ ) { if ( x[i] != 0 ) { return false; } }
+        return true;
+    }
+
+    /** Random evidence (state or -1) for each variable */
+    protected int[] randomStates( double pObserved )
+    {
+        int[] state = new int[type.length];
+        for ( int i = 0; i < state.length; i++ ) {
+            state[i] = rand.nextDouble() < pObserved ? rand.nextInt(2) : -1;
+        }
+        return state;
+    }
+
+    /** Test logP(query | evidence) with random queries and evidence. */
+    public final void testLogP() throws LearnerException
+    {
+        BNetExact bNet = new BNetExact( (Type.Structured)((Type.Vector)data.t).elt );
+        for ( int net = 0; net < 10; net++ ) {
+            Value.Vector y = randomParams();
+            for ( int q = 0; q < 20; q++ ) {
+                boolean[] intervened = new boolean[type.length];
+                int[] evidence = randomStates(0.3);
+                int[] query = randomStates(0.3);
+                for ( int i = 0; i < evidence.length; i++ ) {
+                    if ( evidence[i] != -1 ) {
+                        query[i] = evidence[i];
+                        intervened[i] = (q % 2 == 1) && rand.nextBoolean();
+                    }
+                }
+
+                double expected = Math.log( bruteForceP( y, query, intervened ) /
+                                            bruteForceP( y, evidence, intervened ) );
+                double logP = bNet.logP( makeStruct(query,intervened), y,
+                                         makeStruct(evidence,intervened) );
+                assertEquals( expected, logP, 1e-10 );
+            }
+
+            // Unconditional probability of full joint state.
+            int[] joint = randomStates(1.0);
+            BNet stochastic = new BNetStochastic( bNet.getDataType() );
+            Value.Structured x = makeStruct( joint, new boolean[joint.length] );
+            assertEquals( stochastic.logP( x, y, Value.TRIV ), bNet.logP( x, y, Value.TRIV ), 1e-10 );
+        }
+    }
+
+    /** Querying a value different to the evidence has probability 0. */
+    public final void testImpossible() throws LearnerException
+    {
+        BNetExact bNet = new BNetExact( (Type.Structured)((Type.Vector)data.t).elt );
+        Value.Vector y = randomParams();
+        int[] evidence = randomStates(0.0);
+        int[] query = randomStates(0.0);
+        evidence[0] = 0;
+        query[0] = 1;
+        boolean[] intervened = new boolean[type.length];
+        assertEquals( Double.NEGATIVE_INFINITY,
+                      bNet.logP( makeStruct(query,intervened), y, makeStruct(evidence,intervened) ),
+                      0 );
+    }
+
+    /** predict() should return the most probable joint state. */
+    public final void testPredict() throws LearnerException
+    {
+        BNetExact bNet = new BNetExact( (Type.Structured)((Type.Vector)data.t).elt );
+        for ( int net = 0; net < 10; net++ ) {
+            Value.Vector y = randomParams();
+            boolean[] intervened = new boolean[type.length];
+            int[] evidence = randomStates(0.3);
+
+            Value.Structured predicted =
+                (Value.Structured)bNet.predict( y, makeStruct(evidence,intervened) );
+            int[] state = new int[type.length];
+            for ( int i = 0; i < state.length; i++ ) {
+                state[i] = predicted.intCmpnt(i) - (int)type[i].LWB;
+                if ( evidence[i] != -1 ) { assertEquals( evidence[i], state[i] ); }
+            }
+            double pPredicted = bruteForceP( y, state, intervened );
+
+            // No state consistent with evidence may be more probable.
+            int[] other = new int[type.length];
+            int[] max = new int[type.length];
+            java.util.Arrays.fill( max, 2 );
+            do {
+                boolean consistent = true;
+                for ( int i = 0; i < other.length; i++ ) {
+                    if ( evidence[i] != -1 && evidence[i] != other[i] ) { consistent = false; }
+                }
+                if ( consistent ) {
+                    assertTrue( bruteForceP( y, other, intervened ) <= pPredicted * (1 + 1e-10) );
+                }
+                BNet.incrementBitfield( other, max );
+            } while ( !allZero( other ) );
+        }
+    }
+
+    /** Posterior marginals should match logP */
+    public final void testDistribution() throws LearnerException
+    {
+        BNetExact bNet = new BNetExact( (Type.Structured)((Type.Vector)data.t).elt );
+        Value.Vector y = randomParams();
+        boolean[] intervened = new boolean[type.length];
+        for ( int q = 0; q < 20; q++ ) {
+            int[] evidence = randomStates(0.5);
+            int target = rand.nextInt(type.length);
+            evidence[target] = -1;
+            Value.Structured z = makeStruct( evidence, intervened );
+
+            double[] dist = bNet.distribution( y, z, target );
+            for ( int s = 0; s < dist.length; s++ ) {
+                int[] query = evidence.clone();
+                query[target] = s;
+                assertEquals( Math.exp( bNet.logP( makeStruct(query,intervened), y, z ) ),
+                              dist[s], 1e-10 );
+            }
+        }
+    }
+}
@@ -59,6 +59,8 @@ public class TestCases extends TestCase
         TestSuite tSuite = new TestSuite(TestCases.class);
         tSuite.addTest( TestDTreeGenerator.suite() );
         tSuite.addTest( TestMLDTreeLearner.suite() );
+        tSuite.addTest( TestDTreeLearner.suite() );
+        tSuite.addTest( TestForcedSplitDTreeLearner.suite() );
         return tSuite;
     }
     
@@ -0,0 +1,176 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// JUnit test routines for DTreeLearner
+//
+
+// File: TestDTreeLearner.java
+// Author: rodo@dgs.monash.edu.au
+
+package camml.test.core.models.dTree;
+
+import java.util.Random;
+
+import junit.framework.*;
+
+import camml.core.library.ColumnarVector;
+import camml.core.library.DTreeSelectedVector;
+import camml.core.library.SelectedVector;
+import camml.core.models.ModelLearner;
+import camml.core.models.dTree.DTreeLearner;
+import camml.core.search.SearchDataCreator;
+import cdms.core.*;
+
+/**
+ * Tests for DTreeLearner and the row partitions it shares between splits.
+ */
+public class TestDTreeLearner extends TestCase {
+
+    public TestDTreeLearner(String name) { super(name); }
+    
+    public static Test suite() 
+    {
+        return new TestSuite( TestDTreeLearner.class );        
+    }
+
+    /** Data used in tests */
+    protected Value.Vector data;
+    
+    protected void setUp() throws Exception { 
+        data = makeData();
+    }
+    
+    /** Create the dataset shared by the dTree tests. */
+    protected static Value.Vector makeData() {
+        return SearchDataCreator.generateWallaceKorbStyleDataset(new Random(123),1000,4,2,3);
+    }
+    
+    /** Static flag toggled by assertFlagUnchanged */
+    protected static abstract class Flag {
+        /** Set the flag, returning its previous value. */
+        public abstract boolean set( boolean value );
+    }
+    
+    /** 
+     * Learn trees for the first variable of vec with increasing sets of parents.  The cost and
+     * parameters found by parameterize() and the cost from parameterizeAndCost() are returned.
+     */
+    protected static String[] learnTrees( ModelLearner learner, Value.Vector vec ) 
+        throws Exception
+    {
+        int numVars = ((Type.Structured)((Type.Vector)vec.t).elt).cmpnts.length;
+        String[] result = new String[numVars];
+        for ( int i = 0; i < numVars; i++ ) {
+            int[] parents = new int[i];
+            for ( int j = 0; j < parents.length; j++ ) { parents[j] = numVars - 1 - j; }
+            Value.Vector x = vec.cmpnt(0);
+            Value.Vector z = (vec instanceof ColumnarVector) ?
+                ((ColumnarVector)vec).select(parents) : new SelectedVector(vec,null,parents);
+            
+            Value.Structured msy = learner.parameterize( Value.TRIV, x, z );
+            result[i] = learner.msyCost( msy ) + " " + msy.cmpnt(2) + " " +
+                learner.parameterizeAndCost( Value.TRIV, x, z );
+        }
+        return result;
+    }
+    
+    /** 
+     * Check learner finds the same trees from data with flag off as it does with flag on, 
+     * learning from both data and a columnar copy of it.
+     */
+    protected static void assertFlagUnchanged( ModelLearner learner, Value.Vector data, 
+                                               Flag flag ) throws Exception
+    {
+        boolean oldValue = flag.set( false );
+        try {
+            String[] expected = learnTrees( learner, data );
+            
+            flag.set( true );
+            String[] result = learnTrees( learner, data );
+            String[] columnarResult = learnTrees( learner, ColumnarVector.toColumnar(data) );
+            for ( int i = 0; i < expected.length; i++ ) {
+                assertEquals( expected[i], result[i] );
+                assertEquals( expected[i], columnarResult[i] );
+            }
+        } finally {
+            flag.set( oldValue );
+        }
+    }
+    
+    /** Sharing row partitions must not change the trees learned. */
+    public final void testPartitionCache() throws Exception 
+    {
+        assertFlagUnchanged( DTreeLearner.multinomialDTreeLearner, data, new Flag() {
+                public boolean set( boolean value ) {
+                    boolean old = DTreeSelectedVector.d_usePartitionCache;
+                    DTreeSelectedVector.d_usePartitionCache = value;
+                    return old;
+                }
+            } );
+    }
+    
+    /** Each dataset keeps its own partitions when splits of different datasets interleave. */
+    public final void testPartitionCacheScope() throws Exception 
+    {
+        ColumnarVector a = ColumnarVector.toColumnar( data );
+        ColumnarVector b = ColumnarVector.toColumnar( 
+            SearchDataCreator.generateWallaceKorbStyleDataset(new Random(124),1000,4,2,3) );
+        DTreeSelectedVector.d_splitVector( a.select(new int[] {1,2}), 0, true );
+        DTreeSelectedVector.d_splitVector( b.select(new int[] {1,2}), 0, true );
+        
+        assertSame( a.getPartitionCache(), a.select(new int[] {3}).getPartitionCache() );
+        assertNotSame( a.getPartitionCache(), b.getPartitionCache() );
+        assertNotNull( a.getPartitionCache().getPartition( new int[] {1} ) );
+        assertNotNull( b.getPartitionCache().getPartition( new int[] {1} ) );
+    }
+    
+    /** Splitting in a different order should select the same rows in the same order. */
+    public final void testSplitOrder() throws Exception 
+    {
+        Value.Vector x = data.cmpnt(0);
+        Value.Vector z = new SelectedVector( data, null, new int[] {1,2,3} );
+        DTreeSelectedVector[] a = DTreeSelectedVector.d_splitVector( z, 0, true );
+        DTreeSelectedVector[] b = DTreeSelectedVector.d_splitVector( z, 1, true );
+        for ( int i = 0; i < a.length; i++ ) {
+            // a[i] has columns {2,3}, b[j] has columns {1,3}
+            DTreeSelectedVector[] ab = a[i].d_split( 0, true );
+            for ( int j = 0; j < ab.length; j++ ) {
+                DTreeSelectedVector ba = b[j].d_split( 0, true )[i];
+                Value.Vector xab = ab[j].d_copyRowSplit( a[i].d_copyRowSplit(x) );
+                Value.Vector xba = ba.d_copyRowSplit( b[j].d_copyRowSplit(x) );
+                assertEquals( ab[j].length(), ba.length() );
+                for ( int k = 0; k < ab[j].length(); k++ ) {
+                    assertEquals( ab[j].cmpnt(0).intAt(k), ba.cmpnt(0).intAt(k) );
+                    assertEquals( xab.intAt(k), xba.intAt(k) );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// JUnit test routines for ForcedSplitDTreeLearner
+//
+
+// File: TestForcedSplitDTreeLearner.java
+// Author: rodo@dgs.monash.edu.au
+
+package camml.test.core.models.dTree;
+
+import junit.framework.*;
+
+import camml.core.library.SelectedVector;
+import camml.core.models.ModelLearner;
+import camml.core.models.dTree.DTreeCounts;
+import camml.core.models.dTree.ForcedSplitDTreeLearner;
+import camml.core.models.multinomial.MultinomialLearner;
+import cdms.core.*;
+
+/**
+ * Tests for ForcedSplitDTreeLearner.
+ */
+public class TestForcedSplitDTreeLearner extends TestCase {
+
+    public TestForcedSplitDTreeLearner(String name) { super(name); }
+    
+    public static Test suite() 
+    {
+        return new TestSuite( TestForcedSplitDTreeLearner.class );        
+    }
+
+    /** Data used in tests */
+    protected Value.Vector data;
+    
+    protected void setUp() throws Exception { 
+        data = TestDTreeLearner.makeData();
+    }
+
+    /** Learning from counts must give the same trees as splitting the data. */
+    public final void testCounts() throws Exception 
+    {
+        ModelLearner[] learner = { ForcedSplitDTreeLearner.multinomialDTreeLearner,
+                                   new ForcedSplitDTreeLearner( MultinomialLearner.multinomialLearner ) };
+        TestDTreeLearner.Flag useCounts = new TestDTreeLearner.Flag() {
+                public boolean set( boolean value ) {
+                    boolean old = ForcedSplitDTreeLearner.useCounts;
+                    ForcedSplitDTreeLearner.useCounts = value;
+                    return old;
+                }
+            };
+        for ( int i = 0; i < learner.length; i++ ) {
+            TestDTreeLearner.assertFlagUnchanged( learner[i], data, useCounts );
+        }
+    }
+    
+    /** Counts in each split should match the rows of data taking each value. */
+    public final void testSplitCounts() throws Exception 
+    {
+        Value.Vector z = new SelectedVector( data, null, new int[] {1,2,3} );
+        DTreeCounts counts = DTreeCounts.makeCounts( data.cmpnt(0), z );
+        double[] total = counts.getOutputCounts();
+        double sum = 0;
+        for ( int k = 0; k < total.length; k++ ) { sum += total[k]; }
+        assertEquals( data.length(), sum, 0 );
+        
+        DTreeCounts[] split = counts.split( 1 );
+        double[] splitTotal = new double[total.length];
+        int cells = 0;
+        for ( int v = 0; v < split.length; v++ ) {
+            double[] c = split[v].getOutputCounts();
+            for ( int k = 0; k < c.length; k++ ) { splitTotal[k] += c[k]; }
+            cells += split[v].getNumCells();
+        }
+        assertEquals( counts.getNumCells(), cells );
+        for ( int k = 0; k < total.length; k++ ) { assertEquals( total[k], splitTotal[k], 0 ); }
+        
+        // Tally the rows of data directly.
+        Value.Vector x = data.cmpnt(0);
+        Value.Vector y = z.cmpnt(1);
+        int xLwb = (int)((Type.Discrete)((Type.Vector)x.t).elt).LWB;
+        int yLwb = (int)((Type.Discrete)((Type.Vector)y.t).elt).LWB;
+        double[][] tally = new double[split.length][total.length];
+        for ( int r = 0; r < data.length(); r++ ) { 
+            tally[ y.intAt(r) - yLwb ][ x.intAt(r) - xLwb ]++; 
+        }
+        for ( int v = 0; v < split.length; v++ ) {
+            double[] c = split[v].getOutputCounts();
+            for ( int k = 0; k < c.length; k++ ) { assertEquals( tally[v][k], c[k], 0 ); }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+//
+// JUnit test routine for DualLearner and MultiLearner
+//
+
+// File: TestDualLearner.java
+// Author: rodo@dgs.monash.edu.au
+
+package camml.test.core.models.dual;
+
+import junit.framework.*;
+
+import cdms.core.*;
+import camml.core.library.SelectedVector;
+import camml.core.models.ModelLearner;
+import camml.core.models.ModelLearner.LearnerException;
+import camml.core.models.cpt.CPTLearner;
+import camml.core.models.dTree.ForcedSplitDTreeLearner;
+import camml.core.models.dual.DualLearner;
+import camml.core.models.dual.MultiLearner;
+import camml.core.search.SearchDataCreator;
+
+/**
+ * Check running candidate learners concurrently gives the same results as running them in turn.
+ */
+public class TestDualLearner extends TestCase
+{
+    public TestDualLearner(String name) { super(name); }
+    
+    public static Test suite() 
+    {
+        return new TestSuite(TestDualLearner.class);
+    }
+    
+    /** Cost and parameterize each node of a dataset with every parent set of size <= 2. */
+    protected String costAll( ModelLearner learner, Value.Vector data ) throws LearnerException
+    {
+        int numNodes = ((Value.Structured)data.elt(0)).length();
+        StringBuffer s = new StringBuffer();
+        for ( int child = 0; child < numNodes; child++ ) {
+            for ( int p1 = 0; p1 < numNodes; p1++ ) {
+                for ( int p2 = p1; p2 < numNodes; p2++ ) {
+                    if ( p1 == child || p2 == child ) { continue; }
+                    int[] parents = (p1 == p2) ? new int[] {p1} : new int[] {p1,p2};
+                    Value.Vector x = data.cmpnt(child);
+                    Value.Vector z = new SelectedVector( data, null, parents );
+                    s.append( learner.parameterizeAndCost( Value.TRIV, x, z ) + "\t" );
+                    s.append( learner.parameterize( Value.TRIV, x, z ) + "\n" );
+                }
+            }
+        }
+        return s.toString();
+    }
+    
+    /** Parallel and sequential learning must give identical results. */
+    public void testParallel() throws LearnerException
+    {
+        Value.Vector data = 
+            SearchDataCreator.generateWallaceKorbStyleDataset( new java.util.Random(123), 
+                                                               200, 2,2,2 );
+        ModelLearner dual = DualLearner.dualCPTDTreeLogitLearner;
+        // LogitLearner does not implement msyCost, so cannot be used by MultiLearner.
+        ModelLearner multi = 
+            new MultiLearner( new ModelLearner[] { CPTLearner.mmlAdaptiveCPTLearner,
+                                                   ForcedSplitDTreeLearner.multinomialDTreeLearner },
+                              null );
+        
+        boolean oldDualParallel = DualLearner.parallel;
+        boolean oldMultiParallel = MultiLearner.parallel;
+        try {
+            for ( ModelLearner learner : new ModelLearner[] { dual, multi } ) {
+                DualLearner.parallel = MultiLearner.parallel = false;
+                String sequential = costAll( learner, data );
+                DualLearner.parallel = MultiLearner.parallel = true;
+                assertEquals( sequential, costAll( learner, data ) );
+            }
+        } finally {
+            DualLearner.parallel = oldDualParallel;
+            MultiLearner.parallel = oldMultiParallel;
+        }
+    }
+}
@@ -39,6 +39,7 @@ package camml.test.core.models.logit;
 import java.util.Random;
 
 import junit.framework.*;
+import camml.core.library.ColumnarVector;
 import camml.core.library.WallaceRandom;
 import camml.core.models.ModelLearner.LearnerException;
 import camml.core.models.logit.JulesLogit;
@@ -88,6 +89,9 @@ public class TestLogit extends TestCase
         return new TestSuite(TestLogit.class);
     }
     
+    /** Print timing information */
+    public static boolean verbose = false;
+    
 
     /** Test each node individually in a disconnected network.
      *  Assert MML costs have not changed since original code written. */
@@ -238,4 +242,61 @@ public class TestLogit extends TestCase
         //Value.Vector data = Converter.load("/home/rodo/Repository/data/UCI/medium/letter.symbolic.arff",true,true);
         LogitLearner.logitBNetLearner.parameterize(Value.TRIV,data,data);
     }
+
+    /** 
+     * Warm started costs should be (almost) the same as cold started costs, and should not
+     * depend on the order parent sets are fitted in.
+     */
+    public void testWarmStart() throws Exception {
+        Random r = new WallaceRandom(new int[] {123,456});
+        Value.Vector data = SearchDataCreator.generateWallaceKorbStyleDataset( r, 1000, 2,2,2 );
+        int numVars = ((Type.Structured)((Type.Vector)data.t).elt).cmpnts.length;
+        
+        boolean oldWarmStart = LogitLearner.warmStart;
+        try {
+            double[][] cost = new double[3][];
+            long[] time = new long[3];
+            for (int run = 0; run < 3; run++) {
+                LogitLearner.warmStart = (run != 0);
+                // A new copy of the data so no previous fits are used.
+                ColumnarVector columnar = ColumnarVector.toColumnar(data);
+                cost[run] = new double[numVars*numVars];
+                time[run] = System.currentTimeMillis();
+                for (int c = 0; c < numVars; c++) {
+                    // The last run fits children and parent sets in reverse order.
+                    int child = (run == 2) ? numVars - 1 - c : c;
+                    for (int m = 0; m < numVars; m++) {
+                        int n = (run == 2) ? numVars - 1 - m : m;
+                        int[] parents = new int[n];
+                        for (int i = 0; i < n; i++) { parents[i] = (child + 1 + i) % numVars; }
+                        cost[run][child*numVars+n] = LogitLearner.logitLearner.parameterizeAndCost(
+                            Value.TRIV, columnar.cmpnt(child), columnar.select(parents));
+                    }
+                }
+                time[run] = System.currentTimeMillis() - time[run];
+            }
+            for (int i = 0; i < cost[0].length; i++) { 
+                assertEquals(cost[0][i], cost[1][i], 1e-3); 
+                assertEquals(cost[1][i], cost[2][i], 0); 
+            }
+            
+            if (verbose) {
+                System.out.println("cold = " + time[0] + "ms\twarm = " + time[1] + "ms" +
+                                   "\treversed = " + time[2] + "ms");
+            }
+        } finally {
+            LogitLearner.warmStart = oldWarmStart;
+        }
+        
+        // Starting at the optimum should converge quickly to the same parameters.
+        Value.Vector x = LogitFN.getX(node4,cdmsData);
+        Value.Vector z = LogitFN.getZ(node4,cdmsData);
+        JulesLogit cold = new JulesLogit();
+        cold.nodeCost(x,z);
+        JulesLogit warm = new JulesLogit();
+        warm.setInitialParams(cold.c,cold.d);
+        warm.nodeCost(x,z);
+        assertEquals(cold.getMMLCost(), warm.getMMLCost(), 1e-4);
+        assertTrue(warm.getIterations() < cold.getIterations());
+    }
 }
@@ -67,6 +67,7 @@ public class TestCases extends TestCase
         
         
         tSuite.addTest( TestTOM.suite() );
+        tSuite.addTest( TestNodeCache.suite() );
         
         return tSuite;
     }
@@ -92,6 +92,60 @@ public class TestGreedyLookaheadSearch extends TestCase
     }
     
     
+    /** Delta scoring without lookahead should match recosting the whole network. */
+    public void testDeltaCost()
+    {
+        Value.Vector dataset = 
+            SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),1000,2,2,2);
+        GreedyLookaheadSearch search = new GreedyLookaheadSearch( new java.util.Random(12345),
+                                                                  dataset, 0 );
+        while ( !search.isFinished() ) {
+            double cost = search.doEpoch();
+            if ( !search.isFinished() ) {
+                assertEquals( search.costNetwork( search.getMMLModelLearner(), false ), cost, 1e-8 );
+            }
+        }
+        assertTrue( search.getTOM().getNumEdges() > 0 );
+    }
+    
+    /** Parallel scoring and a wide beam should not change the search result. */
+    public void testParallelAndBeam()
+    {
+        Value.Vector dataset = 
+            SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),1000,1,2,2);
+        
+        String[] result = new String[3];
+        boolean oldParallel = GreedyLookaheadSearch.parallel;
+        try {
+            for ( int i = 0; i < result.length; i++ ) {
+                GreedyLookaheadSearch.parallel = (i != 0);
+                GreedyLookaheadSearch search = 
+                    new GreedyLookaheadSearch( new java.util.Random(12345), dataset, 2 );
+                if ( i == 2 ) { search.setOption( "beamWidth", new Value.Discrete(1000) ); }
+                new BlockingSearch( search ).start();
+                result[i] = search.getTOM().toString() + 
+                    search.costNetwork( search.getMMLModelLearner(), false );
+            }
+        } finally {
+            GreedyLookaheadSearch.parallel = oldParallel;
+        }
+        assertEquals( result[0], result[1] );
+        assertEquals( result[0], result[2] );
+    }
+    
+    /** A narrow beam should still find a network no worse than the empty network. */
+    public void testNarrowBeam()
+    {
+        Value.Vector dataset = 
+            SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),1000,1,2,2);
+        GreedyLookaheadSearch search = 
+            new GreedyLookaheadSearch( new java.util.Random(12345), dataset, 2 );
+        search.setOption( "beamWidth", new Value.Discrete(2) );
+        double emptyCost = search.costNetwork( search.getMMLModelLearner(), false );
+        new BlockingSearch( search ).start();
+        assertTrue( search.costNetwork( search.getMMLModelLearner(), false ) < emptyCost );
+    }
+    
     public void _testSearchInterface()
     {
         Value.Vector dataset = 
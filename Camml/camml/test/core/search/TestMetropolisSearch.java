@@ -111,6 +111,326 @@ public class TestMetropolisSearch extends TestCase
     }
     
     
+    /** Run a multi chain search and return the resulting MMLECs. */
+    protected Value.Vector runChains( Value.Vector dataset, int numChains ) {
+        MetropolisSearch met = new MetropolisSearch( new WallaceRandom(new int[] {123,456}), 
+                                                     dataset, SearchPackage.mlCPTLearner, 
+                                                     SearchPackage.mmlCPTLearner );
+        met.setOption( "searchFactor", new Value.Continuous(0.1) );
+        met.setOption( "numChains", new Value.Discrete(numChains) );
+        new BlockingSearch( met ).start();
+        return met.getResults();
+    }
+    
+    /** Multiple chains should give identical results for the same seed and chain count. */
+    public void testMultipleChains()
+    {
+        Value.Vector dataset = 
+            SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),100,2,2,3);
+        
+        Value.Vector results1 = runChains( dataset, 3 );
+        Value.Vector results2 = runChains( dataset, 3 );
+        assertTrue( results1.length() > 0 );
+        assertEquals( results1.toString(), results2.toString() );
+        
+        // Posteriors of merged SECs should not sum to more than 1.
+        double total = 0;
+        for ( int i = 0; i < results1.length(); i++ ) {
+            total += ((Value.Scalar)((Value.Structured)results1.elt(i)).cmpnt(1)).getContinuous();
+        }
+        assertTrue( total > 0 && total < 1.00001 );
+    }
+    
+    /** Rescaling weights only when required should not change posteriors. */
+    public void testLazyReweighting()
+    {
+        Value.Vector dataset =
+            SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),100,2,2,3);
+
+        double oldMaxLogWeight = MetropolisSearch.maxLogWeight;
+        Value.Vector eager, lazy;
+        try {
+            MetropolisSearch.maxLogWeight = 0;
+            eager = runChains( dataset, 1 );
+            MetropolisSearch.maxLogWeight = Double.POSITIVE_INFINITY;
+            lazy = runChains( dataset, 1 );
+        } finally {
+            MetropolisSearch.maxLogWeight = oldMaxLogWeight;
+        }
+
+        assertEquals( eager.length(), lazy.length() );
+        for ( int i = 0; i < eager.length(); i++ ) {
+            assertEquals( ((Value.Scalar)((Value.Structured)eager.elt(i)).cmpnt(1)).getContinuous(),
+                          ((Value.Scalar)((Value.Structured)lazy.elt(i)).cmpnt(1)).getContinuous(),
+                          1e-10 );
+        }
+    }
+
+    /** Native arc and ancestor frequencies should match summing over each TOM. */
+    public void testArcPosteriors()
+    {
+        Value.Vector dataset =
+            SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),100,2,2,3);
+        Value.Vector results = runChains( dataset, 1 );
+        int numNodes = ((Type.Structured)((Type.Vector)dataset.t).elt).cmpnts.length;
+
+        double[][] arc = new double[numNodes][numNodes];
+        double[][] ancestor = new double[numNodes][numNodes];
+        for ( int m = 0; m < results.length(); m++ ) {
+            MMLEC mmlec = ((MMLEC.MMLECStructure)results.elt(m)).getMMLEC();
+            for ( int s = 0; s < mmlec.length(); s++ ) {
+                SEC sec = mmlec.getSEC(s);
+                for ( int t = 0; t < sec.getNumTOMs(); t++ ) {
+                    TOM tom = sec.getTOM(t);
+                    double posterior = sec.getPosteriorOfTOM(t);
+                    for ( int i = 0; i < numNodes; i++ ) {
+                        for ( int j = 0; j < numNodes; j++ ) {
+                            if ( tom.isDirectedArc(j,i) ) { arc[i][j] += posterior; }
+                            if ( i != j && tom.isAncestor(j,i) ) { ancestor[i][j] += posterior; }
+                        }
+                    }
+                }
+            }
+        }
+
+        Value.Vector arcVec = (Value.Vector)MMLEC.arcPosteriors.apply( results );
+        Value.Vector ancestorVec = (Value.Vector)MMLEC.ancestorPosteriors.apply( results );
+        assertEquals( numNodes, arcVec.length() );
+        for ( int i = 0; i < numNodes; i++ ) {
+            for ( int j = 0; j < numNodes; j++ ) {
+                assertEquals( arc[i][j], ((Value.Vector)arcVec.elt(i)).doubleAt(j), 1e-10 );
+                assertEquals( ancestor[i][j], ((Value.Vector)ancestorVec.elt(i)).doubleAt(j), 1e-10 );
+                assertTrue( ancestor[i][j] >= arc[i][j] - 1e-10 );
+            }
+        }
+    }
+
+    /** A deserialized SEC should still find the TOMs it contains. */
+    public void testSerializedSEC() throws Exception
+    {
+        Value.Vector dataset =
+            SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),100,2,2,3);
+        Value.Vector results = runChains( dataset, 1 );
+        SEC sec = ((MMLEC.MMLECStructure)results.elt(0)).getMMLEC().getSEC(0);
+        
+        // Search components which are not serializable are not required to merge SECs.
+        sec.caseInfo.tomCleaner = null;
+        sec.caseInfo.tomCoster = null;
+
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        java.io.ObjectOutputStream out = new java.io.ObjectOutputStream( bytes );
+        out.writeObject( sec );
+        out.close();
+        SEC copy = (SEC)new java.io.ObjectInputStream(
+            new java.io.ByteArrayInputStream( bytes.toByteArray() ) ).readObject();
+
+        // Merging a SEC into a copy of itself should not add any new TOMs.
+        copy.merge( sec );
+        assertEquals( sec.getNumTOMs(), copy.getNumTOMs() );
+    }
+
+    /** The data cost reported for each TOM should be that TOM's cost after sorting. */
+    public void testSortedDataCost() throws Exception
+    {
+        Value.Vector dataset =
+            SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),100,2,2,3);
+        Value.Vector results = runChains( dataset, 1 );
+        int numTOMs = 0;
+        for ( int i = 0; i < results.length(); i++ ) {
+            MMLEC mmlec = ((MMLEC.MMLECStructure)results.elt(i)).getMMLEC();
+            for ( int j = 0; j < mmlec.length(); j++ ) {
+                SEC sec = mmlec.getSEC(j);
+                sec.sortTOMs();
+                for ( int k = 0; k < sec.getNumTOMs(); k++ ) {
+                    TOM tom = sec.getTOM(k);
+                    Value.Vector params = tom.makeParameters( sec.caseInfo.mmlModelLearner );
+                    double expected = -sec.caseInfo.bNet.logP( dataset, params, 
+                        new VectorFN.UniformVector(dataset.length(),Value.TRIV) );
+                    Value.Scalar cost = (Value.Scalar)
+                        new SECResultsVector.TOMStructure( sec, k ).cmpnt(9);
+                    assertEquals( expected, cost.getContinuous(), 0 );
+                    numTOMs++;
+                }
+            }
+        }
+        assertTrue( numTOMs > 1 );
+    }
+
+    /** Every row of the KL matrix should be reported, and results should be reproducible. */
+    public void testKLProgress()
+    {
+        Value.Vector dataset = 
+            SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),100,2,2,3);
+        
+        String[] results = new String[2];
+        for ( int rep = 0; rep < results.length; rep++ ) {
+            MetropolisSearch met = 
+                new MetropolisSearch( new WallaceRandom(new int[] {123,456}), dataset, 
+                                      SearchPackage.mlCPTLearner, SearchPackage.mmlCPTLearner );
+            met.setOption( "searchFactor", new Value.Continuous(0.1) );
+            final int[] rowsDone = new int[1];
+            final boolean[][] seen = new boolean[1][];
+            met.klProgress = new MetropolisSearch.KLProgress() {
+                    public synchronized void rowDone( int row, int numRows, long time ) {
+                        if ( seen[0] == null ) { seen[0] = new boolean[numRows]; }
+                        assertFalse( seen[0][row] );
+                        seen[0][row] = true;
+                        rowsDone[0]++;
+                    }
+                };
+            new BlockingSearch( met ).start();
+            results[rep] = met.getResults().toString();
+            
+            assertTrue( rowsDone[0] > 1 );
+            assertEquals( seen[0].length, rowsDone[0] );
+        }
+        assertEquals( results[0], results[1] );
+    }
+    
+    /** 
+     * Straightforward O(n^3) version of MetropolisSearch.findKLJoins.  At each step all
+     * pairs are checked and the first pair with the highest gain is joined.
+     */
+    protected static int[][] slowKLJoins( double[] relativePrior, int[] numArcs, double[][] kl,
+                                          boolean allowMergeToModelWithMoreArcs ) {
+        int n = relativePrior.length;
+        boolean[] alive = new boolean[n];
+        java.util.Arrays.fill( alive, true );
+        java.util.ArrayList<int[]> joins = new java.util.ArrayList<int[]>();
+        while ( true ) {
+            double bestGain = -1;
+            int bestI = -1, bestJ = -1;
+            for ( int i = 0; i < n; i++ ) {
+                for ( int j = 0; j < n; j++ ) {
+                    if ( i != j && alive[i] && alive[j] && 
+                         (numArcs[i] <= numArcs[j] || allowMergeToModelWithMoreArcs) ) {
+                        double p1 = relativePrior[i];
+                        double p2 = relativePrior[j];
+                        double p3 = p1 + p2;
+                        double before = -(p1 * Math.log(p1) + p2 * Math.log( p2 ));
+                        double after = -(p3 * Math.log(p3)) + p2 * kl[j][i];
+                        double gain = before - after;
+                        if ( gain > bestGain ) { bestGain = gain; bestI = i; bestJ = j; }
+                    }
+                }
+            }
+            if ( bestGain <= 0 ) { break; }
+            joins.add( new int[] {bestI,bestJ} );
+            relativePrior[bestI] += relativePrior[bestJ];
+            relativePrior[bestJ] = 0;
+            alive[bestJ] = false;
+        }
+        return joins.toArray( new int[joins.size()][] );
+    }
+    
+    /** Create a random KL matrix for n models, values are rounded to give ties. */
+    protected static double[][] randomKL( java.util.Random rand, int n ) {
+        double[][] kl = new double[n][n];
+        for ( int i = 0; i < n; i++ ) {
+            for ( int j = 0; j < n; j++ ) {
+                if ( i != j ) { kl[i][j] = rand.nextInt(20) * 0.02; }
+            }
+        }
+        return kl;
+    }
+    
+    /** Random relative priors, rounded to give ties. */
+    protected static double[] randomPrior( java.util.Random rand, int n ) {
+        double[] prior = new double[n];
+        for ( int i = 0; i < n; i++ ) { prior[i] = (1 + rand.nextInt(10)) / (double)n; }
+        return prior;
+    }
+    
+    /** Random numbers of arcs. */
+    protected static int[] randomArcs( java.util.Random rand, int n ) {
+        int[] arcs = new int[n];
+        for ( int i = 0; i < n; i++ ) { arcs[i] = rand.nextInt(5); }
+        return arcs;
+    }
+    
+    /** findKLJoins must join the same models in the same order as a full search. */
+    public void testFindKLJoins()
+    {
+        java.util.Random rand = new java.util.Random(123);
+        for ( int rep = 0; rep < 50; rep++ ) {
+            int n = 1 + rand.nextInt(60);
+            double[][] kl = randomKL( rand, n );
+            double[] prior = randomPrior( rand, n );
+            int[] arcs = randomArcs( rand, n );
+            boolean allowMore = rand.nextBoolean();
+            
+            double[] prior2 = prior.clone();
+            int[][] expected = slowKLJoins( prior, arcs, kl, allowMore );
+            int[][] joins = MetropolisSearch.findKLJoins( prior2, arcs, kl, allowMore );
+            
+            assertEquals( expected.length, joins.length );
+            for ( int i = 0; i < joins.length; i++ ) {
+                assertTrue( java.util.Arrays.equals( expected[i], joins[i] ) );
+            }
+            assertTrue( java.util.Arrays.equals( prior, prior2 ) );
+        }
+    }
+    
+    /** findKLJoins should still match a full search when many models must be joined. */
+    public void testFindKLJoinsLarge()
+    {
+        java.util.Random rand = new java.util.Random(123);
+        int n = 150;
+        double[][] kl = randomKL( rand, n );
+        double[] prior = randomPrior( rand, n );
+        int[] arcs = randomArcs( rand, n );
+        
+        int[][] expected = slowKLJoins( prior.clone(), arcs, kl, false );
+        int[][] joins = MetropolisSearch.findKLJoins( prior.clone(), arcs, kl, false );
+        assertTrue( joins.length > n / 2 );
+        assertEquals( expected.length, joins.length );
+        for ( int i = 0; i < joins.length; i++ ) {
+            assertTrue( java.util.Arrays.equals( expected[i], joins[i] ) );
+        }
+    }
+    
+    /** MetropolisSearch with access to its clean TOM. */
+    protected static class CleanTOMSearch extends MetropolisSearch
+    {
+        public CleanTOMSearch( java.util.Random rand, Value.Vector data ) {
+            super( rand, data, SearchPackage.mlCPTLearner, SearchPackage.mmlCPTLearner );
+            printProgress = false;
+        }
+
+        /** Check incremental clean ML cost and clean TOM match recleaning from scratch. */
+        public void checkCleanTOM() {
+            double incrementalCost = currentMLCost;
+            TOM incremental = (TOM)cleantom.clone();
+            double fullCost = costNodes( mlModelLearner, true, null );
+            assertEquals( fullCost, incrementalCost, 1e-8 );
+            for ( int i = 0; i < numNodes; i++ ) {
+                assertEquals( cleantom.nodeAt(i), incremental.nodeAt(i) );
+                for ( int j = 0; j < numNodes; j++ ) {
+                    assertEquals( cleantom.isArc(i,j), incremental.isArc(i,j) );
+                }
+            }
+        }
+    }
+
+    /** Only nodes changed by a transformation should need recleaning. */
+    public void testIncrementalClean()
+    {
+        Value.Vector dataset =
+            SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),100,2,2,3);
+        CleanTOMSearch met = new CleanTOMSearch( new java.util.Random(123), dataset );
+        met.setArcProb( 0.3 );
+        met.updateCosts( null );
+
+        int accepted = 0;
+        for ( int i = 0; i < 500; i++ ) {
+            if ( met.doTransform() ) {
+                met.checkCleanTOM();
+                accepted ++;
+            }
+        }
+        assertTrue( accepted > 0 );
+    }
+
     /** 
      * Test main function. <br>
      * Useage : java camml.test.SearchPackage.TestMetropolisSearch datafile <br>
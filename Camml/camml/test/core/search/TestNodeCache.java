@@ -0,0 +1,260 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// JUnit test routine for NodeCache
+//
+
+// File: TestNodeCache.java
+// Author: rodo@dgs.monash.edu.au
+
+package camml.test.core.search;
+
+import java.util.ArrayList;
+
+import junit.framework.*;
+
+import cdms.core.*;
+import camml.core.search.*;
+
+/**
+ * Test NodeCache returns correct costs when shared between threads, when entries are
+ * evicted, when node hashes clash and when costs are reused from a persistent cache.
+ */
+public class TestNodeCache extends TestCase
+{
+    /** Data to cost nodes on. */
+    Value.Vector data;
+
+    /** All nodes with up to two parents. */
+    ArrayList<Node> nodeList;
+
+    public TestNodeCache(String name)
+    {
+        super(name);
+    }
+
+    protected void setUp()
+    {
+        data = SearchDataCreator.generateWallaceKorbStyleDataset( new java.util.Random(123),
+                                                                  1000, 2,2,2 );
+        int numNodes = ((Value.Structured)data.elt(0)).length();
+        nodeList = new ArrayList<Node>();
+        for ( int i = 0; i < numNodes; i++ ) {
+            nodeList.add( new Node(i) );
+            for ( int j = 0; j < numNodes; j++ ) {
+                if ( j == i ) { continue; }
+                Node node = new Node(i);
+                node.addParent(j);
+                nodeList.add( node );
+                for ( int k = j+1; k < numNodes; k++ ) {
+                    if ( k == i ) { continue; }
+                    Node node2 = new Node(i);
+                    node2.addParent(j);
+                    node2.addParent(k);
+                    nodeList.add( node2 );
+                }
+            }
+        }
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite(TestNodeCache.class);
+    }
+
+    /** Cost all nodes in nodeList from several threads at once. */
+    protected void costInParallel( final NodeCache cache, final double[] mml, final double[] ml,
+                                   int numThreads ) throws InterruptedException
+    {
+        final boolean[] failed = new boolean[numThreads];
+        Thread[] thread = new Thread[numThreads];
+        for ( int t = 0; t < numThreads; t++ ) {
+            final int offset = t;
+            thread[t] = new Thread() {
+                    public void run() {
+                        for ( int rep = 0; rep < 3; rep++ ) {
+                            for ( int n = 0; n < nodeList.size(); n++ ) {
+                                // Each thread walks the list from a different start point.
+                                int i = (n * 7 + offset * 13) % nodeList.size();
+                                Node node = nodeList.get(i);
+                                if ( cache.getMMLCost(node) != mml[i] ) { failed[offset] = true; }
+                                if ( cache.getMLCost(node) != ml[i] ) { failed[offset] = true; }
+                            }
+                        }
+                    }
+                };
+            thread[t].start();
+        }
+        for ( int t = 0; t < numThreads; t++ ) {
+            thread[t].join();
+            assertFalse( "Wrong cost returned by thread " + t, failed[t] );
+        }
+    }
+
+    /** Costs from a shared cache must match costs from an unshared cache. */
+    public void testConcurrentCosts() throws InterruptedException
+    {
+        NodeCache reference =
+            new NodeCache( data, SearchPackage.mmlCPTLearner, SearchPackage.mlCPTLearner );
+        double[] mml = new double[nodeList.size()];
+        double[] ml = new double[nodeList.size()];
+        for ( int i = 0; i < mml.length; i++ ) {
+            mml[i] = reference.getMMLCost( nodeList.get(i) );
+            ml[i] = reference.getMLCost( nodeList.get(i) );
+        }
+
+        // Large cache, every node should be inserted exactly once.
+        NodeCache cache =
+            new NodeCache( data, SearchPackage.mmlCPTLearner, SearchPackage.mlCPTLearner );
+        costInParallel( cache, mml, ml, 4 );
+        assertEquals( nodeList.size(), cache.getNumCacheEntries() );
+        assertEquals( 3 * 4 * nodeList.size(), cache.totalCostings.sum() );
+
+        // Tiny cache, entries are continually overwritten by other threads.
+        NodeCache smallCache =
+            new NodeCache( data, SearchPackage.mmlCPTLearner, SearchPackage.mlCPTLearner, 0.0 );
+        costInParallel( smallCache, mml, ml, 4 );
+        assertEquals( 16, smallCache.getCacheSize() );
+        assertTrue( smallCache.evictions.sum() > 0 );
+    }
+    
+    /** Nodes with identical hashes must not share cache entries. */
+    public void testHashClash()
+    {
+        NodeCache reference =
+            new NodeCache( data, SearchPackage.mmlCPTLearner, SearchPackage.mlCPTLearner );
+        NodeCache cache =
+            new NodeCache( data, SearchPackage.mmlCPTLearner, SearchPackage.mlCPTLearner ) {
+                protected long getHash( Node node ) { return 42; }
+            };
+        
+        for ( int rep = 0; rep < 2; rep++ ) {
+            for ( Node node : nodeList ) {
+                assertEquals( reference.getMMLCost(node), cache.getMMLCost(node), 0 );
+            }
+        }
+        assertTrue( cache.keyMismatch.sum() > 0 );
+        assertTrue( cache.evictions.sum() > 0 );
+    }
+    
+    /** A second NodeCache on the same data and learners should reuse stored costs. */
+    public void testPersistentCache() throws java.io.IOException
+    {
+        java.io.File dir = java.io.File.createTempFile( "nodeCache", "" );
+        dir.delete();
+        
+        NodeCache cache1 =
+            new NodeCache( data, SearchPackage.mmlCPTLearner, SearchPackage.mlCPTLearner );
+        cache1.usePersistentCache( dir );
+        assertNotNull( cache1.getPersistentCache() );
+        for ( Node node : nodeList ) { cache1.getMMLCost(node); }
+        assertEquals( nodeList.size(), cache1.totalLearnings.sum() );
+        
+        NodeCache cache2 =
+            new NodeCache( data, SearchPackage.mmlCPTLearner, SearchPackage.mlCPTLearner );
+        cache2.usePersistentCache( dir );
+        for ( Node node : nodeList ) {
+            assertEquals( cache1.getMMLCost(node), cache2.getMMLCost(node), 0 );
+        }
+        assertEquals( 0, cache2.totalLearnings.sum() );
+        assertEquals( nodeList.size(), cache2.fileHits.sum() );
+        
+        // Different learners must not share costs.
+        NodeCache cache3 =
+            new NodeCache( data, SearchPackage.mlCPTLearner, SearchPackage.mlCPTLearner );
+        cache3.usePersistentCache( dir );
+        assertTrue( cache3.getFingerprint() != cache1.getFingerprint() );
+        assertTrue( cache3.getPersistentCache() != cache1.getPersistentCache() );
+        cache3.close();
+        
+        // Costs must survive the file being closed by every user and reopened.
+        NodeCacheFile file = cache1.getPersistentCache();
+        cache1.close();
+        assertNull( cache1.getPersistentCache() );
+        cache2.close();
+        NodeCache cache4 =
+            new NodeCache( data, SearchPackage.mmlCPTLearner, SearchPackage.mlCPTLearner );
+        cache4.usePersistentCache( dir );
+        assertTrue( cache4.getPersistentCache() != file );
+        for ( Node node : nodeList ) {
+            assertEquals( cache1.getMMLCost(node), cache4.getMMLCost(node), 0 );
+        }
+        assertEquals( 0, cache4.totalLearnings.sum() );
+        cache4.close();
+        
+        for ( java.io.File f : dir.listFiles() ) { f.delete(); }
+        dir.delete();
+    }
+    
+    /** A serialised NodeCache should be recreated empty with the same data and learners. */
+    public void testSerialize() throws Exception
+    {
+        NodeCache cache =
+            new NodeCache( data, SearchPackage.mmlCPTLearner, SearchPackage.mlCPTLearner );
+        for ( Node node : nodeList ) { cache.getMMLCost(node); }
+        
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        java.io.ObjectOutputStream out = new java.io.ObjectOutputStream( bytes );
+        out.writeObject( cache );
+        out.close();
+        NodeCache copy = (NodeCache)new java.io.ObjectInputStream(
+            new java.io.ByteArrayInputStream( bytes.toByteArray() ) ).readObject();
+        
+        assertEquals( 0, copy.getNumCacheEntries() );
+        assertEquals( cache.maxCacheSize, copy.maxCacheSize );
+        for ( Node node : nodeList ) {
+            assertEquals( cache.getMMLCost(node), copy.getMMLCost(node), 0 );
+        }
+    }
+    
+    /** A search should close the persistent cache of the NodeCache it created. */
+    public void testSearchClose() throws java.io.IOException
+    {
+        java.io.File dir = java.io.File.createTempFile( "nodeCache", "" );
+        dir.delete();
+        
+        AnnealSearch search = new AnnealSearch( new java.util.Random(123), data, 
+                                                SearchPackage.mlCPTLearner, 
+                                                SearchPackage.mmlCPTLearner );
+        NodeCache cache = search.caseInfo.nodeCache;
+        cache.usePersistentCache( dir );
+        assertNotNull( cache.getPersistentCache() );
+        
+        // A search sharing the NodeCache must leave it open.
+        new AnnealSearch( new java.util.Random(123), search.caseInfo ).close();
+        assertNotNull( cache.getPersistentCache() );
+        
+        search.close();
+        assertNull( cache.getPersistentCache() );
+        
+        for ( java.io.File f : dir.listFiles() ) { f.delete(); }
+        dir.delete();
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// JUnit test routine for CDMSEngine remote map scheduler
+//
+
+// File: TestRemoteMap.java
+// Author: rodo@dgs.monash.edu.au
+
+package camml.test.plugin.rmi;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.CountDownLatch;
+
+import camml.plugin.rmi.CDMSEngine;
+import camml.plugin.rmi.CDMSEngine.FunctionRunnerInterface;
+import cdms.core.*;
+import junit.framework.*;
+
+/**
+ * Test CDMSEngine.RemoteMap3 using in process FunctionRunners.
+ */
+public class TestRemoteMap extends TestCase
+{
+    public TestRemoteMap(String name) { super(name); }
+    
+    public static Test suite() 
+    {
+        return new TestSuite(TestRemoteMap.class);
+    }
+    
+    /** 
+     * FunctionRunnerInterface which passes calls directly to an in process FunctionRunner 
+     * after an optional delay.
+     */
+    static class LocalRunner implements FunctionRunnerInterface {
+        /** FunctionRunner all calls are passed to. */
+        final CDMSEngine.FunctionRunner runner;
+        
+        /** Delay (ms) per call */
+        final long delay;
+        
+        /** Number of calls remaining before RemoteExceptions are thrown, -1 for never */
+        int failAfter;
+        
+        /** Number of calls to apply */
+        int numCalls = 0;
+        
+        /** Number of calls to apply which returned a result */
+        volatile int numReturned = 0;
+        
+        /** If set, calls block until gate is opened. */
+        CountDownLatch gate = null;
+        
+        LocalRunner( long delay, int failAfter ) throws RemoteException {
+            this.runner = new CDMSEngine.FunctionRunner();
+            this.delay = delay;
+            this.failAfter = failAfter;
+            runners.add( runner );
+        }
+        
+        public synchronized Value apply( Value.Function fn, Value v ) throws RemoteException {
+            if ( failAfter == 0 ) { throw new RemoteException("Server down"); }
+            if ( failAfter > 0 ) { failAfter--; }
+            numCalls++;
+            try { 
+                Thread.sleep( delay ); 
+                if ( gate != null ) { gate.await(); }
+            } catch ( InterruptedException e ) { }
+            Value result = runner.apply(fn,v);
+            numReturned++;
+            return result;
+        }
+        
+        public synchronized Value apply( Value v ) throws RemoteException { 
+            return runner.apply(v); 
+        }
+    }
+    
+    /** FunctionRunners created by LocalRunners, unexported after each test. */
+    static final java.util.List<CDMSEngine.FunctionRunner> runners = 
+        new java.util.ArrayList<CDMSEngine.FunctionRunner>();
+    
+    protected void tearDown() throws Exception {
+        for ( CDMSEngine.FunctionRunner runner : runners ) {
+            java.rmi.server.UnicastRemoteObject.unexportObject( runner, true );
+        }
+        runners.clear();
+    }
+    
+    /** Remote map over (local) runners which cannot be reconnected. */
+    static Value.Function makeMap( FunctionRunnerInterface[] runner, Value.Function fn ) {
+        String[] name = new String[runner.length];
+        for ( int i = 0; i < name.length; i++ ) { name[i] = "local" + i; }
+        return new CDMSEngine.RemoteMap3( runner, name, fn ) {
+            private static final long serialVersionUID = 1L;
+            protected FunctionRunnerInterface reconnect( int i ) { return null; }
+        };
+    }
+    
+    /** [0..19,0..19,...] of length n */
+    static Value.Vector iota( int n ) {
+        int[] x = new int[n];
+        for ( int i = 0; i < n; i++ ) { x[i] = i % 20; }
+        return new VectorFN.FastDiscreteVector( x );
+    }
+    
+    /** Check result[i] = fib(i%20) */
+    static void checkFib( Value.Vector result, int n ) {
+        assertEquals( n, result.length() );
+        for ( int i = 0; i < n; i++ ) {
+            assertEquals( CDMSEngine.fib.fibonacci(i % 20), result.intAt(i) );
+        }
+    }
+    
+    /** Results should be in order, and several elements should be sent per call. */
+    public void testBatching() throws Exception {
+        long oldRetryDelay = CDMSEngine.RemoteMap3.retryDelay;
+        CDMSEngine.RemoteMap3.retryDelay = 10;
+        try {
+            LocalRunner[] runner = { new LocalRunner(1,-1), new LocalRunner(1,-1), new LocalRunner(1,-1) };
+            Value.Vector result = (Value.Vector)makeMap( runner, CDMSEngine.fib ).apply( iota(100) );
+            checkFib( result, 100 );
+            
+            int numCalls = 0;
+            for ( int i = 0; i < runner.length; i++ ) { numCalls += runner[i].numCalls; }
+            assertTrue( "numCalls = " + numCalls, numCalls < 100 );
+        } finally {
+            CDMSEngine.RemoteMap3.retryDelay = oldRetryDelay;
+        }
+    }
+    
+    /** Elements sent to a failed server should be run elsewhere. */
+    public void testBrokenServer() throws Exception {
+        long oldRetryDelay = CDMSEngine.RemoteMap3.retryDelay;
+        CDMSEngine.RemoteMap3.retryDelay = 10;
+        try {
+            LocalRunner[] runner = { new LocalRunner(1,2), new LocalRunner(1,0), new LocalRunner(1,-1) };
+            FunctionRunnerInterface[] f = { runner[0], runner[1], null, runner[2] };
+            Value.Vector result = (Value.Vector)makeMap( f, CDMSEngine.fib ).apply( iota(50) );
+            checkFib( result, 50 );
+        } finally {
+            CDMSEngine.RemoteMap3.retryDelay = oldRetryDelay;
+        }
+    }
+    
+    /** 
+     * A stalled server should not hold up the map when speculation is enabled, all results
+     * should come from the other server.
+     */
+    public void testStraggler() throws Exception {
+        LocalRunner[] runner = { new LocalRunner(0,-1), new LocalRunner(1,-1) };
+        runner[0].gate = new CountDownLatch(1);
+        try {
+            Value.Vector result = (Value.Vector)makeMap( runner, CDMSEngine.fib ).apply( iota(10) );
+            checkFib( result, 10 );
+            assertEquals( 0, runner[0].numReturned );
+            assertTrue( runner[1].numReturned > 0 );
+        } finally {
+            runner[0].gate.countDown();
+        }
+    }
+    
+    /** Exceptions thrown by fn should be passed back to the caller. */
+    public void testException() throws Exception {
+        Value.Function fail = new Value.Function( new Type.Function(Type.DISCRETE,Type.DISCRETE) ) {
+                private static final long serialVersionUID = 1L;
+                public Value apply( Value v ) {
+                    if ( ((Value.Discrete)v).getDiscrete() == 7 ) {
+                        throw new IllegalStateException("seven");
+                    }
+                    return v;
+                }
+            };
+        LocalRunner[] runner = { new LocalRunner(1,-1), new LocalRunner(1,-1) };
+        try {
+            makeMap( runner, fail ).apply( iota(20) );
+            fail("Exception expected");
+        } catch ( IllegalStateException e ) {
+            assertEquals( "seven", e.getMessage() );
+        }
+    }
+}
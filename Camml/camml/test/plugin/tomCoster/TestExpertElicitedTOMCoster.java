@@ -1008,4 +1008,42 @@ public class TestExpertElicitedTOMCoster extends TestCase {
         //            assertEquals( r1.readLine(), r2.readLine() );
     }
 
+
+    /** Incremental costs must match the change in cost(tom) for each type of prior. */
+    public void testIncrementalCost() throws IOException {
+        String[] priors = new String[] {
+            "set {n = 8;}",
+            "set {n = 8; edPrior = 0.8;} ed {0 -> 2; 1 -> 3 4; 2 -> 5; 3 -> 5; 4 -> 7; 5 -> 6 7;}",
+            "set {n = 8; ktPrior = 0.8;} kt {0 <- 1 2; 5 <- 3 4; 6 <- 7; 7 <- 2;}",
+            "set {n = 8;} arcs {0 <- 1 0.9; 2 -> 0 0.75; 5 -- 3 0.6; 6 << 7 0.7;}",
+            "set {n = 8;} arcs {0 => 1 0.7; 1 => 0 0.2; 2 == 0 0.6; 7 => 3 0.8; 4 == 6 0.3;}",
+            "set {n = 8; ktPrior = 0.8;} kt {0 <- 1 2; 5 <- 3 4;} arcs {3 => 6 0.9; 7 -> 1 0.8;}",
+        };
+
+        for ( int p = 0; p < priors.length; p++ ) {
+            ExpertElicitedTOMCoster tc = 
+                new ExpertElicitedTOMCoster(0.4,new StringReader(priors[p]));
+            TOM tom = new TOM(8);
+            for ( int step = 0; step < 200; step++ ) {
+                int i = rand.nextInt(8);
+                int j = rand.nextInt(8);
+                if ( i == j ) { continue; }
+
+                TOM tom2 = (TOM)tom.clone();
+                double diff;
+                if ( rand.nextBoolean() ) {
+                    diff = tc.costToSwapOrder(tom,i,j);
+                    tom2.swapOrder(i,j,true);
+                }
+                else {
+                    diff = tc.costToToggleArc(tom,i,j);
+                    if ( tom2.isArc(i,j) ) { tom2.removeArc(i,j); } 
+                    else { tom2.addArc(i,j); }
+                }
+                assertEquals( priors[p], tc.cost(tom2) - tc.cost(tom), diff, 1e-8 );
+                tom = tom2;
+            }
+        }
+    }
+
 }
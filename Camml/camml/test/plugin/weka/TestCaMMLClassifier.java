@@ -0,0 +1,81 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// JUnit test routine for CaMMLClassifier
+//
+
+// File: TestCaMMLClassifier.java
+// Author: rodo@dgs.monash.edu.au
+
+package camml.test.plugin.weka;
+
+import weka.core.Instances;
+import junit.framework.*;
+import camml.plugin.weka.CaMMLClassifier;
+import camml.plugin.weka.Converter;
+import cdms.core.*;
+
+/**
+ * Test CaMMLClassifier batch classification.
+ */
+public class TestCaMMLClassifier extends TestCase
+{
+    public TestCaMMLClassifier(String name) { super(name); }
+    
+    public static Test suite() 
+    {
+        return new TestSuite(TestCaMMLClassifier.class);
+    }
+    
+    /** distributionsForInstances must match distributionForInstance for every row. */
+    public void testDistributionsForInstances() throws Exception
+    {
+        Value.Vector data = Converter.load("camml/test/mydat.cas",true,true);
+        Instances instances = Converter.vectorToInstances(data);
+        instances.setClassIndex(instances.numAttributes()-1);
+        
+        CaMMLClassifier classifier = new CaMMLClassifier();
+        classifier.setSearchMultiplier(0.1);
+        classifier.buildClassifier(instances);
+        
+        double[][] dist = classifier.distributionsForInstances(instances);
+        assertEquals( instances.numInstances(), dist.length );
+        for ( int i = 0; i < dist.length; i++ ) {
+            double[] expected = classifier.distributionForInstance(instances.instance(i));
+            assertEquals( expected.length, dist[i].length );
+            double total = 0;
+            for ( int j = 0; j < expected.length; j++ ) {
+                assertEquals( expected[j], dist[i][j], 1e-12 );
+                total += dist[i][j];
+            }
+            assertEquals( 1.0, total, 1e-10 );
+        }
+    }
+}
@@ -59,6 +59,7 @@ public class TestCases extends TestCase
         TestSuite tSuite = new TestSuite(TestCases.class);
         tSuite.addTest( TestConverter.suite() );
         tSuite.addTest( TestWekaLearner.suite() );
+        tSuite.addTest( TestCaMMLClassifier.suite() );
         return tSuite;
     }
     
@@ -39,6 +39,7 @@ package camml.test.plugin.weka;
 import weka.classifiers.functions.Logistic;
 import weka.core.Instances;
 import junit.framework.*;
+import camml.core.library.ColumnarVector;
 import camml.core.models.logit.JulesLogit;
 import camml.plugin.weka.Converter;
 import cdms.core.*;
@@ -122,4 +123,52 @@ public class TestConverter extends TestCase
         
         logistic.buildClassifier(instances);
     }
+
+    /** Compact single pass loading should give the same data as parsing with weka/RodoCammlIO. */
+    public void testCompactLoad() throws Exception
+    {
+        boolean compactLoad = Converter.compactLoad;
+        String[] files = { "camml/test/mydat.cas", "camml/test/letter.symbolic.arff",
+                           "camml/test/iris.arff" };
+        try {
+            for ( String file : files ) {
+                Converter.compactLoad = false;
+                Value.Vector expected = Converter.load( file, true, true );
+                Converter.compactLoad = true;
+                Value.Vector vec = Converter.load( file, true, true );
+                
+                assertEquals( expected.t.toString(), vec.t.toString() );
+                assertEquals( expected.length(), vec.length() );
+                int numCmpnts = ((Type.Structured)((Type.Vector)vec.t).elt).cmpnts.length;
+                for ( int i = 0; i < numCmpnts; i++ ) {
+                    for ( int j = 0; j < vec.length(); j++ ) {
+                        assertEquals( expected.cmpnt(i).elt(j), vec.cmpnt(i).elt(j) );
+                    }
+                }
+            }
+            
+            // iris is numeric so must be read (and discretized) by weka.
+            assertNull( Converter.loadEncodedArff( new java.io.File(files[2]) ) );
+        } finally {
+            Converter.compactLoad = compactLoad;
+        }
+    }
+    
+    /** Nominal instances should be converted to a ColumnarVector with the same values. */
+    public void testInstancesToColumnar() throws Exception
+    {
+        Instances instances = Converter.vectorToInstances(cdmsData);
+        Value.Vector vec = Converter.instancesToVector(instances);
+        assertTrue( vec instanceof ColumnarVector );
+        assertEquals( cdmsData.length(), vec.length() );
+
+        for (int i = 0; i < numVars; i++) {
+            Type.Discrete type = (Type.Discrete)sType.cmpnts[i];
+            Value.Vector original = cdmsData.cmpnt(i);
+            Value.Vector column = vec.cmpnt(i);
+            for (int j = 0; j < vec.length(); j++) {
+                assertEquals( original.intAt(j) - (int)type.LWB, column.intAt(j) );
+            }
+        }
+    }
 }
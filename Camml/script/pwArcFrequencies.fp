@@ -1,3 +1,5 @@
+{ NOTE: CammlSearchPackage.pwArcFrequencies and CammlSearchPackage.pwAncestorFrequencies }
+{ calculate the same matrix natively and are much faster on large networks. }
 let
 	{ Standard operations }
 	head = lambda xx . elt xx 0,